@@ -1,11 +1,18 @@
 
 import service.GestionUtilisateur;
 import service.GestionFiche;
+import service.Sauvegardes;
 import service.ServeurAPI;
 
 public class Main {
 
     public static void main(String[] args) throws Exception {
+        // java Main restaurer [numero] / java Main verifier [numero] : serveur arrete (voir Sauvegardes)
+        if (args.length > 0 && (args[0].equals("restaurer") || args[0].equals("verifier"))) {
+            Integer numero = args.length > 1 ? Integer.valueOf(args[1]) : null;
+            System.exit(Sauvegardes.restaurer(numero, args[0].equals("verifier")) ? 0 : 1);
+        }
+
         GestionUtilisateur gestionUtilisateur = new GestionUtilisateur();
         GestionFiche gestionFiche = new GestionFiche(gestionUtilisateur);
 
@@ -96,7 +103,7 @@ public class Main {
         String mdp = scanner.nextLine().trim();
         var u = gestionUtilisateur.seConnecter(nom, mdp);
         if (u != null) {
-            gestionFiche.chargerFiches(u);
+            gestionFiche.chargerFichesSiBesoin(u);
             System.out.println("Connecte en tant que " + u.getNomUtilisateur());
         } else {
             System.out.println("Erreur : identifiants incorrects.");
@@ -0,0 +1,279 @@
+
+import model.FichePersonnage;
+import model.Statistique;
+import model.Utilisateur;
+import service.DiffusionEvenements;
+import service.EditionCollaborative;
+import service.GestionFiche;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Banc d'essai de l'edition collaborative (voir EditionCollaborative), sans serveur ni reseau :
+ *   java StressCollaboration [clients] [soumissions par client] [graine]   (8, 300, 42 par defaut)
+ *
+ * A lancer depuis un repertoire vide, comme StressFiches. Chaque client simule garde une replique
+ * de la fiche (texte de la biographie, valeur d'une statistique) a une revision souvent en
+ * retard : il fait ses operations (insertions, suppressions de texte, increments) sur cette
+ * replique perimee et les soumet avec sa revision ; le serveur les transforme. La replique
+ * n'avance qu'en rejouant, dans l'ordre des revisions, les operations diffusees par le serveur
+ * (ce que recoit un client par l'evenement SSE "operation"), parfois plusieurs d'un coup.
+ * Une revision trop ancienne pour etre transformee fait recharger la fiche, comme un vrai client.
+ *
+ * Verifie a la fin :
+ * - chaque replique, rattrapee jusqu'a la derniere revision, est identique a la fiche du serveur
+ * - la version de la fiche compte exactement les soumissions acceptees
+ * - la statistique vaut la somme de tous les increments acceptes (aucun increment perdu)
+ * - la fiche rechargee depuis le disque est celle en memoire
+ * Affiche le debit en operations (et soumissions) par seconde. Code de sortie 0 si tout est bon, 1 sinon.
+ */
+public class StressCollaboration {
+
+    private static final String STATISTIQUE = "force";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int soumissions = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long graine = args.length > 2 ? Long.parseLong(args[2]) : 42;
+
+        if (new File("data").exists()) {
+            System.out.println("Erreur : lancer depuis un repertoire sans dossier data/ (les fiches y sont ecrites).");
+            System.exit(1);
+        }
+
+        GestionUtilisateur gestionUtilisateur = new GestionUtilisateur();
+        GestionFiche gestionFiche = new GestionFiche(gestionUtilisateur);
+        EditionCollaborative edition = new EditionCollaborative(gestionFiche, new DiffusionEvenements());
+        Utilisateur utilisateur = gestionUtilisateur.creerCompte("collab", "collab");
+        gestionUtilisateur.seConnecter("collab", "collab");
+        gestionFiche.chargerFichesSiBesoin(utilisateur);
+        int idFiche = gestionFiche.creerFiche("Collaboration").getIdFichePersonnage();
+
+        // Operations diffusees par revision, en JSON (le contenu de l'evenement "operation")
+        Map<Long, String> diffusees = new ConcurrentHashMap<>();
+        EditionCollaborative.Resultat depart = edition.soumettre(utilisateur, utilisateur, idFiche, 0,
+            operations("[{\"type\":\"stat.ajouter\",\"nom\":\"" + STATISTIQUE + "\",\"valeur\":0}]"));
+        diffusees.put(depart.revision, EditionCollaborative.versJSON(depart.operations));
+        int idStat = gestionFiche.getFicheDe(utilisateur, idFiche).getStatistiques().getStatistiques().get(0).getIdStatistique();
+
+        AtomicLong acceptees = new AtomicLong(1);
+        AtomicLong operationsAcceptees = new AtomicLong();
+        AtomicLong increments = new AtomicLong();
+        AtomicInteger rechargements = new AtomicInteger();
+        // Revisions contre lesquelles chaque lot accepte a ete transforme (retard du client)
+        AtomicLong retards = new AtomicLong();
+        AtomicLong retardMax = new AtomicLong();
+        List<String> erreurs = java.util.Collections.synchronizedList(new ArrayList<>());
+        Replique[] repliques = new Replique[clients];
+
+        CountDownLatch signal = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int numero = c;
+            Replique replique = new Replique(depart.revision, "", idStat, 0);
+            repliques[c] = replique;
+            Thread client = new Thread(() -> {
+                Random hasard = new Random(graine * 31 + numero);
+                try {
+                    signal.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < soumissions; i++) {
+                    // Une fois sur deux seulement, le client rattrape ce qui a ete diffuse : il reste en retard
+                    if (hasard.nextBoolean()) replique.rattraper(diffusees, Long.MAX_VALUE);
+
+                    StringBuilder lot = new StringBuilder("[");
+                    int delta = 0;
+                    int nombre = 1 + hasard.nextInt(3);
+                    for (int o = 0; o < nombre; o++) {
+                        if (o > 0) lot.append(",");
+                        int tirage = hasard.nextInt(100);
+                        int longueur = replique.texte.length();
+                        if (tirage < 45) {
+                            lot.append("{\"type\":\"texte.inserer\",\"position\":").append(hasard.nextInt(longueur + 1))
+                                .append(",\"texte\":\"<").append(numero).append('.').append(i).append(">\"}");
+                        } else if (tirage < 70 && longueur > 0) {
+                            lot.append("{\"type\":\"texte.supprimer\",\"position\":").append(hasard.nextInt(longueur))
+                                .append(",\"longueur\":").append(1 + hasard.nextInt(4)).append("}");
+                        } else {
+                            int d = hasard.nextInt(21) - 10;
+                            delta += d;
+                            lot.append("{\"type\":\"stat.incrementer\",\"id\":").append(idStat).append(",\"delta\":").append(d).append("}");
+                        }
+                    }
+                    lot.append("]");
+
+                    // Operations faites sur une replique perimee : le serveur les transforme
+                    EditionCollaborative.Resultat resultat;
+                    try {
+                        resultat = edition.soumettre(utilisateur, utilisateur, idFiche, replique.revision, operations(lot.toString()));
+                    } catch (IllegalArgumentException e) {
+                        erreurs.add("client " + numero + " : lot refuse a la revision " + replique.revision + " : " + e.getMessage());
+                        continue;
+                    }
+                    if (resultat == null) {
+                        // Revision trop ancienne : le client recharge la fiche
+                        rechargements.incrementAndGet();
+                        replique.recharger(gestionFiche.getFicheDe(utilisateur, idFiche));
+                        continue;
+                    }
+                    diffusees.put(resultat.revision, EditionCollaborative.versJSON(resultat.operations));
+                    long retard = resultat.revision - 1 - replique.revision;
+                    retards.addAndGet(retard);
+                    retardMax.accumulateAndGet(retard, Math::max);
+                    acceptees.incrementAndGet();
+                    operationsAcceptees.addAndGet(nombre);
+                    increments.addAndGet(delta);
+                }
+            }, "client-" + c);
+            client.start();
+            threads.add(client);
+        }
+
+        long debut = System.nanoTime();
+        signal.countDown();
+        for (Thread client : threads) {
+            client.join();
+        }
+        long duree = System.nanoTime() - debut;
+
+        // Convergence : chaque replique rattrapee jusqu'a la derniere revision est la fiche du serveur
+        FichePersonnage fiche = gestionFiche.getFicheDe(utilisateur, idFiche);
+        Replique serveur = new Replique(0, "", idStat, 0);
+        serveur.recharger(fiche);
+        for (int c = 0; c < clients; c++) {
+            Replique replique = repliques[c];
+            replique.rattraper(diffusees, fiche.getVersion());
+            if (replique.revision != fiche.getVersion()) {
+                erreurs.add("client " + c + " arrete a la revision " + replique.revision + " au lieu de " + fiche.getVersion());
+            } else if (!replique.texte.toString().equals(serveur.texte.toString()) || replique.valeur != serveur.valeur) {
+                erreurs.add("client " + c + " diverge : \"" + abreger(replique.texte.toString()) + "\" / " + replique.valeur
+                    + ", serveur : \"" + abreger(serveur.texte.toString()) + "\" / " + serveur.valeur);
+            }
+        }
+        if (fiche.getVersion() != acceptees.get()) {
+            erreurs.add("fiche en version " + fiche.getVersion() + ", " + acceptees.get() + " soumission(s) acceptee(s)");
+        }
+        if (serveur.valeur != increments.get()) {
+            erreurs.add(STATISTIQUE + " vaut " + serveur.valeur + ", somme des increments acceptes : " + increments.get());
+        }
+
+        // Verification sur disque : un nouveau chargement retrouve la meme fiche
+        GestionUtilisateur relecture = new GestionUtilisateur();
+        GestionFiche relectureFiches = new GestionFiche(relecture);
+        Utilisateur relu = relecture.trouverParId(utilisateur.getIdUtilisateur());
+        relectureFiches.chargerFiches(relu);
+        FichePersonnage surDisque = relectureFiches.getFicheDe(relu, idFiche);
+        if (surDisque == null || surDisque.getVersion() != fiche.getVersion()
+                || !String.valueOf(surDisque.getBiographie().getTexteBiographie()).equals(serveur.texte.toString())) {
+            erreurs.add("fiche " + idFiche + " en version " + (surDisque == null ? null : surDisque.getVersion())
+                + " sur disque, " + fiche.getVersion() + " en memoire");
+        }
+
+        long total = (long) clients * soumissions;
+        System.out.println();
+        System.out.println("=== StressCollaboration : " + clients + " client(s) x " + soumissions + " soumission(s), graine " + graine + " ===");
+        System.out.println("Duree : " + duree / 1_000_000 + " ms, " + (operationsAcceptees.get() * 1_000_000_000L / Math.max(1, duree))
+            + " operation(s)/s, " + (total * 1_000_000_000L / Math.max(1, duree)) + " soumission(s)/s");
+        System.out.println("Retard des lots acceptes : " + retards.get() / Math.max(1, acceptees.get() - 1)
+            + " revision(s) en moyenne, " + retardMax.get() + " au plus");
+        System.out.println("Revisions : " + fiche.getVersion() + ", rechargements : " + rechargements.get()
+            + ", texte final : " + serveur.texte.length() + " caractere(s), " + STATISTIQUE + " = " + serveur.valeur);
+        if (erreurs.isEmpty()) {
+            System.out.println("OK : toutes les repliques convergent, aucun increment perdu, disque a jour.");
+            System.exit(0);
+        }
+        System.out.println(erreurs.size() + " erreur(s) :");
+        for (String erreur : erreurs.subList(0, Math.min(20, erreurs.size()))) {
+            System.out.println("  " + erreur);
+        }
+        System.exit(1);
+    }
+
+    private static List<EditionCollaborative.Operation> operations(String json) {
+        List<EditionCollaborative.Operation> operations = new ArrayList<>();
+        for (Object element : (List<?>) JsonUtils.lireJSON(json)) {
+            operations.add(EditionCollaborative.Operation.depuisJSON((Map<?, ?>) element));
+        }
+        return operations;
+    }
+
+    private static String abreger(String texte) {
+        return texte.length() <= 60 ? texte : texte.substring(0, 60) + "...";
+    }
+
+    /**
+     * Replique d'un client : le texte de la biographie et la statistique, a une revision.
+     * Appliquer une operation diffusee reproduit ce que fait le serveur (positions bornees au texte).
+     */
+    private static class Replique {
+        long revision;
+        StringBuilder texte;
+        final int idStat;
+        long valeur;
+
+        Replique(long revision, String texte, int idStat, long valeur) {
+            this.revision = revision;
+            this.texte = new StringBuilder(texte);
+            this.idStat = idStat;
+            this.valeur = valeur;
+        }
+
+        /**
+         * Rejoue les revisions diffusees qui suivent, jusqu'a la premiere pas encore diffusee ou jusqu'a "jusqua".
+         */
+        void rattraper(Map<Long, String> diffusees, long jusqua) {
+            String json;
+            while (revision < jusqua && (json = diffusees.get(revision + 1)) != null) {
+                for (Object element : (List<?>) JsonUtils.lireJSON(json)) {
+                    appliquer((Map<?, ?>) element);
+                }
+                revision++;
+            }
+        }
+
+        void recharger(FichePersonnage fiche) {
+            revision = fiche.getVersion();
+            String biographie = fiche.getBiographie().getTexteBiographie();
+            texte = new StringBuilder(biographie == null ? "" : biographie);
+            valeur = 0;
+            for (Statistique stat : fiche.getStatistiques().getStatistiques()) {
+                if (stat.getIdStatistique() == idStat) valeur = stat.getValeurStatistique();
+            }
+        }
+
+        private void appliquer(Map<?, ?> operation) {
+            int longueur = texte.length();
+            switch ((String) operation.get("type")) {
+                case "texte.inserer": {
+                    int position = (int) Math.max(0, Math.min((Long) operation.get("position"), longueur));
+                    texte.insert(position, (String) operation.get("texte"));
+                    break;
+                }
+                case "texte.supprimer": {
+                    long position = (Long) operation.get("position");
+                    int debut = (int) Math.max(0, Math.min(position, longueur));
+                    int fin = (int) Math.max(debut, Math.min(position + (Long) operation.get("longueur"), longueur));
+                    texte.delete(debut, fin);
+                    break;
+                }
+                case "stat.incrementer":
+                    if (((Long) operation.get("id")).intValue() == idStat) valeur += (Long) operation.get("delta");
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+
+import model.FichePersonnage;
+import model.Utilisateur;
+import service.ConflitVersionException;
+import service.GestionFiche;
+import service.GestionUtilisateur;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Banc d'essai de concurrence des fiches, sans serveur ni reseau :
+ *   java StressFiches [threads] [operations par thread] [graine]   (8, 300, 42 par defaut)
+ *
+ * A lancer depuis un repertoire vide : les comptes et fiches sont ecrits dans "data/" comme par
+ * le serveur. Chaque thread melange, sur les fiches d'un meme utilisateur, des ajouts de
+ * competences (noms uniques), des modifications conditionnelles (If-Match, voir
+ * GestionFiche.executerSiVersion), des creations et des clones ; un lecteur verifie en continu
+ * que la version d'une fiche ne recule jamais. La graine fixe le melange des operations de chaque
+ * thread (l'entrelacement reste celui de l'ordonnanceur).
+ *
+ * Verifie a la fin :
+ * - aucun id de fiche en double
+ * - chaque fiche est exactement a la version 0 + nombre de modifications reussies sur elle
+ * - aucune competence ajoutee n'est perdue
+ * - les fiches rechargees depuis le disque sont celles en memoire (memes versions)
+ * Code de sortie 0 si tout est bon, 1 sinon.
+ */
+public class StressFiches {
+
+    private static final int FICHES_INITIALES = 4;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long graine = args.length > 2 ? Long.parseLong(args[2]) : 42;
+
+        if (new File("data").exists()) {
+            System.out.println("Erreur : lancer depuis un repertoire sans dossier data/ (les fiches y sont ecrites).");
+            System.exit(1);
+        }
+
+        GestionUtilisateur gestionUtilisateur = new GestionUtilisateur();
+        GestionFiche gestionFiche = new GestionFiche(gestionUtilisateur);
+        Utilisateur utilisateur = gestionUtilisateur.creerCompte("stress", "stress");
+        gestionUtilisateur.seConnecter("stress", "stress");
+        gestionFiche.chargerFichesSiBesoin(utilisateur);
+        for (int i = 0; i < FICHES_INITIALES; i++) {
+            gestionFiche.creerFiche("Fiche " + i);
+        }
+
+        // Modifications reussies par fiche, competences ajoutees par fiche
+        Map<Integer, AtomicLong> modifications = new ConcurrentHashMap<>();
+        Map<Integer, Set<String>> competences = new ConcurrentHashMap<>();
+        AtomicInteger creations = new AtomicInteger();
+        AtomicInteger clones = new AtomicInteger();
+        AtomicInteger conflits = new AtomicInteger();
+        List<String> erreurs = java.util.Collections.synchronizedList(new ArrayList<>());
+
+        AtomicBoolean enCours = new AtomicBoolean(true);
+        Thread lecteur = new Thread(() -> {
+            Map<Integer, Long> vues = new java.util.HashMap<>();
+            while (enCours.get()) {
+                for (FichePersonnage fiche : utilisateur.getFiches()) {
+                    Long avant = vues.put(fiche.getIdFichePersonnage(), fiche.getVersion());
+                    if (avant != null && avant > fiche.getVersion()) {
+                        erreurs.add("fiche " + fiche.getIdFichePersonnage() + " revenue de la version " + avant + " a " + fiche.getVersion());
+                    }
+                }
+            }
+        }, "stress-lecteur");
+        lecteur.start();
+
+        CountDownLatch depart = new CountDownLatch(1);
+        List<Thread> ecrivains = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int numero = t;
+            Thread ecrivain = new Thread(() -> {
+                Random hasard = new Random(graine * 31 + numero);
+                try {
+                    depart.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < operations; i++) {
+                    List<FichePersonnage> fiches = utilisateur.getFiches();
+                    int idFiche = fiches.get(hasard.nextInt(fiches.size())).getIdFichePersonnage();
+                    int tirage = hasard.nextInt(100);
+                    if (tirage < 60) {
+                        String nom = "t" + numero + "-" + i;
+                        if (gestionFiche.ajouterCompetence(idFiche, nom)) {
+                            modifications.computeIfAbsent(idFiche, k -> new AtomicLong()).incrementAndGet();
+                            competences.computeIfAbsent(idFiche, k -> ConcurrentHashMap.newKeySet()).add(nom);
+                        }
+                    } else if (tirage < 90) {
+                        long version = gestionFiche.versionCourante(idFiche);
+                        try {
+                            boolean ok = gestionFiche.executerSiVersion(version,
+                                () -> gestionFiche.modifierBiographie(idFiche, "t" + numero + " v" + version));
+                            if (ok) modifications.computeIfAbsent(idFiche, k -> new AtomicLong()).incrementAndGet();
+                        } catch (ConflitVersionException e) {
+                            conflits.incrementAndGet();
+                        }
+                    } else if (tirage < 95) {
+                        if (gestionFiche.creerFiche("t" + numero + "-" + i) != null) creations.incrementAndGet();
+                    } else {
+                        if (gestionFiche.clonerFiche(idFiche, null) != null) clones.incrementAndGet();
+                    }
+                }
+            }, "stress-" + t);
+            ecrivain.start();
+            ecrivains.add(ecrivain);
+        }
+
+        long debut = System.nanoTime();
+        depart.countDown();
+        for (Thread ecrivain : ecrivains) {
+            ecrivain.join();
+        }
+        long duree = System.nanoTime() - debut;
+        enCours.set(false);
+        lecteur.join();
+
+        // Verifications en memoire
+        List<FichePersonnage> fiches = utilisateur.getFiches();
+        Set<Integer> ids = new HashSet<>();
+        for (FichePersonnage fiche : fiches) {
+            int id = fiche.getIdFichePersonnage();
+            if (!ids.add(id)) erreurs.add("id de fiche " + id + " en double");
+            AtomicLong attendues = modifications.get(id);
+            long versionAttendue = attendues == null ? 0 : attendues.get();
+            if (fiche.getVersion() != versionAttendue) {
+                erreurs.add("fiche " + id + " en version " + fiche.getVersion() + ", " + versionAttendue + " modification(s) reussie(s)");
+            }
+            Set<String> ajoutees = competences.getOrDefault(id, Set.of());
+            if (!fiche.getCompetence().getCompetences().containsAll(ajoutees)) {
+                erreurs.add("fiche " + id + " : competence(s) perdue(s)");
+            }
+        }
+        int fichesAttendues = FICHES_INITIALES + creations.get() + clones.get();
+        if (fiches.size() != fichesAttendues) {
+            erreurs.add(fiches.size() + " fiche(s) au lieu de " + fichesAttendues);
+        }
+
+        // Verification sur disque : un nouveau chargement retrouve les memes versions
+        GestionUtilisateur relecture = new GestionUtilisateur();
+        GestionFiche relectureFiches = new GestionFiche(relecture);
+        Utilisateur relu = relecture.trouverParId(utilisateur.getIdUtilisateur());
+        relectureFiches.chargerFiches(relu);
+        Map<Integer, Long> versionsDisque = new java.util.HashMap<>();
+        for (FichePersonnage fiche : relu.getFiches()) {
+            versionsDisque.put(fiche.getIdFichePersonnage(), fiche.getVersion());
+        }
+        for (FichePersonnage fiche : fiches) {
+            Long surDisque = versionsDisque.remove(fiche.getIdFichePersonnage());
+            if (surDisque == null || surDisque != fiche.getVersion()) {
+                erreurs.add("fiche " + fiche.getIdFichePersonnage() + " en version " + surDisque + " sur disque, " + fiche.getVersion() + " en memoire");
+            }
+        }
+        if (!versionsDisque.isEmpty()) erreurs.add("fiche(s) " + versionsDisque.keySet() + " sur disque seulement");
+
+        long total = (long) threads * operations;
+        System.out.println();
+        System.out.println("=== StressFiches : " + threads + " thread(s) x " + operations + " operation(s), graine " + graine + " ===");
+        System.out.println("Duree : " + duree / 1_000_000 + " ms, " + (total * 1_000_000_000L / Math.max(1, duree)) + " operation(s)/s");
+        System.out.println("Fiches : " + fiches.size() + " (" + creations.get() + " creation(s), " + clones.get() + " clone(s))"
+            + ", conflits de version : " + conflits.get());
+        if (erreurs.isEmpty()) {
+            System.out.println("OK : ids uniques, versions exactes, aucune competence perdue, disque a jour.");
+            System.exit(0);
+        }
+        System.out.println(erreurs.size() + " erreur(s) :");
+        for (String erreur : erreurs.subList(0, Math.min(20, erreurs.size()))) {
+            System.out.println("  " + erreur);
+        }
+        System.exit(1);
+    }
+}
@@ -2,6 +2,9 @@ package model;
 
 public class Biographie extends Module {
 
+    // Fixe a la valeur calculee avant l'ajout de copier() pour relire les anciens .dat
+    private static final long serialVersionUID = 2889858368841415404L;
+
     private String texteBiographie;
 
     public Biographie(int positionX, int positionY, int largeur, int hauteur, String texteBiographie) {
@@ -13,6 +16,13 @@ public class Biographie extends Module {
         this.texteBiographie = texteBiographie;
     }
 
+    /**
+     * Copie du module, utilisee avant toute modification d'une fiche publiee.
+     */
+    public Biographie copier() {
+        return new Biographie(getPositionX(), getPositionY(), getLargeur(), getHauteur(), texteBiographie);
+    }
+
     public String getTexteBiographie() {
         return texteBiographie;
     }
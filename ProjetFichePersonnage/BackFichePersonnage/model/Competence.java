@@ -5,6 +5,9 @@ import java.util.List;
 
 public class Competence extends Module {
 
+    // Fixe a la valeur calculee avant l'ajout de copier() pour relire les anciens .dat
+    private static final long serialVersionUID = -7068466147074354157L;
+
     private List<String> competences;
 
     public Competence(int positionX, int positionY, int largeur, int hauteur) {
@@ -27,6 +30,20 @@ public class Competence extends Module {
         competences.remove(nomCompetence);
     }
 
+    public void remplacerCompetences(List<String> nouvelles) {
+        competences.clear();
+        competences.addAll(nouvelles);
+    }
+
+    /**
+     * Copie du module avec sa propre liste, utilisee avant toute modification d'une fiche publiee.
+     */
+    public Competence copier() {
+        Competence copie = new Competence(getPositionX(), getPositionY(), getLargeur(), getHauteur());
+        copie.competences.addAll(competences);
+        return copie;
+    }
+
     public List<String> getCompetences() {
         return competences;
     }
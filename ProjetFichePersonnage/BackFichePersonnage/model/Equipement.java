@@ -5,6 +5,9 @@ import java.util.List;
 
 public class Equipement extends Module {
 
+    // Fixe a la valeur calculee avant l'ajout de copier() pour relire les anciens .dat
+    private static final long serialVersionUID = 385922115835189361L;
+
     private List<String> equipements;
 
     public Equipement(int positionX, int positionY, int largeur, int hauteur) {
@@ -27,6 +30,20 @@ public class Equipement extends Module {
         equipements.remove(nomEquipement);
     }
 
+    public void remplacerEquipements(List<String> nouveaux) {
+        equipements.clear();
+        equipements.addAll(nouveaux);
+    }
+
+    /**
+     * Copie du module avec sa propre liste, utilisee avant toute modification d'une fiche publiee.
+     */
+    public Equipement copier() {
+        Equipement copie = new Equipement(getPositionX(), getPositionY(), getLargeur(), getHauteur());
+        copie.equipements.addAll(equipements);
+        return copie;
+    }
+
     public List<String> getEquipements() {
         return equipements;
     }
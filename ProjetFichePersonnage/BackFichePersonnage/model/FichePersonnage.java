@@ -3,6 +3,7 @@ package model;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FichePersonnage implements Serializable {
 
@@ -16,6 +17,27 @@ public class FichePersonnage implements Serializable {
     private Competence competence;
     private Equipement equipement;
     private List<ModulePersonnalise> modulesPersonnalises;
+    private long version;
+    // Identifiant aleatoire de cette version : un id de fiche peut etre reattribue apres une
+    // suppression, et la nouvelle fiche repasser par les memes numeros de version. Deux versions
+    // de meme id, meme numero et meme idVersion ont le meme contenu (sauvegardes, replication).
+    // 0 pour une fiche ecrite avant ce champ, jusqu'a sa prochaine version
+    private long idVersion = nouvelIdVersion();
+
+    // Dernier acces (lecture ou modification), pour le stockage froid : 0 si inconnu (ancien fichier)
+    private volatile long dernierAcces;
+    // Fiche archivee : seuls l'id, le nom, la version et un petit portrait restent en memoire,
+    // le reste est relu de l'archive a chaque acces (voir service.ArchivesFiches)
+    private ReferenceArchive archive;
+
+    // Modules deja copies dans cette version (non sauvegarde) : chacun n'est copie qu'une fois,
+    // meme si plusieurs operations d'un lot le modifient
+    private transient int modulesDetaches;
+    private static final int PORTRAIT = 1;
+    private static final int BIOGRAPHIE = 2;
+    private static final int STATISTIQUES = 4;
+    private static final int COMPETENCE = 8;
+    private static final int EQUIPEMENT = 16;
 
     public FichePersonnage(int idFichePersonnage, String nomFichePersonnage) {
         this.idFichePersonnage = idFichePersonnage;
@@ -26,14 +48,181 @@ public class FichePersonnage implements Serializable {
         this.competence = new Competence(0, 400, 300, 200);
         this.equipement = new Equipement(300, 400, 300, 200);
         this.modulesPersonnalises = new ArrayList<>();
+        this.dernierAcces = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructeur de copie : la nouvelle version partage les modules de la source.
+     */
+    private FichePersonnage(FichePersonnage source) {
+        // Par les accesseurs : la source peut etre une fiche archivee
+        this.idFichePersonnage = source.idFichePersonnage;
+        this.nomFichePersonnage = source.nomFichePersonnage;
+        this.portrait = source.getPortrait();
+        this.biographie = source.getBiographie();
+        this.statistiques = source.getStatistiques();
+        this.competence = source.getCompetence();
+        this.equipement = source.getEquipement();
+        this.modulesPersonnalises = new ArrayList<>(source.getModulesPersonnalises());
+        this.version = source.version + 1;
+        this.dernierAcces = System.currentTimeMillis();
+    }
+
+    /**
+     * Fiche archivee remplacant celle-ci en memoire : id, nom, version et date d'acces, plus le
+     * portrait s'il est leger (reference de blob) pour la liste des fiches.
+     */
+    public FichePersonnage archivee(ReferenceArchive reference) {
+        FichePersonnage stub = new FichePersonnage(idFichePersonnage, nomFichePersonnage);
+        Portrait p = getPortrait();
+        String image = p.getImagePortrait();
+        stub.portrait = image == null || image.length() <= 256 ? p : null;
+        stub.biographie = null;
+        stub.statistiques = null;
+        stub.competence = null;
+        stub.equipement = null;
+        stub.modulesPersonnalises = null;
+        stub.version = version;
+        stub.idVersion = idVersion;
+        stub.dernierAcces = dernierAcces;
+        stub.archive = reference;
+        return stub;
+    }
+
+    /**
+     * Fiche complete relue de l'archive (meme version), a publier a la place de la fiche archivee.
+     */
+    public FichePersonnage rehydrater() {
+        FichePersonnage complete = archive.lire();
+        complete.idVersion = idVersion;
+        complete.dernierAcces = System.currentTimeMillis();
+        return complete;
+    }
+
+    public boolean estArchivee() {
+        return archive != null;
+    }
+
+    public ReferenceArchive getArchive() {
+        return archive;
+    }
+
+    public long getDernierAcces() {
+        return dernierAcces;
+    }
+
+    public void marquerAcces() {
+        dernierAcces = System.currentTimeMillis();
+    }
+
+    /**
+     * Clone de la fiche : nouvelle fiche (id, nom, version 0) qui partage tous les modules
+     * de la source. Comme pour une nouvelle version, chaque cote copie un module a sa premiere
+     * modification ; un clone ne coute donc que l'objet fiche et sa liste de modules personnalises.
+     */
+    public FichePersonnage cloner(int idClone, String nomClone) {
+        FichePersonnage clone = new FichePersonnage(this);
+        clone.idFichePersonnage = idClone;
+        clone.nomFichePersonnage = nomClone;
+        clone.version = 0;
+        return clone;
+    }
+
+    /**
+     * Prepare la version suivante de la fiche (copie sur ecriture).
+     *
+     * Une fiche publiee n'est plus jamais modifiee : on modifie sa nouvelle version,
+     * qui partage les modules inchanges avec l'ancienne. Un module doit etre detache
+     * (detacherPortrait, detacherStatistiques...) avant d'etre modifie.
+     */
+    public FichePersonnage nouvelleVersion() {
+        return new FichePersonnage(this);
+    }
+
+    public Portrait detacherPortrait() {
+        if ((modulesDetaches & PORTRAIT) == 0) {
+            portrait = portrait.copier();
+            modulesDetaches |= PORTRAIT;
+        }
+        return portrait;
+    }
+
+    public Biographie detacherBiographie() {
+        if ((modulesDetaches & BIOGRAPHIE) == 0) {
+            biographie = biographie.copier();
+            modulesDetaches |= BIOGRAPHIE;
+        }
+        return biographie;
+    }
+
+    public Statistiques detacherStatistiques() {
+        if ((modulesDetaches & STATISTIQUES) == 0) {
+            statistiques = statistiques.copier();
+            modulesDetaches |= STATISTIQUES;
+        }
+        return statistiques;
+    }
+
+    public Competence detacherCompetence() {
+        if ((modulesDetaches & COMPETENCE) == 0) {
+            competence = competence.copier();
+            modulesDetaches |= COMPETENCE;
+        }
+        return competence;
+    }
+
+    public Equipement detacherEquipement() {
+        if ((modulesDetaches & EQUIPEMENT) == 0) {
+            equipement = equipement.copier();
+            modulesDetaches |= EQUIPEMENT;
+        }
+        return equipement;
+    }
+
+    /**
+     * Remplace tous les modules par des modules partages (voir Template.appliquerTemplate).
+     * Aucun n'est considere comme detache : la premiere modification de chacun le copiera.
+     */
+    void partagerModules(Portrait portrait, Biographie biographie, Statistiques statistiques,
+                         Competence competence, Equipement equipement, List<ModulePersonnalise> modulesPersonnalises) {
+        this.portrait = portrait;
+        this.biographie = biographie;
+        this.statistiques = statistiques;
+        this.competence = competence;
+        this.equipement = equipement;
+        this.modulesPersonnalises = new ArrayList<>(modulesPersonnalises);
+        this.modulesDetaches = 0;
+    }
+
+    /**
+     * Version passee d'une fiche, reconstruite par l'historique (voir HistoriqueFiches).
+     * Elle partage les modules donnes, qui ne doivent plus etre modifies.
+     */
+    public static FichePersonnage versionPassee(int idFichePersonnage, long version, String nom, Portrait portrait,
+                                                Biographie biographie, Statistiques statistiques, Competence competence,
+                                                Equipement equipement, List<ModulePersonnalise> modulesPersonnalises) {
+        FichePersonnage fiche = new FichePersonnage(idFichePersonnage, nom);
+        fiche.partagerModules(portrait, biographie, statistiques, competence, equipement, modulesPersonnalises);
+        fiche.version = version;
+        return fiche;
+    }
+
+    /**
+     * Reprend le nom et les modules d'une version passee (restauration) : la fiche garde
+     * son numero de version, la restauration est une version de plus.
+     */
+    public void restaurer(FichePersonnage passee) {
+        this.nomFichePersonnage = passee.nomFichePersonnage;
+        partagerModules(passee.getPortrait(), passee.getBiographie(), passee.getStatistiques(),
+            passee.getCompetence(), passee.getEquipement(), passee.getModulesPersonnalises());
     }
 
     public void modifierPortrait(String imagePortrait) {
-        this.portrait.modifierPortrait(imagePortrait);
+        detacherPortrait().modifierPortrait(imagePortrait);
     }
 
     public void modifierBiographie(String texteBiographie) {
-        this.biographie.modifierBiographie(texteBiographie);
+        detacherBiographie().modifierBiographie(texteBiographie);
     }
 
     public void modifierStatistiques(Statistiques statistiques) {
@@ -63,27 +252,74 @@ public class FichePersonnage implements Serializable {
         return nomFichePersonnage;
     }
 
+    /**
+     * Retourne les parties de la fiche qui different d'une version precedente.
+     * Les modules etant copies avant modification, un module inchange est la meme
+     * instance dans les deux versions : la comparaison est une simple comparaison de references.
+     * Noms possibles : nom, portrait, biographie, statistiques, competence, equipement, modulesPersonnalises.
+     */
+    public List<String> modulesModifiesDepuis(FichePersonnage ancienne) {
+        List<String> modifies = new ArrayList<>();
+        if (!nomFichePersonnage.equals(ancienne.nomFichePersonnage)) modifies.add("nom");
+        if (getPortrait() != ancienne.getPortrait()) modifies.add("portrait");
+        if (getBiographie() != ancienne.getBiographie()) modifies.add("biographie");
+        if (getStatistiques() != ancienne.getStatistiques()) modifies.add("statistiques");
+        if (getCompetence() != ancienne.getCompetence()) modifies.add("competence");
+        if (getEquipement() != ancienne.getEquipement()) modifies.add("equipement");
+
+        List<ModulePersonnalise> actuels = getModulesPersonnalises();
+        List<ModulePersonnalise> anciens = ancienne.getModulesPersonnalises();
+        boolean persoModifies = actuels.size() != anciens.size();
+        for (int i = 0; !persoModifies && i < actuels.size(); i++) {
+            persoModifies = actuels.get(i) != anciens.get(i);
+        }
+        if (persoModifies) modifies.add("modulesPersonnalises");
+        return modifies;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getIdVersion() {
+        return idVersion;
+    }
+
+    private static long nouvelIdVersion() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
     public Portrait getPortrait() {
+        if (portrait == null && archive != null) return archive.lire().portrait;
         return portrait;
     }
 
     public Biographie getBiographie() {
+        if (archive != null) return archive.lire().biographie;
         return biographie;
     }
 
     public Statistiques getStatistiques() {
+        if (archive != null) return archive.lire().statistiques;
         return statistiques;
     }
 
     public Competence getCompetence() {
+        if (archive != null) return archive.lire().competence;
         return competence;
     }
 
     public Equipement getEquipement() {
+        if (archive != null) return archive.lire().equipement;
         return equipement;
     }
 
     public List<ModulePersonnalise> getModulesPersonnalises() {
+        if (archive != null) return archive.lire().getModulesPersonnalises();
         if (modulesPersonnalises == null) {
             modulesPersonnalises = new java.util.ArrayList<>();
         }
@@ -11,6 +11,10 @@ public abstract class Module implements Serializable {
     private int largeur;
     private int hauteur;
 
+    // JSON du module, calcule au premier besoin (voir JsonUtils) : un module publie n'est plus
+    // modifie, un module modifie est une nouvelle instance, sans fragment
+    private transient volatile String fragmentJSON;
+
     public Module(int positionX, int positionY, int largeur, int hauteur) {
         this.positionX = positionX;
         this.positionY = positionY;
@@ -43,4 +47,12 @@ public abstract class Module implements Serializable {
     public int getHauteur() {
         return hauteur;
     }
+
+    public String getFragmentJSON() {
+        return fragmentJSON;
+    }
+
+    public void memoriserFragmentJSON(String fragmentJSON) {
+        this.fragmentJSON = fragmentJSON;
+    }
 }
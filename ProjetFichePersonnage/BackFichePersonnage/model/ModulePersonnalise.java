@@ -30,6 +30,19 @@ public class ModulePersonnalise extends Module implements Serializable {
         this(id, nom, "texte");
     }
 
+    /**
+     * Copie du module avec ses propres listes, utilisee avant toute modification d'une fiche publiee.
+     */
+    public ModulePersonnalise copier() {
+        ModulePersonnalise copie = new ModulePersonnalise(id, nom, type);
+        copie.modifierPosition(getPositionX(), getPositionY());
+        copie.modifierTaille(getLargeur(), getHauteur());
+        copie.contenuTexte = contenuTexte;
+        copie.contenuListe = new ArrayList<>(contenuListe);
+        copie.contenuStats = new ArrayList<>(contenuStats);
+        return copie;
+    }
+
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
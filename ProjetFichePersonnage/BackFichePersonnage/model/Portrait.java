@@ -2,6 +2,9 @@ package model;
 
 public class Portrait extends Module {
 
+    // Fixe a la valeur calculee avant l'ajout de copier() pour relire les anciens .dat
+    private static final long serialVersionUID = 2256980243805835318L;
+
     private String imagePortrait;
 
     public Portrait(int positionX, int positionY, int largeur, int hauteur, String imagePortrait) {
@@ -13,6 +16,13 @@ public class Portrait extends Module {
         this.imagePortrait = imagePortrait;
     }
 
+    /**
+     * Copie du module, utilisee avant toute modification d'une fiche publiee.
+     */
+    public Portrait copier() {
+        return new Portrait(getPositionX(), getPositionY(), getLargeur(), getHauteur(), imagePortrait);
+    }
+
     public String getImagePortrait() {
         return imagePortrait;
     }
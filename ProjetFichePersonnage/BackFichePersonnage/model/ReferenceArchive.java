@@ -0,0 +1,57 @@
+package model;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+
+/**
+ * Emplacement d'une fiche archivee (stockage froid, voir service.ArchivesFiches) :
+ * segment de l'utilisateur, position et longueur de l'entree dans le segment.
+ */
+public class ReferenceArchive implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Lit une fiche archivee ; installe par le service d'archives au demarrage.
+     */
+    public interface Lecteur {
+        FichePersonnage lire(ReferenceArchive reference) throws IOException;
+    }
+
+    private static volatile Lecteur lecteur;
+
+    private final int idUtilisateur;
+    private final long generation;
+    private final long position;
+    private final int longueur;
+
+    public ReferenceArchive(int idUtilisateur, long generation, long position, int longueur) {
+        this.idUtilisateur = idUtilisateur;
+        this.generation = generation;
+        this.position = position;
+        this.longueur = longueur;
+    }
+
+    public static void installerLecteur(Lecteur nouveauLecteur) {
+        lecteur = nouveauLecteur;
+    }
+
+    /**
+     * Fiche complete archivee a cet emplacement.
+     */
+    FichePersonnage lire() {
+        Lecteur l = lecteur;
+        if (l == null) throw new IllegalStateException("archives des fiches non disponibles");
+        try {
+            return l.lire(this);
+        } catch (IOException e) {
+            throw new UncheckedIOException("archive illisible (utilisateur " + idUtilisateur + ")", e);
+        }
+    }
+
+    public int getIdUtilisateur() { return idUtilisateur; }
+    public long getGeneration() { return generation; }
+    public long getPosition() { return position; }
+    public int getLongueur() { return longueur; }
+}
@@ -1,10 +1,5 @@
 package model;
 
-import javax.crypto.*;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.*;
-import java.security.*;
-
 public class Sauvegarde {
 
     private String cheminSauvegarde;
@@ -40,38 +35,5 @@ public class Sauvegarde {
         return estCrypter;
     }
 
-    //pour crypter et decrypter les fichier 
-    public static void chiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        
-        FileInputStream inputStream = new FileInputStream(inputFile);
-        byte[] inputBytes = new byte[(int) new File(inputFile).length()];
-        inputStream.read(inputBytes);
-
-        byte[] outputBytes = cipher.doFinal(inputBytes);
-
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(outputBytes);
-
-        inputStream.close();
-        outputStream.close();
-    }
-
-    public static void dechiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        
-        FileInputStream inputStream = new FileInputStream(inputFile);
-        byte[] inputBytes = new byte[(int) new File(inputFile).length()];
-        inputStream.read(inputBytes);
-
-        byte[] outputBytes = cipher.doFinal(inputBytes);
-
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(outputBytes);
-
-        inputStream.close();
-        outputStream.close();
-    }
+    // Chiffrement des fichiers : voir service.GestionSecurite (AES-GCM par blocs, cle par utilisateur)
 }
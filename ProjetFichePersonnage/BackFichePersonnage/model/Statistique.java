@@ -9,11 +9,19 @@ public class Statistique implements Serializable {
     private int idStatistique;
     private String nomStatistique;
     private int valeurStatistique;
+    // Formule de calcul (ex. "(Force - 10) / 2"), null pour une statistique saisie.
+    // Champ ajoute apres coup : absent des anciens .dat, il y est relu a null.
+    private String formule;
 
     public Statistique(int idStatistique, String nomStatistique, int valeurStatistique) {
+        this(idStatistique, nomStatistique, valeurStatistique, null);
+    }
+
+    public Statistique(int idStatistique, String nomStatistique, int valeurStatistique, String formule) {
         this.idStatistique = idStatistique;
         this.nomStatistique = nomStatistique;
         this.valeurStatistique = valeurStatistique;
+        this.formule = formule == null || formule.isBlank() ? null : formule;
     }
 
     public void modifierNomStatistique(String nomStatistique) {
@@ -35,4 +43,13 @@ public class Statistique implements Serializable {
     public int getValeurStatistique() {
         return valeurStatistique;
     }
+
+    public String getFormule() {
+        return formule;
+    }
+
+    /** Statistique calculee par une formule (sa valeur n'est pas saisie) */
+    public boolean estDerivee() {
+        return formule != null;
+    }
 }
@@ -5,6 +5,9 @@ import java.util.List;
 
 public class Statistiques extends Module {
 
+    // Fixe a la valeur calculee avant l'ajout de copier() pour relire les anciens .dat
+    private static final long serialVersionUID = -7992059250969016673L;
+
     private List<Statistique> statistiques;
 
     public Statistiques(int positionX, int positionY, int largeur, int hauteur) {
@@ -13,24 +16,74 @@ public class Statistiques extends Module {
     }
 
     public void ajouterStatistique(String nomStatistique, int valeurStatistique) {
+        ajouterStatistique(nomStatistique, valeurStatistique, null);
+    }
+
+    public void ajouterStatistique(String nomStatistique, int valeurStatistique, String formule) {
         int id = statistiques.size() + 1;
-        statistiques.add(new Statistique(id, nomStatistique, valeurStatistique));
+        statistiques.add(new Statistique(id, nomStatistique, valeurStatistique, formule));
     }
 
+    /**
+     * Modifie le nom et la valeur d'une statistique en gardant sa formule.
+     */
     public void modifierStatistique(int idStatistique, String nomStatistique, int valeurStatistique) {
         for (Statistique stat : statistiques) {
             if (stat.getIdStatistique() == idStatistique) {
-                stat.modifierNomStatistique(nomStatistique);
-                stat.modifierValeurStatistique(valeurStatistique);
+                modifierStatistique(idStatistique, nomStatistique, valeurStatistique, stat.getFormule());
+                return;
+            }
+        }
+    }
+
+    public void modifierStatistique(int idStatistique, String nomStatistique, int valeurStatistique, String formule) {
+        // On remplace la statistique au lieu de la modifier : l'ancienne instance
+        // peut etre partagee avec une version deja publiee de la fiche
+        for (int i = 0; i < statistiques.size(); i++) {
+            if (statistiques.get(i).getIdStatistique() == idStatistique) {
+                statistiques.set(i, new Statistique(idStatistique, nomStatistique, valeurStatistique, formule));
                 return;
             }
         }
     }
 
+    /**
+     * Remplace la valeur calculee de la statistique a cette position (statistiques derivees).
+     */
+    public void definirValeurCalculee(int position, int valeur) {
+        Statistique stat = statistiques.get(position);
+        statistiques.set(position, new Statistique(stat.getIdStatistique(), stat.getNomStatistique(), valeur, stat.getFormule()));
+    }
+
     public void supprimerStatistique(int idStatistique) {
         statistiques.removeIf(stat -> stat.getIdStatistique() == idStatistique);
     }
 
+    /**
+     * Remplace toute la liste (les id manquants, a 0, sont attribues a la suite).
+     */
+    public void remplacerStatistiques(List<Statistique> nouvelles) {
+        int idMax = 0;
+        for (Statistique stat : nouvelles) idMax = Math.max(idMax, stat.getIdStatistique());
+        statistiques.clear();
+        for (Statistique stat : nouvelles) {
+            if (stat.getIdStatistique() <= 0) {
+                stat = new Statistique(++idMax, stat.getNomStatistique(), stat.getValeurStatistique(), stat.getFormule());
+            }
+            statistiques.add(stat);
+        }
+    }
+
+    /**
+     * Copie du module avec sa propre liste, utilisee avant toute modification d'une fiche publiee.
+     * Les Statistique sont partagees : elles ne sont jamais modifiees sur place.
+     */
+    public Statistiques copier() {
+        Statistiques copie = new Statistiques(getPositionX(), getPositionY(), getLargeur(), getHauteur());
+        copie.statistiques.addAll(statistiques);
+        return copie;
+    }
+
     public List<Statistique> getStatistiques() {
         return statistiques;
     }
@@ -1,26 +1,91 @@
 package model;
 
-public class Template {
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Modele de fiche : disposition des modules, statistiques, competences, equipements et
+ * modules personnalises d'une fiche, reutilisables pour en creer de nouvelles.
+ * Le portrait et la biographie ne gardent que leur disposition (contenu vide).
+ *
+ * Un template n'est jamais modifie apres sa creation : les fiches creees a partir de lui
+ * partagent ses modules (aucune copie), et ne les copient qu'a leur premiere modification
+ * (copie sur ecriture, voir FichePersonnage.nouvelleVersion). Mille fiches issues d'un meme
+ * template tiennent en memoire une seule fois leurs modules inchanges ; le fichier de
+ * l'utilisateur les ecrit une seule fois (table des modules partages, voir service.FichierFiches)
+ * et les relit en une seule instance apres un redemarrage.
+ */
+public class Template implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int idTemplate;
     private String nomTemplate;
+    private Portrait portrait;
+    private Biographie biographie;
+    private Statistiques statistiques;
+    private Competence competence;
+    private Equipement equipement;
+    private List<ModulePersonnalise> modulesPersonnalises;
 
     public Template(int idTemplate, String nomTemplate) {
+        this(idTemplate, nomTemplate, new FichePersonnage(0, nomTemplate));
+    }
+
+    private Template(int idTemplate, String nomTemplate, FichePersonnage source) {
         this.idTemplate = idTemplate;
         this.nomTemplate = nomTemplate;
+
+        Portrait p = source.getPortrait();
+        this.portrait = new Portrait(p.getPositionX(), p.getPositionY(), p.getLargeur(), p.getHauteur(), "");
+        Biographie b = source.getBiographie();
+        this.biographie = new Biographie(b.getPositionX(), b.getPositionY(), b.getLargeur(), b.getHauteur(), "");
+
+        // Modules d'une fiche publiee : jamais modifies, donc partages tels quels
+        this.statistiques = source.getStatistiques();
+        this.competence = source.getCompetence();
+        this.equipement = source.getEquipement();
+        this.modulesPersonnalises = Collections.unmodifiableList(new ArrayList<>(source.getModulesPersonnalises()));
+    }
+
+    /**
+     * Cree un template a partir d'une fiche publiee (la fiche n'est pas modifiee).
+     */
+    public static Template creeTemplate(int idTemplate, String nomTemplate, FichePersonnage source) {
+        return new Template(idTemplate, nomTemplate, source);
     }
 
-    public static Template creeTemplate(int idFichePersonnage, String nomTemplate) {
-        return new Template(idFichePersonnage, nomTemplate);
+    /**
+     * Importe un template depuis un fichier ecrit par exporterTemplate.
+     * Retourne null si le fichier est illisible.
+     */
+    public static Template importerTemplate(String cheminFichier) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cheminFichier))) {
+            return (Template) ois.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.println("Erreur lors de l'import du template : " + e.getMessage());
+            return null;
+        }
     }
 
-    public static Template importerTemplate() {
-        // Logique d'importation de template depuis un fichier
-        return null;
+    public boolean exporterTemplate(String cheminFichier) {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(cheminFichier))) {
+            oos.writeObject(this);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Erreur lors de l'export du template : " + e.getMessage());
+            return false;
+        }
     }
 
+    /**
+     * Donne a une fiche les modules du template, partages et non copies.
+     * La fiche ne doit pas encore etre publiee (fiche neuve ou nouvelle version).
+     */
     public void appliquerTemplate(FichePersonnage fiche) {
-        // Logique d'application du template sur une fiche
+        fiche.partagerModules(portrait, biographie, statistiques, competence, equipement, modulesPersonnalises);
     }
 
     public int getIdTemplate() {
@@ -30,4 +95,20 @@ public class Template {
     public String getNomTemplate() {
         return nomTemplate;
     }
+
+    public Statistiques getStatistiques() {
+        return statistiques;
+    }
+
+    public Competence getCompetence() {
+        return competence;
+    }
+
+    public Equipement getEquipement() {
+        return equipement;
+    }
+
+    public List<ModulePersonnalise> getModulesPersonnalises() {
+        return modulesPersonnalises;
+    }
 }
@@ -3,6 +3,7 @@ package model;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Utilisateur implements Serializable {
 
@@ -11,30 +12,99 @@ public class Utilisateur implements Serializable {
     private int idUtilisateur;
     private String nomUtilisateur;
     private String motdepasse;
-    private List<FichePersonnage> fiches;
+    // Liste copiee a l'ecriture : un lecteur parcourt toujours un instantane complet
+    private volatile List<FichePersonnage> fiches;
 
     public Utilisateur(int idUtilisateur, String nomUtilisateur, String motdepasse) {
         this.idUtilisateur = idUtilisateur;
         this.nomUtilisateur = nomUtilisateur;
         this.motdepasse = motdepasse;
-        this.fiches = new ArrayList<>();
+        this.fiches = new CopyOnWriteArrayList<>();
     }
 
     public boolean verifierMotDePasse(String motdepasse) {
         return this.motdepasse.equals(motdepasse);
     }
 
-    public FichePersonnage creerFiche(String nomFichePersonnage) {
-        int id = fiches.size() + 1;
+    /**
+     * Les creations (creerFiche, creerFiches, clonerFiche) sont synchronisees sur l'utilisateur :
+     * deux creations simultanees ne peuvent pas calculer le meme id.
+     */
+    public synchronized FichePersonnage creerFiche(String nomFichePersonnage) {
+        int id = prochainIdFiche();
         FichePersonnage fiche = new FichePersonnage(id, nomFichePersonnage);
         fiches.add(fiche);
         return fiche;
     }
 
+    /**
+     * Cree d'un coup une fiche par nom, chacune a partir du template.
+     * Les fiches sont ajoutees en une seule copie de la liste (et non une copie par fiche).
+     */
+    public synchronized List<FichePersonnage> creerFiches(List<String> noms, Template template) {
+        int id = prochainIdFiche();
+        List<FichePersonnage> creees = new ArrayList<>(noms.size());
+        for (String nom : noms) {
+            FichePersonnage fiche = new FichePersonnage(id++, nom);
+            template.appliquerTemplate(fiche);
+            creees.add(fiche);
+        }
+        fiches.addAll(creees);
+        return creees;
+    }
+
+    /**
+     * Ajoute un clone de la fiche source (voir FichePersonnage.cloner).
+     */
+    public synchronized FichePersonnage clonerFiche(FichePersonnage source, String nomClone) {
+        int id = prochainIdFiche();
+        FichePersonnage clone = source.cloner(id, nomClone);
+        fiches.add(clone);
+        return clone;
+    }
+
+    private int prochainIdFiche() {
+        int id = 1;
+        for (FichePersonnage fiche : fiches) {
+            id = Math.max(id, fiche.getIdFichePersonnage() + 1);
+        }
+        return id;
+    }
+
     public void supprimerFiche(int idFichePersonnage) {
         fiches.removeIf(fiche -> fiche.getIdFichePersonnage() == idFichePersonnage);
     }
 
+    /**
+     * Publie la nouvelle version d'une fiche a la place de l'ancienne (meme id).
+     * Le remplacement est atomique pour les lecteurs de la liste.
+     */
+    public void remplacerFiche(FichePersonnage nouvelleVersion) {
+        int id = nouvelleVersion.getIdFichePersonnage();
+        fiches.replaceAll(fiche -> fiche.getIdFichePersonnage() == id ? nouvelleVersion : fiche);
+    }
+
+    /**
+     * Publie une fiche telle quelle (replication) : remplace celle de meme id, ou l'ajoute.
+     */
+    public synchronized void publierFiche(FichePersonnage fiche) {
+        int id = fiche.getIdFichePersonnage();
+        for (FichePersonnage existante : fiches) {
+            if (existante.getIdFichePersonnage() == id) {
+                remplacerFiche(fiche);
+                return;
+            }
+        }
+        fiches.add(fiche);
+    }
+
+    /**
+     * Remplace toutes les fiches d'un coup (chargement depuis le disque).
+     */
+    public void remplacerFiches(List<FichePersonnage> nouvellesFiches) {
+        this.fiches = new CopyOnWriteArrayList<>(nouvellesFiches);
+    }
+
     public int getIdUtilisateur() { return idUtilisateur; }
     public String getNomUtilisateur() { return nomUtilisateur; }
     public String getMotdepasse() { return motdepasse; }
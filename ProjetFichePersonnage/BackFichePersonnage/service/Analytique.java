@@ -0,0 +1,353 @@
+package service;
+
+import model.FichePersonnage;
+import model.ModulePersonnalise;
+import model.Statistique;
+import model.Utilisateur;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Statistiques globales sur les fiches de tous les utilisateurs (tableau de bord administrateur) :
+ * distribution de chaque statistique, competences et equipements les plus frequents,
+ * utilisation des modules, nombre de fiches par utilisateur.
+ *
+ * Le calcul lit les fichiers sauvegardes (fiches_{id}.dat, voir RepartitionDonnees) en parallele (fork-join, un
+ * fichier par tache) : chaque fichier est resume puis libere, seuls les resumes sont fusionnes.
+ * Il tourne dans son propre pool, jamais dans un thread de requete : la requete recoit le
+ * dernier rapport calcule, et declenche un nouveau calcul s'il a plus de
+ * "analytique.ttl.secondes" (300 par defaut).
+ */
+public class Analytique {
+
+    private static final int TOP = 20;
+    private static final int DISTRIBUTION_MAX = 50; // au-dela : valeurs regroupees en tranches
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionSecurite securite;
+    private final ForkJoinPool pool;
+    private final long dureeVieMs;
+
+    private volatile Rapport dernier;
+    private CompletableFuture<Void> calculEnCours;
+
+    public Analytique(GestionUtilisateur gestionUtilisateur, GestionSecurite securite) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.securite = securite;
+        this.pool = new ForkJoinPool(Configuration.entier("analytique.parallelisme",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        this.dureeVieMs = Configuration.entier("analytique.ttl.secondes", 300) * 1000L;
+    }
+
+    /**
+     * Un rapport calcule : son JSON, sa date et la duree du calcul.
+     */
+    public static class Rapport {
+        public final String json;
+        public final long calculeLe;
+        public final long dureeMs;
+
+        Rapport(String json, long calculeLe, long dureeMs) {
+            this.json = json;
+            this.calculeLe = calculeLe;
+            this.dureeMs = dureeMs;
+        }
+    }
+
+    /**
+     * Retourne le dernier rapport (null si aucun n'est encore calcule) sans jamais attendre.
+     * Lance un calcul en arriere-plan si le rapport est absent, perime ou si forcer est vrai.
+     */
+    public synchronized Rapport obtenir(boolean forcer) {
+        Rapport rapport = dernier;
+        boolean perime = rapport == null || System.currentTimeMillis() - rapport.calculeLe > dureeVieMs;
+        if ((perime || forcer) && calculEnCours == null) {
+            calculEnCours = CompletableFuture.runAsync(this::calculer, pool)
+                .whenComplete((r, e) -> {
+                    if (e != null) System.out.println("Erreur calcul des statistiques globales : " + e.getMessage());
+                    synchronized (this) {
+                        calculEnCours = null;
+                    }
+                });
+        }
+        return rapport;
+    }
+
+    public synchronized boolean calculEnCours() {
+        return calculEnCours != null;
+    }
+
+    public boolean estPerime(Rapport rapport) {
+        return System.currentTimeMillis() - rapport.calculeLe > dureeVieMs;
+    }
+
+    public void arreter() {
+        pool.shutdownNow();
+    }
+
+    private void calculer() {
+        long debut = System.currentTimeMillis();
+        List<Utilisateur> utilisateurs = new ArrayList<>(gestionUtilisateur.getUtilisateurs());
+        Agregat total = pool.invoke(new TacheFichiers(utilisateurs, 0, utilisateurs.size()));
+        long fin = System.currentTimeMillis();
+        dernier = new Rapport(total.versJSON(utilisateurs), fin, fin - debut);
+    }
+
+    // ===== Calcul =====
+
+    /**
+     * Resume les fichiers d'une tranche d'utilisateurs, en coupant la tranche en deux jusqu'a un fichier.
+     */
+    private class TacheFichiers extends RecursiveTask<Agregat> {
+        private static final long serialVersionUID = 1L;
+        private final List<Utilisateur> utilisateurs;
+        private final int debut;
+        private final int fin;
+
+        TacheFichiers(List<Utilisateur> utilisateurs, int debut, int fin) {
+            this.utilisateurs = utilisateurs;
+            this.debut = debut;
+            this.fin = fin;
+        }
+
+        protected Agregat compute() {
+            if (fin - debut <= 1) {
+                Agregat agregat = new Agregat();
+                if (fin > debut) lireFichier(utilisateurs.get(debut), agregat);
+                return agregat;
+            }
+            int milieu = (debut + fin) >>> 1;
+            TacheFichiers gauche = new TacheFichiers(utilisateurs, debut, milieu);
+            gauche.fork();
+            Agregat droite = new TacheFichiers(utilisateurs, milieu, fin).compute();
+            return gauche.join().fusionner(droite);
+        }
+    }
+
+    /**
+     * Resume le fichier de fiches d'un utilisateur. La lecture se fait sous le meme verrou que
+     * la sauvegarde : on ne lit jamais un fichier a moitie ecrit.
+     */
+    private void lireFichier(Utilisateur utilisateur, Agregat agregat) {
+        File fichier = RepartitionDonnees.localiser(utilisateur.getIdUtilisateur(), RepartitionDonnees.nomFiches(utilisateur.getIdUtilisateur()));
+        agregat.fichesParUtilisateur.put(utilisateur.getIdUtilisateur(), 0);
+        if (!fichier.exists()) return;
+
+        List<FichePersonnage> fiches;
+        synchronized (utilisateur) {
+            try (InputStream in = securite.dechiffrer(new FileInputStream(fichier), utilisateur.getIdUtilisateur())) {
+                FichierFiches.Lecture lecture = FichierFiches.lire(in);
+                // Fichier abime : on resume les fiches saines, la reparation est faite par GestionFiche
+                if (!lecture.integre()) System.out.println("Statistiques globales : fichier abime " + fichier + " (" + lecture.description() + ")");
+                fiches = lecture.fiches;
+            } catch (IOException e) {
+                System.out.println("Statistiques globales : fichier illisible " + fichier + " : " + e.getMessage());
+                return;
+            }
+        }
+        for (FichePersonnage fiche : fiches) {
+            agregat.ajouter(fiche);
+        }
+        agregat.fichesParUtilisateur.put(utilisateur.getIdUtilisateur(), fiches.size());
+    }
+
+    /**
+     * Resume fusionnable d'un ensemble de fiches.
+     */
+    private static class Agregat {
+        final Map<Integer, Integer> fichesParUtilisateur = new HashMap<>();
+        final Map<String, Distribution> statistiques = new HashMap<>();
+        final Map<String, Compteur> competences = new HashMap<>();
+        final Map<String, Compteur> equipements = new HashMap<>();
+        final Map<String, Integer> modules = new TreeMap<>();
+        final Map<String, Integer> modulesPersonnalises = new TreeMap<>();
+
+        void ajouter(FichePersonnage fiche) {
+            for (Statistique s : fiche.getStatistiques().getStatistiques()) {
+                statistiques.computeIfAbsent(RequeteFiches.cle(s.getNomStatistique()), c -> new Distribution(s.getNomStatistique().trim()))
+                    .ajouter(s.getValeurStatistique(), 1);
+            }
+            for (String c : fiche.getCompetence().getCompetences()) {
+                compter(competences, c, 1);
+            }
+            for (String e : fiche.getEquipement().getEquipements()) {
+                compter(equipements, e, 1);
+            }
+
+            // Modules standards utilises (non vides)
+            String image = fiche.getPortrait().getImagePortrait();
+            String texte = fiche.getBiographie().getTexteBiographie();
+            if (image != null && !image.isEmpty()) modules.merge("portrait", 1, Integer::sum);
+            if (texte != null && !texte.isEmpty()) modules.merge("biographie", 1, Integer::sum);
+            if (!fiche.getStatistiques().getStatistiques().isEmpty()) modules.merge("statistiques", 1, Integer::sum);
+            if (!fiche.getCompetence().getCompetences().isEmpty()) modules.merge("competence", 1, Integer::sum);
+            if (!fiche.getEquipement().getEquipements().isEmpty()) modules.merge("equipement", 1, Integer::sum);
+            for (ModulePersonnalise m : fiche.getModulesPersonnalises()) {
+                modulesPersonnalises.merge(m.getType() == null ? "" : m.getType(), 1, Integer::sum);
+            }
+        }
+
+        private static void compter(Map<String, Compteur> compteurs, String nom, int nombre) {
+            compteurs.computeIfAbsent(RequeteFiches.cle(nom), c -> new Compteur(nom.trim())).nombre += nombre;
+        }
+
+        Agregat fusionner(Agregat autre) {
+            fichesParUtilisateur.putAll(autre.fichesParUtilisateur);
+            for (Map.Entry<String, Distribution> entree : autre.statistiques.entrySet()) {
+                Distribution d = statistiques.get(entree.getKey());
+                if (d == null) {
+                    statistiques.put(entree.getKey(), entree.getValue());
+                } else {
+                    for (Map.Entry<Integer, Integer> v : entree.getValue().valeurs.entrySet()) d.ajouter(v.getKey(), v.getValue());
+                }
+            }
+            for (Map.Entry<String, Compteur> entree : autre.competences.entrySet()) {
+                competences.merge(entree.getKey(), entree.getValue(), (a, b) -> { a.nombre += b.nombre; return a; });
+            }
+            for (Map.Entry<String, Compteur> entree : autre.equipements.entrySet()) {
+                equipements.merge(entree.getKey(), entree.getValue(), (a, b) -> { a.nombre += b.nombre; return a; });
+            }
+            autre.modules.forEach((k, v) -> modules.merge(k, v, Integer::sum));
+            autre.modulesPersonnalises.forEach((k, v) -> modulesPersonnalises.merge(k, v, Integer::sum));
+            return this;
+        }
+
+        String versJSON(List<Utilisateur> utilisateurs) {
+            int totalFiches = 0;
+            for (int n : fichesParUtilisateur.values()) totalFiches += n;
+
+            StringBuilder json = new StringBuilder("{\"fiches\":").append(totalFiches)
+                .append(",\"utilisateurs\":[");
+            boolean premier = true;
+            for (Utilisateur u : utilisateurs) {
+                Integer nombre = fichesParUtilisateur.get(u.getIdUtilisateur());
+                if (nombre == null) continue;
+                if (!premier) json.append(",");
+                json.append("{\"id\":").append(u.getIdUtilisateur())
+                    .append(",\"nom\":\"").append(JsonUtils.echapper(u.getNomUtilisateur())).append("\"")
+                    .append(",\"fiches\":").append(nombre).append("}");
+                premier = false;
+            }
+
+            json.append("],\"statistiques\":[");
+            List<Distribution> distributions = new ArrayList<>(statistiques.values());
+            distributions.sort((a, b) -> Integer.compare(b.nombre, a.nombre));
+            for (int i = 0; i < distributions.size(); i++) {
+                json.append(distributions.get(i).versJSON());
+                if (i < distributions.size() - 1) json.append(",");
+            }
+
+            json.append("],\"competences\":").append(topVersJSON(competences))
+                .append(",\"equipements\":").append(topVersJSON(equipements))
+                .append(",\"modules\":").append(compteursVersJSON(modules))
+                .append(",\"modulesPersonnalises\":").append(compteursVersJSON(modulesPersonnalises))
+                .append("}");
+            return json.toString();
+        }
+
+        private static String topVersJSON(Map<String, Compteur> compteurs) {
+            List<Compteur> tries = new ArrayList<>(compteurs.values());
+            tries.sort((a, b) -> a.nombre != b.nombre ? Integer.compare(b.nombre, a.nombre) : a.nom.compareTo(b.nom));
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < Math.min(TOP, tries.size()); i++) {
+                if (i > 0) json.append(",");
+                json.append("{\"nom\":\"").append(JsonUtils.echapper(tries.get(i).nom)).append("\"")
+                    .append(",\"nombre\":").append(tries.get(i).nombre).append("}");
+            }
+            return json.append("]").toString();
+        }
+
+        private static String compteursVersJSON(Map<String, Integer> compteurs) {
+            StringBuilder json = new StringBuilder("{");
+            boolean premier = true;
+            for (Map.Entry<String, Integer> entree : compteurs.entrySet()) {
+                if (!premier) json.append(",");
+                json.append("\"").append(JsonUtils.echapper(entree.getKey())).append("\":").append(entree.getValue());
+                premier = false;
+            }
+            return json.append("}").toString();
+        }
+    }
+
+    private static class Compteur {
+        final String nom;
+        int nombre;
+
+        Compteur(String nom) {
+            this.nom = nom;
+        }
+    }
+
+    /**
+     * Distribution des valeurs d'une statistique (valeur -> nombre de fiches).
+     */
+    private static class Distribution {
+        final String nom;
+        final TreeMap<Integer, Integer> valeurs = new TreeMap<>();
+        int nombre;
+        long somme;
+
+        Distribution(String nom) {
+            this.nom = nom;
+        }
+
+        void ajouter(int valeur, int fois) {
+            valeurs.merge(valeur, fois, Integer::sum);
+            nombre += fois;
+            somme += (long) valeur * fois;
+        }
+
+        /** Valeur en dessous de laquelle se trouve la fraction donnee des fiches */
+        int quantile(double fraction) {
+            long rang = (long) Math.ceil(fraction * nombre);
+            long vus = 0;
+            for (Map.Entry<Integer, Integer> entree : valeurs.entrySet()) {
+                vus += entree.getValue();
+                if (vus >= rang) return entree.getKey();
+            }
+            return valeurs.lastKey();
+        }
+
+        String versJSON() {
+            StringBuilder json = new StringBuilder("{\"nom\":\"").append(JsonUtils.echapper(nom)).append("\"")
+                .append(",\"nombre\":").append(nombre)
+                .append(",\"min\":").append(valeurs.firstKey())
+                .append(",\"max\":").append(valeurs.lastKey())
+                .append(",\"moyenne\":").append(String.format(java.util.Locale.ROOT, "%.2f", (double) somme / nombre))
+                .append(",\"mediane\":").append(quantile(0.5))
+                .append(",\"p90\":").append(quantile(0.9))
+                .append(",\"distribution\":[");
+
+            if (valeurs.size() <= DISTRIBUTION_MAX) {
+                boolean premier = true;
+                for (Map.Entry<Integer, Integer> entree : valeurs.entrySet()) {
+                    if (!premier) json.append(",");
+                    json.append("{\"de\":").append(entree.getKey()).append(",\"a\":").append(entree.getKey())
+                        .append(",\"nombre\":").append(entree.getValue()).append("}");
+                    premier = false;
+                }
+            } else {
+                // Tranches de largeur egale entre min et max
+                long min = valeurs.firstKey();
+                long largeur = (valeurs.lastKey() - min) / DISTRIBUTION_MAX + 1;
+                for (long de = min; de <= valeurs.lastKey(); de += largeur) {
+                    int nombreTranche = 0;
+                    long a = Math.min(de + largeur - 1, valeurs.lastKey());
+                    for (int n : valeurs.subMap((int) de, true, (int) a, true).values()) nombreTranche += n;
+                    if (de > min) json.append(",");
+                    json.append("{\"de\":").append(de).append(",\"a\":").append(a)
+                        .append(",\"nombre\":").append(nombreTranche).append("}");
+                }
+            }
+            return json.append("]}").toString();
+        }
+    }
+}
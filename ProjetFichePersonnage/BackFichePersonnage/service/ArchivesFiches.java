@@ -0,0 +1,439 @@
+package service;
+
+import model.FichePersonnage;
+import model.ReferenceArchive;
+import model.Utilisateur;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stockage froid des fiches : une fiche sans acces (lecture ou modification) depuis
+ * "archives.jours" jours (0 : jamais) est compressee dans un segment d'archive et remplacee,
+ * en memoire comme dans le fichier de fiches, par une fiche archivee qui ne garde que l'id,
+ * le nom, la version et un portrait leger (voir FichePersonnage.archivee). La liste des fiches
+ * n'a besoin de rien d'autre ; tout autre acces relit l'archive, et GestionFiche rehydrate la
+ * fiche des qu'on l'ouvre ou la modifie.
+ *
+ * Segments : "archives/segment_{idUtilisateur}_{generation}.arc" parmi les fichiers de l'utilisateur
+ * (voir RepartitionDonnees ; "data/archives/" avant la repartition), une entree par fiche
+ * (fiche serialisee seule, compressee par Deflater puis chiffree comme les fiches). Chaque passe
+ * (toutes les "archives.intervalle" secondes) reecrit le segment d'un utilisateur dans une
+ * nouvelle generation : fiches deja archivees recopiees telles quelles, nouvelles fiches froides
+ * ajoutees, fiches rehydratees ou supprimees oubliees. La generation precedente est gardee une
+ * passe de plus pour les lectures en cours. La nouvelle generation est toujours ecrite dans la
+ * racine de l'utilisateur : apres l'ajout d'une racine, le segment y passe a la passe suivante.
+ *
+ * Dictionnaire : les fiches serialisees se ressemblent beaucoup (descripteurs de classes, noms
+ * de champs, modules par defaut) ; un dictionnaire Deflater commun, entraine sur les fiches en
+ * memoire, evite de repayer ces octets dans chaque entree. Commun a tous les utilisateurs, il
+ * est garde hors repartition dans "data/archives/dictionnaire_{adler32}.bin" et n'est jamais
+ * supprime : chaque entree designe le sien par sa somme Adler-32 (en-tete zlib). Chiffrement
+ * actif : le dictionnaire ne contiendrait pas de contenu en clair, il est alors construit sur
+ * une fiche vide.
+ *
+ * Seules les fiches des utilisateurs en memoire sont archivees (voir GestionFiche.getUtilisateursCharges).
+ */
+public class ArchivesFiches {
+
+    private static final String DOSSIER = "data/archives/";
+    private static final String SOUS_DOSSIER = "archives";
+    private static final byte[] MAGIQUE = { 'F', 'P', 'A', 'R' };
+    private static final int VERSION_FORMAT = 1;
+    private static final int TAILLE_DICTIONNAIRE = 32 * 1024;
+    private static final int ECHANTILLONS_MIN = 8;
+    private static final int ECHANTILLONS_MAX = 200;
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final GestionSecurite securite;
+    private final long ageMax;
+    private final int cacheMax;
+
+    // Generation courante et nombre d'entrees du segment de chaque utilisateur
+    private final Map<Integer, Long> generations = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> entrees = new ConcurrentHashMap<>();
+    // Dictionnaires connus par somme Adler-32, et celui des nouvelles entrees (null : pas encore entraine)
+    private final Map<Integer, byte[]> dictionnaires = new ConcurrentHashMap<>();
+    private volatile byte[] dictionnaireCourant;
+    // Dernieres fiches relues : une fiche archivee lue plusieurs fois de suite (JSON, index) n'est decompressee qu'une fois
+    private final LinkedHashMap<String, FichePersonnage> lues = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ScheduledExecutorService archivage = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "archives");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ArchivesFiches(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.securite = gestionFiche.getSecurite();
+        this.ageMax = Configuration.entier("archives.jours", 90) * 24L * 3600 * 1000;
+        this.cacheMax = Math.max(1, Configuration.entier("archives.cache", 64));
+        chargerSegments();
+        ReferenceArchive.installerLecteur(this::lire);
+        if (ageMax > 0) {
+            long intervalle = Math.max(1, Configuration.entier("archives.intervalle", 3600));
+            archivage.scheduleWithFixedDelay(this::archiverFichesFroides, intervalle, intervalle, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Arrete l'archivage periodique (une passe en cours se termine).
+     */
+    public void arreter() {
+        archivage.shutdown();
+        try {
+            archivage.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===== Lecture =====
+
+    /**
+     * Relit une fiche archivee (installe comme lecteur de ReferenceArchive).
+     */
+    FichePersonnage lire(ReferenceArchive reference) throws IOException {
+        String cle = reference.getIdUtilisateur() + ":" + reference.getGeneration() + ":" + reference.getPosition();
+        synchronized (lues) {
+            FichePersonnage fiche = lues.get(cle);
+            if (fiche != null) return fiche;
+        }
+
+        byte[] octets = lireBrut(reference);
+        byte[] serialisee = decompresser(securite.dechiffrer(new ByteArrayInputStream(octets), reference.getIdUtilisateur()).readAllBytes());
+        FichePersonnage fiche;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialisee))) {
+            fiche = (FichePersonnage) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("archive illisible : " + e.getMessage());
+        }
+
+        synchronized (lues) {
+            lues.put(cle, fiche);
+            if (lues.size() > cacheMax) lues.remove(lues.keySet().iterator().next());
+        }
+        return fiche;
+    }
+
+    private static byte[] lireBrut(ReferenceArchive reference) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(segment(reference.getIdUtilisateur(), reference.getGeneration()), "r")) {
+            in.seek(reference.getPosition());
+            byte[] octets = new byte[reference.getLongueur()];
+            in.readFully(octets);
+            return octets;
+        }
+    }
+
+    private static String nomSegment(int idUtilisateur, long generation) {
+        return SOUS_DOSSIER + "/segment_" + idUtilisateur + "_" + generation + ".arc";
+    }
+
+    private static File segment(int idUtilisateur, long generation) {
+        return RepartitionDonnees.localiser(idUtilisateur, nomSegment(idUtilisateur, generation));
+    }
+
+    // ===== Archivage =====
+
+    /**
+     * Passe d'archivage : archive les fiches froides de chaque utilisateur en memoire.
+     */
+    void archiverFichesFroides() {
+        long limite = System.currentTimeMillis() - ageMax;
+        for (int idUtilisateur : new ArrayList<>(gestionFiche.getUtilisateursCharges())) {
+            Utilisateur utilisateur = gestionUtilisateur.trouverParId(idUtilisateur);
+            if (utilisateur == null) continue;
+            try {
+                archiver(utilisateur, limite);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Erreur d'archivage des fiches de l'utilisateur " + idUtilisateur + " : " + e.getMessage());
+            }
+        }
+    }
+
+    private void archiver(Utilisateur utilisateur, long limite) throws IOException {
+        int idUtilisateur = utilisateur.getIdUtilisateur();
+        List<FichePersonnage> archivees = new ArrayList<>();
+        List<FichePersonnage> froides = new ArrayList<>();
+        for (FichePersonnage fiche : utilisateur.getFiches()) {
+            if (fiche.estArchivee()) {
+                archivees.add(fiche);
+            } else if (fiche.getDernierAcces() == 0) {
+                fiche.marquerAcces(); // fichier d'avant le stockage froid : l'age part d'aujourd'hui
+            } else if (fiche.getDernierAcces() < limite) {
+                froides.add(fiche);
+            }
+        }
+        // Rien de nouveau a archiver ni d'entree a oublier : le segment courant reste
+        Integer nombre = entrees.get(idUtilisateur);
+        if (froides.isEmpty() && (nombre == null || archivees.size() >= nombre)) return;
+
+        if (!froides.isEmpty() && dictionnaireCourant == null) entrainerDictionnaire();
+
+        long generation = generations.getOrDefault(idUtilisateur, 0L) + 1;
+        File fichier = RepartitionDonnees.cible(idUtilisateur, nomSegment(idUtilisateur, generation));
+        File temporaire = new File(fichier.getPath() + ".tmp");
+        fichier.getParentFile().mkdirs();
+
+        List<FichePersonnage[]> paires = new ArrayList<>();
+        try (FileOutputStream sortie = new FileOutputStream(temporaire);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sortie))) {
+            out.write(MAGIQUE);
+            out.writeInt(VERSION_FORMAT);
+            for (FichePersonnage fiche : archivees) {
+                byte[] octets = lireBrut(fiche.getArchive());
+                paires.add(new FichePersonnage[]{ fiche, fiche.archivee(new ReferenceArchive(idUtilisateur, generation, out.size(), octets.length)) });
+                out.write(octets);
+            }
+            for (FichePersonnage fiche : froides) {
+                ByteArrayOutputStream octets = new ByteArrayOutputStream();
+                try (OutputStream chiffre = securite.chiffrer(octets, idUtilisateur)) {
+                    chiffre.write(compresser(serialiser(fiche), dictionnaireCourant));
+                }
+                paires.add(new FichePersonnage[]{ fiche, fiche.archivee(new ReferenceArchive(idUtilisateur, generation, out.size(), octets.size())) });
+                octets.writeTo(out);
+            }
+            out.flush();
+            sortie.getFD().sync();
+        } catch (IOException e) {
+            temporaire.delete();
+            throw e;
+        }
+        if (!temporaire.renameTo(fichier)) {
+            fichier.delete();
+            if (!temporaire.renameTo(fichier)) throw new IOException("remplacement de " + fichier + " impossible");
+        }
+
+        int remplacees = gestionFiche.archiver(utilisateur, paires);
+        generations.put(idUtilisateur, generation);
+        entrees.put(idUtilisateur, paires.size());
+        supprimerSegmentsAvant(idUtilisateur, generation - 1);
+        System.out.println("Archivage : " + froides.size() + " fiche(s) froide(s) de l'utilisateur " + idUtilisateur
+            + ", " + remplacees + " fiche(s) archivee(s) en tout (" + fichier.length() + " octets).");
+    }
+
+    private static byte[] serialiser(FichePersonnage fiche) throws IOException {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(octets)) {
+            oos.writeObject(fiche);
+        }
+        return octets.toByteArray();
+    }
+
+    // ===== Compression =====
+
+    static byte[] compresser(byte[] donnees, byte[] dictionnaire) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionnaire != null) deflater.setDictionary(dictionnaire);
+            deflater.setInput(donnees);
+            deflater.finish();
+            ByteArrayOutputStream sortie = new ByteArrayOutputStream(donnees.length / 4 + 64);
+            byte[] tampon = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(tampon);
+                sortie.write(tampon, 0, n);
+            }
+            return sortie.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] decompresser(byte[] donnees) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(donnees);
+            ByteArrayOutputStream sortie = new ByteArrayOutputStream(donnees.length * 4);
+            byte[] tampon = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(tampon);
+                if (n > 0) {
+                    sortie.write(tampon, 0, n);
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionnaire(inflater.getAdler()));
+                } else if (inflater.needsInput()) {
+                    throw new EOFException("entree d'archive tronquee");
+                }
+            }
+            return sortie.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("entree d'archive corrompue : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // ===== Dictionnaire =====
+
+    private byte[] dictionnaire(int adler) throws IOException {
+        byte[] dictionnaire = dictionnaires.get(adler);
+        if (dictionnaire != null) return dictionnaire;
+        File fichier = fichierDictionnaire(adler);
+        if (!fichier.exists()) throw new FileNotFoundException("dictionnaire d'archive manquant : " + fichier);
+        try (InputStream in = new FileInputStream(fichier)) {
+            dictionnaire = in.readAllBytes();
+        }
+        dictionnaires.put(adler, dictionnaire);
+        return dictionnaire;
+    }
+
+    private static File fichierDictionnaire(int adler) {
+        return new File(DOSSIER + String.format("dictionnaire_%08x.bin", adler));
+    }
+
+    /**
+     * Entraine le dictionnaire des nouvelles entrees sur les fiches en memoire, ou sur une fiche
+     * vide si le chiffrement est actif. Pas assez de fiches : les entrees sont compressees sans
+     * dictionnaire, l'entrainement sera retente a la passe suivante.
+     */
+    private void entrainerDictionnaire() throws IOException {
+        byte[] dictionnaire;
+        if (securite.actif()) {
+            dictionnaire = serialiser(new FichePersonnage(0, ""));
+        } else {
+            List<byte[]> echantillons = new ArrayList<>();
+            for (int idUtilisateur : gestionFiche.getUtilisateursCharges()) {
+                Utilisateur utilisateur = gestionUtilisateur.trouverParId(idUtilisateur);
+                if (utilisateur == null) continue;
+                for (FichePersonnage fiche : utilisateur.getFiches()) {
+                    if (echantillons.size() >= ECHANTILLONS_MAX) break;
+                    if (!fiche.estArchivee()) echantillons.add(serialiser(fiche));
+                }
+            }
+            if (echantillons.size() < ECHANTILLONS_MIN) return;
+            dictionnaire = construireDictionnaire(echantillons, TAILLE_DICTIONNAIRE);
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(dictionnaire);
+        int somme = (int) adler.getValue();
+        File fichier = fichierDictionnaire(somme);
+        fichier.getParentFile().mkdirs();
+        File temporaire = new File(fichier.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporaire)) {
+            out.write(dictionnaire);
+            out.getFD().sync();
+        }
+        if (!temporaire.renameTo(fichier)) throw new IOException("ecriture de " + fichier + " impossible");
+        dictionnaires.put(somme, dictionnaire);
+        dictionnaireCourant = dictionnaire;
+        System.out.println("Archives : dictionnaire de " + dictionnaire.length + " octets entraine.");
+    }
+
+    /**
+     * Dictionnaire Deflater tire d'echantillons : les morceaux de LONGUEUR octets presents dans
+     * le plus d'echantillons, sans redite. Les plus frequents sont mis a la fin : Deflater code
+     * moins cher les references proches.
+     */
+    static byte[] construireDictionnaire(List<byte[]> echantillons, int taille) {
+        final int longueur = 32;
+        final int pas = 4;
+        Map<String, Integer> frequences = new HashMap<>();
+        for (byte[] echantillon : echantillons) {
+            Set<String> vus = new HashSet<>();
+            int fin = Math.min(echantillon.length, 16 * 1024);
+            for (int i = 0; i + longueur <= fin; i += pas) {
+                String morceau = new String(echantillon, i, longueur, StandardCharsets.ISO_8859_1);
+                if (vus.add(morceau)) frequences.merge(morceau, 1, Integer::sum);
+            }
+        }
+
+        List<Map.Entry<String, Integer>> candidats = new ArrayList<>();
+        for (Map.Entry<String, Integer> entree : frequences.entrySet()) {
+            if (entree.getValue() >= 2) candidats.add(entree);
+        }
+        candidats.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+
+        // Un morceau deja couvert par ceux retenus (decalage d'un multiple du pas) n'apporte rien
+        List<String> retenus = new ArrayList<>();
+        Set<String> couverts = new HashSet<>();
+        int total = 0;
+        for (Map.Entry<String, Integer> candidat : candidats) {
+            if (total + longueur > taille) break;
+            String morceau = candidat.getKey();
+            int deja = 0;
+            for (int i = 0; i + 8 <= longueur; i += 8) {
+                if (couverts.contains(morceau.substring(i, i + 8))) deja++;
+            }
+            if (deja >= longueur / 8 - 1) continue;
+            for (int i = 0; i + 8 <= longueur; i += pas) {
+                couverts.add(morceau.substring(i, i + 8));
+            }
+            retenus.add(morceau);
+            total += longueur;
+        }
+
+        Collections.reverse(retenus);
+        StringBuilder dictionnaire = new StringBuilder(total);
+        for (String morceau : retenus) dictionnaire.append(morceau);
+        return dictionnaire.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // ===== Demarrage =====
+
+    /**
+     * Retrouve la generation courante de chaque segment et le dernier dictionnaire entraine.
+     */
+    private void chargerSegments() {
+        List<File> fichiers = new ArrayList<>();
+        for (File dossier : RepartitionDonnees.dossiers(SOUS_DOSSIER)) {
+            File[] trouves = dossier.listFiles();
+            if (trouves != null) fichiers.addAll(List.of(trouves));
+        }
+        File dernierDictionnaire = null;
+        for (File fichier : fichiers) {
+            String nom = fichier.getName();
+            if (nom.endsWith(".tmp")) {
+                fichier.delete();
+            } else if (nom.matches("segment_\\d+_\\d+\\.arc")) {
+                String[] parties = nom.substring(8, nom.length() - 4).split("_");
+                generations.merge(Integer.parseInt(parties[0]), Long.parseLong(parties[1]), Math::max);
+            } else if (nom.matches("dictionnaire_[0-9a-f]{8}\\.bin")) {
+                if (dernierDictionnaire == null || fichier.lastModified() > dernierDictionnaire.lastModified()) {
+                    dernierDictionnaire = fichier;
+                }
+            }
+        }
+        if (dernierDictionnaire != null) {
+            try {
+                String nom = dernierDictionnaire.getName();
+                dictionnaireCourant = dictionnaire((int) Long.parseLong(nom.substring(13, 21), 16));
+            } catch (IOException e) {
+                System.out.println("Erreur de lecture du dictionnaire d'archive : " + e.getMessage());
+            }
+        }
+    }
+
+    private static void supprimerSegmentsAvant(int idUtilisateur, long generation) {
+        // Les anciennes generations peuvent etre restees dans une autre racine
+        for (File dossier : RepartitionDonnees.emplacements(idUtilisateur, SOUS_DOSSIER)) {
+            File[] fichiers = dossier.listFiles((d, nom) -> nom.startsWith("segment_" + idUtilisateur + "_") && nom.endsWith(".arc"));
+            if (fichiers == null) continue;
+            for (File fichier : fichiers) {
+                String nom = fichier.getName();
+                long g = Long.parseLong(nom.substring(nom.lastIndexOf('_') + 1, nom.length() - 4));
+                if (g < generation) fichier.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compteurs d'integrite des fichiers de fiches, exposes par GET /api/admin/integrity :
+ * verifications de fond (VerificationIntegrite) et reparations (GestionFiche).
+ */
+public class CompteursIntegrite {
+
+    public final AtomicLong passes = new AtomicLong();
+    public final AtomicLong derniereVerification = new AtomicLong();
+    public final AtomicLong fichiersVerifies = new AtomicLong();
+    public final AtomicLong octetsVerifies = new AtomicLong();
+    public final AtomicLong enregistrementsVerifies = new AtomicLong();
+    public final AtomicLong fichiersAbimes = new AtomicLong();
+    public final AtomicLong enregistrementsAbimes = new AtomicLong();
+    public final AtomicLong fichesRecuperees = new AtomicLong();
+    public final AtomicLong fichesPerdues = new AtomicLong();
+    public final AtomicLong quarantaines = new AtomicLong();
+
+    public String versJSON() {
+        return "{\"passes\":" + passes.get()
+            + ",\"derniereVerification\":" + derniereVerification.get()
+            + ",\"fichiersVerifies\":" + fichiersVerifies.get()
+            + ",\"octetsVerifies\":" + octetsVerifies.get()
+            + ",\"enregistrementsVerifies\":" + enregistrementsVerifies.get()
+            + ",\"fichiersAbimes\":" + fichiersAbimes.get()
+            + ",\"enregistrementsAbimes\":" + enregistrementsAbimes.get()
+            + ",\"fichesRecuperees\":" + fichesRecuperees.get()
+            + ",\"fichesPerdues\":" + fichesPerdues.get()
+            + ",\"quarantaines\":" + quarantaines.get() + "}";
+    }
+}
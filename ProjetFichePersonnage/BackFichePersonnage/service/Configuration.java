@@ -0,0 +1,67 @@
+package service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Parametres du serveur, lus dans "serveur.properties" (repertoire de lancement, facultatif).
+ * Une propriete systeme de meme nom (java -Dcle=valeur ...) est prioritaire sur le fichier.
+ *
+ * Chaque parametre a une valeur par defaut dans le code : le serveur demarre sans fichier.
+ */
+public class Configuration {
+
+    private static final String FICHIER = "serveur.properties";
+    private static final Properties proprietes = charger();
+
+    private Configuration() {
+    }
+
+    public static String texte(String cle, String defaut) {
+        String valeur = System.getProperty(cle);
+        if (valeur == null) valeur = proprietes.getProperty(cle);
+        return valeur == null || valeur.isBlank() ? defaut : valeur.trim();
+    }
+
+    public static int entier(String cle, int defaut) {
+        String valeur = texte(cle, null);
+        if (valeur == null) return defaut;
+        try {
+            return Integer.parseInt(valeur);
+        } catch (NumberFormatException e) {
+            System.out.println("Configuration : " + cle + " n'est pas un entier, valeur par defaut utilisee.");
+            return defaut;
+        }
+    }
+
+    /**
+     * Liste de valeurs separees par des virgules (vide si le parametre est absent).
+     */
+    public static List<String> liste(String cle) {
+        List<String> valeurs = new ArrayList<>();
+        String valeur = texte(cle, null);
+        if (valeur == null) return valeurs;
+        for (String element : valeur.split(",")) {
+            if (!element.isBlank()) valeurs.add(element.trim());
+        }
+        return valeurs;
+    }
+
+    private static Properties charger() {
+        Properties p = new Properties();
+        File fichier = new File(FICHIER);
+        if (!fichier.exists()) return p;
+
+        try (InputStream in = new FileInputStream(fichier)) {
+            p.load(in);
+        } catch (IOException e) {
+            System.out.println("Erreur lecture de " + FICHIER + " : " + e.getMessage());
+        }
+        return p;
+    }
+}
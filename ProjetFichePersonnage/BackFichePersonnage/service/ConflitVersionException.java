@@ -0,0 +1,27 @@
+package service;
+
+/**
+ * Levee quand une modification porte sur une version de fiche qui n'est plus la version courante
+ * (en-tete If-Match obsolete). Porte la version courante pour la renvoyer au client.
+ */
+public class ConflitVersionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int idFiche;
+    private final long versionCourante;
+
+    public ConflitVersionException(int idFiche, long versionCourante) {
+        super("La fiche " + idFiche + " est en version " + versionCourante);
+        this.idFiche = idFiche;
+        this.versionCourante = versionCourante;
+    }
+
+    public int getIdFiche() {
+        return idFiche;
+    }
+
+    public long getVersionCourante() {
+        return versionCourante;
+    }
+}
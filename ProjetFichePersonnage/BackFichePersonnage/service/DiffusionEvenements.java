@@ -0,0 +1,264 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Diffusion des modifications de fiches aux editeurs abonnes (Server-Sent Events).
+ *
+ * Chaque modification est convertie une seule fois en evenement puis deposee dans la file
+ * bornee de chaque abonne de la fiche. Les files sont videes par un petit groupe de threads
+ * d'ecriture partage : aucun thread n'attend en permanence un abonne. Si la file d'un
+ * abonne lent deborde, ses evenements en attente sont abandonnes et remplaces par un
+ * evenement "resync", sans id (le client recharge alors la fiche). Un commentaire est envoye toutes
+ * les INTERVALLE_PING_SECONDES pour garder la connexion et detecter les clients partis.
+ *
+ * Les ecritures sont bloquantes : un client qui ne lit plus remplit le tampon du socket et
+ * retient le thread qui lui ecrit. Une ecriture qui dure plus de DELAI_ECRITURE_MS fait donc
+ * fermer le socket (verifie chaque seconde) ; l'ecriture echoue, le thread est libere et
+ * l'abonne est retire.
+ */
+public class DiffusionEvenements implements EcouteurFiche {
+
+    private static final int TAILLE_FILE = 64;
+    private static final int NB_THREADS_ECRITURE = 4;
+    private static final int INTERVALLE_PING_SECONDES = 15;
+    private static final long DELAI_ECRITURE_MS = 5000;
+
+    // Abonnes par fiche, cle "idUtilisateur:idFiche"
+    private final Map<String, List<Abonne>> abonnes = new ConcurrentHashMap<>();
+    private final ExecutorService ecrivains = Executors.newFixedThreadPool(NB_THREADS_ECRITURE, r -> {
+        Thread t = new Thread(r, "diffusion-sse");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService ping = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "diffusion-ping");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DiffusionEvenements() {
+        ping.scheduleAtFixedRate(this::envoyerPing, INTERVALLE_PING_SECONDES, INTERVALLE_PING_SECONDES, TimeUnit.SECONDS);
+        ping.scheduleWithFixedDelay(this::surveillerEcritures, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Abonne un client deja connecte a une fiche : envoie les en-tetes SSE et l'etat initial.
+     *
+     * L'abonne est inscrit avant de lire la version envoyee dans "ouverture" : une modification
+     * publiee entre-temps est soit deja dans cette version, soit dans sa file. Les evenements
+     * arrives avant l'envoi des en-tetes attendent dans la file ; ceux d'une version deja
+     * couverte par "ouverture" sont retires.
+     */
+    public void abonner(Utilisateur utilisateur, int idFiche, LongSupplier versionCourante, Socket client) throws IOException {
+        Abonne abonne = new Abonne(client);
+        // Aucun thread d'ecriture tant que les en-tetes ne sont pas partis
+        abonne.enEcriture.set(true);
+        String cle = cle(utilisateur.getIdUtilisateur(), idFiche);
+        abonne.cle = cle;
+        // Atomique avec le retrait de la liste vide (fermer) : jamais d'ajout a une liste retiree
+        abonnes.compute(cle, (c, liste) -> {
+            if (liste == null) liste = new CopyOnWriteArrayList<>();
+            liste.add(abonne);
+            return liste;
+        });
+
+        long version = versionCourante.getAsLong();
+        String entete = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/event-stream\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Access-Control-Allow-Origin: *\r\n"
+            + "\r\n"
+            + "retry: 3000\n"
+            + evenement("ouverture", version, "{\"id\":" + idFiche + ",\"version\":" + version + "}");
+        try {
+            abonne.debutEcriture = System.currentTimeMillis();
+            abonne.sortie.write(entete.getBytes(StandardCharsets.UTF_8));
+            abonne.sortie.flush();
+        } catch (IOException e) {
+            abonne.fermer();
+            throw e;
+        } finally {
+            abonne.debutEcriture = 0;
+        }
+        abonne.file.removeIf(evenement -> versionDe(evenement) <= version);
+        abonne.enEcriture.set(false);
+        if (!abonne.file.isEmpty() || abonne.resynchroniser) abonne.planifier();
+    }
+
+    /**
+     * Envoie un evenement deja formate a tous les abonnes d'une fiche.
+     */
+    public void publier(int idUtilisateur, int idFiche, String evenement) {
+        List<Abonne> liste = abonnes.get(cle(idUtilisateur, idFiche));
+        if (liste == null) return;
+        for (Abonne abonne : liste) {
+            abonne.deposer(evenement);
+        }
+    }
+
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        if (ancienne == null) return; // personne ne peut etre abonne a une fiche qui n'existait pas
+        int idFiche = ancienne.getIdFichePersonnage();
+        List<Abonne> liste = abonnes.get(cle(utilisateur.getIdUtilisateur(), idFiche));
+        if (liste == null || liste.isEmpty()) return;
+
+        String evenement;
+        if (nouvelle == null) {
+            evenement = evenement("suppression", ancienne.getVersion() + 1, "{\"id\":" + idFiche + "}");
+        } else {
+            // Seules les parties modifiees sont envoyees (forme JSON Merge Patch)
+            String parties = JsonUtils.partiesFicheVersJSON(nouvelle, nouvelle.modulesModifiesDepuis(ancienne));
+            evenement = evenement("modification", nouvelle.getVersion(), parties);
+        }
+        publier(utilisateur.getIdUtilisateur(), idFiche, evenement);
+    }
+
+    public void arreter() {
+        ping.shutdownNow();
+        ecrivains.shutdownNow();
+        for (List<Abonne> liste : abonnes.values()) {
+            for (Abonne abonne : liste) abonne.fermer();
+        }
+        abonnes.clear();
+    }
+
+    /**
+     * Ferme les abonnes dont l'ecriture en cours dure depuis plus de DELAI_ECRITURE_MS.
+     */
+    private void surveillerEcritures() {
+        long limite = System.currentTimeMillis() - DELAI_ECRITURE_MS;
+        for (List<Abonne> liste : abonnes.values()) {
+            for (Abonne abonne : liste) {
+                long debut = abonne.debutEcriture;
+                if (debut != 0 && debut < limite) {
+                    System.out.println("SSE : abonne " + abonne.cle + " bloque depuis plus de " + DELAI_ECRITURE_MS + " ms, deconnecte.");
+                    abonne.fermer();
+                }
+            }
+        }
+    }
+
+    private void envoyerPing() {
+        for (List<Abonne> liste : abonnes.values()) {
+            for (Abonne abonne : liste) {
+                abonne.deposer(": ping\n\n");
+            }
+        }
+    }
+
+    /**
+     * Formate un evenement SSE (l'id est la version de la fiche).
+     */
+    public static String evenement(String type, long version, String donnees) {
+        return "event: " + type + "\nid: " + version + "\ndata: " + donnees + "\n\n";
+    }
+
+    /**
+     * Version portee par un evenement (ligne "id:"), Long.MAX_VALUE s'il n'en a pas (ping).
+     */
+    private static long versionDe(String evenement) {
+        int debut = evenement.indexOf("\nid: ");
+        if (debut < 0) return Long.MAX_VALUE;
+        debut += "\nid: ".length();
+        return Long.parseLong(evenement.substring(debut, evenement.indexOf('\n', debut)));
+    }
+
+    private static String cle(int idUtilisateur, int idFiche) {
+        return idUtilisateur + ":" + idFiche;
+    }
+
+    /**
+     * Connexion d'un abonne : file bornee d'evenements, videe par un thread d'ecriture a la fois.
+     */
+    private class Abonne {
+        private final Socket socket;
+        private final OutputStream sortie;
+        private final BlockingQueue<String> file = new ArrayBlockingQueue<>(TAILLE_FILE);
+        private final AtomicBoolean enEcriture = new AtomicBoolean(false);
+        private volatile boolean resynchroniser;
+        private volatile String cle;
+        // Debut de l'ecriture en cours, 0 si aucune (voir surveillerEcritures)
+        private volatile long debutEcriture;
+
+        Abonne(Socket socket) throws IOException {
+            this.socket = socket;
+            this.sortie = socket.getOutputStream();
+        }
+
+        void deposer(String evenement) {
+            if (!file.offer(evenement)) {
+                // Client trop lent : on abandonne ce qui attend, il devra recharger la fiche
+                file.clear();
+                resynchroniser = true;
+            }
+            planifier();
+        }
+
+        private void planifier() {
+            if (enEcriture.compareAndSet(false, true)) {
+                try {
+                    ecrivains.execute(this::vider);
+                } catch (java.util.concurrent.RejectedExecutionException e) {
+                    enEcriture.set(false);
+                }
+            }
+        }
+
+        private void vider() {
+            try {
+                debutEcriture = System.currentTimeMillis();
+                if (resynchroniser) {
+                    resynchroniser = false;
+                    // Sans "id:" : le navigateur garde le dernier id recu (une reconnexion ne repart pas de 0)
+                    sortie.write("event: resync\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+                }
+                String evenement;
+                while ((evenement = file.poll()) != null) {
+                    sortie.write(evenement.getBytes(StandardCharsets.UTF_8));
+                }
+                sortie.flush();
+            } catch (IOException e) {
+                // Client deconnecte
+                fermer();
+                return;
+            } finally {
+                debutEcriture = 0;
+                enEcriture.set(false);
+            }
+            // Un evenement a pu arriver entre la fin de la boucle et la liberation
+            if (!file.isEmpty() || resynchroniser) planifier();
+        }
+
+        void fermer() {
+            // Dernier abonne de la fiche : la cle est retiree (la table ne garde pas chaque fiche ouverte)
+            if (cle != null) {
+                abonnes.computeIfPresent(cle, (c, liste) -> {
+                    liste.remove(this);
+                    return liste.isEmpty() ? null : liste;
+                });
+            }
+            file.clear();
+            try { socket.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+/**
+ * Recoit les modifications publiees par GestionFiche (journal de synchronisation, index...).
+ *
+ * Appele sous le verrou de la fiche, dans l'ordre des versions : l'implementation doit
+ * etre rapide et ne jamais bloquer (pas d'entree/sortie).
+ */
+public interface EcouteurFiche {
+
+    /**
+     * @param ancienne version precedente, null si la fiche vient d'etre creee
+     * @param nouvelle version publiee, null si la fiche vient d'etre supprimee
+     */
+    void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle);
+}
@@ -0,0 +1,386 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Edition collaborative d'une fiche par transformation d'operations (OT, modele client/serveur).
+ *
+ * Chaque client envoie ses operations avec la revision sur laquelle il les a faites (la version
+ * de la fiche qu'il connait). Le serveur les transforme contre les operations appliquees depuis
+ * cette revision, les applique (nouvelle version de la fiche), puis diffuse les operations
+ * transformees aux autres collaborateurs (evenement SSE "operation"). Le serveur fixe ainsi un
+ * ordre unique : tous les clients convergent, et aucune operation n'est refusee pour conflit.
+ * Seuls la transformation, l'attribution de la revision et la publication en memoire sont
+ * faites sous le verrou de la fiche ; le fichier est sauvegarde apres, hors verrou, pour qu'un
+ * collaborateur n'attende jamais l'ecriture disque d'un autre.
+ *
+ * Operations (champ "type") :
+ * - texte.inserer {position, texte} et texte.supprimer {position, longueur} sur la biographie :
+ *   seules operations dont les positions doivent etre transformees. A position egale, l'operation
+ *   deja appliquee par le serveur passe en premier.
+ * - liste.ajouter / liste.supprimer {module, valeur}, liste.renommer {module, ancien, nouveau}
+ *   (module : competence ou equipement) : adressees par valeur, sans transformation.
+ * - stat.ajouter {nom, valeur}, stat.definir {id, valeur} (le dernier applique gagne),
+ *   stat.incrementer {id, delta} (les increments concurrents s'additionnent).
+ * - position {module, posX, posY} : le dernier applique gagne.
+ *
+ * Le journal des operations est garde sur TAILLE_HISTORIQUE revisions par fiche. Une revision
+ * plus ancienne, ou separee de la version courante par une modification faite hors edition
+ * collaborative, ne peut pas etre transformee : le client doit recharger la fiche. Le journal
+ * d'une fiche supprimee (ou recreee sous le meme id) est oublie.
+ */
+public class EditionCollaborative implements EcouteurFiche {
+
+    private static final int TAILLE_HISTORIQUE = 500;
+
+    private final GestionFiche gestionFiche;
+    private final DiffusionEvenements diffusion;
+
+    // Operations appliquees par revision, par fiche (cle "idProprietaire:idFiche")
+    private final Map<String, TreeMap<Long, List<Operation>>> historiques = new ConcurrentHashMap<>();
+
+    public EditionCollaborative(GestionFiche gestionFiche, DiffusionEvenements diffusion) {
+        this.gestionFiche = gestionFiche;
+        this.diffusion = diffusion;
+        gestionFiche.ajouterEcouteur(this);
+    }
+
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        if (ancienne != null && nouvelle != null) return;
+        int idFiche = (nouvelle == null ? ancienne : nouvelle).getIdFichePersonnage();
+        historiques.remove(utilisateur.getIdUtilisateur() + ":" + idFiche);
+    }
+
+    /**
+     * Resultat d'une soumission : la revision publiee et les operations telles qu'appliquees.
+     */
+    public static class Resultat {
+        public final long revision;
+        public final List<Operation> operations;
+
+        Resultat(long revision, List<Operation> operations) {
+            this.revision = revision;
+            this.operations = operations;
+        }
+    }
+
+    /**
+     * Transforme puis applique des operations faites sur la revision donnee.
+     * Retourne null si la revision ne peut plus etre transformee (le client doit recharger la fiche).
+     * Leve IllegalArgumentException si une operation transformee ne s'applique pas : le lot
+     * entier est alors refuse, sans nouvelle revision ni diffusion.
+     */
+    public Resultat soumettre(Utilisateur auteur, Utilisateur proprietaire, int idFiche, long revision, List<Operation> operations) {
+        String cle = proprietaire.getIdUtilisateur() + ":" + idFiche;
+        TreeMap<Long, List<Operation>> historique = historiques.computeIfAbsent(cle, c -> new TreeMap<>());
+
+        // Transformation et application forment une seule etape par fiche ; les autres fiches ne sont pas bloquees
+        Resultat resultat;
+        synchronized (historique) {
+            FichePersonnage fiche = gestionFiche.getFicheDe(proprietaire, idFiche);
+            if (fiche == null) return null;
+            long courante = fiche.getVersion();
+            if (revision > courante) return null;
+
+            List<Operation> transformees = operations;
+            for (long v = revision + 1; v <= courante; v++) {
+                List<Operation> appliquees = historique.get(v);
+                if (appliquees == null) return null;
+                transformees = transformer(transformees, appliquees).get(0);
+            }
+
+            List<Operation> aAppliquer = transformees;
+            int[] refusee = { -1 };
+            try {
+                boolean ok = gestionFiche.executerSiVersion(courante,
+                    () -> gestionFiche.publierPour(proprietaire, idFiche, versOperationFiche(aAppliquer, refusee)));
+                if (!ok && refusee[0] >= 0) {
+                    throw new IllegalArgumentException("operation " + refusee[0] + " (" + aAppliquer.get(refusee[0]).type
+                        + ") refusee, aucune modification appliquee");
+                }
+                if (!ok) return null;
+            } catch (ConflitVersionException e) {
+                // Modification classique passee entre-temps : elle n'est pas dans l'historique
+                return null;
+            }
+
+            long nouvelle = courante + 1;
+            historique.put(nouvelle, transformees);
+            while (historique.size() > TAILLE_HISTORIQUE) historique.pollFirstEntry();
+
+            String donnees = "{\"revision\":" + nouvelle + ",\"auteur\":\"" + JsonUtils.echapper(auteur.getNomUtilisateur())
+                + "\",\"operations\":" + versJSON(transformees) + "}";
+            diffusion.publier(proprietaire.getIdUtilisateur(), idFiche, DiffusionEvenements.evenement("operation", nouvelle, donnees));
+            resultat = new Resultat(nouvelle, transformees);
+        }
+        // Sauvegardes serialisees par utilisateur : la derniere ecrite contient toutes les revisions
+        gestionFiche.sauvegarderPour(proprietaire);
+        return resultat;
+    }
+
+    // ===== Operations =====
+
+    /**
+     * Operation collaborative elementaire (champs utilises selon le type).
+     */
+    public static class Operation {
+        final String type;
+        final int position;
+        final int longueur;
+        final String texte;
+        final String module;
+        final String valeur;
+        final String ancien;
+        final String nouveau;
+        final int id;
+        final int nombre;
+        final int posX;
+        final int posY;
+
+        private Operation(String type, int position, int longueur, String texte, String module, String valeur,
+                          String ancien, String nouveau, int id, int nombre, int posX, int posY) {
+            this.type = type;
+            this.position = position;
+            this.longueur = longueur;
+            this.texte = texte;
+            this.module = module;
+            this.valeur = valeur;
+            this.ancien = ancien;
+            this.nouveau = nouveau;
+            this.id = id;
+            this.nombre = nombre;
+            this.posX = posX;
+            this.posY = posY;
+        }
+
+        static Operation inserer(int position, String texte) {
+            return new Operation("texte.inserer", position, 0, texte, null, null, null, null, 0, 0, 0, 0);
+        }
+
+        static Operation supprimer(int position, int longueur) {
+            return new Operation("texte.supprimer", position, longueur, null, null, null, null, null, 0, 0, 0, 0);
+        }
+
+        boolean estTexte() {
+            return type.startsWith("texte.");
+        }
+
+        /**
+         * Lit une operation depuis son JSON, leve IllegalArgumentException si elle est invalide.
+         */
+        public static Operation depuisJSON(Map<?, ?> json) {
+            String type = texte(json, "type");
+            switch (type) {
+                case "texte.inserer":
+                    return inserer(entier(json, "position"), texte(json, "texte"));
+                case "texte.supprimer":
+                    return supprimer(entier(json, "position"), entier(json, "longueur"));
+                case "liste.ajouter":
+                case "liste.supprimer":
+                    return new Operation(type, 0, 0, null, moduleListe(json), texte(json, "valeur"), null, null, 0, 0, 0, 0);
+                case "liste.renommer":
+                    return new Operation(type, 0, 0, null, moduleListe(json), null, texte(json, "ancien"), texte(json, "nouveau"), 0, 0, 0, 0);
+                case "stat.ajouter":
+                    return new Operation(type, 0, 0, null, null, texte(json, "nom"), null, null, 0, entier(json, "valeur"), 0, 0);
+                case "stat.definir":
+                    return new Operation(type, 0, 0, null, null, null, null, null, entier(json, "id"), entier(json, "valeur"), 0, 0);
+                case "stat.incrementer":
+                    return new Operation(type, 0, 0, null, null, null, null, null, entier(json, "id"), entier(json, "delta"), 0, 0);
+                case "position":
+                    return new Operation(type, 0, 0, null, texte(json, "module"), null, null, null, 0, 0, entier(json, "posX"), entier(json, "posY"));
+                default:
+                    throw new IllegalArgumentException("type d'operation inconnu : " + type);
+            }
+        }
+
+        String versJSON() {
+            StringBuilder json = new StringBuilder("{\"type\":\"").append(type).append("\"");
+            switch (type) {
+                case "texte.inserer":
+                    json.append(",\"position\":").append(position).append(",\"texte\":\"").append(JsonUtils.echapper(texte)).append("\"");
+                    break;
+                case "texte.supprimer":
+                    json.append(",\"position\":").append(position).append(",\"longueur\":").append(longueur);
+                    break;
+                case "liste.ajouter":
+                case "liste.supprimer":
+                    json.append(",\"module\":\"").append(module).append("\",\"valeur\":\"").append(JsonUtils.echapper(valeur)).append("\"");
+                    break;
+                case "liste.renommer":
+                    json.append(",\"module\":\"").append(module).append("\",\"ancien\":\"").append(JsonUtils.echapper(ancien))
+                        .append("\",\"nouveau\":\"").append(JsonUtils.echapper(nouveau)).append("\"");
+                    break;
+                case "stat.ajouter":
+                    json.append(",\"nom\":\"").append(JsonUtils.echapper(valeur)).append("\",\"valeur\":").append(nombre);
+                    break;
+                case "stat.definir":
+                    json.append(",\"id\":").append(id).append(",\"valeur\":").append(nombre);
+                    break;
+                case "stat.incrementer":
+                    json.append(",\"id\":").append(id).append(",\"delta\":").append(nombre);
+                    break;
+                case "position":
+                    json.append(",\"module\":\"").append(JsonUtils.echapper(module)).append("\",\"posX\":").append(posX).append(",\"posY\":").append(posY);
+                    break;
+                default:
+                    break;
+            }
+            return json.append("}").toString();
+        }
+
+        private static String texte(Map<?, ?> json, String cle) {
+            Object valeur = json.get(cle);
+            if (!(valeur instanceof String)) throw new IllegalArgumentException(cle + " requis");
+            return (String) valeur;
+        }
+
+        private static int entier(Map<?, ?> json, String cle) {
+            Object valeur = json.get(cle);
+            if (!(valeur instanceof Long)) throw new IllegalArgumentException(cle + " requis");
+            return ((Long) valeur).intValue();
+        }
+
+        private static String moduleListe(Map<?, ?> json) {
+            String module = texte(json, "module");
+            if (!module.equals("competence") && !module.equals("equipement")) {
+                throw new IllegalArgumentException("module doit etre competence ou equipement");
+            }
+            return module;
+        }
+    }
+
+    public static String versJSON(List<Operation> operations) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < operations.size(); i++) {
+            json.append(operations.get(i).versJSON());
+            if (i < operations.size() - 1) json.append(",");
+        }
+        return json.append("]").toString();
+    }
+
+    // ===== Transformation =====
+
+    /**
+     * Transforme deux suites d'operations concurrentes faites sur la meme revision.
+     * Retourne { a apres b, b apres a } ; b (deja appliquee par le serveur) est prioritaire.
+     */
+    static List<List<Operation>> transformer(List<Operation> a, List<Operation> b) {
+        if (a.isEmpty() || b.isEmpty()) return List.of(a, b);
+
+        if (a.size() > 1) {
+            List<List<Operation>> tete = transformer(a.subList(0, 1), b);
+            List<List<Operation>> reste = transformer(a.subList(1, a.size()), tete.get(1));
+            return List.of(concat(tete.get(0), reste.get(0)), reste.get(1));
+        }
+        if (b.size() > 1) {
+            List<List<Operation>> tete = transformer(a, b.subList(0, 1));
+            List<List<Operation>> reste = transformer(tete.get(0), b.subList(1, b.size()));
+            return List.of(reste.get(0), concat(tete.get(1), reste.get(1)));
+        }
+        Operation opA = a.get(0);
+        Operation opB = b.get(0);
+        return List.of(transformer(opA, opB, true), transformer(opB, opA, false));
+    }
+
+    /**
+     * Transforme x pour qu'elle s'applique apres y (faite sur le meme texte).
+     * yPrioritaire : a position d'insertion egale, le texte de y reste avant celui de x.
+     */
+    private static List<Operation> transformer(Operation x, Operation y, boolean yPrioritaire) {
+        if (!x.estTexte() || !y.estTexte()) return List.of(x);
+
+        boolean xInsere = x.type.equals("texte.inserer");
+        boolean yInsere = y.type.equals("texte.inserer");
+
+        if (xInsere && yInsere) {
+            boolean decaler = y.position < x.position || (y.position == x.position && yPrioritaire);
+            return List.of(decaler ? Operation.inserer(x.position + y.texte.length(), x.texte) : x);
+        }
+        if (xInsere) {
+            // y supprime [q, q+m)
+            int q = y.position;
+            int m = y.longueur;
+            if (x.position <= q) return List.of(x);
+            if (x.position >= q + m) return List.of(Operation.inserer(x.position - m, x.texte));
+            return List.of(Operation.inserer(q, x.texte));
+        }
+        if (yInsere) {
+            // x supprime [p, p+n), y insere a q
+            int p = x.position;
+            int n = x.longueur;
+            int q = y.position;
+            int l = y.texte.length();
+            if (q <= p) return List.of(Operation.supprimer(p + l, n));
+            if (q >= p + n) return List.of(x);
+            // L'insertion tombe dans la zone supprimee : on la preserve en coupant la suppression
+            return List.of(Operation.supprimer(p, q - p), Operation.supprimer(p + l, n - (q - p)));
+        }
+
+        // Deux suppressions : on retire de x ce que y a deja supprime
+        int p = x.position;
+        int n = x.longueur;
+        int q = y.position;
+        int m = y.longueur;
+        int avant = Math.max(0, Math.min(q + m, p) - q);
+        int chevauchement = Math.max(0, Math.min(p + n, q + m) - Math.max(p, q));
+        int reste = n - chevauchement;
+        if (reste <= 0) return List.of();
+        return List.of(Operation.supprimer(p - avant, reste));
+    }
+
+    private static List<Operation> concat(List<Operation> a, List<Operation> b) {
+        List<Operation> resultat = new ArrayList<>(a);
+        resultat.addAll(b);
+        return resultat;
+    }
+
+    /**
+     * Convertit des operations (deja transformees) en une seule modification de fiche, en tout ou
+     * rien : si une operation echoue (valeur absente, statistique inconnue...), rien n'est publie
+     * et son index est note dans refusee[0].
+     */
+    private static OperationFiche versOperationFiche(List<Operation> operations, int[] refusee) {
+        return copie -> {
+            for (int i = 0; i < operations.size(); i++) {
+                if (!versOperationFiche(operations.get(i)).appliquer(copie)) {
+                    refusee[0] = i;
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static OperationFiche versOperationFiche(Operation op) {
+        boolean competence = "competence".equals(op.module);
+        switch (op.type) {
+            case "texte.inserer":
+                return OperationFiche.insererTexteBiographie(op.position, op.texte);
+            case "texte.supprimer":
+                return OperationFiche.supprimerTexteBiographie(op.position, op.longueur);
+            case "liste.ajouter":
+                return competence ? OperationFiche.ajouterCompetence(op.valeur) : OperationFiche.ajouterEquipement(op.valeur);
+            case "liste.supprimer":
+                return competence ? OperationFiche.supprimerCompetence(op.valeur) : OperationFiche.supprimerEquipement(op.valeur);
+            case "liste.renommer":
+                return competence ? OperationFiche.modifierCompetence(op.ancien, op.nouveau) : OperationFiche.modifierEquipement(op.ancien, op.nouveau);
+            case "stat.ajouter":
+                return OperationFiche.ajouterStatistique(op.valeur, op.nombre);
+            case "stat.definir":
+                return OperationFiche.modifierValeurStatistique(op.id, op.nombre);
+            case "stat.incrementer":
+                return OperationFiche.incrementerStatistique(op.id, op.nombre);
+            case "position":
+                return OperationFiche.modifierPositionModule(op.module, op.posX, op.posY);
+            default:
+                return copie -> false;
+        }
+    }
+}
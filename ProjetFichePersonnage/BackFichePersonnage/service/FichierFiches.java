@@ -0,0 +1,348 @@
+package service;
+
+import model.FichePersonnage;
+import model.ModulePersonnalise;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Format des fichiers de fiches "fiches_{id}.dat" (voir RepartitionDonnees), sous le chiffrement
+ * eventuel (voir GestionSecurite) :
+ * - en-tete : "FPFC", int version du format, int nombre de modules partages, int nombre de fiches
+ * - par module partage : int longueur, int CRC32C (index et octets), puis le module serialise seul
+ * - par fiche : int idFiche, long version, int longueur, int CRC32C (id, version et octets),
+ *   puis la fiche serialisee seule, ou chaque module partage est remplace par son index
+ * - int CRC32C de tout ce qui precede
+ *
+ * Modules partages : un module utilise par plusieurs fiches du fichier (fiches creees depuis un
+ * meme template, clones, modules inchanges d'une fiche a son clone) est ecrit une seule fois dans
+ * la table, et relu en une seule instance que ces fiches partagent de nouveau. Dix mille fiches
+ * d'un template ne coutent ainsi, sur disque comme apres un redemarrage, que leurs en-tetes et
+ * leurs modules propres ; un clone ne coute que ce qui le distingue de sa source.
+ *
+ * Chaque fiche est serialisee a part : un enregistrement abime ne rend pas les autres illisibles,
+ * il est mis en quarantaine et recupere ailleurs (voir GestionFiche.chargerFiches). Un module
+ * partage abime rend abimees les seules fiches qui l'utilisent. Les formats precedents (sans
+ * table, ou liste serialisee d'un bloc) sont encore lus ; la sauvegarde suivante les convertit.
+ */
+final class FichierFiches {
+
+    private static final byte[] MAGIQUE = { 'F', 'P', 'F', 'C' };
+    private static final int VERSION_FORMAT = 2;
+    private static final int LONGUEUR_MAX = 64 * 1024 * 1024;
+    private static final String DOSSIER_QUARANTAINE = "data/quarantaine/";
+
+    private FichierFiches() {
+    }
+
+    /**
+     * Enregistrement illisible : CRC faux ou fiche non deserialisable. idFiche et version viennent
+     * de l'en-tete de l'enregistrement, lui-meme peut-etre abime.
+     */
+    static class Abime {
+        final int idFiche;
+        final long version;
+        final long position;
+        final String raison;
+
+        Abime(int idFiche, long version, long position, String raison) {
+            this.idFiche = idFiche;
+            this.version = version;
+            this.position = position;
+            this.raison = raison;
+        }
+    }
+
+    /**
+     * Resultat d'une lecture : les fiches saines et ce qui ne l'etait pas.
+     */
+    static class Lecture {
+        final List<FichePersonnage> fiches = new ArrayList<>();
+        final List<Abime> abimes = new ArrayList<>();
+        int attendues = -1;
+        // Fin du fichier illisible (longueur aberrante, fichier coupe, bloc chiffre altere) :
+        // les fiches suivantes sont inconnues
+        boolean tronque;
+        boolean sommeFichierValide = true;
+        boolean ancienFormat;
+        int modulesPartages;
+        int modulesAbimes;
+        long octets;
+
+        boolean integre() {
+            return abimes.isEmpty() && modulesAbimes == 0 && !tronque && sommeFichierValide;
+        }
+
+        String description() {
+            StringBuilder texte = new StringBuilder();
+            texte.append(fiches.size()).append(" fiche(s) saine(s)");
+            if (attendues >= 0) texte.append(" sur ").append(attendues);
+            if (!abimes.isEmpty()) texte.append(", ").append(abimes.size()).append(" enregistrement(s) abime(s)");
+            if (modulesAbimes > 0) texte.append(", ").append(modulesAbimes).append(" module(s) partage(s) abime(s)");
+            if (tronque) texte.append(", fin illisible");
+            if (!sommeFichierValide) texte.append(", somme du fichier fausse");
+            return texte.toString();
+        }
+    }
+
+    /**
+     * Module partage remplace par son index dans la table, dans un enregistrement de fiche.
+     */
+    private static final class ReferenceModule implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        ReferenceModule(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Serialise une fiche en remplacant ses modules partages par leur index.
+     */
+    private static final class SortieFiche extends ObjectOutputStream {
+        private final Map<Object, Integer> partages;
+
+        SortieFiche(OutputStream out, Map<Object, Integer> partages) throws IOException {
+            super(out);
+            this.partages = partages;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object objet) {
+            Integer index = partages.get(objet);
+            return index != null ? new ReferenceModule(index) : objet;
+        }
+    }
+
+    /**
+     * Relit une fiche en remettant a la place de chaque index l'instance du module partage.
+     */
+    private static final class EntreeFiche extends ObjectInputStream {
+        private final Object[] partages;
+
+        EntreeFiche(InputStream in, Object[] partages) throws IOException {
+            super(in);
+            this.partages = partages;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object objet) throws IOException {
+            if (!(objet instanceof ReferenceModule)) return objet;
+            int index = ((ReferenceModule) objet).index;
+            if (index < 0 || index >= partages.length) throw new InvalidObjectException("module partage " + index + " inconnu");
+            if (partages[index] == null) throw new InvalidObjectException("module partage " + index + " abime");
+            return partages[index];
+        }
+    }
+
+    /**
+     * Modules d'une fiche complete, dans l'ordre de ses champs.
+     */
+    private static List<Object> modules(FichePersonnage fiche) {
+        List<Object> modules = new ArrayList<>(List.of(fiche.getPortrait(), fiche.getBiographie(),
+            fiche.getStatistiques(), fiche.getCompetence(), fiche.getEquipement()));
+        for (ModulePersonnalise module : fiche.getModulesPersonnalises()) modules.add(module);
+        return modules;
+    }
+
+    static void ecrire(OutputStream sortie, List<FichePersonnage> fiches) throws IOException {
+        List<FichePersonnage> instantane = List.copyOf(fiches);
+
+        // Modules utilises par plusieurs fiches (meme instance), numerotes dans l'ordre des fiches.
+        // Une fiche archivee est ignoree : ses modules sont dans l'archive, pas en memoire.
+        Map<Object, Integer> utilisations = new IdentityHashMap<>();
+        for (FichePersonnage fiche : instantane) {
+            if (fiche.estArchivee()) continue;
+            for (Object module : modules(fiche)) utilisations.merge(module, 1, Integer::sum);
+        }
+        Map<Object, Integer> partages = new IdentityHashMap<>();
+        List<Object> table = new ArrayList<>();
+        for (FichePersonnage fiche : instantane) {
+            if (fiche.estArchivee()) continue;
+            for (Object module : modules(fiche)) {
+                if (utilisations.get(module) > 1 && !partages.containsKey(module)) {
+                    partages.put(module, table.size());
+                    table.add(module);
+                }
+            }
+        }
+
+        CheckedOutputStream verifie = new CheckedOutputStream(sortie, new CRC32C());
+        DataOutputStream out = new DataOutputStream(verifie);
+        out.write(MAGIQUE);
+        out.writeInt(VERSION_FORMAT);
+        out.writeInt(table.size());
+        out.writeInt(instantane.size());
+        for (int i = 0; i < table.size(); i++) {
+            ByteArrayOutputStream octets = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(octets)) {
+                oos.writeObject(table.get(i));
+            }
+            byte[] donnees = octets.toByteArray();
+            out.writeInt(donnees.length);
+            out.writeInt(somme(i, 0, donnees));
+            out.write(donnees);
+        }
+        for (FichePersonnage fiche : instantane) {
+            ByteArrayOutputStream octets = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new SortieFiche(octets, partages)) {
+                oos.writeObject(fiche);
+            }
+            byte[] donnees = octets.toByteArray();
+            out.writeInt(fiche.getIdFichePersonnage());
+            out.writeLong(fiche.getVersion());
+            out.writeInt(donnees.length);
+            out.writeInt(somme(fiche.getIdFichePersonnage(), fiche.getVersion(), donnees));
+            out.write(donnees);
+        }
+        out.flush();
+        out.writeInt((int) verifie.getChecksum().getValue());
+        out.flush();
+    }
+
+    /**
+     * Lit un fichier de fiches sans jamais echouer : ce qui est abime ou illisible (y compris
+     * un bloc chiffre altere) est decrit dans la Lecture.
+     */
+    @SuppressWarnings("unchecked")
+    static Lecture lire(InputStream entree) {
+        Lecture lecture = new Lecture();
+        BufferedInputStream tampon = new BufferedInputStream(entree);
+        try {
+            tampon.mark(MAGIQUE.length);
+            byte[] magique = tampon.readNBytes(MAGIQUE.length);
+            if (!Arrays.equals(magique, MAGIQUE)) {
+                tampon.reset();
+                lecture.ancienFormat = true;
+                try {
+                    lecture.fiches.addAll((List<FichePersonnage>) new ObjectInputStream(tampon).readObject());
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    lecture.tronque = true;
+                }
+                return lecture;
+            }
+        } catch (IOException e) {
+            lecture.tronque = true;
+            return lecture;
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(MAGIQUE);
+        CheckedInputStream verifie = new CheckedInputStream(tampon, crc);
+        DataInputStream in = new DataInputStream(verifie);
+        try {
+            int format = in.readInt();
+            int nombreModules = format >= 2 ? in.readInt() : 0;
+            lecture.attendues = in.readInt();
+            lecture.octets = format >= 2 ? 16 : 12;
+            lecture.modulesPartages = nombreModules;
+            // Liste agrandie au fil de la lecture : un nombre abime n'alloue pas un tableau demesure
+            List<Object> table = new ArrayList<>();
+            for (int i = 0; i < nombreModules; i++) {
+                int longueur = in.readInt();
+                int somme = in.readInt();
+                if (longueur < 0 || longueur > LONGUEUR_MAX) {
+                    lecture.tronque = true;
+                    return lecture;
+                }
+                byte[] donnees = in.readNBytes(longueur);
+                lecture.octets += 8 + donnees.length;
+                if (donnees.length < longueur) {
+                    lecture.tronque = true;
+                    return lecture;
+                }
+                // Module abime : reste null, les fiches qui l'utilisent seront abimees
+                Object module = null;
+                if (somme(i, 0, donnees) == somme) {
+                    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(donnees))) {
+                        module = ois.readObject();
+                    } catch (IOException | ClassNotFoundException e) {
+                        module = null;
+                    }
+                }
+                if (module == null) lecture.modulesAbimes++;
+                table.add(module);
+            }
+            Object[] partages = table.toArray();
+            for (int i = 0; i < lecture.attendues; i++) {
+                long position = lecture.octets;
+                int idFiche = in.readInt();
+                long version = in.readLong();
+                int longueur = in.readInt();
+                int somme = in.readInt();
+                if (longueur < 0 || longueur > LONGUEUR_MAX) {
+                    lecture.tronque = true;
+                    return lecture;
+                }
+                byte[] donnees = in.readNBytes(longueur);
+                lecture.octets += 20 + donnees.length;
+                if (donnees.length < longueur) {
+                    lecture.tronque = true;
+                    return lecture;
+                }
+                if (somme(idFiche, version, donnees) != somme) {
+                    lecture.abimes.add(new Abime(idFiche, version, position, "somme CRC32C fausse"));
+                    continue;
+                }
+                try (ObjectInputStream ois = new EntreeFiche(new ByteArrayInputStream(donnees), partages)) {
+                    lecture.fiches.add((FichePersonnage) ois.readObject());
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    lecture.abimes.add(new Abime(idFiche, version, position, "fiche illisible : " + e.getMessage()));
+                }
+            }
+            int attendue = (int) verifie.getChecksum().getValue();
+            lecture.sommeFichierValide = in.readInt() == attendue;
+            lecture.octets += 4;
+        } catch (IOException e) {
+            lecture.tronque = true;
+        }
+        return lecture;
+    }
+
+    private static int somme(int idFiche, long version, byte[] donnees) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(12).putInt(idFiche).putLong(version).array());
+        crc.update(donnees);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Garde une copie du fichier abime (tel quel, chiffre s'il l'etait) et un rapport des
+     * enregistrements illisibles dans "data/quarantaine/". Retourne la copie.
+     */
+    static File mettreEnQuarantaine(File fichier, Lecture lecture) throws IOException {
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        String base = fichier.getName().replace(".dat", "") + "_" + date;
+        File copie = new File(DOSSIER_QUARANTAINE + base + ".dat");
+        copie.getParentFile().mkdirs();
+        Files.copy(fichier.toPath(), copie.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        try (PrintWriter rapport = new PrintWriter(new FileWriter(DOSSIER_QUARANTAINE + base + ".txt"))) {
+            rapport.println("Fichier : " + fichier.getPath());
+            rapport.println("Etat : " + lecture.description());
+            if (lecture.modulesPartages > 0) rapport.println("Modules partages : " + lecture.modulesPartages);
+            for (Abime abime : lecture.abimes) {
+                rapport.println("Enregistrement a l'octet " + abime.position + " : fiche " + abime.idFiche
+                    + " version " + abime.version + " (" + abime.raison + ")");
+            }
+        }
+        return copie;
+    }
+}
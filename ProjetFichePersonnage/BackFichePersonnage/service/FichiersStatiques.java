@@ -0,0 +1,221 @@
+package service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fichiers servis tels quels : l'application web construite (FrontFichePersonnage/dist),
+ * les blobs (portraits) et leurs miniatures.
+ *
+ * Chaque fichier est decrit par une Ressource : type, taille, ETag fort et politique de cache.
+ * Les fichiers dont le nom contient une empreinte du contenu (blobs, fichiers de /assets/
+ * produits par Vite, ex. index-B3x9KqLm.js) ne changent jamais a la meme adresse : ils sont
+ * marques immuables. Les autres (index.html...) sont revalides a chaque usage.
+ *
+ * Les petits fichiers (au plus "statique.cache.fichier.max" octets) sont gardes en memoire,
+ * dans un cache LRU borne a "statique.cache.octets" au total ; les autres sont envoyes depuis
+ * le disque (voir RouteFichiers).
+ */
+public class FichiersStatiques {
+
+    private static final Map<String, String> TYPES = Map.ofEntries(
+        Map.entry("html", "text/html; charset=utf-8"),
+        Map.entry("js", "text/javascript; charset=utf-8"),
+        Map.entry("mjs", "text/javascript; charset=utf-8"),
+        Map.entry("css", "text/css; charset=utf-8"),
+        Map.entry("json", "application/json"),
+        Map.entry("map", "application/json"),
+        Map.entry("txt", "text/plain; charset=utf-8"),
+        Map.entry("svg", "image/svg+xml"),
+        Map.entry("png", "image/png"),
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("webp", "image/webp"),
+        Map.entry("ico", "image/x-icon"),
+        Map.entry("woff", "font/woff"),
+        Map.entry("woff2", "font/woff2"),
+        Map.entry("ttf", "font/ttf"),
+        Map.entry("wasm", "application/wasm")
+    );
+
+    // Nom de fichier Vite avec empreinte : nom-XXXXXXXX.ext (8 caracteres ou plus)
+    private static final java.util.regex.Pattern EMPREINTE = java.util.regex.Pattern.compile(".*[-.][A-Za-z0-9_-]{8,}\\.[a-z0-9]+");
+
+    private final Path racine;
+    private final StockBlobs stock;
+    private final Miniatures miniatures;
+    private final int tailleMaxEnCache;
+    private final long octetsMaxCache;
+    private long octetsEnCache;
+
+    private final LinkedHashMap<String, Ressource> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Un fichier a servir. "contenu" est non null si le fichier est en memoire.
+     */
+    public static class Ressource {
+        public final File fichier;
+        public final long taille;
+        public final long modifie;
+        public final String type;
+        public final String etag;
+        public final boolean immuable;
+        public final byte[] contenu;
+
+        Ressource(File fichier, long taille, long modifie, String type, String etag, boolean immuable, byte[] contenu) {
+            this.fichier = fichier;
+            this.taille = taille;
+            this.modifie = modifie;
+            this.type = type;
+            this.etag = etag;
+            this.immuable = immuable;
+            this.contenu = contenu;
+        }
+    }
+
+    public FichiersStatiques(StockBlobs stock, Miniatures miniatures) {
+        this.stock = stock;
+        this.miniatures = miniatures;
+        File dossier = new File(Configuration.texte("statique.dossier", "../FrontFichePersonnage/dist"));
+        this.racine = dossier.isDirectory() ? dossier.toPath().toAbsolutePath().normalize() : null;
+        this.tailleMaxEnCache = Configuration.entier("statique.cache.fichier.max", 64 * 1024);
+        this.octetsMaxCache = Configuration.entier("statique.cache.octets", 8 * 1024 * 1024);
+        if (racine != null) System.out.println("Application web servie depuis " + racine);
+    }
+
+    /** True si un dossier d'application web construite a ete trouve */
+    public boolean applicationDisponible() {
+        return racine != null;
+    }
+
+    /**
+     * Fichier de l'application web pour ce chemin d'URL, null s'il n'existe pas.
+     * Un chemin sans extension inconnu donne index.html (routes de l'application React).
+     */
+    public Ressource statique(String chemin) {
+        if (racine == null) return null;
+        int requete = chemin.indexOf('?');
+        if (requete >= 0) chemin = chemin.substring(0, requete);
+        try {
+            chemin = URLDecoder.decode(chemin.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        Path cible = racine.resolve(chemin.replaceFirst("^/+", "")).normalize();
+        if (!cible.startsWith(racine)) return null; // ../ hors du dossier
+        File fichier = cible.toFile();
+        if (fichier.isDirectory()) fichier = new File(fichier, "index.html");
+        if (!fichier.isFile()) {
+            String nom = cible.getFileName() == null ? "" : cible.getFileName().toString();
+            if (nom.contains(".")) return null;
+            fichier = racine.resolve("index.html").toFile();
+            if (!fichier.isFile()) return null;
+        }
+
+        String nom = fichier.getName();
+        boolean immuable = chemin.startsWith("/assets/") && EMPREINTE.matcher(nom).matches();
+        return ressource(fichier, type(nom), immuable, null);
+    }
+
+    /**
+     * Blob du stock (toujours immuable : son adresse est l'empreinte de son contenu), null s'il n'existe pas.
+     */
+    public Ressource blob(String hash) {
+        if (!stock.existe(hash)) return null;
+        return ressource(stock.fichier(hash), null, true, hash);
+    }
+
+    /**
+     * Miniature d'un blob (voir Miniatures), immuable comme lui ; null si le blob n'existe pas.
+     * Leve IllegalArgumentException si le blob n'est pas une image lisible.
+     */
+    public Ressource miniature(String hash, int taille) throws IOException {
+        Miniatures.Miniature miniature = miniatures.obtenir(hash, taille);
+        if (miniature == null) return null;
+        return new Ressource(stock.fichier(hash), miniature.contenu.length, 0, miniature.type,
+            "\"" + hash + "-" + taille + "\"", true, miniature.contenu);
+    }
+
+    private Ressource ressource(File fichier, String type, boolean immuable, String hash) {
+        String cle = fichier.getAbsolutePath();
+        long taille = fichier.length();
+        long modifie = fichier.lastModified();
+
+        synchronized (cache) {
+            Ressource enCache = cache.get(cle);
+            // Un blob ne change jamais ; un fichier statique est revalide par taille et date
+            if (enCache != null && (hash != null || (enCache.taille == taille && enCache.modifie == modifie))) {
+                return enCache;
+            }
+        }
+
+        byte[] contenu = null;
+        if (taille <= tailleMaxEnCache) {
+            try {
+                contenu = Files.readAllBytes(fichier.toPath());
+            } catch (IOException e) {
+                return null;
+            }
+            taille = contenu.length;
+        }
+        if (type == null) type = typeImage(contenu, fichier);
+        String etag = "\"" + (hash != null ? hash : Long.toHexString(taille) + "-" + Long.toHexString(modifie)) + "\"";
+        Ressource ressource = new Ressource(fichier, taille, modifie, type, etag, immuable, contenu);
+
+        if (contenu != null) {
+            synchronized (cache) {
+                Ressource ancienne = cache.put(cle, ressource);
+                if (ancienne != null) octetsEnCache -= ancienne.contenu.length;
+                octetsEnCache += contenu.length;
+                var iterateur = cache.values().iterator();
+                while (octetsEnCache > octetsMaxCache && iterateur.hasNext()) {
+                    octetsEnCache -= iterateur.next().contenu.length;
+                    iterateur.remove();
+                }
+            }
+        }
+        return ressource;
+    }
+
+    private static String type(String nom) {
+        int point = nom.lastIndexOf('.');
+        String extension = point < 0 ? "" : nom.substring(point + 1).toLowerCase();
+        return TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    /**
+     * Type d'une image d'apres ses premiers octets (les blobs n'ont pas d'extension).
+     */
+    private static String typeImage(byte[] contenu, File fichier) {
+        byte[] debut = contenu;
+        if (debut == null) {
+            try (var in = new java.io.FileInputStream(fichier)) {
+                debut = in.readNBytes(12);
+            } catch (IOException e) {
+                return "application/octet-stream";
+            }
+        }
+        if (commencePar(debut, 0x89, 'P', 'N', 'G')) return "image/png";
+        if (commencePar(debut, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (commencePar(debut, 'G', 'I', 'F', '8')) return "image/gif";
+        if (commencePar(debut, 'R', 'I', 'F', 'F') && debut.length >= 12
+            && debut[8] == 'W' && debut[9] == 'E' && debut[10] == 'B' && debut[11] == 'P') return "image/webp";
+        return "application/octet-stream";
+    }
+
+    private static boolean commencePar(byte[] octets, int... attendus) {
+        if (octets.length < attendus.length) return false;
+        for (int i = 0; i < attendus.length; i++) {
+            if ((octets[i] & 0xFF) != attendus[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,383 @@
+package service;
+
+import model.Statistique;
+import model.Statistiques;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistiques derivees : une statistique peut porter une formule calculee a partir des autres,
+ * ex. "(Force - 10) / 2" ou "10 + Constitution * Niveau".
+ *
+ * Formule : entiers, noms de statistiques (sans tenir compte des majuscules ni des accents),
+ * + - * / et parentheses. La division arrondit vers le bas ((7 - 10) / 2 = -2), une division
+ * par zero vaut 0, une statistique inconnue vaut 0.
+ *
+ * Les formules d'une fiche forment un graphe de dependances (DAG) : les cycles sont refuses.
+ * Le graphe est compile une fois par structure (noms et formules, dans l'ordre) et garde en
+ * cache : changer une valeur ne recompile rien et ne recalcule que les statistiques qui en
+ * dependent, dans l'ordre topologique. Ajouter, renommer, supprimer une statistique ou changer
+ * une formule recalcule toutes les statistiques derivees.
+ */
+public class FormulesStatistiques {
+
+    private static final int TAILLE_CACHE = 512;
+
+    private static final Map<String, Graphe> cache = new LinkedHashMap<String, Graphe>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Graphe> eldest) {
+            return size() > TAILLE_CACHE;
+        }
+    };
+
+    private FormulesStatistiques() {
+    }
+
+    /**
+     * Verifie la syntaxe d'une formule. Leve IllegalArgumentException si elle est invalide.
+     */
+    public static void verifier(String formule) {
+        if (formule != null && !formule.isBlank()) new Lecteur(formule).lire();
+    }
+
+    /**
+     * Recalcule toutes les statistiques derivees. Retourne false si les formules forment un cycle.
+     */
+    public static boolean recalculerTout(Statistiques statistiques) {
+        Graphe graphe = graphe(statistiques.getStatistiques());
+        if (graphe == null) return false;
+        evaluer(statistiques, graphe, graphe.ordre);
+        return true;
+    }
+
+    /**
+     * Recalcule les statistiques qui dependent de celle-ci (et elle-meme si elle est derivee).
+     * Retourne false si les formules forment un cycle.
+     */
+    public static boolean recalculerAval(Statistiques statistiques, int idStatistique) {
+        List<Statistique> liste = statistiques.getStatistiques();
+        Graphe graphe = graphe(liste);
+        if (graphe == null) return false;
+        for (int i = 0; i < liste.size(); i++) {
+            if (liste.get(i).getIdStatistique() == idStatistique) {
+                evaluer(statistiques, graphe, graphe.aval(i));
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static void evaluer(Statistiques statistiques, Graphe graphe, int[] positions) {
+        List<Statistique> liste = statistiques.getStatistiques();
+        for (int position : positions) {
+            int valeur = graphe.formules[position].evaluer(liste);
+            if (valeur != liste.get(position).getValeurStatistique()) {
+                statistiques.definirValeurCalculee(position, valeur);
+            }
+        }
+    }
+
+    /**
+     * Graphe compile pour cette structure de statistiques, null si les formules forment un cycle
+     * ou sont invalides.
+     */
+    private static Graphe graphe(List<Statistique> liste) {
+        StringBuilder signature = new StringBuilder();
+        for (Statistique s : liste) {
+            signature.append(RequeteFiches.cle(s.getNomStatistique())).append('\u0000');
+            if (s.getFormule() != null) signature.append(s.getFormule());
+            signature.append('\u0001');
+        }
+        String cle = signature.toString();
+        synchronized (cache) {
+            Graphe graphe = cache.get(cle);
+            if (graphe != null) return graphe;
+        }
+
+        Graphe graphe;
+        try {
+            graphe = Graphe.compiler(liste);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (graphe == null) return null;
+        synchronized (cache) {
+            cache.put(cle, graphe);
+        }
+        return graphe;
+    }
+
+    // ===== Graphe de dependances =====
+
+    private static class Graphe {
+        final Noeud[] formules;          // formule compilee par position (null : statistique saisie)
+        final int[][] dependants;        // position -> positions des derivees qui l'utilisent
+        final int[] ordre;               // derivees dans l'ordre topologique
+        final int[] rang;                // position -> rang dans l'ordre topologique
+        private final int[][] avals;     // calcule a la demande
+
+        private Graphe(Noeud[] formules, int[][] dependants, int[] ordre, int[] rang) {
+            this.formules = formules;
+            this.dependants = dependants;
+            this.ordre = ordre;
+            this.rang = rang;
+            this.avals = new int[formules.length][];
+        }
+
+        static Graphe compiler(List<Statistique> liste) {
+            int n = liste.size();
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                positions.putIfAbsent(RequeteFiches.cle(liste.get(i).getNomStatistique()), i);
+            }
+
+            Noeud[] formules = new Noeud[n];
+            List<List<Integer>> dependants = new ArrayList<>();
+            int[] degreEntrant = new int[n];
+            for (int i = 0; i < n; i++) dependants.add(new ArrayList<>());
+            for (int i = 0; i < n; i++) {
+                String formule = liste.get(i).getFormule();
+                if (formule == null) continue;
+                formules[i] = new Lecteur(formule).lire();
+                List<Integer> references = new ArrayList<>();
+                formules[i].resoudre(positions, references);
+                for (int r : references.stream().distinct().toList()) {
+                    dependants.get(r).add(i);
+                    degreEntrant[i]++;
+                }
+            }
+
+            // Tri topologique (Kahn) : s'il reste des noeuds, ils forment un cycle
+            ArrayDeque<Integer> prets = new ArrayDeque<>();
+            for (int i = 0; i < n; i++) if (degreEntrant[i] == 0) prets.add(i);
+            int[] rang = new int[n];
+            List<Integer> ordre = new ArrayList<>();
+            int traites = 0;
+            while (!prets.isEmpty()) {
+                int i = prets.poll();
+                rang[i] = traites++;
+                if (formules[i] != null) ordre.add(i);
+                for (int d : dependants.get(i)) {
+                    if (--degreEntrant[d] == 0) prets.add(d);
+                }
+            }
+            if (traites < n) return null;
+
+            int[][] tableauDependants = new int[n][];
+            for (int i = 0; i < n; i++) tableauDependants[i] = dependants.get(i).stream().mapToInt(Integer::intValue).toArray();
+            return new Graphe(formules, tableauDependants, ordre.stream().mapToInt(Integer::intValue).toArray(), rang);
+        }
+
+        /**
+         * Derivees a recalculer quand la statistique a cette position change, dans l'ordre topologique.
+         */
+        synchronized int[] aval(int position) {
+            if (avals[position] != null) return avals[position];
+            boolean[] vus = new boolean[formules.length];
+            ArrayDeque<Integer> file = new ArrayDeque<>();
+            List<Integer> trouves = new ArrayList<>();
+            file.add(position);
+            vus[position] = true;
+            while (!file.isEmpty()) {
+                int i = file.poll();
+                if (formules[i] != null) trouves.add(i);
+                for (int d : dependants[i]) {
+                    if (!vus[d]) {
+                        vus[d] = true;
+                        file.add(d);
+                    }
+                }
+            }
+            int[] resultat = trouves.stream().mapToInt(Integer::intValue).toArray();
+            Integer[] tri = Arrays.stream(resultat).boxed().toArray(Integer[]::new);
+            Arrays.sort(tri, (a, b) -> Integer.compare(rang[a], rang[b]));
+            for (int i = 0; i < tri.length; i++) resultat[i] = tri[i];
+            avals[position] = resultat;
+            return resultat;
+        }
+    }
+
+    // ===== Formules =====
+
+    /**
+     * Noeud de l'arbre d'une formule. Les references sont resolues en positions a la compilation
+     * du graphe : l'evaluation lit directement la liste, sans recherche par nom.
+     */
+    private abstract static class Noeud {
+        abstract long valeur(List<Statistique> liste);
+
+        void resoudre(Map<String, Integer> positions, List<Integer> references) {
+        }
+
+        int evaluer(List<Statistique> liste) {
+            long v = valeur(liste);
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+        }
+    }
+
+    private static class Constante extends Noeud {
+        final long valeur;
+
+        Constante(long valeur) {
+            this.valeur = valeur;
+        }
+
+        long valeur(List<Statistique> liste) {
+            return valeur;
+        }
+    }
+
+    private static class Reference extends Noeud {
+        final String cle;
+        int position = -1;
+
+        Reference(String cle) {
+            this.cle = cle;
+        }
+
+        void resoudre(Map<String, Integer> positions, List<Integer> references) {
+            Integer p = positions.get(cle);
+            position = p == null ? -1 : p;
+            if (p != null) references.add(p);
+        }
+
+        long valeur(List<Statistique> liste) {
+            return position < 0 ? 0 : liste.get(position).getValeurStatistique();
+        }
+    }
+
+    private static class Oppose extends Noeud {
+        final Noeud operande;
+
+        Oppose(Noeud operande) {
+            this.operande = operande;
+        }
+
+        void resoudre(Map<String, Integer> positions, List<Integer> references) {
+            operande.resoudre(positions, references);
+        }
+
+        long valeur(List<Statistique> liste) {
+            return -operande.valeur(liste);
+        }
+    }
+
+    private static class Operation extends Noeud {
+        final char operateur;
+        final Noeud gauche;
+        final Noeud droite;
+
+        Operation(char operateur, Noeud gauche, Noeud droite) {
+            this.operateur = operateur;
+            this.gauche = gauche;
+            this.droite = droite;
+        }
+
+        void resoudre(Map<String, Integer> positions, List<Integer> references) {
+            gauche.resoudre(positions, references);
+            droite.resoudre(positions, references);
+        }
+
+        long valeur(List<Statistique> liste) {
+            long a = gauche.valeur(liste);
+            long b = droite.valeur(liste);
+            switch (operateur) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                default: return b == 0 ? 0 : Math.floorDiv(a, b);
+            }
+        }
+    }
+
+    /**
+     * Lecteur recursif : expression = terme (('+'|'-') terme)*, terme = facteur (('*'|'/') facteur)*,
+     * facteur = '-' facteur | '(' expression ')' | entier | nom de statistique.
+     */
+    private static class Lecteur {
+        private final String texte;
+        private int position;
+
+        Lecteur(String texte) {
+            this.texte = texte;
+        }
+
+        Noeud lire() {
+            Noeud noeud = expression();
+            espaces();
+            if (position < texte.length()) throw erreur("caractere inattendu '" + texte.charAt(position) + "'");
+            return noeud;
+        }
+
+        private Noeud expression() {
+            Noeud noeud = terme();
+            while (true) {
+                espaces();
+                if (position < texte.length() && (texte.charAt(position) == '+' || texte.charAt(position) == '-')) {
+                    char operateur = texte.charAt(position++);
+                    noeud = new Operation(operateur, noeud, terme());
+                } else {
+                    return noeud;
+                }
+            }
+        }
+
+        private Noeud terme() {
+            Noeud noeud = facteur();
+            while (true) {
+                espaces();
+                if (position < texte.length() && (texte.charAt(position) == '*' || texte.charAt(position) == '/')) {
+                    char operateur = texte.charAt(position++);
+                    noeud = new Operation(operateur, noeud, facteur());
+                } else {
+                    return noeud;
+                }
+            }
+        }
+
+        private Noeud facteur() {
+            espaces();
+            if (position >= texte.length()) throw erreur("formule incomplete");
+            char c = texte.charAt(position);
+            if (c == '-') {
+                position++;
+                return new Oppose(facteur());
+            }
+            if (c == '(') {
+                position++;
+                Noeud noeud = expression();
+                espaces();
+                if (position >= texte.length() || texte.charAt(position) != ')') throw erreur("parenthese fermante manquante");
+                position++;
+                return noeud;
+            }
+
+            // Atome : tout jusqu'au prochain operateur ou parenthese (un nom peut contenir des espaces)
+            int debut = position;
+            while (position < texte.length() && "+-*/()".indexOf(texte.charAt(position)) < 0) position++;
+            String atome = texte.substring(debut, position).trim();
+            if (atome.isEmpty()) throw erreur("valeur manquante");
+            if (atome.matches("\\d+")) {
+                try {
+                    return new Constante(Long.parseLong(atome));
+                } catch (NumberFormatException e) {
+                    throw erreur("nombre trop grand");
+                }
+            }
+            return new Reference(RequeteFiches.cle(atome));
+        }
+
+        private void espaces() {
+            while (position < texte.length() && Character.isWhitespace(texte.charAt(position))) position++;
+        }
+
+        private IllegalArgumentException erreur(String message) {
+            return new IllegalArgumentException("formule invalide : " + message);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import model.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Service qui gere les fiches de personnages avec controle des droits.
@@ -15,16 +18,146 @@ import java.util.List;
  * - Un utilisateur ne peut modifier/supprimer que ses propres fiches
  * - Un utilisateur ne peut voir que ses propres fiches
  *
- * Persistance : serialisation binaire Java dans "data/fiches_{idUtilisateur}.dat"
- * Utilise ObjectOutputStream/ObjectInputStream pour sauvegarder les objets.
+ * Persistance : serialisation binaire Java dans "fiches_{idUtilisateur}.dat", range dans la
+ * racine de donnees de l'utilisateur (voir RepartitionDonnees).
+ * Utilise ObjectOutputStream/ObjectInputStream pour sauvegarder les objets, chiffres au
+ * passage si le chiffrement est actif (voir GestionSecurite). Chaque fiche y est un
+ * enregistrement verifie par CRC32C (voir FichierFiches) : au chargement, une fiche abimee est
+ * mise en quarantaine et recuperee depuis les sources de reparation (historique...).
+ *
+ * Concurrence : controle optimiste. Chaque fiche porte un numero de version ; une
+ * modification lancee via executerSiVersion echoue (ConflitVersionException) si la
+ * fiche a change entre-temps. Seule l'etape d'application est verrouillee, par un
+ * verrou choisi parmi NB_VERROUS selon la fiche : deux fiches differentes ne se
+ * bloquent (presque) jamais.
+ *
+ * Stockage froid : une fiche archivee (voir ArchivesFiches) est rehydratee des qu'on y accede
+ * par ce service (getFiche, modification, partage) ; elle redevient alors une fiche ordinaire.
  */
 public class GestionFiche {
 
-    private static final String DOSSIER_DATA = "data/";
+    private static final int NB_VERROUS = 64;
     private GestionUtilisateur gestionUtilisateur;
+    private final GestionSecurite securite;
+
+    // Verrous par fiche (repartis par hachage) pour l'etape d'application
+    private final ReentrantLock[] verrous = new ReentrantLock[NB_VERROUS];
+
+    // Version attendue par la requete en cours (If-Match), null si aucune
+    private final ThreadLocal<Long> versionAttendue = new ThreadLocal<>();
+
+    // Derniere version lue ou publiee de chaque fiche par l'action suivie (voir suivreVersions)
+    private final ThreadLocal<java.util.Map<Long, Long>> versionsVues = new ThreadLocal<>();
+
+    // Utilisateurs dont les fiches sont en memoire (connexion ou acces a une fiche partagee)
+    private final java.util.Set<Integer> utilisateursCharges = java.util.concurrent.ConcurrentHashMap.newKeySet();
+
+    // Prevenus de chaque creation, modification et suppression de fiche
+    private final List<EcouteurFiche> ecouteurs = new CopyOnWriteArrayList<>();
+
+    // Copies de secours consultees pour les fiches d'un fichier abime
+    private final List<SourceReparation> sourcesReparation = new CopyOnWriteArrayList<>();
+    private final CompteursIntegrite compteursIntegrite = new CompteursIntegrite();
 
     public GestionFiche(GestionUtilisateur gestionUtilisateur) {
         this.gestionUtilisateur = gestionUtilisateur;
+        this.securite = new GestionSecurite(gestionUtilisateur);
+        for (int i = 0; i < NB_VERROUS; i++) {
+            verrous[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Chiffrement des fichiers de donnees (voir GestionSecurite), partage avec les autres lecteurs des fichiers.
+     */
+    public GestionSecurite getSecurite() {
+        return securite;
+    }
+
+    public CompteursIntegrite getCompteursIntegrite() {
+        return compteursIntegrite;
+    }
+
+    /**
+     * Ajoute une source ou retrouver les fiches d'un fichier abime.
+     */
+    public void ajouterSourceReparation(SourceReparation source) {
+        sourcesReparation.add(source);
+    }
+
+    /**
+     * Enregistre un ecouteur prevenu de chaque modification publiee.
+     */
+    public void ajouterEcouteur(EcouteurFiche ecouteur) {
+        ecouteurs.add(ecouteur);
+    }
+
+    /**
+     * Execute une action (un ou plusieurs appels aux modificateurs) en exigeant que la
+     * fiche modifiee soit encore dans la version donnee.
+     * Leve ConflitVersionException sinon, sans rien modifier.
+     */
+    public <T> T executerSiVersion(long version, Supplier<T> action) {
+        Long precedente = versionAttendue.get();
+        versionAttendue.set(version);
+        try {
+            return action.get();
+        } finally {
+            if (precedente == null) versionAttendue.remove();
+            else versionAttendue.set(precedente);
+        }
+    }
+
+    /**
+     * Execute une action en notant la version de chaque fiche qu'elle lit ou publie, rendue
+     * ensuite par versionVue : l'ETag d'une reponse est celui de la fiche que la requete a vue,
+     * meme si un autre ecrivain publie une version juste apres.
+     */
+    public <T> T suivreVersions(Supplier<T> action) {
+        java.util.Map<Long, Long> precedentes = versionsVues.get();
+        versionsVues.set(new java.util.HashMap<>());
+        try {
+            return action.get();
+        } finally {
+            if (precedentes == null) versionsVues.remove();
+            else versionsVues.set(precedentes);
+        }
+    }
+
+    /**
+     * Version d'une fiche de l'utilisateur connecte telle que l'action suivie l'a laissee (voir
+     * suivreVersions) : publiee par sa derniere modification, ou lue ; -1 si elle l'a supprimee.
+     * Version courante si l'action n'a pas touche a la fiche.
+     */
+    public long versionVue(int idFiche) {
+        java.util.Map<Long, Long> vues = versionsVues.get();
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        Long version = vues == null || connecte == null ? null : vues.get(cleVue(connecte, idFiche));
+        return version != null ? version : versionCourante(idFiche);
+    }
+
+    private void noterVersion(Utilisateur utilisateur, int idFiche, long version) {
+        java.util.Map<Long, Long> vues = versionsVues.get();
+        if (vues != null) vues.put(cleVue(utilisateur, idFiche), version);
+    }
+
+    private static long cleVue(Utilisateur utilisateur, int idFiche) {
+        return ((long) utilisateur.getIdUtilisateur() << 32) | (idFiche & 0xffffffffL);
+    }
+
+    /**
+     * Retourne la version courante d'une fiche de l'utilisateur connecte, -1 si elle n'existe pas.
+     * Contrairement a getFiche, n'affiche pas d'erreur.
+     */
+    public long versionCourante(int idFiche) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) return -1;
+        for (FichePersonnage fiche : connecte.getFiches()) {
+            if (fiche.getIdFichePersonnage() == idFiche) {
+                return fiche.getVersion();
+            }
+        }
+        return -1;
     }
 
     /**
@@ -39,11 +172,67 @@ public class GestionFiche {
         }
 
         FichePersonnage fiche = connecte.creerFiche(nomFiche);
+        notifier(connecte, null, fiche);
         sauvegarderFiches(connecte);
         System.out.println("Fiche '" + nomFiche + "' creee avec succes (id=" + fiche.getIdFichePersonnage() + ").");
         return fiche;
     }
 
+    /**
+     * Cree une fiche par nom a partir d'un template, pour l'utilisateur connecte.
+     * Les fiches partagent les modules du template (voir Template), en memoire comme dans le
+     * fichier, et sont sauvegardees en une seule ecriture, quel que soit leur nombre : dix mille
+     * fiches prennent environ 6 Mo, surtout l'en-tete de serialisation de chaque enregistrement.
+     */
+    public List<FichePersonnage> creerFichesDepuisTemplate(Template template, List<String> noms) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            System.out.println("Erreur : vous devez etre connecte pour creer une fiche.");
+            return new ArrayList<>();
+        }
+
+        List<FichePersonnage> fiches = connecte.creerFiches(noms, template);
+        for (FichePersonnage fiche : fiches) {
+            notifier(connecte, null, fiche);
+        }
+        sauvegarderFiches(connecte);
+        System.out.println(fiches.size() + " fiche(s) creee(s) depuis le template '" + template.getNomTemplate() + "'.");
+        return fiches;
+    }
+
+    /**
+     * Clone une fiche de l'utilisateur connecte, null si elle n'existe pas.
+     * Le clone partage les modules de la source en memoire (voir FichePersonnage.cloner) comme
+     * sur disque : son enregistrement ne fait que designer les modules de la source dans la table
+     * des modules partages (voir FichierFiches), seuls ses modules modifies lui sont propres.
+     */
+    public FichePersonnage clonerFiche(int idFiche, String nomClone) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            System.out.println("Erreur : vous devez etre connecte pour cloner une fiche.");
+            return null;
+        }
+
+        FichePersonnage clone;
+        ReentrantLock verrou = verrouFiche(connecte, idFiche);
+        verrou.lock();
+        try {
+            FichePersonnage source = chercherFiche(connecte, idFiche);
+            if (source == null) {
+                System.out.println("Erreur : fiche introuvable ou vous n'en etes pas le proprietaire.");
+                return null;
+            }
+            verifierVersion(source);
+            clone = connecte.clonerFiche(source, nomClone != null ? nomClone : source.getNomFichePersonnage() + " (copie)");
+            notifier(connecte, null, clone);
+        } finally {
+            verrou.unlock();
+        }
+        sauvegarderFiches(connecte);
+        System.out.println("Fiche " + idFiche + " clonee (id=" + clone.getIdFichePersonnage() + ").");
+        return clone;
+    }
+
     /**
      * Retourne la liste des fiches de l'utilisateur connecte.
      */
@@ -68,28 +257,59 @@ public class GestionFiche {
             return null;
         }
 
-        for (FichePersonnage fiche : connecte.getFiches()) {
-            if (fiche.getIdFichePersonnage() == idFiche) {
-                return fiche;
-            }
+        FichePersonnage fiche = chercherFiche(connecte, idFiche);
+        noterVersion(connecte, idFiche, fiche != null ? fiche.getVersion() : -1);
+        if (fiche != null) {
+            fiche.marquerAcces();
+            return fiche;
         }
 
         System.out.println("Erreur : fiche introuvable ou vous n'en etes pas le proprietaire.");
         return null;
     }
 
+    /**
+     * Recupere une fiche d'un utilisateur donne (fiche partagee), sans controle de droits :
+     * l'appelant verifie le partage. Charge les fiches du proprietaire si besoin.
+     */
+    public FichePersonnage getFicheDe(Utilisateur proprietaire, int idFiche) {
+        chargerFichesSiBesoin(proprietaire);
+        return chercherFiche(proprietaire, idFiche);
+    }
+
+    /**
+     * Applique une operation sur la fiche d'un utilisateur donne (edition d'une fiche partagee).
+     * Meme fonctionnement que les modificateurs : copie sur ecriture, version, ecouteurs, sauvegarde.
+     */
+    public boolean appliquerPour(Utilisateur proprietaire, int idFiche, OperationFiche operation) {
+        getFicheDe(proprietaire, idFiche);
+        return appliquer(proprietaire, idFiche, operation);
+    }
+
+    /**
+     * Comme appliquerPour, sans la sauvegarde sur disque : pour un appelant qui publie sous un
+     * verrou a lui (EditionCollaborative) et sauvegarde une fois ce verrou rendu (sauvegarderPour).
+     */
+    boolean publierPour(Utilisateur proprietaire, int idFiche, OperationFiche operation) {
+        getFicheDe(proprietaire, idFiche);
+        return publier(proprietaire, idFiche, operation);
+    }
+
+    /**
+     * Sauvegarde les fiches d'un utilisateur apres publierPour.
+     */
+    void sauvegarderPour(Utilisateur proprietaire) {
+        sauvegarderFiches(proprietaire);
+    }
+
     /**
      * Modifie le portrait d'une fiche.
      * Verifie les droits avant modification.
      */
     public boolean modifierPortrait(int idFiche, String imagePortrait) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.modifierPortrait(imagePortrait);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Portrait de la fiche " + idFiche + " modifie.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierPortrait(imagePortrait));
+        if (ok) System.out.println("Portrait de la fiche " + idFiche + " modifie.");
+        return ok;
     }
 
     /**
@@ -97,130 +317,98 @@ public class GestionFiche {
      * Verifie les droits avant modification.
      */
     public boolean modifierBiographie(int idFiche, String texteBiographie) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.modifierBiographie(texteBiographie);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Biographie de la fiche " + idFiche + " modifiee.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierBiographie(texteBiographie));
+        if (ok) System.out.println("Biographie de la fiche " + idFiche + " modifiee.");
+        return ok;
     }
 
     /**
      * Ajoute une statistique a une fiche.
      */
     public boolean ajouterStatistique(int idFiche, String nomStat, int valeur) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
+        return ajouterStatistique(idFiche, nomStat, valeur, null);
+    }
 
-        fiche.getStatistiques().ajouterStatistique(nomStat, valeur);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Statistique '" + nomStat + "' ajoutee a la fiche " + idFiche + ".");
-        return true;
+    /**
+     * Ajoute une statistique derivee d'une formule (null : statistique saisie).
+     * Retourne false si la formule cree un cycle entre statistiques.
+     */
+    public boolean ajouterStatistique(int idFiche, String nomStat, int valeur, String formule) {
+        boolean ok = appliquer(idFiche, OperationFiche.ajouterStatistique(nomStat, valeur, formule));
+        if (ok) System.out.println("Statistique '" + nomStat + "' ajoutee a la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
      * Modifie une statistique d'une fiche.
      */
     public boolean modifierStatistique(int idFiche, int idStat, String nomStat, int valeur) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getStatistiques().modifierStatistique(idStat, nomStat, valeur);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Statistique " + idStat + " modifiee sur la fiche " + idFiche + ".");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierStatistique(idStat, nomStat, valeur));
+        if (ok) System.out.println("Statistique " + idStat + " modifiee sur la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
      * Supprime une statistique d'une fiche.
      */
     public boolean supprimerStatistique(int idFiche, int idStat) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getStatistiques().supprimerStatistique(idStat);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Statistique " + idStat + " supprimee de la fiche " + idFiche + ".");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.supprimerStatistique(idStat));
+        if (ok) System.out.println("Statistique " + idStat + " supprimee de la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
      * Ajoute une competence a une fiche.
      */
     public boolean ajouterCompetence(int idFiche, String nomCompetence) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getCompetence().ajouterCompetence(nomCompetence);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Competence '" + nomCompetence + "' ajoutee a la fiche " + idFiche + ".");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.ajouterCompetence(nomCompetence));
+        if (ok) System.out.println("Competence '" + nomCompetence + "' ajoutee a la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
      * Modifie une competence d'une fiche.
      */
     public boolean modifierCompetence(int idFiche, String ancienNom, String nouveauNom) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getCompetence().modifierCompetence(ancienNom, nouveauNom);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Competence '" + ancienNom + "' renommee en '" + nouveauNom + "'.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierCompetence(ancienNom, nouveauNom));
+        if (ok) System.out.println("Competence '" + ancienNom + "' renommee en '" + nouveauNom + "'.");
+        return ok;
     }
 
     /**
      * Supprime une competence d'une fiche.
      */
     public boolean supprimerCompetence(int idFiche, String nomCompetence) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getCompetence().supprimerCompetence(nomCompetence);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Competence '" + nomCompetence + "' supprimee.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.supprimerCompetence(nomCompetence));
+        if (ok) System.out.println("Competence '" + nomCompetence + "' supprimee.");
+        return ok;
     }
 
     /**
      * Ajoute un equipement a une fiche.
      */
     public boolean ajouterEquipement(int idFiche, String nomEquipement) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getEquipement().ajouterEquipement(nomEquipement);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Equipement '" + nomEquipement + "' ajoute a la fiche " + idFiche + ".");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.ajouterEquipement(nomEquipement));
+        if (ok) System.out.println("Equipement '" + nomEquipement + "' ajoute a la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
      * Modifie un equipement d'une fiche.
      */
     public boolean modifierEquipement(int idFiche, String ancienNom, String nouveauNom) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getEquipement().modifier(ancienNom, nouveauNom);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Equipement '" + ancienNom + "' renomme en '" + nouveauNom + "'.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierEquipement(ancienNom, nouveauNom));
+        if (ok) System.out.println("Equipement '" + ancienNom + "' renomme en '" + nouveauNom + "'.");
+        return ok;
     }
 
     /**
      * Supprime un equipement d'une fiche.
      */
     public boolean supprimerEquipement(int idFiche, String nomEquipement) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        fiche.getEquipement().supprimerEquipement(nomEquipement);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Equipement '" + nomEquipement + "' supprime.");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.supprimerEquipement(nomEquipement));
+        if (ok) System.out.println("Equipement '" + nomEquipement + "' supprime.");
+        return ok;
     }
 
     /**
@@ -228,75 +416,37 @@ public class GestionFiche {
      * Les modules sont : portrait, biographie, statistiques, competence, equipement.
      */
     public boolean modifierPositionModule(int idFiche, String nomModule, int posX, int posY) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        model.Module module = getModuleParNom(fiche, nomModule);
-        if (module == null) {
-            System.out.println("Erreur : module '" + nomModule + "' inconnu.");
-            return false;
-        }
-
-        module.modifierPosition(posX, posY);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Position du module '" + nomModule + "' modifiee (" + posX + ", " + posY + ").");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierPositionModule(nomModule, posX, posY));
+        if (ok) System.out.println("Position du module '" + nomModule + "' modifiee (" + posX + ", " + posY + ").");
+        return ok;
     }
 
     /**
      * Modifie la taille d'un module sur la fiche.
      */
     public boolean modifierTailleModule(int idFiche, String nomModule, int largeur, int hauteur) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        model.Module module2 = getModuleParNom(fiche, nomModule);
-        if (module2 == null) {
-            System.out.println("Erreur : module '" + nomModule + "' inconnu.");
-            return false;
-        }
-
-        module2.modifierTaille(largeur, hauteur);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Taille du module '" + nomModule + "' modifiee (" + largeur + "x" + hauteur + ").");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierTailleModule(nomModule, largeur, hauteur));
+        if (ok) System.out.println("Taille du module '" + nomModule + "' modifiee (" + largeur + "x" + hauteur + ").");
+        return ok;
     }
 
     // ===== Modules personnalisés =====
     public boolean ajouterModulePersonnalise(int idFiche, model.ModulePersonnalise module) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-        fiche.getModulesPersonnalises().add(module);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Module personnalise '" + module.getNom() + "' ajoute a la fiche " + idFiche + ".");
-        return true;
+        boolean ok = appliquer(idFiche, OperationFiche.ajouterModulePersonnalise(module));
+        if (ok) System.out.println("Module personnalise '" + module.getNom() + "' ajoute a la fiche " + idFiche + ".");
+        return ok;
     }
 
     public boolean modifierModulePersonnalise(int idFiche, String idModule, model.ModulePersonnalise module) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-        java.util.List<model.ModulePersonnalise> liste = fiche.getModulesPersonnalises();
-        for (int i = 0; i < liste.size(); i++) {
-            if (liste.get(i).getId().equals(idModule)) {
-                liste.set(i, module);
-                sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-                System.out.println("Module personnalise '" + idModule + "' modifie sur la fiche " + idFiche + ".");
-                return true;
-            }
-        }
-        return false;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierModulePersonnalise(idModule, module));
+        if (ok) System.out.println("Module personnalise '" + idModule + "' modifie sur la fiche " + idFiche + ".");
+        return ok;
     }
 
     public boolean supprimerModulePersonnalise(int idFiche, String idModule) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-        java.util.List<model.ModulePersonnalise> liste = fiche.getModulesPersonnalises();
-        boolean removed = liste.removeIf(m -> m.getId().equals(idModule));
-        if (removed) {
-            sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-            System.out.println("Module personnalise '" + idModule + "' supprime de la fiche " + idFiche + ".");
-        }
-        return removed;
+        boolean ok = appliquer(idFiche, OperationFiche.supprimerModulePersonnalise(idModule));
+        if (ok) System.out.println("Module personnalise '" + idModule + "' supprime de la fiche " + idFiche + ".");
+        return ok;
     }
 
     /**
@@ -309,11 +459,20 @@ public class GestionFiche {
             return false;
         }
 
-        // Verification que la fiche existe et appartient a l'utilisateur
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
-
-        connecte.supprimerFiche(idFiche);
+        ReentrantLock verrou = verrouFiche(connecte, idFiche);
+        verrou.lock();
+        try {
+            // Verification que la fiche existe et appartient a l'utilisateur
+            FichePersonnage fiche = getFiche(idFiche);
+            if (fiche == null) return false;
+            verifierVersion(fiche);
+
+            connecte.supprimerFiche(idFiche);
+            noterVersion(connecte, idFiche, -1);
+            notifier(connecte, fiche, null);
+        } finally {
+            verrou.unlock();
+        }
         sauvegarderFiches(connecte);
         System.out.println("Fiche " + idFiche + " supprimee.");
         return true;
@@ -323,84 +482,464 @@ public class GestionFiche {
      * Renomme une fiche appartenant a l'utilisateur connecte.
      */
     public boolean modifierNomFiche(int idFiche, String nouveauNom) {
-        FichePersonnage fiche = getFiche(idFiche);
-        if (fiche == null) return false;
+        boolean ok = appliquer(idFiche, OperationFiche.modifierNomFiche(nouveauNom));
+        if (ok) System.out.println("Fiche " + idFiche + " renommee en '" + nouveauNom + "'.");
+        return ok;
+    }
+
+    /**
+     * Remet une fiche dans l'etat d'une version passee (voir HistoriqueFiches).
+     * La restauration publie une nouvelle version : l'historique n'est jamais reecrit.
+     */
+    public boolean restaurerVersion(int idFiche, FichePersonnage passee) {
+        boolean ok = appliquer(idFiche, OperationFiche.restaurer(passee));
+        if (ok) System.out.println("Fiche " + idFiche + " restauree a la version " + passee.getVersion() + ".");
+        return ok;
+    }
 
-        fiche.modifierNomFiche(nouveauNom);
-        sauvegarderFiches(gestionUtilisateur.getUtilisateurConnecte());
-        System.out.println("Fiche " + idFiche + " renommee en '" + nouveauNom + "'.");
+    /**
+     * Applique une liste ordonnee d'operations sur une fiche, en tout ou rien.
+     *
+     * Toutes les operations travaillent sur la meme nouvelle version : la fiche n'est
+     * publiee (une seule version de plus) et sauvegardee (une seule ecriture) que si
+     * toutes ont reussi. Retourne le resultat de chaque operation (celles qui suivent
+     * un echec restent a false), ou null si la fiche n'existe pas.
+     */
+    public boolean[] appliquerLot(int idFiche, List<OperationFiche> operations) {
+        if (getFiche(idFiche) == null) return null;
+
+        boolean[] resultats = new boolean[operations.size()];
+        boolean ok = appliquer(idFiche, copie -> {
+            for (int i = 0; i < operations.size(); i++) {
+                resultats[i] = operations.get(i).appliquer(copie);
+                if (!resultats[i]) return false;
+            }
+            return true;
+        });
+        if (ok) System.out.println("Lot de " + operations.size() + " operation(s) applique sur la fiche " + idFiche + ".");
+        return resultats;
+    }
+
+    /**
+     * Applique un JSON Merge Patch (voir PatchFiche) sur une fiche.
+     * Retourne les parties de la fiche reellement modifiees (liste vide si le patch ne change
+     * rien : aucune version n'est alors publiee ni sauvegardee), ou null si la fiche n'existe pas.
+     * Leve IllegalArgumentException si le patch est invalide (rien n'est alors modifie).
+     */
+    public List<String> appliquerPatch(int idFiche, java.util.Map<?, ?> patch) {
+        if (getFiche(idFiche) == null) return null;
+
+        OperationFiche operation = PatchFiche.depuisPatch(patch);
+        List<String> modifies = new ArrayList<>();
+        appliquer(idFiche, copie -> {
+            // Copie superficielle de reference : les modules detaches par le patch en different
+            FichePersonnage avant = copie.nouvelleVersion();
+            operation.appliquer(copie);
+            modifies.addAll(copie.modulesModifiesDepuis(avant));
+            return !modifies.isEmpty();
+        });
+        if (!modifies.isEmpty()) System.out.println("Patch applique sur la fiche " + idFiche + " : " + modifies + ".");
+        return modifies;
+    }
+
+    /**
+     * Applique une modification sur la version suivante d'une fiche puis la publie.
+     *
+     * La fiche publiee n'est jamais modifiee sur place : la modification travaille sur
+     * une copie qui partage les modules inchanges, et la copie remplace l'ancienne
+     * version d'un seul coup dans la liste de l'utilisateur. Les lecteurs (GET,
+     * ficheVersJSON, sauvegarde) voient donc toujours une fiche complete, sans verrou.
+     *
+     * La modification retourne false si elle n'a rien change (rien n'est alors publie).
+     *
+     * Seuls la lecture de la version courante, la modification et la publication sont
+     * faites sous le verrou de la fiche ; la sauvegarde sur disque se fait apres.
+     */
+    private boolean appliquer(int idFiche, OperationFiche modification) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            System.out.println("Erreur : vous devez etre connecte.");
+            return false;
+        }
+        return appliquer(connecte, idFiche, modification);
+    }
+
+    private boolean appliquer(Utilisateur proprietaire, int idFiche, OperationFiche modification) {
+        if (!publier(proprietaire, idFiche, modification)) return false;
+        sauvegarderFiches(proprietaire);
         return true;
     }
 
     /**
-     * Retourne le module correspondant au nom donne.
+     * Etape verrouillee d'appliquer : lecture de la version courante, modification et publication.
      */
-    private model.Module getModuleParNom(FichePersonnage fiche, String nomModule) {
-        switch (nomModule.toLowerCase()) {
-            case "portrait":
-                return fiche.getPortrait();
-            case "biographie":
-                return fiche.getBiographie();
-            case "statistiques":
-                return fiche.getStatistiques();
-            case "competence":
-                return fiche.getCompetence();
-            case "equipement":
-                return fiche.getEquipement();
-            default:
-                return null;
+    private boolean publier(Utilisateur proprietaire, int idFiche, OperationFiche modification) {
+        ReentrantLock verrou = verrouFiche(proprietaire, idFiche);
+        verrou.lock();
+        try {
+            FichePersonnage fiche = chercherFiche(proprietaire, idFiche);
+            if (fiche == null) {
+                noterVersion(proprietaire, idFiche, -1);
+                System.out.println("Erreur : fiche introuvable ou vous n'en etes pas le proprietaire.");
+                return false;
+            }
+            noterVersion(proprietaire, idFiche, fiche.getVersion());
+            verifierVersion(fiche);
+
+            FichePersonnage copie = fiche.nouvelleVersion();
+            if (!modification.appliquer(copie)) return false;
+
+            proprietaire.remplacerFiche(copie);
+            noterVersion(proprietaire, idFiche, copie.getVersion());
+            notifier(proprietaire, fiche, copie);
+        } finally {
+            verrou.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Retourne la fiche d'un utilisateur, rehydratee si elle etait archivee.
+     */
+    private FichePersonnage chercherFiche(Utilisateur utilisateur, int idFiche) {
+        FichePersonnage fiche = trouverFiche(utilisateur, idFiche);
+        if (fiche == null || !fiche.estArchivee()) return fiche;
+
+        // Lecture de l'archive hors verrou ; publiee seulement si la fiche n'a pas change entre-temps
+        FichePersonnage complete = fiche.rehydrater();
+        ReentrantLock verrou = verrouFiche(utilisateur, idFiche);
+        verrou.lock();
+        try {
+            FichePersonnage courante = trouverFiche(utilisateur, idFiche);
+            if (courante != fiche) return courante;
+            utilisateur.remplacerFiche(complete);
+            return complete;
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    private static FichePersonnage trouverFiche(Utilisateur utilisateur, int idFiche) {
+        for (FichePersonnage fiche : utilisateur.getFiches()) {
+            if (fiche.getIdFichePersonnage() == idFiche) {
+                return fiche;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Identifiants des utilisateurs dont les fiches sont en memoire.
+     */
+    public java.util.Set<Integer> getUtilisateursCharges() {
+        return java.util.Collections.unmodifiableSet(utilisateursCharges);
+    }
+
+    /**
+     * Remplace des fiches par leur version archivee (paires {fiche, fiche archivee}, voir
+     * ArchivesFiches). Une fiche modifiee, supprimee ou rehydratee entre-temps est laissee telle
+     * quelle. Les fiches sont toujours sauvegardees : le fichier ne doit plus referencer les
+     * anciens segments, meme si des fiches archivees ont ete rehydratees depuis. Retourne le
+     * nombre de fiches remplacees.
+     */
+    public int archiver(Utilisateur utilisateur, List<FichePersonnage[]> paires) {
+        int remplacees = 0;
+        for (FichePersonnage[] paire : paires) {
+            int idFiche = paire[0].getIdFichePersonnage();
+            ReentrantLock verrou = verrouFiche(utilisateur, idFiche);
+            verrou.lock();
+            try {
+                if (trouverFiche(utilisateur, idFiche) != paire[0]) continue;
+                utilisateur.remplacerFiche(paire[1]);
+                remplacees++;
+            } finally {
+                verrou.unlock();
+            }
+        }
+        sauvegarderFiches(utilisateur);
+        return remplacees;
+    }
+
+    /**
+     * Applique une fiche recue du primaire (replication, voir ReplicationSuiveur) : la cree ou la
+     * remplace telle quelle, ou la supprime si nouvelle est null. Les ecouteurs sont prevenus comme
+     * pour une modification locale. Les fiches de l'utilisateur sont chargees si besoin.
+     */
+    void appliquerReplique(Utilisateur utilisateur, int idFiche, FichePersonnage nouvelle) {
+        chargerFichesSiBesoin(utilisateur);
+        if (publierReplique(utilisateur, idFiche, nouvelle)) sauvegarderFiches(utilisateur);
+    }
+
+    /**
+     * Remplace toutes les fiches d'un utilisateur par celles du primaire (instantane de
+     * replication) : seules les fiches absentes ou d'un autre contenu sont publiees, celles
+     * que le primaire n'a plus sont supprimees. Une seule sauvegarde a la fin.
+     */
+    void remplacerFichesReplique(Utilisateur utilisateur, List<FichePersonnage> fiches) {
+        chargerFichesSiBesoin(utilisateur);
+        java.util.Set<Integer> gardees = new java.util.HashSet<>();
+        boolean modifie = false;
+        for (FichePersonnage fiche : fiches) {
+            gardees.add(fiche.getIdFichePersonnage());
+            modifie |= publierReplique(utilisateur, fiche.getIdFichePersonnage(), fiche);
+        }
+        for (FichePersonnage fiche : utilisateur.getFiches()) {
+            if (!gardees.contains(fiche.getIdFichePersonnage())) {
+                modifie |= publierReplique(utilisateur, fiche.getIdFichePersonnage(), null);
+            }
         }
+        if (modifie) sauvegarderFiches(utilisateur);
+    }
+
+    private boolean publierReplique(Utilisateur utilisateur, int idFiche, FichePersonnage nouvelle) {
+        ReentrantLock verrou = verrouFiche(utilisateur, idFiche);
+        verrou.lock();
+        try {
+            FichePersonnage ancienne = trouverFiche(utilisateur, idFiche);
+            if (nouvelle == null) {
+                if (ancienne == null) return false;
+                utilisateur.supprimerFiche(idFiche);
+            } else {
+                // Meme version et meme idVersion : deja appliquee (un id de fiche peut etre reattribue,
+                // la nouvelle fiche repasse alors par les memes numeros de version)
+                if (ancienne != null && ancienne.getVersion() == nouvelle.getVersion()
+                    && ancienne.getIdVersion() == nouvelle.getIdVersion()) return false;
+                utilisateur.publierFiche(nouvelle);
+            }
+            notifier(utilisateur, ancienne, nouvelle);
+            return true;
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Previent les ecouteurs d'une modification (appele sous le verrou de la fiche).
+     */
+    private void notifier(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        for (EcouteurFiche ecouteur : ecouteurs) {
+            try {
+                ecouteur.ficheModifiee(utilisateur, ancienne, nouvelle);
+            } catch (RuntimeException e) {
+                System.out.println("Erreur dans un ecouteur de fiches : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Leve ConflitVersionException si la requete en cours attend une autre version de la fiche.
+     */
+    private void verifierVersion(FichePersonnage fiche) {
+        Long attendue = versionAttendue.get();
+        if (attendue != null && attendue != fiche.getVersion()) {
+            throw new ConflitVersionException(fiche.getIdFichePersonnage(), fiche.getVersion());
+        }
+    }
+
+    /**
+     * Retourne le verrou associe a une fiche (les id de fiche sont propres a chaque utilisateur).
+     */
+    private ReentrantLock verrouFiche(Utilisateur utilisateur, int idFiche) {
+        int hash = 31 * utilisateur.getIdUtilisateur() + idFiche;
+        return verrous[Math.floorMod(hash, NB_VERROUS)];
     }
 
     // ========== PERSISTANCE (SERIALISATION BINAIRE) ==========
 
     /**
      * Sauvegarde les fiches d'un utilisateur avec la serialisation Java.
-     * Chaque utilisateur a son propre fichier : data/fiches_{id}.dat
+     * Chaque utilisateur a son propre fichier "fiches_{id}.dat", range dans sa racine de donnees
+     * et ecrit par les threads de cette racine (voir RepartitionDonnees).
+     *
+     * Chaque fiche est serialisee a part avec sa somme CRC32C (voir FichierFiches). Le fichier
+     * est ecrit a cote puis renomme : un lecteur (verification d'integrite, statistiques) ne
+     * voit jamais un fichier a moitie ecrit. Une copie restee dans une autre racine (racine
+     * ajoutee depuis) est supprimee une fois le fichier a sa place.
      *
-     * La serialisation permet de sauvegarder tout l'objet (et ses objets imbriques)
-     * en une seule ligne de code, sans avoir a parser manuellement.
+     * Les sauvegardes d'un meme utilisateur sont serialisees : l'instantane de la liste
+     * est pris une fois le fichier obtenu, donc la derniere ecriture est toujours la plus recente.
      */
     private void sauvegarderFiches(Utilisateur utilisateur) {
-        String cheminFichier = DOSSIER_DATA + "fiches_" + utilisateur.getIdUtilisateur() + ".dat";
-        File fichier = new File(cheminFichier);
-        fichier.getParentFile().mkdirs();
-
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fichier))) {
-            // Sauvegarde toute la liste de fiches en une seule operation
-            // Les objets imbriques (Portrait, Biographie, etc.) sont automatiquement inclus
-            oos.writeObject(utilisateur.getFiches());
-            System.out.println("Fiches sauvegardees (serialisation) : " + cheminFichier);
-        } catch (IOException e) {
-            System.out.println("Erreur lors de la sauvegarde des fiches : " + e.getMessage());
+        int idUtilisateur = utilisateur.getIdUtilisateur();
+        String nom = RepartitionDonnees.nomFiches(idUtilisateur);
+        File fichier = RepartitionDonnees.cible(idUtilisateur, nom);
+        File temporaire = new File(fichier.getPath() + ".tmp");
+
+        synchronized (utilisateur) {
+            try {
+                RepartitionDonnees.executer(idUtilisateur, () -> {
+                    fichier.getParentFile().mkdirs();
+                    try (OutputStream out = new BufferedOutputStream(
+                            securite.chiffrer(new FileOutputStream(temporaire), idUtilisateur))) {
+                        FichierFiches.ecrire(out, utilisateur.getFiches());
+                    } catch (IOException e) {
+                        temporaire.delete();
+                        throw e;
+                    }
+                    if (!temporaire.renameTo(fichier)) {
+                        fichier.delete();
+                        if (!temporaire.renameTo(fichier)) throw new IOException("remplacement de " + fichier + " impossible");
+                    }
+                    RepartitionDonnees.supprimerAutresCopies(idUtilisateur, nom);
+                    return null;
+                });
+            } catch (IOException e) {
+                System.out.println("Erreur lors de la sauvegarde des fiches : " + e.getMessage());
+                return;
+            }
+            System.out.println("Fiches sauvegardees (serialisation) : " + fichier.getPath());
+        }
+    }
+
+    /**
+     * Amene le fichier de fiches d'un utilisateur dans sa racine de donnees (voir
+     * ReequilibrageDonnees), sous le meme verrou que les sauvegardes. Retourne true s'il a ete deplace.
+     */
+    boolean deplacerFiches(Utilisateur utilisateur) throws IOException {
+        int idUtilisateur = utilisateur.getIdUtilisateur();
+        synchronized (utilisateur) {
+            return RepartitionDonnees.executer(idUtilisateur,
+                () -> RepartitionDonnees.deplacer(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur)));
         }
     }
 
     /**
      * Charge les fiches d'un utilisateur depuis son fichier serialise.
      * Reconstruit automatiquement tous les objets grace a la deserialisation.
+     *
+     * Fichier abime (enregistrement au CRC faux, fin illisible) : les fiches saines sont
+     * chargees, le fichier est mis en quarantaine, les fiches manquantes sont recuperees depuis
+     * les sources de reparation puis le fichier est reecrit.
      */
-    @SuppressWarnings("unchecked")
     public void chargerFiches(Utilisateur utilisateur) {
-        String cheminFichier = DOSSIER_DATA + "fiches_" + utilisateur.getIdUtilisateur() + ".dat";
-        File fichier = new File(cheminFichier);
+        utilisateursCharges.add(utilisateur.getIdUtilisateur());
+        File fichier = fichierFiches(utilisateur);
 
         if (!fichier.exists()) {
             return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fichier))) {
-            // Charge toute la liste de fiches en une seule operation
-            // Le cast (List<FichePersonnage>) est necessaire car readObject() retourne Object
-            List<FichePersonnage> fichesChargees = (List<FichePersonnage>) ois.readObject();
-            
-            // On vide les fiches actuelles et on ajoute celles chargees
-            utilisateur.getFiches().clear();
-            utilisateur.getFiches().addAll(fichesChargees);
-            
-            System.out.println("Fiches chargees (deserialisation) : " + fichesChargees.size() + " fiche(s)");
-        } catch (IOException | ClassNotFoundException e) {
+        FichierFiches.Lecture lecture;
+        try (InputStream in = securite.dechiffrer(new FileInputStream(fichier), utilisateur.getIdUtilisateur())) {
+            lecture = FichierFiches.lire(in);
+        } catch (IOException e) {
             System.out.println("Erreur lors du chargement des fiches : " + e.getMessage());
+            lecture = new FichierFiches.Lecture();
+            lecture.tronque = true;
+        }
+
+        List<FichePersonnage> fichesChargees = lecture.integre() ? lecture.fiches : reparer(utilisateur, fichier, lecture);
+        // On remplace les fiches actuelles d'un seul coup par celles chargees
+        utilisateur.remplacerFiches(fichesChargees);
+        System.out.println("Fiches chargees (deserialisation) : " + fichesChargees.size() + " fiche(s)");
+        if (!lecture.integre()) sauvegarderFiches(utilisateur);
+    }
+
+    /**
+     * Charge les fiches d'un utilisateur si elles ne sont pas deja en memoire (connexion, acces a
+     * une fiche partagee) : les fiches en memoire font foi, une version publiee mais pas encore
+     * sauvegardee n'est pas ecrasee par le fichier. Synchronise sur l'utilisateur comme les
+     * creations et les sauvegardes : personne ne travaille sur la liste pendant son chargement.
+     */
+    public void chargerFichesSiBesoin(Utilisateur utilisateur) {
+        synchronized (utilisateur) {
+            if (!utilisateursCharges.contains(utilisateur.getIdUtilisateur())) chargerFiches(utilisateur);
+        }
+    }
+
+    private static File fichierFiches(Utilisateur utilisateur) {
+        return RepartitionDonnees.localiser(utilisateur.getIdUtilisateur(), RepartitionDonnees.nomFiches(utilisateur.getIdUtilisateur()));
+    }
+
+    /**
+     * Instantane des fiches d'un utilisateur sans rien bloquer (sauvegarde en ligne) : la liste en
+     * memoire, copiee a l'ecriture, si elles sont chargees ; sinon son dernier fichier, remplace
+     * par renommage et donc jamais lu a moitie ecrit. Les fiches archivees y restent archivees.
+     */
+    FichierFiches.Lecture instantaneFiches(Utilisateur utilisateur) throws IOException {
+        if (utilisateursCharges.contains(utilisateur.getIdUtilisateur())) {
+            FichierFiches.Lecture lecture = new FichierFiches.Lecture();
+            lecture.fiches.addAll(utilisateur.getFiches());
+            return lecture;
+        }
+        File fichier = fichierFiches(utilisateur);
+        if (!fichier.exists()) return new FichierFiches.Lecture();
+        try (InputStream in = securite.dechiffrer(new FileInputStream(fichier), utilisateur.getIdUtilisateur())) {
+            return FichierFiches.lire(in);
+        }
+    }
+
+    /**
+     * Repare le fichier de fiches d'un utilisateur trouve abime par la verification de fond
+     * (voir VerificationIntegrite). Fiches en memoire : elles font foi, le fichier est mis en
+     * quarantaine puis reecrit. Sinon il est recharge comme au demarrage.
+     */
+    void reparerFichier(Utilisateur utilisateur, FichierFiches.Lecture lecture) {
+        if (!utilisateursCharges.contains(utilisateur.getIdUtilisateur())) {
+            chargerFiches(utilisateur);
+            return;
+        }
+        File fichier = fichierFiches(utilisateur);
+        compterAbime(fichier, lecture);
+        mettreEnQuarantaine(fichier, lecture);
+        sauvegarderFiches(utilisateur);
+    }
+
+    /**
+     * Fiches saines du fichier, completees par celles retrouvees dans les sources de reparation :
+     * les fiches des enregistrements abimes, et toutes celles qui manquent si la fin du fichier
+     * est illisible. Une fiche connue de plusieurs sources est prise dans sa version la plus recente.
+     */
+    private List<FichePersonnage> reparer(Utilisateur utilisateur, File fichier, FichierFiches.Lecture lecture) {
+        compterAbime(fichier, lecture);
+        mettreEnQuarantaine(fichier, lecture);
+
+        java.util.Set<Integer> presentes = new java.util.HashSet<>();
+        for (FichePersonnage fiche : lecture.fiches) presentes.add(fiche.getIdFichePersonnage());
+        java.util.Set<Integer> abimees = new java.util.HashSet<>();
+        for (FichierFiches.Abime abime : lecture.abimes) {
+            if (!presentes.contains(abime.idFiche)) abimees.add(abime.idFiche);
+        }
+        boolean finInconnue = lecture.tronque || !lecture.sommeFichierValide;
+
+        java.util.Map<Integer, FichePersonnage> retrouvees = new java.util.HashMap<>();
+        for (SourceReparation source : sourcesReparation) {
+            try {
+                for (FichePersonnage fiche : source.fichesConnues(utilisateur.getIdUtilisateur()).values()) {
+                    int id = fiche.getIdFichePersonnage();
+                    if (presentes.contains(id) || (!finInconnue && !abimees.contains(id))) continue;
+                    FichePersonnage connue = retrouvees.get(id);
+                    if (connue == null || connue.getVersion() < fiche.getVersion()) retrouvees.put(id, fiche);
+                }
+            } catch (IOException e) {
+                System.out.println("Integrite : source de reparation illisible : " + e.getMessage());
+            }
+        }
+
+        List<FichePersonnage> fiches = new ArrayList<>(lecture.fiches);
+        fiches.addAll(retrouvees.values());
+        fiches.sort(java.util.Comparator.comparingInt(FichePersonnage::getIdFichePersonnage));
+        abimees.removeAll(retrouvees.keySet());
+        compteursIntegrite.fichesRecuperees.addAndGet(retrouvees.size());
+        compteursIntegrite.fichesPerdues.addAndGet(abimees.size());
+        System.out.println("Integrite : " + retrouvees.size() + " fiche(s) recuperee(s)"
+            + (abimees.isEmpty() ? "" : ", fiche(s) " + abimees + " perdue(s)") + ".");
+        return fiches;
+    }
+
+    private void compterAbime(File fichier, FichierFiches.Lecture lecture) {
+        compteursIntegrite.fichiersAbimes.incrementAndGet();
+        compteursIntegrite.enregistrementsAbimes.addAndGet(lecture.abimes.size());
+        System.out.println("Integrite : fichier " + fichier + " abime (" + lecture.description() + ").");
+    }
+
+    private void mettreEnQuarantaine(File fichier, FichierFiches.Lecture lecture) {
+        try {
+            File copie = FichierFiches.mettreEnQuarantaine(fichier, lecture);
+            compteursIntegrite.quarantaines.incrementAndGet();
+            System.out.println("Integrite : copie du fichier abime gardee dans " + copie + ".");
+        } catch (IOException e) {
+            System.out.println("Integrite : mise en quarantaine de " + fichier + " impossible : " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,215 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Partage de fiches entre utilisateurs, avec un role par collaborateur :
+ * - "lecteur" : peut lire la fiche et suivre ses modifications
+ * - "editeur" : peut en plus la modifier en edition collaborative
+ * Le proprietaire a tous les droits et est le seul a pouvoir gerer les partages.
+ *
+ * Persistance : fichier texte "data/partages.txt",
+ * une ligne "idProprietaire;idFiche;idCollaborateur;role" par partage.
+ */
+public class GestionPartage implements EcouteurFiche {
+
+    private static final String FICHIER_PARTAGES = "data/partages.txt";
+    public static final String LECTEUR = "lecteur";
+    public static final String EDITEUR = "editeur";
+
+    private final List<Partage> partages;
+    // Prevenus de chaque partage ou retrait (journal de replication)
+    private final List<Runnable> ecouteurs = new CopyOnWriteArrayList<>();
+
+    // Sauvegardes declenchees par la suppression d'une fiche, hors du verrou de la fiche
+    private final ExecutorService sauvegardeDifferee = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sauvegarde-partages");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public GestionPartage() {
+        this.partages = chargerPartages();
+    }
+
+    /**
+     * Un partage d'une fiche avec un collaborateur.
+     */
+    public static class Partage {
+        public final int idProprietaire;
+        public final int idFiche;
+        public final int idCollaborateur;
+        public final String role;
+
+        public Partage(int idProprietaire, int idFiche, int idCollaborateur, String role) {
+            this.idProprietaire = idProprietaire;
+            this.idFiche = idFiche;
+            this.idCollaborateur = idCollaborateur;
+            this.role = role;
+        }
+    }
+
+    /**
+     * Partage (ou change le role d') une fiche du proprietaire avec un collaborateur.
+     */
+    public synchronized boolean partager(Utilisateur proprietaire, int idFiche, Utilisateur collaborateur, String role) {
+        if (!LECTEUR.equals(role) && !EDITEUR.equals(role)) return false;
+        if (proprietaire.getIdUtilisateur() == collaborateur.getIdUtilisateur()) return false;
+
+        partages.removeIf(p -> p.idProprietaire == proprietaire.getIdUtilisateur()
+            && p.idFiche == idFiche && p.idCollaborateur == collaborateur.getIdUtilisateur());
+        partages.add(new Partage(proprietaire.getIdUtilisateur(), idFiche, collaborateur.getIdUtilisateur(), role));
+        sauvegarderPartages();
+        prevenir();
+        return true;
+    }
+
+    public synchronized boolean retirer(Utilisateur proprietaire, int idFiche, Utilisateur collaborateur) {
+        boolean retire = partages.removeIf(p -> p.idProprietaire == proprietaire.getIdUtilisateur()
+            && p.idFiche == idFiche && p.idCollaborateur == collaborateur.getIdUtilisateur());
+        if (retire) {
+            sauvegarderPartages();
+            prevenir();
+        }
+        return retire;
+    }
+
+    /**
+     * Enregistre une action appelee apres chaque partage ou retrait. Les partages retires avec
+     * une fiche supprimee ne sont pas signales : chaque instance les retire d'elle-meme.
+     */
+    public void ajouterEcouteurPartages(Runnable ecouteur) {
+        ecouteurs.add(ecouteur);
+    }
+
+    private void prevenir() {
+        for (Runnable ecouteur : ecouteurs) ecouteur.run();
+    }
+
+    /**
+     * Remplace tous les partages par ceux d'un instantane (voir instantane), sur une instance suiveuse.
+     */
+    public synchronized void remplacer(byte[] contenu) {
+        List<Partage> lus;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(contenu)))) {
+            lus = lirePartages(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        partages.clear();
+        partages.addAll(lus);
+        sauvegarderPartages();
+    }
+
+    /**
+     * Supprime les partages d'une fiche quand elle est supprimee.
+     */
+    public synchronized void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        if (nouvelle != null) return;
+        int idProprietaire = utilisateur.getIdUtilisateur();
+        int idFiche = ancienne.getIdFichePersonnage();
+        if (partages.removeIf(p -> p.idProprietaire == idProprietaire && p.idFiche == idFiche)) {
+            sauvegardeDifferee.execute(() -> {
+                synchronized (this) {
+                    sauvegarderPartages();
+                }
+            });
+        }
+    }
+
+    /**
+     * Retourne le role d'un utilisateur sur une fiche : "proprietaire", "editeur", "lecteur" ou null.
+     */
+    public synchronized String role(Utilisateur utilisateur, int idProprietaire, int idFiche) {
+        if (utilisateur.getIdUtilisateur() == idProprietaire) return "proprietaire";
+        for (Partage p : partages) {
+            if (p.idProprietaire == idProprietaire && p.idFiche == idFiche && p.idCollaborateur == utilisateur.getIdUtilisateur()) {
+                return p.role;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Partage> partagesRecus(Utilisateur collaborateur) {
+        List<Partage> resultat = new ArrayList<>();
+        for (Partage p : partages) {
+            if (p.idCollaborateur == collaborateur.getIdUtilisateur()) resultat.add(p);
+        }
+        return resultat;
+    }
+
+    public synchronized List<Partage> partagesDeFiche(Utilisateur proprietaire, int idFiche) {
+        List<Partage> resultat = new ArrayList<>();
+        for (Partage p : partages) {
+            if (p.idProprietaire == proprietaire.getIdUtilisateur() && p.idFiche == idFiche) resultat.add(p);
+        }
+        return resultat;
+    }
+
+    /**
+     * Contenu de "data/partages.txt" pour l'etat courant des partages (voir Sauvegardes).
+     */
+    public synchronized byte[] instantane() {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(octets))) {
+            ecrirePartages(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return octets.toByteArray();
+    }
+
+    private void sauvegarderPartages() {
+        File fichier = new File(FICHIER_PARTAGES);
+        fichier.getParentFile().mkdirs();
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fichier))) {
+            ecrirePartages(writer);
+        } catch (IOException e) {
+            System.out.println("Erreur sauvegarde des partages : " + e.getMessage());
+        }
+    }
+
+    private void ecrirePartages(BufferedWriter writer) throws IOException {
+        for (Partage p : partages) {
+            writer.write(p.idProprietaire + ";" + p.idFiche + ";" + p.idCollaborateur + ";" + p.role);
+            writer.newLine();
+        }
+    }
+
+    private List<Partage> chargerPartages() {
+        File fichier = new File(FICHIER_PARTAGES);
+        List<Partage> liste = new ArrayList<>();
+
+        if (!fichier.exists()) return liste;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fichier))) {
+            liste.addAll(lirePartages(reader));
+        } catch (IOException e) {
+            System.out.println("Erreur chargement des partages : " + e.getMessage());
+        }
+
+        return liste;
+    }
+
+    private static List<Partage> lirePartages(BufferedReader reader) throws IOException {
+        List<Partage> liste = new ArrayList<>();
+        String ligne;
+        while ((ligne = reader.readLine()) != null) {
+            String[] parties = ligne.split(";");
+            if (parties.length == 4) {
+                liste.add(new Partage(Integer.parseInt(parties[0]), Integer.parseInt(parties[1]),
+                    Integer.parseInt(parties[2]), parties[3]));
+            }
+        }
+        return liste;
+    }
+}
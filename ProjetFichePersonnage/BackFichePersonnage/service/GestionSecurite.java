@@ -1,75 +1,515 @@
 package service;
 
 import model.Utilisateur;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Arrays;
-import javax.crypto.*;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.*;
-import java.security.*;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 
+/**
+ * Chiffrement des fichiers de donnees d'un utilisateur (fiches, historique).
+ *
+ * Actif si "chiffrement.actif" vaut true : les fichiers sont alors ecrits chiffres par AES-GCM,
+ * au fil de l'eau par blocs (voir CrypterDecrypterAES), avec une cle propre a chaque utilisateur
+ * derivee du secret maitre du serveur (voir CleUtilisateur). La lecture reconnait un fichier
+ * chiffre a son en-tete : les fichiers en clair deja presents restent lisibles et sont chiffres
+ * a leur prochaine ecriture.
+ *
+ * Le secret maitre est garde hors de "data/" : il est lu dans la variable d'environnement
+ * FICHES_SECRET (base64, 32 octets au moins), sinon dans le fichier "chiffrement.secret"
+ * ("cle_maitre.bin" dans le repertoire de lancement par defaut), cree avec 32 octets aleatoires
+ * au premier demarrage. Une copie de "data/" (ou une sauvegarde) seule ne suffit donc pas a
+ * dechiffrer les fichiers ; ce secret est a sauvegarder a part, sans lui les donnees sont perdues.
+ *
+ * Les fichiers de l'ancien format (en-tete version 1, cle derivee par PBKDF2 du mot de passe
+ * enregistre, "chiffrement.iterations") restent lisibles et passent au nouveau format a leur
+ * prochaine ecriture. Les cles sont gardees en memoire (LRU de "chiffrement.cache.cles"
+ * utilisateurs).
+ */
 public class GestionSecurite {
-    
+
+    private static final int TAILLE_SECRET = 32;
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final boolean actif;
+    private final int iterations;
+    private final int tailleBloc;
+    private final int clesMax;
+    private final SecureRandom aleatoire = new SecureRandom();
+    private volatile byte[] secret;
+
+    // Cle courante de chaque utilisateur (et le format et le sel dont elle est derivee)
+    private final LinkedHashMap<Integer, Cle> cles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static class Cle {
+        final int version;
+        final byte[] sel;
+        final SecretKeySpec cle;
+
+        Cle(int version, byte[] sel, SecretKeySpec cle) {
+            this.version = version;
+            this.sel = sel;
+            this.cle = cle;
+        }
+    }
+
+    public GestionSecurite(GestionUtilisateur gestionUtilisateur) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.actif = Boolean.parseBoolean(Configuration.texte("chiffrement.actif", "false"));
+        this.iterations = Math.max(1, Configuration.entier("chiffrement.iterations", 210_000));
+        this.tailleBloc = Math.max(1024, Configuration.entier("chiffrement.bloc", 64 * 1024));
+        this.clesMax = Math.max(1, Configuration.entier("chiffrement.cache.cles", 64));
+        if (actif) this.secret = chargerSecret(true);
+        if (actif) System.out.println("Chiffrement des donnees actif (AES-GCM).");
+    }
+
+    /**
+     * Secret maitre : FICHES_SECRET, sinon le fichier "chiffrement.secret" (cree s'il n'existe pas
+     * et que "creer" est vrai). Leve IllegalStateException si le secret est absent, invalide ou
+     * range dans "data/" : le serveur ne demarre pas plutot que d'ecrire des fichiers qu'il ne
+     * saurait plus relire.
+     */
+    private byte[] chargerSecret(boolean creer) {
+        String variable = System.getenv("FICHES_SECRET");
+        if (variable != null && !variable.isBlank()) {
+            byte[] octets;
+            try {
+                octets = Base64.getDecoder().decode(variable.trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("FICHES_SECRET n'est pas du base64");
+            }
+            if (octets.length < TAILLE_SECRET) throw new IllegalStateException("FICHES_SECRET doit faire au moins " + TAILLE_SECRET + " octets");
+            return octets;
+        }
+
+        File fichier = new File(Configuration.texte("chiffrement.secret", "cle_maitre.bin")).toPath().toAbsolutePath().normalize().toFile();
+        File data = new File("data").toPath().toAbsolutePath().normalize().toFile();
+        for (File parent = fichier.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            if (parent.equals(data)) throw new IllegalStateException("le secret maitre " + fichier + " ne doit pas etre dans data/");
+        }
+        try {
+            if (!fichier.exists()) {
+                if (!creer) throw new IllegalStateException("secret maitre " + fichier + " introuvable");
+                byte[] octets = new byte[TAILLE_SECRET];
+                aleatoire.nextBytes(octets);
+                if (fichier.getParentFile() != null) fichier.getParentFile().mkdirs();
+                try (FileOutputStream out = new FileOutputStream(fichier)) {
+                    out.write(octets);
+                    out.getFD().sync();
+                }
+                fichier.setReadable(false, false);
+                fichier.setReadable(true, true);
+                fichier.setWritable(false, false);
+                System.out.println("Chiffrement : secret maitre cree dans " + fichier + ", a sauvegarder hors de data/.");
+                return octets;
+            }
+            byte[] octets = Files.readAllBytes(fichier.toPath());
+            if (octets.length < TAILLE_SECRET) throw new IllegalStateException("secret maitre " + fichier + " trop court");
+            return octets;
+        } catch (IOException e) {
+            throw new IllegalStateException("secret maitre " + fichier + " illisible : " + e.getMessage());
+        }
+    }
+
+    public boolean actif() {
+        return actif;
+    }
+
+    /**
+     * Flux d'ecriture d'un fichier de l'utilisateur : chiffre si le chiffrement est actif,
+     * sinon la sortie elle-meme. Le fichier n'est complet qu'a la fermeture du flux.
+     */
+    public OutputStream chiffrer(OutputStream sortie, int idUtilisateur) throws IOException {
+        if (!actif) return sortie;
+        Cle cle = cleCourante(idUtilisateur);
+        return CrypterDecrypterAES.chiffrer(sortie, cle.cle, cle.sel, tailleBloc, aleatoire);
+    }
+
+    /**
+     * Flux de lecture d'un fichier de l'utilisateur, dechiffre s'il a l'en-tete d'un fichier chiffre.
+     * Leve IOException si le fichier chiffre est altere ou tronque.
+     */
+    public InputStream dechiffrer(InputStream entree, int idUtilisateur) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(entree);
+        CrypterDecrypterAES.Entete entete = CrypterDecrypterAES.lireEntete(in);
+        if (entete == null) return in;
+        return CrypterDecrypterAES.dechiffrer(in, cle(idUtilisateur, entete.version, entete.sel).cle);
+    }
+
+    /**
+     * Cle de l'utilisateur pour ecrire, toujours au format courant : celle en cache, sinon celle
+     * de son fichier de fiches (meme sel), sinon une nouvelle.
+     */
+    private Cle cleCourante(int idUtilisateur) throws IOException {
+        synchronized (cles) {
+            Cle cle = cles.get(idUtilisateur);
+            if (cle != null && cle.version == CrypterDecrypterAES.VERSION) return cle;
+        }
+        byte[] sel = null;
+        File fiches = RepartitionDonnees.localiser(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur));
+        if (fiches.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(fiches))) {
+                CrypterDecrypterAES.Entete entete = CrypterDecrypterAES.lireEntete(in);
+                if (entete != null && entete.version == CrypterDecrypterAES.VERSION) sel = entete.sel;
+            }
+        }
+        if (sel == null) {
+            sel = new byte[CrypterDecrypterAES.TAILLE_SEL];
+            aleatoire.nextBytes(sel);
+        }
+        return cle(idUtilisateur, CrypterDecrypterAES.VERSION, sel);
+    }
+
+    /**
+     * Secret maitre ; chiffrement inactif, il n'est lu qu'au premier fichier chiffre rencontre.
+     */
+    private byte[] secret() throws IOException {
+        byte[] lu = secret;
+        if (lu != null) return lu;
+        try {
+            lu = chargerSecret(false);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage() + ", fichier chiffre illisible");
+        }
+        secret = lu;
+        return lu;
+    }
+
+    private Cle cle(int idUtilisateur, int version, byte[] sel) throws IOException {
+        synchronized (cles) {
+            Cle cle = cles.get(idUtilisateur);
+            if (cle != null && cle.version == version && Arrays.equals(cle.sel, sel)) return cle;
+        }
+
+        // Derivation hors du verrou : celle de l'ancien format prend un temps notable
+        Cle cle;
+        try {
+            if (version == CrypterDecrypterAES.VERSION) {
+                cle = new Cle(version, sel, CleUtilisateur.genererCleDepuisSecret(secret(), idUtilisateur, sel));
+            } else {
+                Utilisateur utilisateur = gestionUtilisateur.trouverParId(idUtilisateur);
+                if (utilisateur == null) throw new IOException("utilisateur " + idUtilisateur + " inconnu, fichier indechiffrable");
+                cle = new Cle(version, sel, CleUtilisateur.genererCleDepuisHash(utilisateur.getMotdepasse(), sel, iterations));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("derivation de cle impossible : " + e.getMessage());
+        }
+        synchronized (cles) {
+            cles.put(idUtilisateur, cle);
+            var iterateur = cles.values().iterator();
+            while (cles.size() > clesMax && iterateur.hasNext()) {
+                iterateur.next();
+                iterateur.remove();
+            }
+        }
+        return cle;
+    }
 }
 
 class CleUtilisateur extends Utilisateur {
+    private static final long serialVersionUID = 1L;
+
     public CleUtilisateur(int idUtilisateur, String nomUtilisateur, String motdepasseHash) {
         super(idUtilisateur, nomUtilisateur, motdepasseHash);
     }
 
-    public static SecretKeySpec genererCleDepuisHash(String passwordHash) throws Exception {
-    // On transforme le String (hexadécimal ou base64) en octets
-    byte[] keyBytes = passwordHash.getBytes(StandardCharsets.UTF_8);
-    
-    // On repasse un petit coup de MessageDigest pour garantir 
-    // que la clé de chiffrement est différente du hash de login
-    MessageDigest sha = MessageDigest.getInstance("SHA-256");
-    byte[] finalKey = sha.digest(keyBytes);
-    
-    // AES-128 demande 16 octets
-    finalKey = Arrays.copyOf(finalKey, 16); 
-    
-    return new SecretKeySpec(finalKey, "AES");
-    }
-    
+    /**
+     * Cle AES-256 de l'utilisateur : HMAC-SHA256 du secret maitre sur son id et le sel aleatoire
+     * (garde dans l'en-tete des fichiers chiffres). Rien de ce qui est dans "data/" ne permet de
+     * la retrouver sans le secret.
+     */
+    public static SecretKeySpec genererCleDepuisSecret(byte[] secret, int idUtilisateur, byte[] sel) throws GeneralSecurityException {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        hmac.update(("fiches-utilisateur:" + idUtilisateur + ":").getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(hmac.doFinal(sel), "AES");
+    }
+
+    /**
+     * Ancien format (version 1) : cle derivee du mot de passe enregistre par PBKDF2-HMAC-SHA256,
+     * avec le sel de l'en-tete. Ne sert plus qu'a relire les fichiers ecrits avant le secret maitre.
+     */
+    public static SecretKeySpec genererCleDepuisHash(String passwordHash, byte[] sel, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passwordHash.toCharArray(), sel, iterations, 256);
+        try {
+            byte[] cle = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(cle, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
 }
 
+/**
+ * Format d'un fichier chiffre :
+ * en-tete : "FPCH", version (1 octet, voir VERSION), sel (16), prefixe de nonce aleatoire (8), taille de bloc (4) ;
+ * puis des blocs : longueur chiffree (4 octets, bit de poids fort pour le dernier bloc), texte chiffre et tag.
+ *
+ * Chaque bloc est chiffre par AES-GCM avec le nonce prefixe + numero de bloc ; le numero et le
+ * drapeau "dernier bloc" sont authentifies : un bloc deplace, retire ou un fichier tronque est
+ * detecte. La memoire utilisee ne depend que de la taille de bloc, pas de celle du fichier.
+ */
 class CrypterDecrypterAES {
-    
-    public static void chiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        
-        FileInputStream inputStream = new FileInputStream(inputFile);
-        byte[] inputBytes = new byte[(int) new File(inputFile).length()];
-        inputStream.read(inputBytes);
 
-        byte[] outputBytes = cipher.doFinal(inputBytes);
+    static final int TAILLE_SEL = 16;
+    private static final byte[] MAGIQUE = { 'F', 'P', 'C', 'H' };
+    // 2 : cle derivee du secret maitre ; 1 : cle derivee du mot de passe (relu seulement)
+    static final int VERSION = 2;
+    static final int VERSION_MOT_DE_PASSE = 1;
+    private static final int TAILLE_PREFIXE = 8;
+    private static final int TAILLE_TAG = 16;
+    private static final int DERNIER = 0x80000000;
+
+    public static void chiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws IOException {
+        byte[] sel = new byte[TAILLE_SEL];
+        SecureRandom aleatoire = new SecureRandom();
+        aleatoire.nextBytes(sel);
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = chiffrer(new FileOutputStream(outputFile), secretKey, sel, 64 * 1024, aleatoire)) {
+            in.transferTo(out);
+        }
+    }
+
+    public static void dechiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws IOException {
+        try (InputStream fichier = new BufferedInputStream(new FileInputStream(inputFile));
+             OutputStream out = new FileOutputStream(outputFile)) {
+            if (lireEntete(fichier) == null) throw new IOException(inputFile + " n'est pas un fichier chiffre");
+            dechiffrer(fichier, secretKey).transferTo(out);
+        }
+    }
+
+    /**
+     * Ecrit l'en-tete puis retourne le flux qui chiffre ce qui y est ecrit.
+     */
+    static OutputStream chiffrer(OutputStream sortie, SecretKeySpec cle, byte[] sel, int tailleBloc, SecureRandom aleatoire) throws IOException {
+        byte[] prefixe = new byte[TAILLE_PREFIXE];
+        aleatoire.nextBytes(prefixe);
+        DataOutputStream out = new DataOutputStream(sortie);
+        out.write(MAGIQUE);
+        out.writeByte(VERSION);
+        out.write(sel);
+        out.write(prefixe);
+        out.writeInt(tailleBloc);
+        return new FluxChiffre(out, cle, prefixe, tailleBloc);
+    }
+
+    /**
+     * Debut de l'en-tete : version du format et sel.
+     */
+    static class Entete {
+        final int version;
+        final byte[] sel;
+
+        Entete(int version, byte[] sel) {
+            this.version = version;
+            this.sel = sel;
+        }
+    }
+
+    /**
+     * Lit l'en-tete jusqu'au sel compris, ou retourne null (flux remis au debut) si le flux
+     * n'est pas chiffre. Le flux doit supporter mark/reset.
+     */
+    static Entete lireEntete(InputStream in) throws IOException {
+        in.mark(MAGIQUE.length);
+        byte[] magique = in.readNBytes(MAGIQUE.length);
+        if (!Arrays.equals(magique, MAGIQUE)) {
+            in.reset();
+            return null;
+        }
+        int version = in.read();
+        if (version != VERSION && version != VERSION_MOT_DE_PASSE) throw new IOException("version de chiffrement inconnue : " + version);
+        byte[] sel = in.readNBytes(TAILLE_SEL);
+        if (sel.length != TAILLE_SEL) throw new IOException("en-tete chiffre tronque");
+        return new Entete(version, sel);
+    }
+
+    /**
+     * Flux dechiffre, a partir de la fin du sel (voir lireEntete).
+     */
+    static InputStream dechiffrer(InputStream entree, SecretKeySpec cle) throws IOException {
+        DataInputStream in = new DataInputStream(entree);
+        byte[] prefixe = new byte[TAILLE_PREFIXE];
+        in.readFully(prefixe);
+        int tailleBloc = in.readInt();
+        if (tailleBloc <= 0 || tailleBloc > 16 * 1024 * 1024) throw new IOException("taille de bloc invalide : " + tailleBloc);
+        return new FluxDechiffre(in, cle, prefixe, tailleBloc);
+    }
 
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(outputBytes);
+    private static Cipher nouveauCipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM indisponible : " + e.getMessage());
+        }
+    }
 
-        inputStream.close();
-        outputStream.close();
+    /**
+     * Prepare le cipher (reutilise d'un bloc a l'autre) pour le bloc numero "index".
+     */
+    private static Cipher initialiser(Cipher cipher, int mode, SecretKeySpec cle, byte[] prefixe, int index, boolean dernier)
+            throws GeneralSecurityException {
+        byte[] nonce = ByteBuffer.allocate(TAILLE_PREFIXE + 4).put(prefixe).putInt(index).array();
+        cipher.init(mode, cle, new GCMParameterSpec(TAILLE_TAG * 8, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(5).putInt(index).put((byte) (dernier ? 1 : 0)).array());
+        return cipher;
     }
 
-    public static void dechiffrerFichier(String inputFile, String outputFile, SecretKeySpec secretKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        
-        FileInputStream inputStream = new FileInputStream(inputFile);
-        byte[] inputBytes = new byte[(int) new File(inputFile).length()];
-        inputStream.read(inputBytes);
+    /**
+     * Accumule un bloc en clair et l'ecrit chiffre quand il est plein ; le dernier bloc (eventuellement
+     * vide) est ecrit a la fermeture.
+     */
+    private static class FluxChiffre extends OutputStream {
+        private final DataOutputStream out;
+        private final SecretKeySpec cle;
+        private final byte[] prefixe;
+        private final Cipher cipher;
+        private final byte[] clair;
+        private final byte[] chiffre;
+        private int remplis;
+        private int index;
+        private boolean ferme;
+
+        FluxChiffre(DataOutputStream out, SecretKeySpec cle, byte[] prefixe, int tailleBloc) throws IOException {
+            this.out = out;
+            this.cle = cle;
+            this.prefixe = prefixe;
+            this.cipher = nouveauCipher();
+            this.clair = new byte[tailleBloc];
+            this.chiffre = new byte[tailleBloc + TAILLE_TAG];
+        }
+
+        public void write(int b) throws IOException {
+            if (remplis == clair.length) ecrireBloc(false);
+            clair[remplis++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // Un bloc plein n'est ecrit qu'une fois la suite connue : le dernier est toujours marque
+                if (remplis == clair.length) ecrireBloc(false);
+                int n = Math.min(len, clair.length - remplis);
+                System.arraycopy(b, off, clair, remplis, n);
+                remplis += n;
+                off += n;
+                len -= n;
+            }
+        }
 
-        byte[] outputBytes = cipher.doFinal(inputBytes);
+        public void flush() throws IOException {
+            out.flush();
+        }
 
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(outputBytes);
+        public void close() throws IOException {
+            if (ferme) return;
+            ferme = true;
+            try {
+                ecrireBloc(true);
+            } finally {
+                out.close();
+            }
+        }
 
-        inputStream.close();
-        outputStream.close();
+        private void ecrireBloc(boolean dernier) throws IOException {
+            int longueur;
+            try {
+                longueur = initialiser(cipher, Cipher.ENCRYPT_MODE, cle, prefixe, index, dernier).doFinal(clair, 0, remplis, chiffre, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("chiffrement impossible : " + e.getMessage());
+            }
+            out.writeInt(dernier ? longueur | DERNIER : longueur);
+            out.write(chiffre, 0, longueur);
+            index++;
+            remplis = 0;
+        }
     }
 
+    /**
+     * Lit et verifie un bloc a la fois.
+     */
+    private static class FluxDechiffre extends InputStream {
+        private final DataInputStream in;
+        private final SecretKeySpec cle;
+        private final byte[] prefixe;
+        private final Cipher cipher;
+        private final byte[] clair;
+        private final byte[] chiffre;
+        private int position;
+        private int limite;
+        private int index;
+        private boolean fini;
+
+        FluxDechiffre(DataInputStream in, SecretKeySpec cle, byte[] prefixe, int tailleBloc) throws IOException {
+            this.in = in;
+            this.cle = cle;
+            this.prefixe = prefixe;
+            this.cipher = nouveauCipher();
+            this.clair = new byte[tailleBloc];
+            this.chiffre = new byte[tailleBloc + TAILLE_TAG];
+        }
+
+        public int read() throws IOException {
+            while (position == limite) {
+                if (!lireBloc()) return -1;
+            }
+            return clair[position++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (position == limite) {
+                if (!lireBloc()) return -1;
+            }
+            int n = Math.min(len, limite - position);
+            System.arraycopy(clair, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        public int available() {
+            return limite - position;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean lireBloc() throws IOException {
+            if (fini) return false;
+            int entete;
+            try {
+                entete = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("fichier chiffre tronque");
+            }
+            boolean dernier = (entete & DERNIER) != 0;
+            int longueur = entete & ~DERNIER;
+            if (longueur < TAILLE_TAG || longueur > chiffre.length) throw new IOException("bloc chiffre invalide");
+            in.readFully(chiffre, 0, longueur);
+            try {
+                limite = initialiser(cipher, Cipher.DECRYPT_MODE, cle, prefixe, index, dernier).doFinal(chiffre, 0, longueur, clair, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("fichier chiffre altere ou mauvaise cle");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("dechiffrement impossible : " + e.getMessage());
+            }
+            position = 0;
+            index++;
+            fini = dernier;
+            return true;
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package service;
+
+import model.FichePersonnage;
+import model.Template;
+import model.Utilisateur;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Templates de fiches de chaque utilisateur : creation depuis une de ses fiches,
+ * liste, suppression. La creation de fiches depuis un template est faite par
+ * GestionFiche.creerFichesDepuisTemplate.
+ *
+ * Persistance : serialisation Java dans "templates_{idUtilisateur}.dat", dans la racine de
+ * donnees de l'utilisateur (voir RepartitionDonnees), chargee a la premiere demande de l'utilisateur.
+ */
+public class GestionTemplate {
+
+
+    private final GestionFiche gestionFiche;
+    private final Map<Integer, List<Template>> parUtilisateur = new ConcurrentHashMap<>();
+
+    public GestionTemplate(GestionFiche gestionFiche) {
+        this.gestionFiche = gestionFiche;
+    }
+
+    /**
+     * Cree un template depuis une fiche de l'utilisateur, null si la fiche n'existe pas.
+     */
+    public Template creerTemplate(Utilisateur utilisateur, int idFiche, String nomTemplate) {
+        FichePersonnage fiche = gestionFiche.getFicheDe(utilisateur, idFiche);
+        if (fiche == null) return null;
+
+        List<Template> templates = templatesDe(utilisateur);
+        Template template;
+        synchronized (templates) {
+            int id = 1;
+            for (Template t : templates) id = Math.max(id, t.getIdTemplate() + 1);
+            template = Template.creeTemplate(id, nomTemplate, fiche);
+            templates.add(template);
+            sauvegarderTemplates(utilisateur, templates);
+        }
+        System.out.println("Template '" + nomTemplate + "' cree depuis la fiche " + idFiche + " (id=" + template.getIdTemplate() + ").");
+        return template;
+    }
+
+    public List<Template> listerTemplates(Utilisateur utilisateur) {
+        return templatesDe(utilisateur);
+    }
+
+    public Template getTemplate(Utilisateur utilisateur, int idTemplate) {
+        for (Template t : templatesDe(utilisateur)) {
+            if (t.getIdTemplate() == idTemplate) return t;
+        }
+        return null;
+    }
+
+    public boolean supprimerTemplate(Utilisateur utilisateur, int idTemplate) {
+        List<Template> templates = templatesDe(utilisateur);
+        synchronized (templates) {
+            if (!templates.removeIf(t -> t.getIdTemplate() == idTemplate)) return false;
+            sauvegarderTemplates(utilisateur, templates);
+        }
+        // Les fiches deja creees gardent leurs modules : elles ne dependent pas du template
+        System.out.println("Template " + idTemplate + " supprime.");
+        return true;
+    }
+
+    private List<Template> templatesDe(Utilisateur utilisateur) {
+        return parUtilisateur.computeIfAbsent(utilisateur.getIdUtilisateur(), id -> chargerTemplates(id));
+    }
+
+    private void sauvegarderTemplates(Utilisateur utilisateur, List<Template> templates) {
+        String nom = "templates_" + utilisateur.getIdUtilisateur() + ".dat";
+        File fichier = RepartitionDonnees.cible(utilisateur.getIdUtilisateur(), nom);
+        fichier.getParentFile().mkdirs();
+
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fichier))) {
+            oos.writeObject(new ArrayList<>(templates));
+        } catch (IOException e) {
+            System.out.println("Erreur lors de la sauvegarde des templates : " + e.getMessage());
+            return;
+        }
+        RepartitionDonnees.supprimerAutresCopies(utilisateur.getIdUtilisateur(), nom);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Template> chargerTemplates(int idUtilisateur) {
+        List<Template> templates = new CopyOnWriteArrayList<>();
+        File fichier = RepartitionDonnees.localiser(idUtilisateur, "templates_" + idUtilisateur + ".dat");
+        if (!fichier.exists()) return templates;
+
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fichier))) {
+            templates.addAll((List<Template>) ois.readObject());
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Erreur lors du chargement des templates : " + e.getMessage());
+        }
+        return templates;
+    }
+}
@@ -5,19 +5,27 @@ import model.Utilisateur;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class GestionUtilisateur {
 
     private static final String FICHIER_UTILISATEURS = "data/utilisateurs.txt";
+    // Liste copiee a l'ecriture : une sauvegarde en ligne en prend un instantane sans verrou
     private List<Utilisateur> utilisateurs;
-    private Utilisateur utilisateurConnecte;
+    private volatile Utilisateur utilisateurConnecte;
+    // Prevenus de chaque compte cree (replication)
+    private final List<Consumer<Utilisateur>> ecouteursComptes = new CopyOnWriteArrayList<>();
 
     public GestionUtilisateur() {
-        this.utilisateurs = chargerUtilisateurs();
+        this.utilisateurs = new CopyOnWriteArrayList<>(chargerUtilisateurs());
         this.utilisateurConnecte = null;
     }
 
-    public Utilisateur creerCompte(String nomUtilisateur, String motdepasse) {
+    /**
+     * Synchronise : deux inscriptions simultanees ne peuvent ni prendre le meme nom ni le meme id.
+     */
+    public synchronized Utilisateur creerCompte(String nomUtilisateur, String motdepasse) {
         for (Utilisateur u : utilisateurs) {
             if (u.getNomUtilisateur().equals(nomUtilisateur)) {
                 return null;
@@ -29,9 +37,39 @@ public class GestionUtilisateur {
         Utilisateur nouveau = new Utilisateur(id, nomUtilisateur, motdepasse);
         utilisateurs.add(nouveau);
         sauvegarderUtilisateurs();
+        for (Consumer<Utilisateur> ecouteur : ecouteursComptes) {
+            ecouteur.accept(nouveau);
+        }
         return nouveau;
     }
 
+    public void ajouterEcouteurComptes(Consumer<Utilisateur> ecouteur) {
+        ecouteursComptes.add(ecouteur);
+    }
+
+    /**
+     * Applique un compte recu du primaire (replication, voir ReplicationSuiveur) : l'ajoute, ou
+     * remplace le compte de meme id s'il differe (les fiches deja chargees sont gardees).
+     */
+    synchronized void appliquerCompte(Utilisateur compte) {
+        for (int i = 0; i < utilisateurs.size(); i++) {
+            Utilisateur existant = utilisateurs.get(i);
+            if (existant.getIdUtilisateur() != compte.getIdUtilisateur()) continue;
+            if (existant.getNomUtilisateur().equals(compte.getNomUtilisateur())
+                    && existant.getMotdepasse().equals(compte.getMotdepasse())) {
+                return;
+            }
+            System.out.println("Replication : compte " + compte.getIdUtilisateur() + " different du primaire, remplace.");
+            compte.remplacerFiches(existant.getFiches());
+            utilisateurs.set(i, compte);
+            if (utilisateurConnecte == existant) utilisateurConnecte = compte;
+            sauvegarderUtilisateurs();
+            return;
+        }
+        utilisateurs.add(compte);
+        sauvegarderUtilisateurs();
+    }
+
     public Utilisateur seConnecter(String nomUtilisateur, String motdepasse) {
         for (Utilisateur u : utilisateurs) {
             if (u.getNomUtilisateur().equals(nomUtilisateur) && u.verifierMotDePasse(motdepasse)) {
@@ -50,6 +88,20 @@ public class GestionUtilisateur {
         return utilisateurConnecte;
     }
 
+    public Utilisateur trouverParId(int idUtilisateur) {
+        for (Utilisateur u : utilisateurs) {
+            if (u.getIdUtilisateur() == idUtilisateur) return u;
+        }
+        return null;
+    }
+
+    public Utilisateur trouverParNom(String nomUtilisateur) {
+        for (Utilisateur u : utilisateurs) {
+            if (u.getNomUtilisateur().equals(nomUtilisateur)) return u;
+        }
+        return null;
+    }
+
     public List<Utilisateur> getUtilisateurs() {
         return utilisateurs;
     }
@@ -59,15 +111,22 @@ public class GestionUtilisateur {
         fichier.getParentFile().mkdirs();
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fichier))) {
-            for (Utilisateur u : utilisateurs) {
-                writer.write(u.getIdUtilisateur() + ";" + u.getNomUtilisateur() + ";" + u.getMotdepasse());
-                writer.newLine();
-            }
+            ecrireUtilisateurs(writer, utilisateurs);
         } catch (IOException e) {
             System.out.println("Erreur sauvegarde : " + e.getMessage());
         }
     }
 
+    /**
+     * Ecrit les comptes au format de "data/utilisateurs.txt" (une ligne id;nom;motdepasse par compte).
+     */
+    static void ecrireUtilisateurs(BufferedWriter writer, List<Utilisateur> comptes) throws IOException {
+        for (Utilisateur u : comptes) {
+            writer.write(u.getIdUtilisateur() + ";" + u.getNomUtilisateur() + ";" + u.getMotdepasse());
+            writer.newLine();
+        }
+    }
+
     private List<Utilisateur> chargerUtilisateurs() {
         File fichier = new File(FICHIER_UTILISATEURS);
         List<Utilisateur> liste = new ArrayList<>();
@@ -0,0 +1,655 @@
+package service;
+
+import model.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Historique des versions des fiches : liste des versions, lecture et restauration d'une version passee.
+ *
+ * Chaque version publiee est enregistree comme un delta : seuls les modules modifies depuis la
+ * version precedente sont gardes (voir FichePersonnage.modulesModifiesDepuis). Toutes les
+ * "historique.controle.intervalle" versions, un point de controle garde la fiche entiere : lire
+ * une version ne relit que le point de controle qui la precede et au plus autant de deltas.
+ *
+ * Une fiche jamais modifiee n'a pas d'historique : sa version courante suffit. Le premier
+ * enregistrement d'une fiche est un point de controle de sa version precedente.
+ *
+ * Stockage : un journal en ajout seul par utilisateur, "historique_{id}.log", range avec les
+ * autres fichiers de l'utilisateur (voir RepartitionDonnees). L'ecouteur ne fait que noter la
+ * version en memoire ; un thread de fond l'ecrit (chaque seconde, et a l'arret) puis oublie les
+ * modules, relus du disque au besoin. Le meme thread compacte les journaux toutes les
+ * "historique.compaction.intervalle" secondes : seules les "historique.versions.max" dernieres
+ * versions de chaque fiche, de moins de "historique.jours" jours (0 : sans limite), sont gardees,
+ * et l'historique des fiches supprimees est retire. Un journal reste dans une autre racine (ajout
+ * d'une racine) est ramene a sa place par la compaction suivante.
+ *
+ * Les portraits references par l'historique sont proteges du ramasse-miettes de StockBlobs.
+ * Les modules enregistres sont chiffres comme les fiches (voir GestionSecurite) ; les en-tetes
+ * (numero, date, parties modifiees) restent lisibles pour l'index.
+ *
+ * Source de reparation (voir GestionFiche.chargerFiches) : la derniere version enregistree
+ * d'une fiche modifiee au moins une fois est sa version courante.
+ */
+public class HistoriqueFiches implements EcouteurFiche, SourceReparation {
+
+    private static final byte DELTA = 0;
+    private static final byte CONTROLE = 1;
+    private static final byte SUPPRESSION = 2;
+
+    private final GestionSecurite securite;
+    private final int intervalleControle;
+    private final int versionsMax;
+    private final long ageMax;
+
+    private final Map<Integer, Journal> journaux = new ConcurrentHashMap<>();
+    // Nombre de versions conservees qui referencent chaque blob
+    private final Map<String, Integer> blobs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ecriture = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "historique");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public HistoriqueFiches(GestionSecurite securite) {
+        this.securite = securite;
+        this.intervalleControle = Math.max(1, Configuration.entier("historique.controle.intervalle", 20));
+        this.versionsMax = Math.max(1, Configuration.entier("historique.versions.max", 100));
+        this.ageMax = Configuration.entier("historique.jours", 30) * 24L * 3600 * 1000;
+        chargerJournaux();
+        ecriture.scheduleWithFixedDelay(this::ecrireEnAttente, 1, 1, TimeUnit.SECONDS);
+        long compaction = Math.max(1, Configuration.entier("historique.compaction.intervalle", 3600));
+        ecriture.scheduleWithFixedDelay(this::compacter, compaction, compaction, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Une version de l'historique, telle que listee par GET /api/fiches/{id}/history.
+     */
+    public static class Version {
+        public final long numero;
+        public final long date;
+        public final boolean pointDeControle;
+        public final List<String> parties;
+
+        Version(long numero, long date, boolean pointDeControle, List<String> parties) {
+            this.numero = numero;
+            this.date = date;
+            this.pointDeControle = pointDeControle;
+            this.parties = parties;
+        }
+    }
+
+    /**
+     * Modules d'une version : ceux qui ont change (delta) ou tous (point de controle).
+     * Null : inchange depuis la version precedente.
+     */
+    private static class Contenu implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String nom;
+        Portrait portrait;
+        Biographie biographie;
+        Statistiques statistiques;
+        Competence competence;
+        Equipement equipement;
+        ArrayList<ModulePersonnalise> modulesPersonnalises;
+
+        void completer(Contenu suivant) {
+            if (suivant.nom != null) nom = suivant.nom;
+            if (suivant.portrait != null) portrait = suivant.portrait;
+            if (suivant.biographie != null) biographie = suivant.biographie;
+            if (suivant.statistiques != null) statistiques = suivant.statistiques;
+            if (suivant.competence != null) competence = suivant.competence;
+            if (suivant.equipement != null) equipement = suivant.equipement;
+            if (suivant.modulesPersonnalises != null) modulesPersonnalises = suivant.modulesPersonnalises;
+        }
+    }
+
+    /**
+     * Une version enregistree. Tant qu'elle n'est pas ecrite, position vaut -1 et contenu est en memoire ;
+     * ensuite contenu est relu a la position dans le journal.
+     */
+    private static class Enregistrement {
+        final long numero;
+        final long date;
+        byte type;
+        final List<String> parties;
+        String blob;
+        long position = -1;
+        Contenu contenu;
+
+        Enregistrement(long numero, long date, byte type, List<String> parties, String blob, Contenu contenu) {
+            this.numero = numero;
+            this.date = date;
+            this.type = type;
+            this.parties = parties;
+            this.blob = blob;
+            this.contenu = contenu;
+        }
+    }
+
+    /**
+     * Journal d'un utilisateur. Les listes sont protegees par le moniteur du journal ; le verrou
+     * "fichier" empeche seulement une compaction de remplacer le fichier pendant une lecture.
+     */
+    private static class Journal {
+        final int idUtilisateur;
+        final Map<Integer, List<Enregistrement>> fiches = new LinkedHashMap<>();
+        // Enregistrements a ecrire, dans l'ordre (marques de suppression comprises), avec leur fiche
+        List<Object[]> enAttente = new ArrayList<>();
+        boolean aCompacter;
+        final ReentrantReadWriteLock fichier = new ReentrantReadWriteLock();
+
+        Journal(int idUtilisateur) {
+            this.idUtilisateur = idUtilisateur;
+        }
+
+        String nom() {
+            return "historique_" + idUtilisateur + ".log";
+        }
+
+        /**
+         * Journal a lire et completer : a sa place, ou la ou il est encore.
+         */
+        File fichier() {
+            return RepartitionDonnees.localiser(idUtilisateur, nom());
+        }
+    }
+
+    /**
+     * Note la nouvelle version (appele sous le verrou de la fiche, sans IO).
+     */
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        Journal journal = journaux.computeIfAbsent(utilisateur.getIdUtilisateur(), Journal::new);
+        synchronized (journal) {
+            if (ancienne == null || nouvelle == null) {
+                // Suppression, ou creation sous l'id d'une fiche supprimee : l'historique de l'id repart de zero
+                int idFiche = (nouvelle == null ? ancienne : nouvelle).getIdFichePersonnage();
+                List<Enregistrement> versions = journal.fiches.remove(idFiche);
+                if (versions != null) {
+                    for (Enregistrement e : versions) oublierBlob(e.blob);
+                    Enregistrement marque = new Enregistrement(0, System.currentTimeMillis(), SUPPRESSION, List.of(), "", null);
+                    journal.enAttente.add(new Object[]{ idFiche, marque });
+                    journal.aCompacter = true;
+                }
+                return;
+            }
+
+            int idFiche = nouvelle.getIdFichePersonnage();
+            List<Enregistrement> versions = journal.fiches.computeIfAbsent(idFiche, id -> new ArrayList<>());
+            long maintenant = System.currentTimeMillis();
+            if (versions.isEmpty() || versions.get(versions.size() - 1).numero != ancienne.getVersion()) {
+                ajouter(journal, idFiche, versions, enregistrement(ancienne, null, true, maintenant));
+            }
+            boolean controle = versions.size() - dernierControle(versions, versions.size() - 1) >= intervalleControle;
+            ajouter(journal, idFiche, versions, enregistrement(nouvelle, ancienne, controle, maintenant));
+        }
+    }
+
+    /**
+     * Versions conservees d'une fiche, de la plus ancienne a la courante (toujours presente).
+     */
+    public List<Version> versions(Utilisateur proprietaire, FichePersonnage courante) {
+        List<Version> resultat = new ArrayList<>();
+        Journal journal = journaux.get(proprietaire.getIdUtilisateur());
+        if (journal != null) {
+            synchronized (journal) {
+                for (Enregistrement e : journal.fiches.getOrDefault(courante.getIdFichePersonnage(), List.of())) {
+                    resultat.add(new Version(e.numero, e.date, e.type == CONTROLE, e.parties));
+                }
+            }
+        }
+        if (resultat.isEmpty() || resultat.get(resultat.size() - 1).numero != courante.getVersion()) {
+            resultat.add(new Version(courante.getVersion(), 0, true, List.of()));
+        }
+        return resultat;
+    }
+
+    /**
+     * Reconstruit une version d'une fiche : son dernier point de controle complete par les deltas
+     * suivants. Retourne null si la version n'est pas (ou plus) conservee.
+     */
+    public FichePersonnage lireVersion(Utilisateur proprietaire, FichePersonnage courante, long numero) throws IOException {
+        if (numero == courante.getVersion()) return courante;
+        Journal journal = journaux.get(proprietaire.getIdUtilisateur());
+        if (journal == null) return null;
+
+        journal.fichier.readLock().lock();
+        try {
+            List<Enregistrement> chaine;
+            synchronized (journal) {
+                List<Enregistrement> versions = journal.fiches.get(courante.getIdFichePersonnage());
+                if (versions == null) return null;
+                int index = versions.size() - 1;
+                while (index >= 0 && versions.get(index).numero != numero) index--;
+                if (index < 0) return null;
+                chaine = chaineJusqua(versions, index);
+            }
+            Contenu etat = reconstruire(journal, journal.fichier(), chaine);
+            return FichePersonnage.versionPassee(courante.getIdFichePersonnage(), numero, etat.nom, etat.portrait,
+                etat.biographie, etat.statistiques, etat.competence, etat.equipement, etat.modulesPersonnalises);
+        } finally {
+            journal.fichier.readLock().unlock();
+        }
+    }
+
+    /**
+     * Derniere version enregistree de chaque fiche de l'utilisateur ayant un historique.
+     */
+    public Map<Integer, FichePersonnage> fichesConnues(int idUtilisateur) throws IOException {
+        Map<Integer, FichePersonnage> fiches = new LinkedHashMap<>();
+        Journal journal = journaux.get(idUtilisateur);
+        if (journal == null) return fiches;
+
+        journal.fichier.readLock().lock();
+        try {
+            Map<Integer, List<Enregistrement>> chaines = new LinkedHashMap<>();
+            synchronized (journal) {
+                for (Map.Entry<Integer, List<Enregistrement>> entree : journal.fiches.entrySet()) {
+                    List<Enregistrement> versions = entree.getValue();
+                    if (!versions.isEmpty()) chaines.put(entree.getKey(), chaineJusqua(versions, versions.size() - 1));
+                }
+            }
+            for (Map.Entry<Integer, List<Enregistrement>> entree : chaines.entrySet()) {
+                List<Enregistrement> chaine = entree.getValue();
+                Contenu etat = reconstruire(journal, journal.fichier(), chaine);
+                fiches.put(entree.getKey(), FichePersonnage.versionPassee(entree.getKey(), chaine.get(chaine.size() - 1).numero,
+                    etat.nom, etat.portrait, etat.biographie, etat.statistiques, etat.competence, etat.equipement,
+                    etat.modulesPersonnalises));
+            }
+        } finally {
+            journal.fichier.readLock().unlock();
+        }
+        return fiches;
+    }
+
+    /**
+     * Copie des enregistrements a relire pour reconstruire la version a l'index donne
+     * (appele sous le moniteur du journal).
+     */
+    private static List<Enregistrement> chaineJusqua(List<Enregistrement> versions, int index) {
+        List<Enregistrement> chaine = new ArrayList<>();
+        for (int i = dernierControle(versions, index); i <= index; i++) {
+            Enregistrement e = versions.get(i);
+            // Copie : l'ecriture peut remplacer contenu par une position pendant la lecture
+            chaine.add(new Enregistrement(e.numero, e.date, e.type, e.parties, e.blob, e.contenu));
+            chaine.get(chaine.size() - 1).position = e.position;
+        }
+        return chaine;
+    }
+
+    /**
+     * True si une version conservee a ce blob pour portrait (voir StockBlobs.proteger).
+     */
+    public boolean referenceBlob(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    /**
+     * Ecrit les versions en attente et arrete le thread de fond.
+     */
+    public void arreter() {
+        ecriture.shutdown();
+        try {
+            ecriture.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ecrireEnAttente();
+    }
+
+    // ===== Enregistrement =====
+
+    /**
+     * Enregistrement d'une version : point de controle, ou delta depuis "precedente".
+     */
+    private static Enregistrement enregistrement(FichePersonnage fiche, FichePersonnage precedente, boolean tout, long date) {
+        List<String> parties = precedente == null ? List.of() : fiche.modulesModifiesDepuis(precedente);
+        Contenu contenu = new Contenu();
+        if (tout || parties.contains("nom")) contenu.nom = fiche.getNomFichePersonnage();
+        if (tout || parties.contains("portrait")) contenu.portrait = fiche.getPortrait();
+        if (tout || parties.contains("biographie")) contenu.biographie = fiche.getBiographie();
+        if (tout || parties.contains("statistiques")) contenu.statistiques = fiche.getStatistiques();
+        if (tout || parties.contains("competence")) contenu.competence = fiche.getCompetence();
+        if (tout || parties.contains("equipement")) contenu.equipement = fiche.getEquipement();
+        if (tout || parties.contains("modulesPersonnalises")) contenu.modulesPersonnalises = new ArrayList<>(fiche.getModulesPersonnalises());
+
+        String blob = contenu.portrait == null ? null : StockBlobs.hashDe(contenu.portrait.getImagePortrait());
+        return new Enregistrement(fiche.getVersion(), date, tout ? CONTROLE : DELTA, parties, blob == null ? "" : blob, contenu);
+    }
+
+    private void ajouter(Journal journal, int idFiche, List<Enregistrement> versions, Enregistrement e) {
+        versions.add(e);
+        journal.enAttente.add(new Object[]{ idFiche, e });
+        if (!e.blob.isEmpty()) blobs.merge(e.blob, 1, Integer::sum);
+    }
+
+    private void oublierBlob(String hash) {
+        if (hash != null && !hash.isEmpty()) blobs.computeIfPresent(hash, (h, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private static int dernierControle(List<Enregistrement> versions, int index) {
+        while (index > 0 && versions.get(index).type != CONTROLE) index--;
+        return index;
+    }
+
+    private Contenu reconstruire(Journal journal, File fichier, List<Enregistrement> chaine) throws IOException {
+        Contenu etat = new Contenu();
+        RandomAccessFile in = null;
+        try {
+            for (Enregistrement e : chaine) {
+                Contenu contenu = e.contenu;
+                if (contenu == null) {
+                    if (in == null) in = new RandomAccessFile(fichier, "r");
+                    contenu = lireContenu(in, e.position, journal.idUtilisateur);
+                }
+                etat.completer(contenu);
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+        return etat;
+    }
+
+    // ===== Journal sur disque =====
+    // Enregistrement : int taille, puis int idFiche, byte type, long numero, long date,
+    // UTF parties (separees par des virgules), UTF blob, Contenu serialise (sauf suppression)
+
+    private void ecrireEnAttente() {
+        for (Journal journal : journaux.values()) {
+            List<Object[]> aEcrire;
+            synchronized (journal) {
+                if (journal.enAttente.isEmpty()) continue;
+                aEcrire = journal.enAttente;
+                journal.enAttente = new ArrayList<>();
+            }
+
+            File fichier = journal.fichier();
+            fichier.getParentFile().mkdirs();
+            long debut = fichier.length();
+            long[] positions = new long[aEcrire.size()];
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fichier, true)))) {
+                for (int i = 0; i < aEcrire.size(); i++) {
+                    positions[i] = debut + out.size();
+                    ecrireEnregistrement(out, journal.idUtilisateur, (Integer) aEcrire.get(i)[0], (Enregistrement) aEcrire.get(i)[1], null);
+                }
+            } catch (IOException e) {
+                System.out.println("Erreur d'ecriture de l'historique : " + e.getMessage());
+                tronquer(fichier, debut);
+                synchronized (journal) {
+                    aEcrire.addAll(journal.enAttente);
+                    journal.enAttente = aEcrire;
+                }
+                continue;
+            }
+
+            synchronized (journal) {
+                for (int i = 0; i < aEcrire.size(); i++) {
+                    Enregistrement e = (Enregistrement) aEcrire.get(i)[1];
+                    e.position = positions[i];
+                    e.contenu = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ecrit un enregistrement ; "contenu" remplace celui de l'enregistrement s'il est donne.
+     */
+    private void ecrireEnregistrement(DataOutputStream out, int idUtilisateur, int idFiche, Enregistrement e, Contenu contenu) throws IOException {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        DataOutputStream donnees = new DataOutputStream(octets);
+        donnees.writeInt(idFiche);
+        donnees.writeByte(e.type);
+        donnees.writeLong(e.numero);
+        donnees.writeLong(e.date);
+        donnees.writeUTF(String.join(",", e.parties));
+        donnees.writeUTF(e.blob);
+        if (e.type != SUPPRESSION) {
+            try (ObjectOutputStream oos = new ObjectOutputStream(securite.chiffrer(donnees, idUtilisateur))) {
+                oos.writeObject(contenu != null ? contenu : e.contenu);
+            }
+        }
+        out.writeInt(octets.size());
+        octets.writeTo(out);
+    }
+
+    private static byte[] lireEnregistrement(RandomAccessFile in, long position) throws IOException {
+        in.seek(position);
+        byte[] octets = new byte[in.readInt()];
+        in.readFully(octets);
+        return octets;
+    }
+
+    private Contenu lireContenu(RandomAccessFile in, long position, int idUtilisateur) throws IOException {
+        DataInputStream donnees = new DataInputStream(new ByteArrayInputStream(lireEnregistrement(in, position)));
+        donnees.readInt();
+        donnees.readByte();
+        donnees.readLong();
+        donnees.readLong();
+        donnees.readUTF();
+        donnees.readUTF();
+        try {
+            return (Contenu) new ObjectInputStream(securite.dechiffrer(donnees, idUtilisateur)).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("historique illisible : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Relit l'index de tous les journaux (en-tetes seulement : les modules restent sur disque).
+     * Un enregistrement tronque par un arret brutal est retire.
+     */
+    private void chargerJournaux() {
+        int nbVersions = 0;
+        for (int idUtilisateur : RepartitionDonnees.fichiers("historique_", ".log").keySet()) {
+            Journal journal = new Journal(idUtilisateur);
+            File fichier = journal.fichier();
+            long longueur = fichier.length();
+            long position = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fichier)))) {
+                while (position + 4 <= longueur) {
+                    int taille = in.readInt();
+                    if (taille < 0 || position + 4 + taille > longueur) break;
+                    int idFiche = in.readInt();
+                    byte type = in.readByte();
+                    long numero = in.readLong();
+                    long date = in.readLong();
+                    String parties = in.readUTF();
+                    String blob = in.readUTF();
+                    // Parties et hash sont en ASCII : 2 octets de longueur + 1 octet par caractere
+                    in.skipNBytes(taille - (4 + 1 + 8 + 8 + 2 + parties.length() + 2 + blob.length()));
+
+                    if (type == SUPPRESSION) {
+                        List<Enregistrement> versions = journal.fiches.remove(idFiche);
+                        if (versions != null) versions.forEach(e -> oublierBlob(e.blob));
+                        journal.aCompacter = true;
+                    } else {
+                        Enregistrement e = new Enregistrement(numero, date, type,
+                            parties.isEmpty() ? List.of() : List.of(parties.split(",")), blob, null);
+                        e.position = position;
+                        journal.fiches.computeIfAbsent(idFiche, id -> new ArrayList<>()).add(e);
+                        if (!blob.isEmpty()) blobs.merge(blob, 1, Integer::sum);
+                        nbVersions++;
+                    }
+                    position += 4 + taille;
+                }
+            } catch (IOException e) {
+                System.out.println("Historique illisible a partir de l'octet " + position + " : " + fichier + " (" + e.getMessage() + ")");
+            }
+            if (position < longueur) tronquer(fichier, position);
+            journaux.put(idUtilisateur, journal);
+        }
+        System.out.println("Historique : " + nbVersions + " version(s) conservee(s).");
+    }
+
+    private static void tronquer(File fichier, long longueur) {
+        try (RandomAccessFile f = new RandomAccessFile(fichier, "rw")) {
+            f.setLength(longueur);
+        } catch (IOException e) {
+            System.out.println("Erreur de reparation de l'historique " + fichier + " : " + e.getMessage());
+        }
+    }
+
+    // ===== Compaction =====
+
+    private void compacter() {
+        ecrireEnAttente();
+        long limite = ageMax > 0 ? System.currentTimeMillis() - ageMax : Long.MIN_VALUE;
+        for (Journal journal : journaux.values()) {
+            try {
+                compacter(journal, limite);
+            } catch (IOException e) {
+                System.out.println("Erreur de compaction de l'historique : " + e.getMessage());
+                synchronized (journal) {
+                    journal.aCompacter = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reecrit le journal avec les seules versions conservees. La premiere version gardee d'une fiche
+     * devient un point de controle. Les versions notees pendant la compaction (pas encore ecrites)
+     * seront ajoutees au nouveau journal par la prochaine ecriture.
+     */
+    private void compacter(Journal journal, long limite) throws IOException {
+        // Par fiche : la liste vivante, le debut de la chaine de la premiere version gardee, et le nombre de versions retirees
+        Map<Integer, List<Enregistrement>> listes = new LinkedHashMap<>();
+        Map<Integer, List<Enregistrement>> chaines = new LinkedHashMap<>();
+        Map<Integer, Integer> retirees = new LinkedHashMap<>();
+        boolean aReecrire;
+        synchronized (journal) {
+            aReecrire = journal.aCompacter;
+            journal.aCompacter = false;
+            for (Map.Entry<Integer, List<Enregistrement>> entree : journal.fiches.entrySet()) {
+                List<Enregistrement> versions = entree.getValue();
+                int ecrites = 0;
+                while (ecrites < versions.size() && versions.get(ecrites).position >= 0) ecrites++;
+                int debut = Math.max(0, versions.size() - versionsMax);
+                while (debut < ecrites && versions.get(debut).date < limite) debut++;
+                debut = Math.min(debut, ecrites);
+                // Des deltas en attente s'appuient sur la derniere version ecrite : elle reste
+                if (debut == ecrites && ecrites > 0 && ecrites < versions.size()) debut = ecrites - 1;
+                if (debut > 0) aReecrire = true;
+
+                int controle = debut < ecrites ? dernierControle(versions, debut) : debut;
+                listes.put(entree.getKey(), versions);
+                chaines.put(entree.getKey(), new ArrayList<>(versions.subList(controle, ecrites)));
+                retirees.put(entree.getKey(), debut - controle);
+            }
+        }
+        if (!aReecrire) {
+            placer(journal);
+            return;
+        }
+
+        // Le nouveau journal est ecrit a sa place, meme si l'ancien est encore dans une autre racine
+        File fichier = journal.fichier();
+        File cible = RepartitionDonnees.cible(journal.idUtilisateur, journal.nom());
+        File temporaire = new File(cible.getPath() + ".tmp");
+        cible.getParentFile().mkdirs();
+        Map<Enregistrement, Long> positions = new IdentityHashMap<>();
+        Map<Enregistrement, String> nouveauxControles = new IdentityHashMap<>();
+        try (RandomAccessFile ancien = new RandomAccessFile(fichier, "r");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaire)))) {
+            for (Map.Entry<Integer, List<Enregistrement>> entree : chaines.entrySet()) {
+                List<Enregistrement> chaine = entree.getValue();
+                int premier = retirees.get(entree.getKey());
+                if (premier >= chaine.size()) continue;
+
+                Enregistrement e = chaine.get(premier);
+                positions.put(e, (long) out.size());
+                if (e.type == CONTROLE) {
+                    byte[] octets = lireEnregistrement(ancien, e.position);
+                    out.writeInt(octets.length);
+                    out.write(octets);
+                } else {
+                    Contenu etat = reconstruire(journal, fichier, chaine.subList(0, premier + 1));
+                    String blob = etat.portrait == null ? null : StockBlobs.hashDe(etat.portrait.getImagePortrait());
+                    Enregistrement controle = new Enregistrement(e.numero, e.date, CONTROLE, e.parties, blob == null ? "" : blob, null);
+                    ecrireEnregistrement(out, journal.idUtilisateur, entree.getKey(), controle, etat);
+                    nouveauxControles.put(e, controle.blob);
+                }
+                for (int i = premier + 1; i < chaine.size(); i++) {
+                    byte[] octets = lireEnregistrement(ancien, chaine.get(i).position);
+                    positions.put(chaine.get(i), (long) out.size());
+                    out.writeInt(octets.length);
+                    out.write(octets);
+                }
+            }
+        } catch (IOException e) {
+            temporaire.delete();
+            throw e;
+        }
+
+        journal.fichier.writeLock().lock();
+        try {
+            synchronized (journal) {
+                // Ecritures pas encore faites : elles iront a la suite du nouveau fichier
+                if (!temporaire.renameTo(cible)) {
+                    cible.delete();
+                    if (!temporaire.renameTo(cible)) throw new IOException("remplacement de " + cible + " impossible");
+                }
+                RepartitionDonnees.supprimerAutresCopies(journal.idUtilisateur, journal.nom());
+                for (Map.Entry<Integer, List<Enregistrement>> entree : listes.entrySet()) {
+                    List<Enregistrement> versions = entree.getValue();
+                    if (journal.fiches.get(entree.getKey()) != versions) {
+                        journal.aCompacter = true; // supprimee pendant la compaction
+                        continue;
+                    }
+                    List<Enregistrement> chaine = chaines.get(entree.getKey());
+                    Set<Enregistrement> gardees = Collections.newSetFromMap(new IdentityHashMap<>());
+                    gardees.addAll(chaine.subList(Math.min(retirees.get(entree.getKey()), chaine.size()), chaine.size()));
+                    versions.removeIf(e -> {
+                        if (e.position < 0 || gardees.contains(e)) return false;
+                        oublierBlob(e.blob);
+                        return true;
+                    });
+                    for (Enregistrement e : gardees) {
+                        e.position = positions.get(e);
+                        String blob = nouveauxControles.get(e);
+                        if (blob == null) continue;
+                        oublierBlob(e.blob);
+                        e.type = CONTROLE;
+                        e.blob = blob;
+                        if (!blob.isEmpty()) blobs.merge(blob, 1, Integer::sum);
+                    }
+                    if (versions.isEmpty()) journal.fiches.remove(entree.getKey());
+                }
+            }
+        } finally {
+            journal.fichier.writeLock().unlock();
+        }
+        if (cible.length() == 0) cible.delete();
+        System.out.println("Historique de l'utilisateur " + journal.idUtilisateur + " compacte.");
+    }
+
+    /**
+     * Ramene le journal dans la racine de son utilisateur s'il est encore ailleurs. Appele par
+     * le thread d'ecriture (aucun ajout en cours), sous le verrou d'ecriture du fichier (aucune
+     * lecture).
+     */
+    private void placer(Journal journal) throws IOException {
+        if (RepartitionDonnees.cible(journal.idUtilisateur, journal.nom()).exists()) return;
+        journal.fichier.writeLock().lock();
+        try {
+            if (RepartitionDonnees.deplacer(journal.idUtilisateur, journal.nom())) {
+                System.out.println("Historique de l'utilisateur " + journal.idUtilisateur + " deplace dans sa racine.");
+            }
+        } finally {
+            journal.fichier.writeLock().unlock();
+        }
+    }
+}
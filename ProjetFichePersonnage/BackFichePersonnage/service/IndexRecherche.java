@@ -0,0 +1,385 @@
+package service;
+
+import model.FichePersonnage;
+import model.ModulePersonnalise;
+import model.Utilisateur;
+
+import java.io.*;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recherche plein texte dans les fiches d'un utilisateur, par index inverse en memoire.
+ *
+ * Texte indexe : nom de la fiche, biographie, competences, equipements, contenu texte et
+ * liste des modules personnalises. Les mots sont mis en minuscules et sans accents
+ * ("Epee" trouve "Épée"), et chaque mot de la requete est aussi un prefixe ("epe" trouve "epee").
+ *
+ * Classement : pour chaque mot de la requete, somme des poids des mots trouves dans la fiche
+ * (nom > competences/equipements > reste du texte), un mot exact comptant double d'un prefixe,
+ * ponderee par la rarete du mot parmi les fiches. Une fiche doit contenir tous les mots.
+ *
+ * L'index d'un utilisateur est construit a sa premiere recherche, puis tenu a jour par les
+ * modifications de fiches (ecouteur de GestionFiche) : seule la fiche modifiee est reindexee,
+ * et seulement si une partie textuelle a change. Il est sauvegarde dans "index_{id}.idx"
+ * (racine de donnees de l'utilisateur, voir RepartitionDonnees) au plus toutes les 10 secondes,
+ * et a l'arret : au redemarrage, seules les fiches dont la version differe de celle de
+ * l'instantane sont reindexees.
+ */
+public class IndexRecherche implements EcouteurFiche {
+
+    private static final int FORMAT_INSTANTANE = 1;
+
+    private static final int POIDS_NOM = 5;
+    private static final int POIDS_LISTE = 2;
+    private static final int POIDS_TEXTE = 1;
+
+    // Mots trop frequents en francais pour etre utiles a la recherche
+    private static final Set<String> MOTS_VIDES = Set.of(
+        "le", "la", "les", "de", "des", "du", "un", "une", "et", "en", "au", "aux",
+        "a", "l", "d", "il", "elle", "est", "qui", "que", "sur", "par", "pour", "dans", "son", "sa", "ses");
+
+    // Parties de la fiche qui contiennent du texte indexe
+    private static final Set<String> PARTIES_INDEXEES = Set.of(
+        "nom", "biographie", "competence", "equipement", "modulesPersonnalises");
+
+    private final Map<Integer, IndexUtilisateur> index = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sauvegarde = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sauvegarde-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IndexRecherche() {
+        sauvegarde.scheduleWithFixedDelay(this::sauvegarderModifies, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Un resultat de recherche : la fiche et son score.
+     */
+    public static class Resultat {
+        public final FichePersonnage fiche;
+        public final double score;
+
+        Resultat(FichePersonnage fiche, double score) {
+            this.fiche = fiche;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Recherche dans les fiches d'un utilisateur, du meilleur score au moins bon.
+     */
+    public List<Resultat> rechercher(Utilisateur utilisateur, String requete, int limite) {
+        List<String> mots = new ArrayList<>(decouper(requete).keySet());
+        List<Resultat> resultats = new ArrayList<>();
+        if (mots.isEmpty()) return resultats;
+
+        IndexUtilisateur iu = indexDe(utilisateur);
+        Map<Integer, Double> scores = iu.scores(mots);
+
+        Map<Integer, FichePersonnage> fiches = new HashMap<>();
+        for (FichePersonnage f : utilisateur.getFiches()) {
+            fiches.put(f.getIdFichePersonnage(), f);
+        }
+        for (Map.Entry<Integer, Double> entree : scores.entrySet()) {
+            FichePersonnage fiche = fiches.get(entree.getKey());
+            if (fiche != null) resultats.add(new Resultat(fiche, entree.getValue()));
+        }
+        resultats.sort((a, b) -> a.score != b.score
+            ? Double.compare(b.score, a.score)
+            : Integer.compare(a.fiche.getIdFichePersonnage(), b.fiche.getIdFichePersonnage()));
+        return resultats.size() > limite ? new ArrayList<>(resultats.subList(0, limite)) : resultats;
+    }
+
+    /**
+     * Tient l'index a jour (appele sous le verrou de la fiche : seule la fiche concernee est traitee).
+     */
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        // Index pas encore construit : il le sera a jour a la premiere recherche
+        IndexUtilisateur iu = index.get(utilisateur.getIdUtilisateur());
+        if (iu == null) return;
+
+        if (nouvelle == null) {
+            iu.retirer(ancienne.getIdFichePersonnage());
+            return;
+        }
+        if (ancienne != null) {
+            boolean texteModifie = false;
+            for (String partie : nouvelle.modulesModifiesDepuis(ancienne)) {
+                if (PARTIES_INDEXEES.contains(partie)) texteModifie = true;
+            }
+            if (!texteModifie) {
+                iu.changerVersion(nouvelle.getIdFichePersonnage(), nouvelle.getVersion());
+                return;
+            }
+        }
+        iu.indexer(nouvelle.getIdFichePersonnage(), nouvelle.getVersion(), motsDeFiche(nouvelle));
+    }
+
+    /**
+     * Sauvegarde les index modifies et arrete la sauvegarde periodique.
+     */
+    public void arreter() {
+        sauvegarde.shutdown();
+        sauvegarderModifies();
+    }
+
+    // ===== Construction =====
+
+    private IndexUtilisateur indexDe(Utilisateur utilisateur) {
+        IndexUtilisateur iu = index.get(utilisateur.getIdUtilisateur());
+        if (iu != null) return iu;
+
+        synchronized (this) {
+            iu = index.get(utilisateur.getIdUtilisateur());
+            if (iu != null) return iu;
+
+            iu = chargerInstantane(utilisateur.getIdUtilisateur());
+            // Publie avant la mise a jour : une modification concurrente sera vue par l'ecouteur
+            index.put(utilisateur.getIdUtilisateur(), iu);
+            iu.mettreAJour(utilisateur.getFiches());
+            return iu;
+        }
+    }
+
+    /**
+     * Mots d'une fiche avec leur poids cumule.
+     */
+    static Map<String, Integer> motsDeFiche(FichePersonnage fiche) {
+        Map<String, Integer> mots = new HashMap<>();
+        ajouter(mots, fiche.getNomFichePersonnage(), POIDS_NOM);
+        if (fiche.getBiographie() != null) ajouter(mots, fiche.getBiographie().getTexteBiographie(), POIDS_TEXTE);
+        if (fiche.getCompetence() != null) {
+            for (String c : fiche.getCompetence().getCompetences()) ajouter(mots, c, POIDS_LISTE);
+        }
+        if (fiche.getEquipement() != null) {
+            for (String e : fiche.getEquipement().getEquipements()) ajouter(mots, e, POIDS_LISTE);
+        }
+        if (fiche.getModulesPersonnalises() != null) {
+            for (ModulePersonnalise m : fiche.getModulesPersonnalises()) {
+                ajouter(mots, m.getNom(), POIDS_LISTE);
+                ajouter(mots, m.getContenuTexte(), POIDS_TEXTE);
+                if (m.getContenuListe() != null) {
+                    for (String element : m.getContenuListe()) ajouter(mots, element, POIDS_TEXTE);
+                }
+            }
+        }
+        return mots;
+    }
+
+    private static void ajouter(Map<String, Integer> mots, String texte, int poids) {
+        for (String mot : decouper(texte).keySet()) {
+            mots.merge(mot, poids, Integer::sum);
+        }
+    }
+
+    /**
+     * Decoupe un texte en mots normalises (minuscules, sans accents, sans mots vides).
+     */
+    static Map<String, Integer> decouper(String texte) {
+        Map<String, Integer> mots = new java.util.LinkedHashMap<>();
+        if (texte == null || texte.isEmpty()) return mots;
+
+        for (String mot : plier(texte).split("[^\\p{L}\\p{N}]+")) {
+            if (mot.isEmpty() || MOTS_VIDES.contains(mot)) continue;
+            mots.merge(mot, 1, Integer::sum);
+        }
+        return mots;
+    }
+
+    /**
+     * Met un texte en minuscules et sans accents ("Épée" -> "epee").
+     */
+    static String plier(String texte) {
+        return Normalizer.normalize(texte, Normalizer.Form.NFD)
+            .replaceAll("\\p{M}", "")
+            .replace("œ", "oe").replace("Œ", "oe").replace("æ", "ae").replace("Æ", "ae")
+            .toLowerCase();
+    }
+
+    // ===== Index d'un utilisateur =====
+
+    private static class IndexUtilisateur {
+        // mot -> (idFiche -> poids), trie pour les recherches par prefixe
+        private final TreeMap<String, Map<Integer, Integer>> postings = new TreeMap<>();
+        // idFiche -> mots indexes (pour retirer l'ancienne version) et version indexee
+        private final Map<Integer, Map<String, Integer>> motsParFiche = new HashMap<>();
+        private final Map<Integer, Long> versions = new HashMap<>();
+        private boolean modifie;
+
+        synchronized void indexer(int idFiche, long version, Map<String, Integer> mots) {
+            retirerMots(idFiche);
+            for (Map.Entry<String, Integer> entree : mots.entrySet()) {
+                postings.computeIfAbsent(entree.getKey(), m -> new HashMap<>()).put(idFiche, entree.getValue());
+            }
+            motsParFiche.put(idFiche, mots);
+            versions.put(idFiche, version);
+            modifie = true;
+        }
+
+        synchronized void retirer(int idFiche) {
+            retirerMots(idFiche);
+            motsParFiche.remove(idFiche);
+            versions.remove(idFiche);
+            modifie = true;
+        }
+
+        synchronized void changerVersion(int idFiche, long version) {
+            if (versions.containsKey(idFiche)) {
+                versions.put(idFiche, version);
+                modifie = true;
+            }
+        }
+
+        private void retirerMots(int idFiche) {
+            Map<String, Integer> anciens = motsParFiche.get(idFiche);
+            if (anciens == null) return;
+            for (String mot : anciens.keySet()) {
+                Map<Integer, Integer> fiches = postings.get(mot);
+                if (fiches == null) continue;
+                fiches.remove(idFiche);
+                if (fiches.isEmpty()) postings.remove(mot);
+            }
+        }
+
+        /**
+         * Reindexe les fiches dont la version a change et retire celles qui n'existent plus.
+         */
+        synchronized void mettreAJour(List<FichePersonnage> fiches) {
+            Set<Integer> presentes = new java.util.HashSet<>();
+            for (FichePersonnage f : fiches) {
+                presentes.add(f.getIdFichePersonnage());
+                Long indexee = versions.get(f.getIdFichePersonnage());
+                if (indexee == null || indexee != f.getVersion()) {
+                    indexer(f.getIdFichePersonnage(), f.getVersion(), motsDeFiche(f));
+                }
+            }
+            for (Integer idFiche : new ArrayList<>(versions.keySet())) {
+                if (!presentes.contains(idFiche)) retirer(idFiche);
+            }
+        }
+
+        synchronized Map<Integer, Double> scores(List<String> mots) {
+            Map<Integer, Double> scores = null;
+            int total = Math.max(1, motsParFiche.size());
+
+            for (String mot : mots) {
+                Map<Integer, Double> scoresMot = new HashMap<>();
+                SortedMap<String, Map<Integer, Integer>> prefixes = postings.subMap(mot, mot + Character.MAX_VALUE);
+                for (Map.Entry<String, Map<Integer, Integer>> entree : prefixes.entrySet()) {
+                    Map<Integer, Integer> fiches = entree.getValue();
+                    double rarete = Math.log(1.0 + (double) total / fiches.size());
+                    double facteur = entree.getKey().equals(mot) ? 2.0 : 1.0;
+                    for (Map.Entry<Integer, Integer> f : fiches.entrySet()) {
+                        scoresMot.merge(f.getKey(), f.getValue() * facteur * rarete, Double::sum);
+                    }
+                }
+
+                // Tous les mots doivent etre presents
+                if (scores == null) {
+                    scores = scoresMot;
+                } else {
+                    scores.keySet().retainAll(scoresMot.keySet());
+                    for (Map.Entry<Integer, Double> entree : scores.entrySet()) {
+                        entree.setValue(entree.getValue() + scoresMot.get(entree.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) break;
+            }
+            return scores;
+        }
+    }
+
+    // ===== Instantanes =====
+
+    private void sauvegarderModifies() {
+        for (Map.Entry<Integer, IndexUtilisateur> entree : index.entrySet()) {
+            IndexUtilisateur iu = entree.getValue();
+            // Copie prise sous le verrou, ecriture hors du verrou : l'ecouteur n'attend jamais le disque
+            Map<Integer, Map<String, Integer>> mots;
+            Map<Integer, Long> versions;
+            synchronized (iu) {
+                if (!iu.modifie) continue;
+                mots = new HashMap<>(iu.motsParFiche);
+                versions = new HashMap<>(iu.versions);
+                iu.modifie = false;
+            }
+            if (!sauvegarderInstantane(entree.getKey(), mots, versions)) {
+                synchronized (iu) {
+                    iu.modifie = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ecrit l'instantane dans un fichier temporaire puis le renomme : un arret brutal ne laisse
+     * jamais un instantane tronque.
+     */
+    private boolean sauvegarderInstantane(int idUtilisateur, Map<Integer, Map<String, Integer>> motsParFiche, Map<Integer, Long> versions) {
+        File fichier = RepartitionDonnees.cible(idUtilisateur, "index_" + idUtilisateur + ".idx");
+        File temporaire = new File(fichier.getPath() + ".tmp");
+        fichier.getParentFile().mkdirs();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaire)))) {
+            out.writeInt(FORMAT_INSTANTANE);
+            out.writeInt(motsParFiche.size());
+            for (Map.Entry<Integer, Map<String, Integer>> fiche : motsParFiche.entrySet()) {
+                out.writeInt(fiche.getKey());
+                out.writeLong(versions.get(fiche.getKey()));
+                out.writeInt(fiche.getValue().size());
+                for (Map.Entry<String, Integer> mot : fiche.getValue().entrySet()) {
+                    out.writeUTF(mot.getKey());
+                    out.writeInt(mot.getValue());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Erreur sauvegarde de l'index de recherche : " + e.getMessage());
+            return false;
+        }
+        if (!temporaire.renameTo(fichier)) {
+            fichier.delete();
+            if (!temporaire.renameTo(fichier)) return false;
+        }
+        RepartitionDonnees.supprimerAutresCopies(idUtilisateur, "index_" + idUtilisateur + ".idx");
+        return true;
+    }
+
+    private IndexUtilisateur chargerInstantane(int idUtilisateur) {
+        IndexUtilisateur iu = new IndexUtilisateur();
+        File fichier = RepartitionDonnees.localiser(idUtilisateur, "index_" + idUtilisateur + ".idx");
+        if (!fichier.exists()) return iu;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fichier)))) {
+            if (in.readInt() != FORMAT_INSTANTANE) return iu;
+            int nbFiches = in.readInt();
+            for (int i = 0; i < nbFiches; i++) {
+                int idFiche = in.readInt();
+                long version = in.readLong();
+                int nbMots = in.readInt();
+                Map<String, Integer> mots = new HashMap<>();
+                for (int j = 0; j < nbMots; j++) {
+                    String mot = in.readUTF();
+                    mots.put(mot, in.readInt());
+                }
+                iu.indexer(idFiche, version, mots);
+            }
+            iu.modifie = false;
+            return iu;
+        } catch (IOException e) {
+            System.out.println("Instantane de l'index illisible, reconstruction : " + e.getMessage());
+            return new IndexUtilisateur();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package service;
+
+import model.FichePersonnage;
+import model.Statistique;
+import model.Utilisateur;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index secondaires sur les statistiques des fiches, pour filtrer et trier sans parcourir
+ * le contenu de chaque fiche (voir RequeteFiches pour le langage de requete).
+ *
+ * Pour chaque utilisateur et chaque nom de statistique : valeur -> fiches ayant cette valeur,
+ * trie par valeur. Une requete part de la condition la plus selective (celle dont la plage de
+ * valeurs contient le moins de fiches), puis verifie les autres conditions sur les valeurs
+ * indexees de chaque candidate.
+ *
+ * L'index d'un utilisateur est construit a sa premiere requete, puis tenu a jour par les
+ * modifications de fiches (ecouteur de GestionFiche) : seule la fiche modifiee est reindexee,
+ * et seulement si ses statistiques ont change.
+ */
+public class IndexStatistiques implements EcouteurFiche {
+
+    private final Map<Integer, IndexUtilisateur> index = new ConcurrentHashMap<>();
+
+    /**
+     * Resultat d'une requete : les fiches trouvees et l'index choisi pour la resoudre.
+     */
+    public static class Resultat {
+        public final List<FichePersonnage> fiches;
+        public final String indexUtilise; // null : toutes les fiches ont ete examinees
+        public final int candidats;
+
+        Resultat(List<FichePersonnage> fiches, String indexUtilise, int candidats) {
+            this.fiches = fiches;
+            this.indexUtilise = indexUtilise;
+            this.candidats = candidats;
+        }
+    }
+
+    /**
+     * Execute une requete sur les fiches d'un utilisateur.
+     */
+    public Resultat executer(Utilisateur utilisateur, RequeteFiches requete, int limite) {
+        Map<Integer, FichePersonnage> fiches = new HashMap<>();
+        for (FichePersonnage f : utilisateur.getFiches()) {
+            fiches.put(f.getIdFichePersonnage(), f);
+        }
+
+        IndexUtilisateur iu = indexDe(utilisateur);
+        List<Integer> ids;
+        String indexUtilise;
+        int candidats;
+        Map<Integer, Long> valeursTri = new HashMap<>();
+
+        synchronized (iu) {
+            // Plan : la condition sur statistique qui retient le moins de fiches
+            RequeteFiches.Condition meilleure = null;
+            int meilleurNombre = Integer.MAX_VALUE;
+            for (RequeteFiches.Condition c : requete.conditions) {
+                if (c.surFiche() || c.operateur.equals("!=")) continue;
+                int nombre = iu.estimer(c);
+                if (nombre < meilleurNombre) {
+                    meilleure = c;
+                    meilleurNombre = nombre;
+                }
+            }
+
+            Collection<Integer> depart = meilleure == null ? iu.statsParFiche.keySet() : iu.fichesDans(meilleure);
+            indexUtilise = meilleure == null ? null : meilleure.champ;
+            candidats = depart.size();
+
+            ids = new ArrayList<>();
+            for (Integer idFiche : depart) {
+                if (iu.verifier(idFiche, requete.conditions, meilleure, fiches.get(idFiche))) {
+                    ids.add(idFiche);
+                    if (requete.tri != null && !RequeteFiches.estChampFiche(requete.tri)) {
+                        Integer valeur = iu.statsParFiche.get(idFiche).get(requete.tri);
+                        if (valeur != null) valeursTri.put(idFiche, (long) valeur);
+                    }
+                }
+            }
+        }
+
+        List<FichePersonnage> resultat = new ArrayList<>();
+        for (Integer idFiche : ids) {
+            FichePersonnage f = fiches.get(idFiche);
+            if (f != null) resultat.add(f);
+        }
+        resultat.sort(comparateur(requete, valeursTri));
+        if (resultat.size() > limite) resultat = new ArrayList<>(resultat.subList(0, limite));
+        return new Resultat(resultat, indexUtilise, candidats);
+    }
+
+    private static Comparator<FichePersonnage> comparateur(RequeteFiches requete, Map<Integer, Long> valeursTri) {
+        Comparator<FichePersonnage> parId = Comparator.comparingInt(FichePersonnage::getIdFichePersonnage);
+        if (requete.tri == null) return parId;
+
+        Comparator<FichePersonnage> ordre;
+        if (requete.tri.equals(RequeteFiches.CHAMP_NOM)) {
+            ordre = Comparator.comparing(f -> IndexRecherche.plier(f.getNomFichePersonnage()));
+        } else if (requete.tri.equals(RequeteFiches.CHAMP_ID)) {
+            ordre = parId;
+        } else if (requete.tri.equals(RequeteFiches.CHAMP_VERSION)) {
+            ordre = Comparator.comparingLong(FichePersonnage::getVersion);
+        } else {
+            // Fiches sans la statistique a la fin, quel que soit l'ordre
+            return ((Comparator<FichePersonnage>) (a, b) -> {
+                Long va = valeursTri.get(a.getIdFichePersonnage());
+                Long vb = valeursTri.get(b.getIdFichePersonnage());
+                if (va == null || vb == null) return va == null ? (vb == null ? 0 : 1) : -1;
+                return requete.decroissant ? Long.compare(vb, va) : Long.compare(va, vb);
+            }).thenComparing(parId);
+        }
+        if (requete.decroissant) ordre = ordre.reversed();
+        return ordre.thenComparing(parId);
+    }
+
+    /**
+     * Tient l'index a jour (appele sous le verrou de la fiche).
+     */
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        // Index pas encore construit : il le sera a jour a la premiere requete
+        IndexUtilisateur iu = index.get(utilisateur.getIdUtilisateur());
+        if (iu == null) return;
+
+        if (nouvelle == null) {
+            iu.retirer(ancienne.getIdFichePersonnage());
+        } else if (ancienne == null || nouvelle.getStatistiques() != ancienne.getStatistiques()) {
+            iu.indexer(nouvelle.getIdFichePersonnage(), nouvelle.getVersion(), statsDeFiche(nouvelle));
+        } else {
+            iu.changerVersion(nouvelle.getIdFichePersonnage(), nouvelle.getVersion());
+        }
+    }
+
+    private IndexUtilisateur indexDe(Utilisateur utilisateur) {
+        IndexUtilisateur iu = index.get(utilisateur.getIdUtilisateur());
+        if (iu != null) return iu;
+
+        synchronized (this) {
+            iu = index.get(utilisateur.getIdUtilisateur());
+            if (iu != null) return iu;
+
+            iu = new IndexUtilisateur();
+            // Publie avant la construction : une modification concurrente sera vue par l'ecouteur
+            index.put(utilisateur.getIdUtilisateur(), iu);
+            iu.mettreAJour(utilisateur.getFiches());
+            return iu;
+        }
+    }
+
+    /**
+     * Statistiques d'une fiche par cle de nom (la premiere l'emporte en cas de doublon).
+     */
+    private static Map<String, Integer> statsDeFiche(FichePersonnage fiche) {
+        Map<String, Integer> stats = new HashMap<>();
+        if (fiche.getStatistiques() == null) return stats;
+        for (Statistique s : fiche.getStatistiques().getStatistiques()) {
+            stats.putIfAbsent(RequeteFiches.cle(s.getNomStatistique()), s.getValeurStatistique());
+        }
+        return stats;
+    }
+
+    // ===== Index d'un utilisateur =====
+
+    private static class IndexUtilisateur {
+        // nom de statistique -> (valeur -> fiches)
+        private final Map<String, TreeMap<Integer, Set<Integer>>> parStatistique = new HashMap<>();
+        // idFiche -> statistiques indexees et version indexee
+        private final Map<Integer, Map<String, Integer>> statsParFiche = new HashMap<>();
+        private final Map<Integer, Long> versions = new HashMap<>();
+
+        synchronized void indexer(int idFiche, long version, Map<String, Integer> stats) {
+            retirerValeurs(idFiche);
+            for (Map.Entry<String, Integer> entree : stats.entrySet()) {
+                parStatistique.computeIfAbsent(entree.getKey(), n -> new TreeMap<>())
+                    .computeIfAbsent(entree.getValue(), v -> new HashSet<>()).add(idFiche);
+            }
+            statsParFiche.put(idFiche, stats);
+            versions.put(idFiche, version);
+        }
+
+        synchronized void retirer(int idFiche) {
+            retirerValeurs(idFiche);
+            statsParFiche.remove(idFiche);
+            versions.remove(idFiche);
+        }
+
+        synchronized void changerVersion(int idFiche, long version) {
+            if (versions.containsKey(idFiche)) versions.put(idFiche, version);
+        }
+
+        private void retirerValeurs(int idFiche) {
+            Map<String, Integer> anciennes = statsParFiche.get(idFiche);
+            if (anciennes == null) return;
+            for (Map.Entry<String, Integer> entree : anciennes.entrySet()) {
+                TreeMap<Integer, Set<Integer>> valeurs = parStatistique.get(entree.getKey());
+                if (valeurs == null) continue;
+                Set<Integer> fiches = valeurs.get(entree.getValue());
+                if (fiches == null) continue;
+                fiches.remove(idFiche);
+                if (fiches.isEmpty()) valeurs.remove(entree.getValue());
+                if (valeurs.isEmpty()) parStatistique.remove(entree.getKey());
+            }
+        }
+
+        /**
+         * Reindexe les fiches dont la version a change et retire celles qui n'existent plus.
+         */
+        synchronized void mettreAJour(List<FichePersonnage> fiches) {
+            Set<Integer> presentes = new HashSet<>();
+            for (FichePersonnage f : fiches) {
+                presentes.add(f.getIdFichePersonnage());
+                Long indexee = versions.get(f.getIdFichePersonnage());
+                if (indexee == null || indexee != f.getVersion()) {
+                    indexer(f.getIdFichePersonnage(), f.getVersion(), statsDeFiche(f));
+                }
+            }
+            for (Integer idFiche : new ArrayList<>(versions.keySet())) {
+                if (!presentes.contains(idFiche)) retirer(idFiche);
+            }
+        }
+
+        /**
+         * Partie de l'index couverte par une condition sur statistique (operateur != exclu).
+         */
+        private NavigableMap<Integer, Set<Integer>> plage(RequeteFiches.Condition c) {
+            TreeMap<Integer, Set<Integer>> valeurs = parStatistique.get(c.champ);
+            if (valeurs == null) return new TreeMap<>();
+            // Les bornes hors des entiers ne laissent aucune valeur, ou toutes
+            if (c.nombre > Integer.MAX_VALUE) {
+                return c.operateur.startsWith("<") ? valeurs : new TreeMap<>();
+            }
+            if (c.nombre < Integer.MIN_VALUE) {
+                return c.operateur.startsWith(">") ? valeurs : new TreeMap<>();
+            }
+            int v = (int) c.nombre;
+            switch (c.operateur) {
+                case "=": return valeurs.subMap(v, true, v, true);
+                case "<": return valeurs.headMap(v, false);
+                case "<=": return valeurs.headMap(v, true);
+                case ">": return valeurs.tailMap(v, false);
+                case ">=": return valeurs.tailMap(v, true);
+                default: return valeurs;
+            }
+        }
+
+        int estimer(RequeteFiches.Condition c) {
+            int nombre = 0;
+            for (Set<Integer> fiches : plage(c).values()) nombre += fiches.size();
+            return nombre;
+        }
+
+        List<Integer> fichesDans(RequeteFiches.Condition c) {
+            List<Integer> resultat = new ArrayList<>();
+            for (Set<Integer> fiches : plage(c).values()) resultat.addAll(fiches);
+            return resultat;
+        }
+
+        /**
+         * Verifie les conditions sur une fiche candidate (la condition de depart est deja verifiee).
+         */
+        boolean verifier(int idFiche, List<RequeteFiches.Condition> conditions, RequeteFiches.Condition depart, FichePersonnage fiche) {
+            Map<String, Integer> stats = statsParFiche.get(idFiche);
+            for (RequeteFiches.Condition c : conditions) {
+                if (c == depart) continue;
+                if (c.surFiche()) {
+                    if (fiche == null) return false;
+                    boolean ok;
+                    switch (c.champ) {
+                        case RequeteFiches.CHAMP_NOM: ok = c.verifier(fiche.getNomFichePersonnage()); break;
+                        case RequeteFiches.CHAMP_ID: ok = c.verifier(fiche.getIdFichePersonnage()); break;
+                        default: ok = c.verifier(fiche.getVersion()); break;
+                    }
+                    if (!ok) return false;
+                } else {
+                    Integer valeur = stats == null ? null : stats.get(c.champ);
+                    if (valeur == null || !c.verifier(valeur)) return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Suggestions de noms de competences et d'equipements pendant la saisie.
+ *
+ * Les noms presents dans les fiches sont ranges dans un arbre de prefixes (trie) par type,
+ * avec leur nombre d'occurrences. Chaque noeud garde le plus grand nombre d'occurrences de
+ * son sous-arbre : les k noms les plus frequents sous un prefixe sont trouves en n'explorant
+ * que les branches qui peuvent encore en fournir, sans parcourir tout le sous-arbre.
+ * La saisie est comparee sans tenir compte des majuscules ni des accents.
+ *
+ * Deux portees : les fiches de l'utilisateur, et un corpus commun qui cumule les fiches de
+ * tous les utilisateurs dont l'index a ete construit depuis le demarrage. L'index d'un
+ * utilisateur est construit a sa premiere demande, puis tenu a jour par les modifications
+ * de competences et d'equipements (ecouteur de GestionFiche).
+ *
+ * Memoire bornee : au-dela de MAX_NOMS_UTILISATEUR (ou MAX_NOMS_COMMUN) noms differents,
+ * les nouveaux noms ne sont plus ajoutes ; les noms deja connus restent comptes.
+ */
+public class IndexSuggestions implements EcouteurFiche {
+
+    public static final String COMPETENCE = "competence";
+    public static final String EQUIPEMENT = "equipement";
+
+    private static final int MAX_NOMS_UTILISATEUR = 5_000;
+    private static final int MAX_NOMS_COMMUN = 50_000;
+
+    private final Map<Integer, IndexUtilisateur> parUtilisateur = new ConcurrentHashMap<>();
+    // { competences, equipements }
+    private final Trie[] commun = { new Trie(MAX_NOMS_COMMUN), new Trie(MAX_NOMS_COMMUN) };
+
+    /**
+     * Une suggestion : le nom (tel que saisi la premiere fois) et son nombre d'occurrences.
+     */
+    public static class Suggestion {
+        public final String nom;
+        public final int occurrences;
+
+        Suggestion(String nom, int occurrences) {
+            this.nom = nom;
+            this.occurrences = occurrences;
+        }
+    }
+
+    /**
+     * Retourne au plus "limite" noms commencant par le prefixe, du plus frequent au moins frequent.
+     */
+    public List<Suggestion> suggerer(Utilisateur utilisateur, String type, String prefixe, int limite, boolean global) {
+        IndexUtilisateur iu = indexDe(utilisateur);
+        int indice = COMPETENCE.equals(type) ? 0 : 1;
+        Trie trie = global ? commun[indice] : iu.tries[indice];
+        return trie.meilleurs(IndexRecherche.plier(prefixe), limite);
+    }
+
+    /**
+     * Reporte les noms ajoutes et retires (appele sous le verrou de la fiche).
+     */
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        // Index pas encore construit : il le sera a jour a la premiere demande
+        IndexUtilisateur iu = parUtilisateur.get(utilisateur.getIdUtilisateur());
+        if (iu == null) return;
+
+        if (nouvelle == null) {
+            iu.retirer(ancienne.getIdFichePersonnage());
+        } else {
+            iu.compter(nouvelle);
+        }
+    }
+
+    private IndexUtilisateur indexDe(Utilisateur utilisateur) {
+        IndexUtilisateur iu = parUtilisateur.get(utilisateur.getIdUtilisateur());
+        if (iu != null) return iu;
+
+        synchronized (this) {
+            iu = parUtilisateur.get(utilisateur.getIdUtilisateur());
+            if (iu != null) return iu;
+
+            iu = new IndexUtilisateur();
+            // Publie avant la construction : une modification concurrente sera vue par l'ecouteur
+            parUtilisateur.put(utilisateur.getIdUtilisateur(), iu);
+            for (FichePersonnage f : utilisateur.getFiches()) {
+                iu.compter(f);
+            }
+            return iu;
+        }
+    }
+
+    /**
+     * Tries d'un utilisateur et fiches deja comptees. Chaque fiche est comptee dans la version
+     * la plus recente vue : construction et ecouteur peuvent se croiser sans compter deux fois.
+     */
+    private class IndexUtilisateur {
+        final Trie[] tries = { new Trie(MAX_NOMS_UTILISATEUR), new Trie(MAX_NOMS_UTILISATEUR) };
+        private final Map<Integer, FichePersonnage> comptees = new HashMap<>();
+
+        synchronized void compter(FichePersonnage fiche) {
+            FichePersonnage avant = comptees.get(fiche.getIdFichePersonnage());
+            if (avant != null && avant.getVersion() >= fiche.getVersion()) return;
+            comptees.put(fiche.getIdFichePersonnage(), fiche);
+
+            if (avant == null || avant.getCompetence() != fiche.getCompetence()) {
+                reporter(0, avant == null ? List.of() : avant.getCompetence().getCompetences(), fiche.getCompetence().getCompetences());
+            }
+            if (avant == null || avant.getEquipement() != fiche.getEquipement()) {
+                reporter(1, avant == null ? List.of() : avant.getEquipement().getEquipements(), fiche.getEquipement().getEquipements());
+            }
+        }
+
+        synchronized void retirer(int idFiche) {
+            FichePersonnage avant = comptees.remove(idFiche);
+            if (avant == null) return;
+            reporter(0, avant.getCompetence().getCompetences(), List.of());
+            reporter(1, avant.getEquipement().getEquipements(), List.of());
+        }
+
+        /**
+         * Applique la difference entre deux listes de noms (comptees avec leurs doublons).
+         */
+        private void reporter(int indice, List<String> avant, List<String> apres) {
+            Map<String, Integer> difference = new HashMap<>();
+            for (String nom : apres) difference.merge(nom, 1, Integer::sum);
+            for (String nom : avant) difference.merge(nom, -1, Integer::sum);
+            for (Map.Entry<String, Integer> entree : difference.entrySet()) {
+                if (entree.getValue() == 0) continue;
+                tries[indice].ajouter(entree.getKey(), entree.getValue());
+                commun[indice].ajouter(entree.getKey(), entree.getValue());
+            }
+        }
+    }
+
+    // ===== Arbre de prefixes =====
+
+    /**
+     * Trie compact : les enfants d'un noeud sont deux tableaux tries (caracteres, noeuds),
+     * sans table de hachage par noeud.
+     */
+    static class Trie {
+        private final Noeud racine = new Noeud();
+        private final int maxNoms;
+        private int nombreNoms;
+
+        Trie(int maxNoms) {
+            this.maxNoms = maxNoms;
+        }
+
+        private static class Noeud {
+            char[] cles = new char[0];
+            Noeud[] enfants = new Noeud[0];
+            int occurrences;      // occurrences du nom qui se termine ici
+            int meilleur;         // plus grand nombre d'occurrences du sous-arbre
+            String nom;           // forme affichee du nom qui se termine ici
+
+            Noeud enfant(char c) {
+                int i = Arrays.binarySearch(cles, c);
+                return i >= 0 ? enfants[i] : null;
+            }
+
+            Noeud creerEnfant(char c) {
+                int i = Arrays.binarySearch(cles, c);
+                if (i >= 0) return enfants[i];
+                int position = -i - 1;
+                char[] nouvellesCles = new char[cles.length + 1];
+                Noeud[] nouveauxEnfants = new Noeud[enfants.length + 1];
+                System.arraycopy(cles, 0, nouvellesCles, 0, position);
+                System.arraycopy(enfants, 0, nouveauxEnfants, 0, position);
+                nouvellesCles[position] = c;
+                nouveauxEnfants[position] = new Noeud();
+                System.arraycopy(cles, position, nouvellesCles, position + 1, cles.length - position);
+                System.arraycopy(enfants, position, nouveauxEnfants, position + 1, enfants.length - position);
+                cles = nouvellesCles;
+                enfants = nouveauxEnfants;
+                return nouveauxEnfants[position];
+            }
+
+            void retirerEnfant(char c) {
+                int i = Arrays.binarySearch(cles, c);
+                if (i < 0) return;
+                char[] nouvellesCles = new char[cles.length - 1];
+                Noeud[] nouveauxEnfants = new Noeud[enfants.length - 1];
+                System.arraycopy(cles, 0, nouvellesCles, 0, i);
+                System.arraycopy(enfants, 0, nouveauxEnfants, 0, i);
+                System.arraycopy(cles, i + 1, nouvellesCles, i, cles.length - i - 1);
+                System.arraycopy(enfants, i + 1, nouveauxEnfants, i, enfants.length - i - 1);
+                cles = nouvellesCles;
+                enfants = nouveauxEnfants;
+            }
+
+            void recalculerMeilleur() {
+                int max = occurrences;
+                for (Noeud n : enfants) max = Math.max(max, n.meilleur);
+                meilleur = max;
+            }
+        }
+
+        /**
+         * Ajoute (ou retire, si delta est negatif) des occurrences d'un nom.
+         */
+        synchronized void ajouter(String nom, int delta) {
+            String cle = IndexRecherche.plier(nom).trim();
+            if (cle.isEmpty()) return;
+
+            // Nom nouveau : refuse si c'est un retrait ou si le trie est plein, avant de creer des noeuds
+            Noeud existant = racine;
+            for (int i = 0; i < cle.length() && existant != null; i++) {
+                existant = existant.enfant(cle.charAt(i));
+            }
+            boolean nouveau = existant == null || existant.occurrences == 0;
+            if (nouveau && (delta < 0 || nombreNoms >= maxNoms)) return;
+
+            Noeud[] chemin = new Noeud[cle.length() + 1];
+            chemin[0] = racine;
+            Noeud noeud = racine;
+            for (int i = 0; i < cle.length(); i++) {
+                noeud = noeud.creerEnfant(cle.charAt(i));
+                chemin[i + 1] = noeud;
+            }
+
+            if (nouveau) {
+                nombreNoms++;
+                noeud.nom = nom;
+            }
+            noeud.occurrences = Math.max(0, noeud.occurrences + delta);
+            if (noeud.occurrences == 0) {
+                nombreNoms--;
+                noeud.nom = null;
+            }
+
+            // Remonte le chemin : met a jour les maxima et elague les branches vides
+            for (int i = cle.length(); i >= 0; i--) {
+                Noeud n = chemin[i];
+                n.recalculerMeilleur();
+                if (i > 0 && n.meilleur == 0 && n.enfants.length == 0) {
+                    chemin[i - 1].retirerEnfant(cle.charAt(i - 1));
+                }
+            }
+        }
+
+        /**
+         * Les k noms les plus frequents sous un prefixe deja plie.
+         * Recherche par meilleur d'abord : un noeud est explore dans l'ordre de son maximum.
+         */
+        synchronized List<Suggestion> meilleurs(String prefixe, int k) {
+            List<Suggestion> resultat = new ArrayList<>();
+            Noeud depart = racine;
+            for (int i = 0; i < prefixe.length() && depart != null; i++) {
+                depart = depart.enfant(prefixe.charAt(i));
+            }
+            if (depart == null || depart.meilleur == 0) return resultat;
+
+            // Elements : un noeud (cle = meilleur de son sous-arbre) ou un nom (cle = ses occurrences)
+            PriorityQueue<Object[]> file = new PriorityQueue<>((a, b) -> Integer.compare((int) b[1], (int) a[1]));
+            file.add(new Object[]{ depart, depart.meilleur, Boolean.FALSE });
+            while (!file.isEmpty() && resultat.size() < k) {
+                Object[] element = file.poll();
+                Noeud n = (Noeud) element[0];
+                if ((Boolean) element[2]) {
+                    resultat.add(new Suggestion(n.nom, n.occurrences));
+                    continue;
+                }
+                if (n.occurrences > 0) file.add(new Object[]{ n, n.occurrences, Boolean.TRUE });
+                for (Noeud enfant : n.enfants) {
+                    if (enfant.meilleur > 0) file.add(new Object[]{ enfant, enfant.meilleur, Boolean.FALSE });
+                }
+            }
+            return resultat;
+        }
+    }
+}
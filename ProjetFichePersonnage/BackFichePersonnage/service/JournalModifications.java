@@ -0,0 +1,121 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Journal des modifications de fiches, par utilisateur, pour la synchronisation incrementale.
+ *
+ * Chaque modification recoit un numero croissant (compteur propre a l'utilisateur) et est
+ * gardee dans un anneau de TAILLE_ANNEAU entrees. Un client qui connait le numero de sa
+ * derniere synchronisation recoit uniquement ce qui a change depuis ; s'il est trop en
+ * retard (entrees ecrasees) ou vient d'un autre demarrage du serveur, il doit tout resynchroniser.
+ *
+ * Le compteur part de l'heure de demarrage en millisecondes : apres un redemarrage, les
+ * anciens numeros sont plus petits que le nouveau depart et sont reconnus comme perimes.
+ */
+public class JournalModifications implements EcouteurFiche {
+
+    private static final int TAILLE_ANNEAU = 256;
+
+    /** Type d'une modification */
+    public static final char CREATION = 'C';
+    public static final char MODIFICATION = 'M';
+    public static final char SUPPRESSION = 'S';
+
+    private final Map<Integer, Anneau> anneaux = new ConcurrentHashMap<>();
+
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        Anneau anneau = anneaux.computeIfAbsent(utilisateur.getIdUtilisateur(), id -> new Anneau());
+        if (ancienne == null) {
+            anneau.ajouter(nouvelle.getIdFichePersonnage(), CREATION, null);
+        } else if (nouvelle == null) {
+            anneau.ajouter(ancienne.getIdFichePersonnage(), SUPPRESSION, null);
+        } else {
+            anneau.ajouter(nouvelle.getIdFichePersonnage(), MODIFICATION, nouvelle.modulesModifiesDepuis(ancienne));
+        }
+    }
+
+    /**
+     * Retourne le numero de la derniere modification de l'utilisateur.
+     */
+    public long dernierNumero(Utilisateur utilisateur) {
+        return anneaux.computeIfAbsent(utilisateur.getIdUtilisateur(), id -> new Anneau()).dernierNumero();
+    }
+
+    /**
+     * Resume les modifications posterieures a depuis, fusionnees par fiche :
+     * pour chaque fiche, son type final (C, M ou S) et les parties modifiees (pour M).
+     * Retourne null si le journal ne couvre plus cette periode (resynchronisation complete).
+     */
+    public Map<Integer, ModificationFiche> modificationsDepuis(Utilisateur utilisateur, long depuis) {
+        return anneaux.computeIfAbsent(utilisateur.getIdUtilisateur(), id -> new Anneau()).depuis(depuis);
+    }
+
+    /**
+     * Etat fusionne d'une fiche dans une synchronisation.
+     */
+    public static class ModificationFiche {
+        public char type;
+        public final Set<String> parties = new LinkedHashSet<>();
+    }
+
+    /**
+     * Anneau borne des modifications d'un utilisateur.
+     */
+    private static class Anneau {
+        private final long depart = System.currentTimeMillis();
+        private long compteur = depart;
+        private final long[] numeros = new long[TAILLE_ANNEAU];
+        private final int[] idFiches = new int[TAILLE_ANNEAU];
+        private final char[] types = new char[TAILLE_ANNEAU];
+        private final List<List<String>> parties = new ArrayList<>();
+
+        Anneau() {
+            for (int i = 0; i < TAILLE_ANNEAU; i++) parties.add(null);
+        }
+
+        synchronized void ajouter(int idFiche, char type, List<String> partiesModifiees) {
+            compteur++;
+            int index = (int) (compteur % TAILLE_ANNEAU);
+            numeros[index] = compteur;
+            idFiches[index] = idFiche;
+            types[index] = type;
+            parties.set(index, partiesModifiees);
+        }
+
+        synchronized long dernierNumero() {
+            return compteur;
+        }
+
+        synchronized Map<Integer, ModificationFiche> depuis(long depuis) {
+            // Numero d'un autre demarrage, ou entrees deja ecrasees
+            long plusAncien = Math.max(depart + 1, compteur - TAILLE_ANNEAU + 1);
+            if (depuis > compteur || depuis < plusAncien - 1) return null;
+
+            Map<Integer, ModificationFiche> resultat = new LinkedHashMap<>();
+            for (long numero = depuis + 1; numero <= compteur; numero++) {
+                int index = (int) (numero % TAILLE_ANNEAU);
+                ModificationFiche modif = resultat.computeIfAbsent(idFiches[index], id -> new ModificationFiche());
+                char type = types[index];
+                if (type == MODIFICATION) {
+                    // Une fiche creee dans la periode reste une creation (envoyee en entier)
+                    if (modif.type != CREATION) modif.type = MODIFICATION;
+                    modif.parties.addAll(parties.get(index));
+                } else {
+                    modif.type = type;
+                    modif.parties.clear();
+                }
+            }
+            return resultat;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal des modifications expediees aux suiveurs (voir ReplicationPrimaire).
+ *
+ * Chaque fiche publiee, supprimee, chaque compte cree et chaque changement des partages recoit
+ * un numero croissant et est garde dans un anneau de "replication.journal" entrees (10000 par
+ * defaut). Les entrees gardent
+ * la fiche publiee elle-meme (copie a l'ecriture, jamais modifiee) : rien n'est serialise sous
+ * le verrou de la fiche, l'envoi s'en charge. Un suiveur plus en retard que l'anneau repart
+ * d'un instantane.
+ *
+ * Les numeros sont propres a une epoque (l'heure d'activation) : apres un redemarrage ou une
+ * promotion, un suiveur qui presente une autre epoque repart d'un instantane.
+ */
+public class JournalReplication implements EcouteurFiche {
+
+    /** Type d'une entree */
+    static final byte FICHE = 'F';
+    static final byte SUPPRESSION = 'S';
+    static final byte COMPTE = 'U';
+    static final byte PARTAGES = 'P';
+
+    /**
+     * Une modification : fiche publiee (FICHE), fiche supprimee (SUPPRESSION), compte cree (COMPTE)
+     * ou partages changes (PARTAGES). Les partages ne sont pas gardes dans le journal : l'envoi
+     * expedie l'etat courant de tous les partages, recu par le suiveur dans "partages".
+     */
+    static class Entree {
+        final long numero;
+        final long date;
+        final byte type;
+        final int idUtilisateur;
+        final int idFiche;
+        final FichePersonnage fiche;
+        final Utilisateur compte;
+        final byte[] partages;
+
+        Entree(long numero, long date, byte type, int idUtilisateur, int idFiche, FichePersonnage fiche, Utilisateur compte,
+               byte[] partages) {
+            this.numero = numero;
+            this.date = date;
+            this.type = type;
+            this.idUtilisateur = idUtilisateur;
+            this.idFiche = idFiche;
+            this.fiche = fiche;
+            this.compte = compte;
+            this.partages = partages;
+        }
+    }
+
+    private final Entree[] anneau;
+    private long epoque;
+    private long tete;
+    private boolean actif;
+
+    public JournalReplication(int taille) {
+        this.anneau = new Entree[Math.max(16, taille)];
+    }
+
+    public void ficheModifiee(Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        if (nouvelle == null) {
+            ajouter(SUPPRESSION, utilisateur.getIdUtilisateur(), ancienne.getIdFichePersonnage(), null, null);
+        } else {
+            ajouter(FICHE, utilisateur.getIdUtilisateur(), nouvelle.getIdFichePersonnage(), nouvelle, null);
+        }
+    }
+
+    public void compteCree(Utilisateur compte) {
+        ajouter(COMPTE, compte.getIdUtilisateur(), 0, null, compte);
+    }
+
+    public void partagesModifies() {
+        ajouter(PARTAGES, 0, 0, null, null);
+    }
+
+    private synchronized void ajouter(byte type, int idUtilisateur, int idFiche, FichePersonnage fiche, Utilisateur compte) {
+        if (!actif) return;
+        tete++;
+        anneau[(int) (tete % anneau.length)] = new Entree(tete, System.currentTimeMillis(), type, idUtilisateur, idFiche, fiche, compte, null);
+        notifyAll();
+    }
+
+    /**
+     * Commence une nouvelle epoque (demarrage du primaire, promotion d'un suiveur) : le journal
+     * repart de zero et enregistre desormais les modifications.
+     */
+    synchronized void activer() {
+        epoque = System.currentTimeMillis();
+        tete = 0;
+        java.util.Arrays.fill(anneau, null);
+        actif = true;
+    }
+
+    synchronized long epoque() {
+        return epoque;
+    }
+
+    /**
+     * Numero de la derniere entree (0 si aucune).
+     */
+    synchronized long tete() {
+        return tete;
+    }
+
+    /**
+     * Numero de la plus ancienne entree encore dans l'anneau.
+     */
+    synchronized long premier() {
+        return Math.max(1, tete - anneau.length + 1);
+    }
+
+    /**
+     * Entrees a partir de numero (inclus), au plus max ; vide si numero n'est pas encore ecrit,
+     * null s'il a deja ete ecrase (le suiveur doit repartir d'un instantane).
+     */
+    synchronized List<Entree> depuis(long numero, int max) {
+        if (numero < premier()) return null;
+        List<Entree> entrees = new ArrayList<>();
+        for (long n = numero; n <= tete && entrees.size() < max; n++) {
+            entrees.add(anneau[(int) (n % anneau.length)]);
+        }
+        return entrees;
+    }
+
+    /**
+     * Date de l'entree numero, 0 si elle n'est plus (ou pas encore) dans l'anneau.
+     */
+    synchronized long date(long numero) {
+        if (numero < premier() || numero > tete) return 0;
+        return anneau[(int) (numero % anneau.length)].date;
+    }
+
+    /**
+     * Attend au plus attenteMs que l'entree numero soit ecrite.
+     */
+    synchronized void attendre(long numero, long attenteMs) throws InterruptedException {
+        long fin = System.currentTimeMillis() + attenteMs;
+        long reste;
+        while (tete < numero && (reste = fin - System.currentTimeMillis()) > 0) {
+            wait(reste);
+        }
+    }
+}
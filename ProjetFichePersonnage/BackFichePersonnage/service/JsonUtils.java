@@ -3,6 +3,8 @@ package service;
 import model.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Utilitaires pour le parsing et la serialisation JSON.
@@ -57,112 +59,203 @@ public class JsonUtils {
     public static String ficheVersJSON(FichePersonnage fiche) {
         StringBuilder json = new StringBuilder();
         json.append("{\"id\":").append(fiche.getIdFichePersonnage());
-        json.append(",\"nom\":\"").append(fiche.getNomFichePersonnage()).append("\"");
-
-        // Portrait
-        Portrait p = fiche.getPortrait();
-        json.append(",\"portrait\":{\"image\":\"").append(p.getImagePortrait()).append("\"")
-            .append(",\"posX\":").append(p.getPositionX())
-            .append(",\"posY\":").append(p.getPositionY())
-            .append(",\"largeur\":").append(p.getLargeur())
-            .append(",\"hauteur\":").append(p.getHauteur()).append("}");
-
-        // Biographie
-        Biographie b = fiche.getBiographie();
-        json.append(",\"biographie\":{\"texte\":\"").append(b.getTexteBiographie()).append("\"")
-            .append(",\"posX\":").append(b.getPositionX())
-            .append(",\"posY\":").append(b.getPositionY())
-            .append(",\"largeur\":").append(b.getLargeur())
-            .append(",\"hauteur\":").append(b.getHauteur()).append("}");
-
-        // Statistiques
-        Statistiques stats = fiche.getStatistiques();
-        json.append(",\"statistiques\":{\"posX\":").append(stats.getPositionX())
-            .append(",\"posY\":").append(stats.getPositionY())
-            .append(",\"largeur\":").append(stats.getLargeur())
-            .append(",\"hauteur\":").append(stats.getHauteur())
-            .append(",\"liste\":[");
-        List<Statistique> listeStats = stats.getStatistiques();
-        for (int i = 0; i < listeStats.size(); i++) {
-            Statistique s = listeStats.get(i);
-            json.append("{\"id\":").append(s.getIdStatistique())
-                .append(",\"nom\":\"").append(s.getNomStatistique()).append("\"")
-                .append(",\"valeur\":").append(s.getValeurStatistique()).append("}");
-            if (i < listeStats.size() - 1) json.append(",");
-        }
-        json.append("]}");
-
-        // Competences
-        Competence comp = fiche.getCompetence();
-        json.append(",\"competences\":{\"posX\":").append(comp.getPositionX())
-            .append(",\"posY\":").append(comp.getPositionY())
-            .append(",\"largeur\":").append(comp.getLargeur())
-            .append(",\"hauteur\":").append(comp.getHauteur())
-            .append(",\"liste\":[");
-        List<String> listeComp = comp.getCompetences();
-        for (int i = 0; i < listeComp.size(); i++) {
-            json.append("\"").append(listeComp.get(i)).append("\"");
-            if (i < listeComp.size() - 1) json.append(",");
-        }
-        json.append("]}");
-
-        // Equipements
-        Equipement equip = fiche.getEquipement();
-        json.append(",\"equipements\":{\"posX\":").append(equip.getPositionX())
-            .append(",\"posY\":").append(equip.getPositionY())
-            .append(",\"largeur\":").append(equip.getLargeur())
-            .append(",\"hauteur\":").append(equip.getHauteur())
-            .append(",\"liste\":[");
-        List<String> listeEquip = equip.getEquipements();
-        for (int i = 0; i < listeEquip.size(); i++) {
-            json.append("\"").append(listeEquip.get(i)).append("\"");
-            if (i < listeEquip.size() - 1) json.append(",");
-        }
-        json.append("]}");
-
-            // Modules personnalisés
-            java.util.List<ModulePersonnalise> modulesPerso = fiche.getModulesPersonnalises();
-            json.append(",\"modulesPersonnalises\":[");
-            for (int i = 0; i < modulesPerso.size(); i++) {
-                ModulePersonnalise mp = modulesPerso.get(i);
-                json.append("{");
-                json.append("\"id\":\"").append(mp.getId()).append("\"");
-                json.append(",\"nom\":\"").append(mp.getNom()).append("\"");
-                json.append(",\"type\":\"").append(mp.getType()).append("\"");
-
-                // contenuTexte
-                if (mp.getContenuTexte() != null) {
-                    json.append(",\"contenuTexte\":\"").append(mp.getContenuTexte()).append("\"");
-                }
+        json.append(",\"version\":").append(fiche.getVersion());
+        json.append(",\"nom\":\"").append(echapper(fiche.getNomFichePersonnage())).append("\"");
+        json.append(",\"portrait\":").append(fragment(fiche.getPortrait()));
+        json.append(",\"biographie\":").append(fragment(fiche.getBiographie()));
+        json.append(",\"statistiques\":").append(fragment(fiche.getStatistiques()));
+        json.append(",\"competences\":").append(fragment(fiche.getCompetence()));
+        json.append(",\"equipements\":").append(fragment(fiche.getEquipement()));
 
-                // contenuListe
-                json.append(",\"contenuListe\":[");
-                java.util.List<String> cl = mp.getContenuListe();
-                for (int j = 0; j < cl.size(); j++) {
-                    json.append("\"").append(cl.get(j)).append("\"");
-                    if (j < cl.size() - 1) json.append(",");
-                }
-                json.append("]");
-
-                // contenuStats
-                json.append(",\"contenuStats\":[");
-                java.util.List<Statistique> cs = mp.getContenuStats();
-                for (int j = 0; j < cs.size(); j++) {
-                    Statistique s = cs.get(j);
-                    json.append("{\"nom\":\"").append(s.getNomStatistique()).append("\",\"valeur\":").append(s.getValeurStatistique()).append("}");
-                    if (j < cs.size() - 1) json.append(",");
+        // Modules personnalisés
+        java.util.List<ModulePersonnalise> modulesPerso = fiche.getModulesPersonnalises();
+        json.append(",\"modulesPersonnalises\":[");
+        for (int i = 0; i < modulesPerso.size(); i++) {
+            json.append(fragment(modulesPerso.get(i)));
+            if (i < modulesPerso.size() - 1) json.append(",");
+        }
+        json.append("]");
+        // Ferme l'objet fiche
+        json.append("}");
+        return json.toString();
+    }
+
+    /**
+     * Convertit seulement certaines parties d'une fiche en JSON (id et version toujours inclus).
+     * Les noms de parties sont ceux de FichePersonnage.modulesModifiesDepuis ; le resultat
+     * a la forme d'un JSON Merge Patch a appliquer sur le document de ficheVersJSON.
+     */
+    public static String partiesFicheVersJSON(FichePersonnage fiche, java.util.Collection<String> parties) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":").append(fiche.getIdFichePersonnage());
+        json.append(",\"version\":").append(fiche.getVersion());
+        for (String partie : parties) {
+            switch (partie) {
+                case "nom":
+                    json.append(",\"nom\":\"").append(echapper(fiche.getNomFichePersonnage())).append("\"");
+                    break;
+                case "portrait":
+                    json.append(",\"portrait\":").append(fragment(fiche.getPortrait()));
+                    break;
+                case "biographie":
+                    json.append(",\"biographie\":").append(fragment(fiche.getBiographie()));
+                    break;
+                case "statistiques":
+                    json.append(",\"statistiques\":").append(fragment(fiche.getStatistiques()));
+                    break;
+                case "competence":
+                    json.append(",\"competences\":").append(fragment(fiche.getCompetence()));
+                    break;
+                case "equipement":
+                    json.append(",\"equipements\":").append(fragment(fiche.getEquipement()));
+                    break;
+                case "modulesPersonnalises": {
+                    List<ModulePersonnalise> modulesPerso = fiche.getModulesPersonnalises();
+                    json.append(",\"modulesPersonnalises\":[");
+                    for (int i = 0; i < modulesPerso.size(); i++) {
+                        json.append(fragment(modulesPerso.get(i)));
+                        if (i < modulesPerso.size() - 1) json.append(",");
+                    }
+                    json.append("]");
+                    break;
                 }
-                json.append("]");
+                default:
+                    break;
+            }
+        }
+        json.append("}");
+        return json.toString();
+    }
 
+    /**
+     * Retourne le JSON d'un module, garde sur le module lui-meme une fois calcule. Un module publie
+     * n'est jamais modifie (copie sur ecriture) : un module modifie est une nouvelle instance et
+     * seul son fragment est recalcule. Sans verrou ni table partagee : deux threads qui calculent
+     * en meme temps le meme fragment obtiennent le meme texte, et il part avec son module.
+     */
+    private static String fragment(model.Module module) {
+        String json = module.getFragmentJSON();
+        if (json == null) {
+            json = moduleVersJSON(module);
+            module.memoriserFragmentJSON(json);
+        }
+        return json;
+    }
+
+    private static String moduleVersJSON(model.Module module) {
+        StringBuilder json = new StringBuilder("{");
+
+        if (module instanceof Portrait) {
+            String image = ((Portrait) module).getImagePortrait();
+            String hash = StockBlobs.hashDe(image);
+            if (hash != null) {
+                // Image stockee a part : la fiche ne transporte que son adresse
+                json.append("\"image\":\"/api/blobs/").append(hash).append("\",\"blob\":\"").append(hash).append("\",");
+            } else {
+                json.append("\"image\":\"").append(echapper(image)).append("\",");
+            }
+        } else if (module instanceof Biographie) {
+            json.append("\"texte\":\"").append(echapper(((Biographie) module).getTexteBiographie())).append("\",");
+        } else if (module instanceof ModulePersonnalise) {
+            return modulePersonnaliseVersJSON((ModulePersonnalise) module);
+        }
+
+        json.append("\"posX\":").append(module.getPositionX())
+            .append(",\"posY\":").append(module.getPositionY())
+            .append(",\"largeur\":").append(module.getLargeur())
+            .append(",\"hauteur\":").append(module.getHauteur());
+
+        if (module instanceof Statistiques) {
+            json.append(",\"liste\":[");
+            List<Statistique> listeStats = ((Statistiques) module).getStatistiques();
+            for (int i = 0; i < listeStats.size(); i++) {
+                Statistique s = listeStats.get(i);
+                json.append("{\"id\":").append(s.getIdStatistique())
+                    .append(",\"nom\":\"").append(echapper(s.getNomStatistique())).append("\"")
+                    .append(",\"valeur\":").append(s.getValeurStatistique());
+                if (s.getFormule() != null) json.append(",\"formule\":\"").append(echapper(s.getFormule())).append("\"");
                 json.append("}");
-                if (i < modulesPerso.size() - 1) json.append(",");
+                if (i < listeStats.size() - 1) json.append(",");
             }
             json.append("]");
-        // Ferme l'objet fiche
+        } else if (module instanceof Competence) {
+            json.append(",\"liste\":");
+            ajouterListe(json, ((Competence) module).getCompetences());
+        } else if (module instanceof Equipement) {
+            json.append(",\"liste\":");
+            ajouterListe(json, ((Equipement) module).getEquipements());
+        }
+
         json.append("}");
         return json.toString();
     }
 
+    private static String modulePersonnaliseVersJSON(ModulePersonnalise mp) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"id\":\"").append(echapper(mp.getId())).append("\"");
+        json.append(",\"nom\":\"").append(echapper(mp.getNom())).append("\"");
+        json.append(",\"type\":\"").append(echapper(mp.getType())).append("\"");
+
+        // contenuTexte
+        if (mp.getContenuTexte() != null) {
+            json.append(",\"contenuTexte\":\"").append(echapper(mp.getContenuTexte())).append("\"");
+        }
+
+        // contenuListe
+        json.append(",\"contenuListe\":");
+        ajouterListe(json, mp.getContenuListe());
+
+        // contenuStats
+        json.append(",\"contenuStats\":[");
+        java.util.List<Statistique> cs = mp.getContenuStats();
+        for (int j = 0; j < cs.size(); j++) {
+            Statistique s = cs.get(j);
+            json.append("{\"nom\":\"").append(echapper(s.getNomStatistique())).append("\",\"valeur\":").append(s.getValeurStatistique()).append("}");
+            if (j < cs.size() - 1) json.append(",");
+        }
+        json.append("]");
+
+        json.append("}");
+        return json.toString();
+    }
+
+    private static void ajouterListe(StringBuilder json, List<String> liste) {
+        json.append("[");
+        for (int i = 0; i < liste.size(); i++) {
+            json.append("\"").append(echapper(liste.get(i))).append("\"");
+            if (i < liste.size() - 1) json.append(",");
+        }
+        json.append("]");
+    }
+
+    /**
+     * Echappe une chaine pour l'inserer entre guillemets dans un JSON.
+     */
+    public static String echapper(String texte) {
+        if (texte == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < texte.length(); i++) {
+            char c = texte.charAt(i);
+            String remplacement = null;
+            switch (c) {
+                case '"': remplacement = "\\\""; break;
+                case '\\': remplacement = "\\\\"; break;
+                case '\n': remplacement = "\\n"; break;
+                case '\r': remplacement = "\\r"; break;
+                case '\t': remplacement = "\\t"; break;
+                default:
+                    if (c < 0x20) remplacement = String.format("\\u%04x", (int) c);
+            }
+            if (remplacement != null) {
+                if (sb == null) sb = new StringBuilder(texte.substring(0, i));
+                sb.append(remplacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? texte : sb.toString();
+    }
+
     // Extraire un tableau de strings simple: "cle": ["a","b"]
     public static List<String> extraireArrayStrings(String json, String cle) {
         List<String> res = new ArrayList<>();
@@ -215,6 +308,157 @@ public class JsonUtils {
         return res;
     }
 
+    /**
+     * Lit un document JSON complet (pour les corps structures : lots d'operations...).
+     * Retourne des Map (objets, ordre conserve), List, String, Long ou Double, Boolean ou null.
+     * Leve IllegalArgumentException si le JSON est invalide.
+     */
+    public static Object lireJSON(String json) {
+        LecteurJSON lecteur = new LecteurJSON(json);
+        Object valeur = lecteur.lireValeur();
+        lecteur.ignorerEspaces();
+        if (lecteur.index < json.length()) {
+            throw new IllegalArgumentException("Caractere inattendu a la position " + lecteur.index);
+        }
+        return valeur;
+    }
+
+    /**
+     * Lecteur JSON recursif minimal utilise par lireJSON.
+     */
+    private static class LecteurJSON {
+        private final String json;
+        private int index;
+
+        LecteurJSON(String json) {
+            this.json = json;
+        }
+
+        Object lireValeur() {
+            ignorerEspaces();
+            if (index >= json.length()) throw new IllegalArgumentException("JSON incomplet");
+            char c = json.charAt(index);
+            switch (c) {
+                case '{': return lireObjet();
+                case '[': return lireTableau();
+                case '"': return lireChaine();
+                case 't': return lireMot("true", Boolean.TRUE);
+                case 'f': return lireMot("false", Boolean.FALSE);
+                case 'n': return lireMot("null", null);
+                default: return lireNombre();
+            }
+        }
+
+        private Map<String, Object> lireObjet() {
+            Map<String, Object> objet = new LinkedHashMap<>();
+            index++;
+            ignorerEspaces();
+            if (caractere() == '}') {
+                index++;
+                return objet;
+            }
+            while (true) {
+                ignorerEspaces();
+                if (caractere() != '"') throw new IllegalArgumentException("Cle attendue a la position " + index);
+                String cle = lireChaine();
+                ignorerEspaces();
+                attendre(':');
+                objet.put(cle, lireValeur());
+                ignorerEspaces();
+                if (caractere() == ',') {
+                    index++;
+                } else {
+                    attendre('}');
+                    return objet;
+                }
+            }
+        }
+
+        private List<Object> lireTableau() {
+            List<Object> tableau = new ArrayList<>();
+            index++;
+            ignorerEspaces();
+            if (caractere() == ']') {
+                index++;
+                return tableau;
+            }
+            while (true) {
+                tableau.add(lireValeur());
+                ignorerEspaces();
+                if (caractere() == ',') {
+                    index++;
+                } else {
+                    attendre(']');
+                    return tableau;
+                }
+            }
+        }
+
+        private String lireChaine() {
+            StringBuilder sb = new StringBuilder();
+            index++;
+            while (true) {
+                char c = caractere();
+                index++;
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char echappe = caractere();
+                index++;
+                switch (echappe) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (index + 4 > json.length()) throw new IllegalArgumentException("JSON incomplet");
+                        sb.append((char) Integer.parseInt(json.substring(index, index + 4), 16));
+                        index += 4;
+                        break;
+                    default: sb.append(echappe);
+                }
+            }
+        }
+
+        private Object lireNombre() {
+            int debut = index;
+            while (index < json.length() && "+-0123456789.eE".indexOf(json.charAt(index)) >= 0) index++;
+            String nombre = json.substring(debut, index);
+            if (nombre.isEmpty()) throw new IllegalArgumentException("Valeur attendue a la position " + debut);
+            try {
+                if (nombre.contains(".") || nombre.contains("e") || nombre.contains("E")) {
+                    return Double.parseDouble(nombre);
+                }
+                return Long.parseLong(nombre);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Nombre invalide : " + nombre);
+            }
+        }
+
+        private Object lireMot(String mot, Object valeur) {
+            if (!json.startsWith(mot, index)) throw new IllegalArgumentException("Valeur inconnue a la position " + index);
+            index += mot.length();
+            return valeur;
+        }
+
+        private char caractere() {
+            if (index >= json.length()) throw new IllegalArgumentException("JSON incomplet");
+            return json.charAt(index);
+        }
+
+        private void attendre(char c) {
+            if (caractere() != c) throw new IllegalArgumentException("'" + c + "' attendu a la position " + index);
+            index++;
+        }
+
+        void ignorerEspaces() {
+            while (index < json.length() && Character.isWhitespace(json.charAt(index))) index++;
+        }
+    }
+
     /**
      * Convertit une liste de fiches en JSON leger (id + nom seulement).
      */
@@ -223,7 +467,11 @@ public class JsonUtils {
         for (int i = 0; i < fiches.size(); i++) {
             FichePersonnage f = fiches.get(i);
             json.append("{\"id\":").append(f.getIdFichePersonnage())
-                .append(",\"nom\":\"").append(f.getNomFichePersonnage()).append("\"}");
+                .append(",\"nom\":\"").append(f.getNomFichePersonnage()).append("\"");
+            // La liste n'affiche que de petits portraits : adresse de la miniature, pas de l'image
+            String hash = StockBlobs.hashDe(f.getPortrait().getImagePortrait());
+            if (hash != null) json.append(",\"portrait\":\"/api/blobs/").append(hash).append("?taille=256\"");
+            json.append("}");
             if (i < fiches.size() - 1) json.append(",");
         }
         json.append("]");
@@ -244,6 +492,13 @@ public class JsonUtils {
         return "{\"erreur\":\"" + message + "\"}";
     }
 
+    /**
+     * Construit la reponse JSON d'un conflit de version (If-Match obsolete).
+     */
+    public static String conflitVersion(long versionCourante) {
+        return "{\"erreur\":\"Version obsolete\",\"version\":" + versionCourante + "}";
+    }
+
     /**
      * Construit une reponse JSON de succes avec id et nom.
      */
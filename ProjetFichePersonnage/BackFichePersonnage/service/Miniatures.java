@@ -0,0 +1,249 @@
+package service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Miniatures des portraits, a quelques tailles fixes (cote maximal en pixels).
+ *
+ * Une miniature est calculee a la premiere demande par un groupe borne de threads (java.awt,
+ * sans affichage), puis gardee sur disque ("miniatures/{hash}-{taille}", reparti entre les
+ * racines de donnees sous la cle de son hash, voir RepartitionDonnees.cleContenu) et en memoire
+ * (LRU borne a "miniatures.cache.octets"). Une miniature trouvee hors de sa place (ajout d'une
+ * racine, ancien dossier "data/miniatures/") y est recopiee a sa premiere lecture. Des demandes
+ * simultanees de la meme miniature attendent le meme calcul : une image n'est jamais reduite
+ * deux fois en parallele.
+ *
+ * Les blobs etant adresses par leur contenu, changer de portrait change de hash : les
+ * miniatures d'un hash ne deviennent jamais fausses. Elles sont supprimees avec leur blob
+ * (voir StockBlobs.surSuppression).
+ */
+public class Miniatures {
+
+    public static final int[] TAILLES = { 64, 128, 256 };
+    private static final String SOUS_DOSSIER = "miniatures/";
+    private static final long PIXELS_MAX = 50_000_000L; // refuse les images demesurees avant decodage
+    private static final int ATTENTE_MAX_SECONDES = 30;
+
+    /**
+     * Une miniature encodee et son type.
+     */
+    public static class Miniature {
+        public final byte[] contenu;
+        public final String type;
+
+        Miniature(byte[] contenu, String type) {
+            this.contenu = contenu;
+            this.type = type;
+        }
+    }
+
+    private final StockBlobs stock;
+    private final ExecutorService calculs;
+    private final Map<String, CompletableFuture<Miniature>> enCours = new ConcurrentHashMap<>();
+    private final long octetsMaxCache;
+    private long octetsEnCache;
+    private final LinkedHashMap<String, Miniature> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+    public Miniatures(StockBlobs stock) {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+        this.stock = stock;
+        this.octetsMaxCache = Configuration.entier("miniatures.cache.octets", 16 * 1024 * 1024);
+        int parallelisme = Configuration.entier("miniatures.parallelisme", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.calculs = Executors.newFixedThreadPool(Math.max(1, parallelisme), r -> {
+            Thread t = new Thread(r, "miniatures");
+            t.setDaemon(true);
+            return t;
+        });
+        stock.surSuppression(this::supprimer);
+    }
+
+    public static boolean tailleValide(int taille) {
+        for (int t : TAILLES) {
+            if (t == taille) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Miniature d'un blob a une taille de TAILLES, null si le blob n'existe pas.
+     * Leve IllegalArgumentException si le blob n'est pas une image lisible.
+     */
+    public Miniature obtenir(String hash, int taille) throws IOException {
+        if (!tailleValide(taille) || !stock.existe(hash)) return null;
+        String cle = hash + "-" + taille;
+        synchronized (cache) {
+            Miniature enCache = cache.get(cle);
+            if (enCache != null) return enCache;
+        }
+
+        // Un seul calcul par miniature : les demandes suivantes attendent le meme resultat
+        CompletableFuture<Miniature> calcul = enCours.computeIfAbsent(cle, c -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return charger(hash, taille);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }, calculs));
+        calcul.whenComplete((m, e) -> enCours.remove(cle, calcul));
+
+        try {
+            Miniature miniature = calcul.get(ATTENTE_MAX_SECONDES, TimeUnit.SECONDS);
+            mettreEnCache(cle, miniature);
+            return miniature;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("calcul de miniature interrompu");
+        } catch (TimeoutException e) {
+            throw new IOException("calcul de miniature trop long");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException) throw (IllegalArgumentException) cause;
+            if (cause instanceof java.io.UncheckedIOException) throw ((java.io.UncheckedIOException) cause).getCause();
+            throw new IOException("calcul de miniature impossible : " + cause);
+        }
+    }
+
+    public void arreter() {
+        calculs.shutdownNow();
+    }
+
+    /**
+     * Lit la miniature sur disque, ou la calcule et l'y ecrit.
+     */
+    private Miniature charger(String hash, int taille) throws IOException {
+        int cle = RepartitionDonnees.cleContenu(hash);
+        for (String extension : new String[]{ "jpg", "png" }) {
+            String nom = SOUS_DOSSIER + hash + "-" + taille + "." + extension;
+            File fichier = RepartitionDonnees.localiser(cle, nom);
+            if (!fichier.isFile()) continue;
+            byte[] contenu = Files.readAllBytes(fichier.toPath());
+            if (!fichier.equals(RepartitionDonnees.cible(cle, nom))) ecrire(cle, nom, contenu);
+            return new Miniature(contenu, typeDe(extension));
+        }
+
+        BufferedImage source = lire(stock.fichier(hash));
+        BufferedImage reduite = reduire(source, taille);
+        boolean transparence = reduite.getColorModel().hasAlpha();
+        String extension = transparence ? "png" : "jpg";
+        ByteArrayOutputStream sortie = new ByteArrayOutputStream();
+        ImageIO.write(reduite, transparence ? "png" : "jpeg", sortie);
+        byte[] contenu = sortie.toByteArray();
+        ecrire(cle, SOUS_DOSSIER + hash + "-" + taille + "." + extension, contenu);
+        return new Miniature(contenu, typeDe(extension));
+    }
+
+    /**
+     * Ecrit la miniature a sa place et retire ses autres copies. Ecrit a cote puis renomme : un
+     * lecteur ne voit jamais une miniature a moitie ecrite.
+     */
+    private static void ecrire(int cle, String nom, byte[] contenu) throws IOException {
+        File fichier = RepartitionDonnees.cible(cle, nom);
+        fichier.getParentFile().mkdirs();
+        File temporaire = new File(fichier.getPath() + ".tmp");
+        Files.write(temporaire.toPath(), contenu);
+        Files.move(temporaire.toPath(), fichier.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RepartitionDonnees.supprimerAutresCopies(cle, nom);
+    }
+
+    private static BufferedImage lire(File fichier) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(fichier)) {
+            Iterator<ImageReader> lecteurs = in == null ? null : ImageIO.getImageReaders(in);
+            if (lecteurs == null || !lecteurs.hasNext()) throw new IllegalArgumentException("format d'image non reconnu");
+            ImageReader lecteur = lecteurs.next();
+            try {
+                lecteur.setInput(in, true, true);
+                if ((long) lecteur.getWidth(0) * lecteur.getHeight(0) > PIXELS_MAX) {
+                    throw new IllegalArgumentException("image trop grande pour une miniature");
+                }
+                return lecteur.read(0);
+            } finally {
+                lecteur.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reduit l'image pour que son plus grand cote fasse au plus "taille" (jamais d'agrandissement).
+     * Reduction par moities successives puis derniere etape bilineaire : proche du bicubique
+     * pour un cout bien moindre sur les grandes images.
+     */
+    private static BufferedImage reduire(BufferedImage source, int taille) {
+        int largeur = source.getWidth();
+        int hauteur = source.getHeight();
+        double echelle = Math.min(1.0, (double) taille / Math.max(largeur, hauteur));
+        int largeurCible = Math.max(1, (int) Math.round(largeur * echelle));
+        int hauteurCible = Math.max(1, (int) Math.round(hauteur * echelle));
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage image = source;
+        int l = largeur;
+        int h = hauteur;
+        do {
+            l = Math.max(largeurCible, l / 2);
+            h = Math.max(hauteurCible, h / 2);
+            BufferedImage etape = new BufferedImage(l, h, type);
+            Graphics2D g = etape.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, l, h, null);
+            g.dispose();
+            image = etape;
+        } while (l != largeurCible || h != hauteurCible);
+        return image;
+    }
+
+    private void mettreEnCache(String cle, Miniature miniature) {
+        synchronized (cache) {
+            Miniature ancienne = cache.put(cle, miniature);
+            if (ancienne != null) octetsEnCache -= ancienne.contenu.length;
+            octetsEnCache += miniature.contenu.length;
+            Iterator<Miniature> iterateur = cache.values().iterator();
+            while (octetsEnCache > octetsMaxCache && iterateur.hasNext()) {
+                octetsEnCache -= iterateur.next().contenu.length;
+                iterateur.remove();
+            }
+        }
+    }
+
+    /**
+     * Supprime les miniatures d'un blob supprime.
+     */
+    private void supprimer(String hash) {
+        for (int taille : TAILLES) {
+            String cle = hash + "-" + taille;
+            synchronized (cache) {
+                Miniature ancienne = cache.remove(cle);
+                if (ancienne != null) octetsEnCache -= ancienne.contenu.length;
+            }
+            for (String extension : new String[]{ "jpg", "png" }) {
+                String nom = SOUS_DOSSIER + cle + "." + extension;
+                RepartitionDonnees.cible(RepartitionDonnees.cleContenu(hash), nom).delete();
+                RepartitionDonnees.supprimerAutresCopies(RepartitionDonnees.cleContenu(hash), nom);
+            }
+        }
+    }
+
+    private static String typeDe(String extension) {
+        return extension.equals("png") ? "image/png" : "image/jpeg";
+    }
+}
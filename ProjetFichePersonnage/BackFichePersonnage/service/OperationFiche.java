@@ -0,0 +1,267 @@
+package service;
+
+import model.FichePersonnage;
+import model.ModulePersonnalise;
+import model.Statistique;
+import model.Statistiques;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Modification elementaire d'une fiche.
+ *
+ * Une operation s'applique toujours sur la nouvelle version d'une fiche (voir
+ * FichePersonnage.nouvelleVersion), jamais sur une fiche publiee. Elle retourne false
+ * si elle n'a pas pu etre appliquee. Les modificateurs de GestionFiche et le traitement
+ * par lot (appliquerLot) utilisent les memes operations.
+ */
+@FunctionalInterface
+public interface OperationFiche {
+
+    boolean appliquer(FichePersonnage copie);
+
+    static OperationFiche modifierPortrait(String imagePortrait) {
+        return copie -> {
+            copie.modifierPortrait(imagePortrait);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierBiographie(String texteBiographie) {
+        return copie -> {
+            copie.modifierBiographie(texteBiographie);
+            return true;
+        };
+    }
+
+    static OperationFiche ajouterStatistique(String nomStat, int valeur) {
+        return ajouterStatistique(nomStat, valeur, null);
+    }
+
+    /**
+     * Ajoute une statistique, derivee si elle porte une formule. Echoue si la formule cree un cycle.
+     */
+    static OperationFiche ajouterStatistique(String nomStat, int valeur, String formule) {
+        return copie -> {
+            Statistiques statistiques = copie.detacherStatistiques();
+            statistiques.ajouterStatistique(nomStat, valeur, formule);
+            return FormulesStatistiques.recalculerTout(statistiques);
+        };
+    }
+
+    static OperationFiche modifierStatistique(int idStat, String nomStat, int valeur) {
+        return copie -> {
+            Statistique stat = trouverStatistique(copie, idStat);
+            return stat != null && modifierStatistique(idStat, nomStat, valeur, stat.getFormule()).appliquer(copie);
+        };
+    }
+
+    /**
+     * Modifie une statistique et sa formule (null : statistique saisie). Seules les derivees
+     * qui en dependent sont recalculees, sauf si le nom ou la formule change : les references
+     * des autres formules peuvent alors changer, tout est recalcule.
+     */
+    static OperationFiche modifierStatistique(int idStat, String nomStat, int valeur, String formule) {
+        return copie -> {
+            Statistique avant = trouverStatistique(copie, idStat);
+            if (avant == null) return false;
+            Statistiques statistiques = copie.detacherStatistiques();
+            statistiques.modifierStatistique(idStat, nomStat, valeur, formule);
+            Statistique apres = trouverStatistique(copie, idStat);
+            if (apres.getNomStatistique().equals(avant.getNomStatistique())
+                    && Objects.equals(apres.getFormule(), avant.getFormule())) {
+                return FormulesStatistiques.recalculerAval(statistiques, idStat);
+            }
+            return FormulesStatistiques.recalculerTout(statistiques);
+        };
+    }
+
+    static OperationFiche supprimerStatistique(int idStat) {
+        return copie -> {
+            Statistiques statistiques = copie.detacherStatistiques();
+            statistiques.supprimerStatistique(idStat);
+            return FormulesStatistiques.recalculerTout(statistiques);
+        };
+    }
+
+    /**
+     * Change la valeur d'une statistique en gardant son nom.
+     */
+    static OperationFiche modifierValeurStatistique(int idStat, int valeur) {
+        return copie -> {
+            Statistique stat = trouverStatistique(copie, idStat);
+            if (stat == null) return false;
+            Statistiques statistiques = copie.detacherStatistiques();
+            statistiques.modifierStatistique(idStat, stat.getNomStatistique(), valeur);
+            return FormulesStatistiques.recalculerAval(statistiques, idStat);
+        };
+    }
+
+    /**
+     * Ajoute delta a une statistique (commutatif : deux increments concurrents s'additionnent).
+     */
+    static OperationFiche incrementerStatistique(int idStat, int delta) {
+        return copie -> {
+            Statistique stat = trouverStatistique(copie, idStat);
+            if (stat == null) return false;
+            Statistiques statistiques = copie.detacherStatistiques();
+            statistiques.modifierStatistique(idStat, stat.getNomStatistique(), stat.getValeurStatistique() + delta);
+            return FormulesStatistiques.recalculerAval(statistiques, idStat);
+        };
+    }
+
+    private static Statistique trouverStatistique(FichePersonnage fiche, int idStat) {
+        for (Statistique stat : fiche.getStatistiques().getStatistiques()) {
+            if (stat.getIdStatistique() == idStat) return stat;
+        }
+        return null;
+    }
+
+    /**
+     * Insere du texte dans la biographie (position bornee a la longueur du texte).
+     */
+    static OperationFiche insererTexteBiographie(int position, String texte) {
+        return copie -> {
+            String actuel = copie.getBiographie().getTexteBiographie();
+            if (actuel == null) actuel = "";
+            int p = Math.max(0, Math.min(position, actuel.length()));
+            copie.modifierBiographie(actuel.substring(0, p) + texte + actuel.substring(p));
+            return true;
+        };
+    }
+
+    /**
+     * Supprime une portion de la biographie (bornee au texte existant).
+     */
+    static OperationFiche supprimerTexteBiographie(int position, int longueur) {
+        return copie -> {
+            String actuel = copie.getBiographie().getTexteBiographie();
+            if (actuel == null) actuel = "";
+            int debut = Math.max(0, Math.min(position, actuel.length()));
+            int fin = Math.max(debut, Math.min(position + longueur, actuel.length()));
+            copie.modifierBiographie(actuel.substring(0, debut) + actuel.substring(fin));
+            return true;
+        };
+    }
+
+    static OperationFiche ajouterCompetence(String nomCompetence) {
+        return copie -> {
+            copie.detacherCompetence().ajouterCompetence(nomCompetence);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierCompetence(String ancienNom, String nouveauNom) {
+        return copie -> {
+            copie.detacherCompetence().modifierCompetence(ancienNom, nouveauNom);
+            return true;
+        };
+    }
+
+    static OperationFiche supprimerCompetence(String nomCompetence) {
+        return copie -> {
+            copie.detacherCompetence().supprimerCompetence(nomCompetence);
+            return true;
+        };
+    }
+
+    static OperationFiche ajouterEquipement(String nomEquipement) {
+        return copie -> {
+            copie.detacherEquipement().ajouterEquipement(nomEquipement);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierEquipement(String ancienNom, String nouveauNom) {
+        return copie -> {
+            copie.detacherEquipement().modifier(ancienNom, nouveauNom);
+            return true;
+        };
+    }
+
+    static OperationFiche supprimerEquipement(String nomEquipement) {
+        return copie -> {
+            copie.detacherEquipement().supprimerEquipement(nomEquipement);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierPositionModule(String nomModule, int posX, int posY) {
+        return copie -> {
+            model.Module module = detacherModuleParNom(copie, nomModule);
+            if (module == null) return false;
+            module.modifierPosition(posX, posY);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierTailleModule(String nomModule, int largeur, int hauteur) {
+        return copie -> {
+            model.Module module = detacherModuleParNom(copie, nomModule);
+            if (module == null) return false;
+            module.modifierTaille(largeur, hauteur);
+            return true;
+        };
+    }
+
+    static OperationFiche modifierNomFiche(String nouveauNom) {
+        return copie -> {
+            copie.modifierNomFiche(nouveauNom);
+            return true;
+        };
+    }
+
+    static OperationFiche ajouterModulePersonnalise(ModulePersonnalise module) {
+        return copie -> copie.getModulesPersonnalises().add(module);
+    }
+
+    static OperationFiche modifierModulePersonnalise(String idModule, ModulePersonnalise module) {
+        return copie -> {
+            List<ModulePersonnalise> liste = copie.getModulesPersonnalises();
+            for (int i = 0; i < liste.size(); i++) {
+                if (liste.get(i).getId().equals(idModule)) {
+                    liste.set(i, module);
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    static OperationFiche supprimerModulePersonnalise(String idModule) {
+        return copie -> copie.getModulesPersonnalises().removeIf(m -> m.getId().equals(idModule));
+    }
+
+    /**
+     * Remet la fiche dans l'etat d'une version passee (voir HistoriqueFiches.lireVersion).
+     */
+    static OperationFiche restaurer(FichePersonnage passee) {
+        return copie -> {
+            copie.restaurer(passee);
+            return true;
+        };
+    }
+
+    /**
+     * Detache (copie) puis retourne le module correspondant au nom donne, null si inconnu.
+     * Les modules sont : portrait, biographie, statistiques, competence, equipement.
+     */
+    private static model.Module detacherModuleParNom(FichePersonnage fiche, String nomModule) {
+        switch (nomModule.toLowerCase()) {
+            case "portrait":
+                return fiche.detacherPortrait();
+            case "biographie":
+                return fiche.detacherBiographie();
+            case "statistiques":
+                return fiche.detacherStatistiques();
+            case "competence":
+                return fiche.detacherCompetence();
+            case "equipement":
+                return fiche.detacherEquipement();
+            default:
+                System.out.println("Erreur : module '" + nomModule + "' inconnu.");
+                return null;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package service;
+
+import model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Traduction d'un JSON Merge Patch (RFC 7396) en operation sur une fiche.
+ *
+ * Le patch porte sur le document produit par JsonUtils.ficheVersJSON. Seuls les champs
+ * presents dans le patch sont appliques, et seuls les modules dont une valeur change sont
+ * detaches : les autres, y compris ceux que le patch redonne a l'identique, restent partages
+ * avec la version precedente (ils ne sont ni recopies, ni reserialises en JSON). Un patch qui
+ * ne change rien ne publie donc aucune version.
+ *
+ * Comme dans la RFC, un tableau remplace le tableau existant. Pour eviter de renvoyer
+ * tous les modules personnalises, "modulesPersonnalises" accepte aussi un objet indexe par
+ * id de module : {"id": {...}} fusionne ce module (ou le cree), {"id": null} le supprime.
+ *
+ * Les champs "id" et "version" sont en lecture seule et ignores. L'image du portrait est
+ * ecrite telle quelle : l'appelant la convertit d'abord (voir StockBlobs.reference).
+ * Leve IllegalArgumentException si un champ n'a pas le type attendu.
+ */
+public class PatchFiche {
+
+    /**
+     * Un champ invalide leve l'exception pendant l'application : la nouvelle version
+     * est alors abandonnee et la fiche publiee reste intacte.
+     */
+    public static OperationFiche depuisPatch(Map<?, ?> patch) {
+        return copie -> {
+            for (Map.Entry<?, ?> champ : patch.entrySet()) {
+                appliquerChamp(copie, String.valueOf(champ.getKey()), champ.getValue());
+            }
+            return true;
+        };
+    }
+
+    private static void appliquerChamp(FichePersonnage copie, String cle, Object valeur) {
+        switch (cle) {
+            case "id":
+            case "version":
+                return;
+
+            case "nom": {
+                String nom = texteRequis(valeur, cle);
+                if (nom.isEmpty()) throw new IllegalArgumentException("nom vide");
+                if (!nom.equals(copie.getNomFichePersonnage())) copie.modifierNomFiche(nom);
+                return;
+            }
+
+            // Chaque module : valeurs lues et verifiees, puis comparees aux actuelles ; le module
+            // n'est detache (nouvelle version) que si l'une d'elles change
+            case "portrait": {
+                Map<?, ?> objet = objetRequis(valeur, cle);
+                Portrait actuel = copie.getPortrait();
+                String image = objet.containsKey("image") ? texteRequis(objet.get("image"), "image") : actuel.getImagePortrait();
+                if (Objects.equals(image, actuel.getImagePortrait()) && !dispositionModifiee(actuel, objet)) return;
+                Portrait portrait = copie.detacherPortrait();
+                portrait.modifierPortrait(image);
+                appliquerDisposition(portrait, objet);
+                return;
+            }
+
+            case "biographie": {
+                Map<?, ?> objet = objetRequis(valeur, cle);
+                Biographie actuelle = copie.getBiographie();
+                String texte = objet.containsKey("texte") ? texteRequis(objet.get("texte"), "texte") : actuelle.getTexteBiographie();
+                if (Objects.equals(texte, actuelle.getTexteBiographie()) && !dispositionModifiee(actuelle, objet)) return;
+                Biographie biographie = copie.detacherBiographie();
+                biographie.modifierBiographie(texte);
+                appliquerDisposition(biographie, objet);
+                return;
+            }
+
+            case "statistiques": {
+                Map<?, ?> objet = objetRequis(valeur, cle);
+                Statistiques actuelles = copie.getStatistiques();
+                List<Statistique> liste = objet.containsKey("liste") ? statistiquesRequises(objet.get("liste"), "liste") : null;
+                if ((liste == null || memesStatistiques(liste, actuelles.getStatistiques())) && !dispositionModifiee(actuelles, objet)) return;
+                Statistiques statistiques = copie.detacherStatistiques();
+                if (liste != null) {
+                    statistiques.remplacerStatistiques(liste);
+                    if (!FormulesStatistiques.recalculerTout(statistiques)) {
+                        throw new IllegalArgumentException("les formules des statistiques forment un cycle");
+                    }
+                }
+                appliquerDisposition(statistiques, objet);
+                return;
+            }
+
+            case "competences": {
+                Map<?, ?> objet = objetRequis(valeur, cle);
+                Competence actuelle = copie.getCompetence();
+                List<String> liste = objet.containsKey("liste") ? textesRequis(objet.get("liste"), "liste") : actuelle.getCompetences();
+                if (liste.equals(actuelle.getCompetences()) && !dispositionModifiee(actuelle, objet)) return;
+                Competence competence = copie.detacherCompetence();
+                competence.remplacerCompetences(liste);
+                appliquerDisposition(competence, objet);
+                return;
+            }
+
+            case "equipements": {
+                Map<?, ?> objet = objetRequis(valeur, cle);
+                Equipement actuel = copie.getEquipement();
+                List<String> liste = objet.containsKey("liste") ? textesRequis(objet.get("liste"), "liste") : actuel.getEquipements();
+                if (liste.equals(actuel.getEquipements()) && !dispositionModifiee(actuel, objet)) return;
+                Equipement equipement = copie.detacherEquipement();
+                equipement.remplacerEquipements(liste);
+                appliquerDisposition(equipement, objet);
+                return;
+            }
+
+            case "modulesPersonnalises":
+                appliquerModulesPersonnalises(copie, valeur);
+                return;
+
+            default:
+                throw new IllegalArgumentException("champ inconnu : " + cle);
+        }
+    }
+
+    private static void appliquerModulesPersonnalises(FichePersonnage copie, Object valeur) {
+        List<ModulePersonnalise> modules = copie.getModulesPersonnalises();
+
+        // Tableau : remplacement complet (RFC 7396) ; un module identique a celui en place le garde
+        if (valeur instanceof List) {
+            List<ModulePersonnalise> nouveaux = new ArrayList<>();
+            boolean change = ((List<?>) valeur).size() != modules.size();
+            for (Object element : (List<?>) valeur) {
+                Map<?, ?> objet = objetRequis(element, "modulesPersonnalises");
+                String id = objet.get("id") instanceof String ? (String) objet.get("id") : java.util.UUID.randomUUID().toString();
+                ModulePersonnalise module = new ModulePersonnalise(id, "Module", "texte");
+                fusionnerModule(module, objet);
+                int position = nouveaux.size();
+                if (position < modules.size() && memeModule(module, modules.get(position))) {
+                    module = modules.get(position);
+                } else {
+                    change = true;
+                }
+                nouveaux.add(module);
+            }
+            if (!change) return;
+            modules.clear();
+            modules.addAll(nouveaux);
+            return;
+        }
+
+        // Objet indexe par id : fusion module par module
+        Map<?, ?> parId = objetRequis(valeur, "modulesPersonnalises");
+        for (Map.Entry<?, ?> entree : parId.entrySet()) {
+            String id = String.valueOf(entree.getKey());
+            int index = -1;
+            for (int i = 0; i < modules.size(); i++) {
+                if (modules.get(i).getId().equals(id)) index = i;
+            }
+
+            if (entree.getValue() == null) {
+                if (index >= 0) modules.remove(index);
+                continue;
+            }
+
+            Map<?, ?> objet = objetRequis(entree.getValue(), id);
+            if (index >= 0) {
+                ModulePersonnalise module = modules.get(index).copier();
+                fusionnerModule(module, objet);
+                if (!memeModule(module, modules.get(index))) modules.set(index, module);
+            } else {
+                ModulePersonnalise module = new ModulePersonnalise(id, "Module", "texte");
+                fusionnerModule(module, objet);
+                modules.add(module);
+            }
+        }
+    }
+
+    private static void fusionnerModule(ModulePersonnalise module, Map<?, ?> objet) {
+        if (objet.containsKey("nom")) module.setNom(texteRequis(objet.get("nom"), "nom"));
+        if (objet.containsKey("type")) module.setType(texteRequis(objet.get("type"), "type"));
+        if (objet.containsKey("contenuTexte")) {
+            module.setContenuTexte(objet.get("contenuTexte") == null ? "" : texteRequis(objet.get("contenuTexte"), "contenuTexte"));
+        }
+        if (objet.containsKey("contenuListe")) module.setContenuListe(textesRequis(objet.get("contenuListe"), "contenuListe"));
+        if (objet.containsKey("contenuStats")) module.setContenuStats(statistiquesRequises(objet.get("contenuStats"), "contenuStats"));
+        appliquerDisposition(module, objet);
+    }
+
+    /**
+     * Vrai si posX/posY/largeur/hauteur sont presents avec une autre valeur que celle du module.
+     */
+    private static boolean dispositionModifiee(model.Module module, Map<?, ?> objet) {
+        return (objet.containsKey("posX") && entierRequis(objet.get("posX"), "posX") != module.getPositionX())
+            || (objet.containsKey("posY") && entierRequis(objet.get("posY"), "posY") != module.getPositionY())
+            || (objet.containsKey("largeur") && entierRequis(objet.get("largeur"), "largeur") != module.getLargeur())
+            || (objet.containsKey("hauteur") && entierRequis(objet.get("hauteur"), "hauteur") != module.getHauteur());
+    }
+
+    /**
+     * Vrai si la liste du patch redonne les statistiques actuelles. La valeur d'une statistique
+     * derivee n'est pas comparee (elle est recalculee) ; un id absent compte comme un changement.
+     */
+    private static boolean memesStatistiques(List<Statistique> nouvelles, List<Statistique> actuelles) {
+        if (nouvelles.size() != actuelles.size()) return false;
+        for (int i = 0; i < nouvelles.size(); i++) {
+            Statistique nouvelle = nouvelles.get(i);
+            Statistique actuelle = actuelles.get(i);
+            if (nouvelle.getIdStatistique() != actuelle.getIdStatistique()
+                    || !Objects.equals(nouvelle.getNomStatistique(), actuelle.getNomStatistique())
+                    || !Objects.equals(nouvelle.getFormule(), actuelle.getFormule())
+                    || (!nouvelle.estDerivee() && nouvelle.getValeurStatistique() != actuelle.getValeurStatistique())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean memeModule(ModulePersonnalise a, ModulePersonnalise b) {
+        return a.getId().equals(b.getId())
+            && Objects.equals(a.getNom(), b.getNom())
+            && Objects.equals(a.getType(), b.getType())
+            && Objects.equals(a.getContenuTexte(), b.getContenuTexte())
+            && Objects.equals(a.getContenuListe(), b.getContenuListe())
+            && memesStatistiques(a.getContenuStats(), b.getContenuStats())
+            && a.getPositionX() == b.getPositionX() && a.getPositionY() == b.getPositionY()
+            && a.getLargeur() == b.getLargeur() && a.getHauteur() == b.getHauteur();
+    }
+
+    /**
+     * Applique posX/posY/largeur/hauteur si presents (les valeurs absentes restent inchangees).
+     */
+    private static void appliquerDisposition(model.Module module, Map<?, ?> objet) {
+        if (objet.containsKey("posX") || objet.containsKey("posY")) {
+            module.modifierPosition(
+                objet.containsKey("posX") ? entierRequis(objet.get("posX"), "posX") : module.getPositionX(),
+                objet.containsKey("posY") ? entierRequis(objet.get("posY"), "posY") : module.getPositionY());
+        }
+        if (objet.containsKey("largeur") || objet.containsKey("hauteur")) {
+            module.modifierTaille(
+                objet.containsKey("largeur") ? entierRequis(objet.get("largeur"), "largeur") : module.getLargeur(),
+                objet.containsKey("hauteur") ? entierRequis(objet.get("hauteur"), "hauteur") : module.getHauteur());
+        }
+    }
+
+    private static Map<?, ?> objetRequis(Object valeur, String cle) {
+        if (!(valeur instanceof Map)) throw new IllegalArgumentException(cle + " doit etre un objet");
+        return (Map<?, ?>) valeur;
+    }
+
+    private static String texteRequis(Object valeur, String cle) {
+        if (!(valeur instanceof String)) throw new IllegalArgumentException(cle + " doit etre un texte");
+        return (String) valeur;
+    }
+
+    private static int entierRequis(Object valeur, String cle) {
+        if (!(valeur instanceof Long)) throw new IllegalArgumentException(cle + " doit etre un entier");
+        return ((Long) valeur).intValue();
+    }
+
+    private static List<String> textesRequis(Object valeur, String cle) {
+        if (!(valeur instanceof List)) throw new IllegalArgumentException(cle + " doit etre un tableau");
+        List<String> textes = new ArrayList<>();
+        for (Object element : (List<?>) valeur) textes.add(texteRequis(element, cle));
+        return textes;
+    }
+
+    private static List<Statistique> statistiquesRequises(Object valeur, String cle) {
+        if (!(valeur instanceof List)) throw new IllegalArgumentException(cle + " doit etre un tableau");
+        List<Statistique> stats = new ArrayList<>();
+        for (Object element : (List<?>) valeur) {
+            Map<?, ?> objet = objetRequis(element, cle);
+            int id = objet.containsKey("id") ? entierRequis(objet.get("id"), "id") : 0;
+            String formule = objet.containsKey("formule") && objet.get("formule") != null ? texteRequis(objet.get("formule"), "formule") : null;
+            FormulesStatistiques.verifier(formule);
+            int valeurStat = objet.containsKey("valeur") || formule == null ? entierRequis(objet.get("valeur"), "valeur") : 0;
+            stats.add(new Statistique(id, texteRequis(objet.get("nom"), "nom"), valeurStat, formule));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,220 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Protocole de replication entre un primaire et ses suiveurs, sur une connexion TCP :
+ *
+ * - le suiveur se presente : "FPRP", int version, long epoque et long numero de sa derniere
+ *   entree appliquee (0 et 0 s'il n'a rien)
+ * - le primaire repond REPRISE s'il peut continuer apres ce numero, sinon il envoie un instantane
+ * - puis le primaire envoie les entrees du journal dans l'ordre, et un BATTEMENT (numero de
+ *   tete, date) chaque seconde sans modification ; un instantane peut suivre a tout moment si
+ *   le suiveur prend trop de retard
+ * - le suiveur confirme au fil de l'eau le numero de la derniere entree appliquee (long)
+ *
+ * Instantane : INSTANTANE, long epoque, long numero (les entrees suivantes completent
+ * l'instantane), int nombre de comptes, puis par compte : le compte, int nombre de fiches et
+ * les fiches ; puis les partages ; enfin FIN_INSTANTANE.
+ *
+ * Une fiche circule serialisee, precedee de sa longueur ; un compte en id, nom, mot de passe ;
+ * les partages au format de "data/partages.txt", precedes de leur longueur.
+ *
+ * Blobs des portraits : un message BLOB (hash, long taille, contenu) precede la premiere entree
+ * qui y fait reference sur la connexion, et suit l'instantane pour ceux de ses fiches. Un blob
+ * n'est envoye qu'une fois par connexion ; le suiveur le range dans son stock (voir StockBlobs).
+ */
+final class ProtocoleReplication {
+
+    static final byte[] MAGIQUE = { 'F', 'P', 'R', 'P' };
+    static final int VERSION = 2;
+
+    /** Messages du primaire */
+    static final byte REPRISE = 'R';
+    static final byte INSTANTANE = 'I';
+    static final byte FIN_INSTANTANE = 'Z';
+    static final byte ENTREE = 'E';
+    static final byte BATTEMENT = 'H';
+    static final byte BLOB = 'B';
+
+    private static final int LONGUEUR_MAX = 64 * 1024 * 1024;
+
+    private ProtocoleReplication() {
+    }
+
+    static void presenter(DataOutputStream out, long epoque, long numero) throws IOException {
+        out.write(MAGIQUE);
+        out.writeInt(VERSION);
+        out.writeLong(epoque);
+        out.writeLong(numero);
+        out.flush();
+    }
+
+    /**
+     * Lit la presentation d'un suiveur : {epoque, numero}.
+     */
+    static long[] lirePresentation(DataInputStream in) throws IOException {
+        byte[] magique = in.readNBytes(MAGIQUE.length);
+        if (!Arrays.equals(magique, MAGIQUE)) throw new IOException("pas un suiveur de replication");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("version de protocole " + version + " non geree");
+        return new long[]{ in.readLong(), in.readLong() };
+    }
+
+    static void ecrireEntree(DataOutputStream out, JournalReplication.Entree entree) throws IOException {
+        out.writeByte(ENTREE);
+        out.writeLong(entree.numero);
+        out.writeLong(entree.date);
+        out.writeByte(entree.type);
+        out.writeInt(entree.idUtilisateur);
+        out.writeInt(entree.idFiche);
+        if (entree.type == JournalReplication.FICHE) ecrireFiche(out, entree.fiche);
+        if (entree.type == JournalReplication.COMPTE) ecrireCompte(out, entree.compte);
+    }
+
+    /**
+     * Ecrit une entree PARTAGES avec l'etat courant des partages.
+     */
+    static void ecrireEntreePartages(DataOutputStream out, JournalReplication.Entree entree, byte[] partages) throws IOException {
+        out.writeByte(ENTREE);
+        out.writeLong(entree.numero);
+        out.writeLong(entree.date);
+        out.writeByte(entree.type);
+        out.writeInt(entree.idUtilisateur);
+        out.writeInt(entree.idFiche);
+        ecrirePartages(out, partages);
+    }
+
+    /**
+     * Lit une entree (apres l'octet ENTREE).
+     */
+    static JournalReplication.Entree lireEntree(DataInputStream in) throws IOException {
+        long numero = in.readLong();
+        long date = in.readLong();
+        byte type = in.readByte();
+        int idUtilisateur = in.readInt();
+        int idFiche = in.readInt();
+        FichePersonnage fiche = type == JournalReplication.FICHE ? lireFiche(in) : null;
+        Utilisateur compte = type == JournalReplication.COMPTE ? lireCompte(in) : null;
+        byte[] partages = type == JournalReplication.PARTAGES ? lirePartages(in) : null;
+        return new JournalReplication.Entree(numero, date, type, idUtilisateur, idFiche, fiche, compte, partages);
+    }
+
+    /**
+     * Ecrit une fiche complete (une fiche archivee est lue dans son archive).
+     */
+    static void ecrireFiche(DataOutputStream out, FichePersonnage fiche) throws IOException {
+        if (fiche.estArchivee()) fiche = fiche.rehydrater();
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(octets)) {
+            oos.writeObject(fiche);
+        }
+        out.writeInt(octets.size());
+        octets.writeTo(out);
+    }
+
+    static FichePersonnage lireFiche(DataInputStream in) throws IOException {
+        int longueur = in.readInt();
+        if (longueur < 0 || longueur > LONGUEUR_MAX) throw new IOException("longueur de fiche aberrante : " + longueur);
+        byte[] octets = new byte[longueur];
+        in.readFully(octets);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(octets))) {
+            return (FichePersonnage) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("fiche illisible : " + e.getMessage());
+        }
+    }
+
+    static void ecrireCompte(DataOutputStream out, Utilisateur compte) throws IOException {
+        out.writeInt(compte.getIdUtilisateur());
+        out.writeUTF(compte.getNomUtilisateur());
+        out.writeUTF(compte.getMotdepasse());
+    }
+
+    static Utilisateur lireCompte(DataInputStream in) throws IOException {
+        return new Utilisateur(in.readInt(), in.readUTF(), in.readUTF());
+    }
+
+    static void ecrirePartages(DataOutputStream out, byte[] partages) throws IOException {
+        out.writeInt(partages.length);
+        out.write(partages);
+    }
+
+    static byte[] lirePartages(DataInputStream in) throws IOException {
+        int longueur = in.readInt();
+        if (longueur < 0 || longueur > LONGUEUR_MAX) throw new IOException("longueur de partages aberrante : " + longueur);
+        byte[] octets = new byte[longueur];
+        in.readFully(octets);
+        return octets;
+    }
+
+    /**
+     * Ecrit un message BLOB. Leve IOException avant d'ecrire quoi que ce soit si le blob
+     * n'est plus dans le stock (supprime par le ramasse-miettes).
+     */
+    static void ecrireBlob(DataOutputStream out, String hash, File fichier) throws IOException {
+        try (FileInputStream in = new FileInputStream(fichier)) {
+            long taille = in.getChannel().size();
+            out.writeByte(BLOB);
+            out.writeUTF(hash);
+            out.writeLong(taille);
+            long copies = in.transferTo(out);
+            if (copies != taille) throw new IOException("blob " + hash + " modifie pendant l'envoi");
+        }
+    }
+
+    /**
+     * Lit un message BLOB (apres l'octet BLOB) et le range dans le stock. Un blob refuse par le
+     * stock (trop grand pour ce suiveur) est lu jusqu'au bout et ignore.
+     */
+    static void lireBlob(DataInputStream in, StockBlobs stock) throws IOException {
+        String hash = in.readUTF();
+        long taille = in.readLong();
+        if (taille < 0) throw new IOException("taille de blob aberrante : " + taille);
+        FluxLimite contenu = new FluxLimite(in, taille);
+        try {
+            String recu = stock.stocker(contenu);
+            if (!recu.equals(hash)) System.out.println("Replication : blob " + hash + " recu avec le hash " + recu + ".");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Replication : blob " + hash + " refuse (" + e.getMessage() + ").");
+        } finally {
+            contenu.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Les "restant" octets suivants du flux, sans le fermer.
+     */
+    private static class FluxLimite extends FilterInputStream {
+        private long restant;
+
+        FluxLimite(InputStream in, long longueur) {
+            super(in);
+            this.restant = longueur;
+        }
+
+        public int read() throws IOException {
+            if (restant <= 0) return -1;
+            int c = super.read();
+            if (c == -1) throw new EOFException("blob tronque");
+            restant--;
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (restant <= 0) return -1;
+            int lus = super.read(b, off, (int) Math.min(len, restant));
+            if (lus == -1) throw new EOFException("blob tronque");
+            restant -= lus;
+            return lus;
+        }
+
+        public void close() {
+            // Le flux est celui de la connexion
+        }
+    }
+}
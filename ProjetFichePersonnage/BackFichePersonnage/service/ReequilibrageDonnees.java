@@ -0,0 +1,78 @@
+package service;
+
+import model.Utilisateur;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reequilibrage en ligne des racines de donnees (voir RepartitionDonnees) : apres l'ajout d'une
+ * racine, les fichiers de fiches des utilisateurs qui lui reviennent sont encore dans leur
+ * ancienne racine (ou dans l'ancien dossier plat "data/"). Une passe les deplace un par un,
+ * sous le verrou des sauvegardes de l'utilisateur (voir GestionFiche.deplacerFiches), pendant
+ * que le serveur continue de servir : un fichier est lu la ou il est tant qu'il n'a pas bouge.
+ *
+ * Premiere passe quelques secondes apres le demarrage, puis toutes les
+ * "donnees.reequilibrage" secondes (3600 par defaut, 0 : jamais). Les index de recherche
+ * et les templates suivent a leur prochaine ecriture, l'historique a la compaction suivante
+ * (HistoriqueFiches), les segments d'archive a la generation suivante (ArchivesFiches) et
+ * les miniatures a leur prochaine lecture (Miniatures).
+ */
+public class ReequilibrageDonnees {
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+
+    private final ScheduledExecutorService reequilibrage = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reequilibrage");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    public ReequilibrageDonnees(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        int intervalle = Configuration.entier("donnees.reequilibrage", 3600);
+        if (intervalle > 0) {
+            reequilibrage.scheduleWithFixedDelay(this::reequilibrer, 5, intervalle, TimeUnit.SECONDS);
+        }
+    }
+
+    public void arreter() {
+        reequilibrage.shutdownNow();
+    }
+
+    /**
+     * Une passe : deplace chaque fichier de fiches qui n'est pas dans sa racine.
+     */
+    void reequilibrer() {
+        long debut = System.currentTimeMillis();
+        int deplaces = 0;
+        int erreurs = 0;
+        for (Map.Entry<Integer, List<File>> entree : RepartitionDonnees.fichiers("fiches_", ".dat").entrySet()) {
+            if (Thread.currentThread().isInterrupted()) return;
+            int idUtilisateur = entree.getKey();
+            File cible = RepartitionDonnees.cible(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur));
+            if (entree.getValue().size() == 1 && entree.getValue().get(0).equals(cible)) continue;
+
+            Utilisateur utilisateur = gestionUtilisateur.trouverParId(idUtilisateur);
+            if (utilisateur == null) continue;
+            try {
+                if (gestionFiche.deplacerFiches(utilisateur)) deplaces++;
+            } catch (IOException e) {
+                erreurs++;
+                System.out.println("Reequilibrage : fiches de l'utilisateur " + idUtilisateur + " non deplacees : " + e.getMessage());
+            }
+        }
+        if (deplaces > 0 || erreurs > 0) {
+            System.out.println("Reequilibrage : " + deplaces + " fichier(s) deplace(s), " + erreurs + " erreur(s), "
+                + (System.currentTimeMillis() - debut) + " ms, " + RepartitionDonnees.getRacines().size() + " racine(s).");
+        }
+    }
+}
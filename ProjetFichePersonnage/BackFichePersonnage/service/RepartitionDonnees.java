@@ -0,0 +1,281 @@
+package service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Repartition des fichiers propres a chaque utilisateur (fiches, index de recherche, templates,
+ * historique, segments d'archive) entre plusieurs racines de donnees, typiquement une par
+ * disque : "donnees.racines", liste separee par des virgules ("data" par defaut).
+ *
+ * Hachage coherent : chaque racine occupe "donnees.noeuds" points (256 par defaut) sur un
+ * anneau de 64 bits ; un utilisateur va a la racine du premier point qui suit le hache de son
+ * id. Ajouter une racine ne deplace que les utilisateurs dont elle prend les points (environ
+ * 1/n d'entre eux). Une racine est identifiee par son chemin tel qu'ecrit dans la configuration.
+ *
+ * Dans une racine, les fichiers d'un utilisateur sont ranges par tranches de mille ids :
+ * "{racine}/donnees_utilisateurs/{id / 1 000 000}/{(id / 1000) % 1000}/" ; aucun dossier ne
+ * depasse quelques milliers d'entrees, meme a des millions d'utilisateurs.
+ *
+ * Les fichiers adresses par leur contenu (miniatures) n'appartiennent a personne : ils sont
+ * repartis de la meme facon sous la cle tiree de leur hash (voir cleContenu).
+ *
+ * Un fichier est cherche d'abord a sa place, puis dans les autres racines et dans l'ancien
+ * dossier plat "data/" : la place change quand une racine est ajoutee, et le fichier n'est
+ * deplace qu'ensuite (ecriture suivante, ou ReequilibrageDonnees), sans arreter le serveur.
+ *
+ * Chaque racine a ses propres threads d'ecriture ("donnees.ecrituresParRacine", 2 par
+ * defaut) : les ecritures d'un disque lent ne retiennent pas celles des autres disques, et le
+ * nombre d'ecritures simultanees par disque est borne.
+ */
+public final class RepartitionDonnees {
+
+    private static final String DOSSIER_DATA = "data/";
+    private static final String SOUS_DOSSIER = "donnees_utilisateurs";
+
+    private static final List<String> racines = racinesConfigurees();
+    private static final TreeMap<Long, Integer> anneau = construireAnneau();
+    private static final ExecutorService[] ecritures = creerEcritures();
+
+    /**
+     * Une ecriture sur disque, executee par les threads de la racine.
+     */
+    public interface TacheDisque<T> {
+        T executer() throws IOException;
+    }
+
+    private RepartitionDonnees() {
+    }
+
+    private static List<String> racinesConfigurees() {
+        List<String> liste = Configuration.liste("donnees.racines");
+        if (liste.isEmpty()) liste.add("data");
+        return List.copyOf(liste);
+    }
+
+    private static TreeMap<Long, Integer> construireAnneau() {
+        int noeuds = Math.max(1, Configuration.entier("donnees.noeuds", 256));
+        TreeMap<Long, Integer> points = new TreeMap<>();
+        for (int r = 0; r < racines.size(); r++) {
+            long base = racines.get(r).hashCode();
+            for (int i = 0; i < noeuds; i++) {
+                points.put(melanger(base * 0x9E3779B97F4A7C15L + i), r);
+            }
+        }
+        return points;
+    }
+
+    private static ExecutorService[] creerEcritures() {
+        int threads = Math.max(1, Configuration.entier("donnees.ecrituresParRacine", 2));
+        ExecutorService[] executeurs = new ExecutorService[racines.size()];
+        for (int r = 0; r < racines.size(); r++) {
+            String nom = "donnees-" + r;
+            executeurs[r] = Executors.newFixedThreadPool(threads, tache -> {
+                Thread t = new Thread(tache, nom);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executeurs;
+    }
+
+    /**
+     * Finaliseur 64 bits de MurmurHash3 : disperse des entrees proches (ids consecutifs) sur tout l'anneau.
+     */
+    private static long melanger(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Index de la racine d'un utilisateur dans "donnees.racines".
+     */
+    static int racine(int idUtilisateur) {
+        Map.Entry<Long, Integer> point = anneau.ceilingEntry(melanger(idUtilisateur));
+        return (point != null ? point : anneau.firstEntry()).getValue();
+    }
+
+    static List<String> getRacines() {
+        return racines;
+    }
+
+    private static File dossier(int racine, int idUtilisateur) {
+        return new File(racines.get(racine), SOUS_DOSSIER + File.separator
+            + String.format("%03d", (idUtilisateur / 1_000_000) % 1000) + File.separator
+            + String.format("%03d", (idUtilisateur / 1000) % 1000));
+    }
+
+    /**
+     * Place d'un fichier de l'utilisateur selon l'anneau : la ou il doit etre ecrit.
+     */
+    public static File cible(int idUtilisateur, String nom) {
+        return new File(dossier(racine(idUtilisateur), idUtilisateur), nom);
+    }
+
+    /**
+     * Fichier a lire : a sa place s'il y est, sinon la ou il est encore (autre racine, ancien
+     * dossier plat) ; sa place s'il n'existe nulle part.
+     */
+    public static File localiser(int idUtilisateur, String nom) {
+        File cible = cible(idUtilisateur, nom);
+        if (cible.exists()) return cible;
+        for (File ailleurs : autresEmplacements(idUtilisateur, nom)) {
+            if (ailleurs.exists()) return ailleurs;
+        }
+        return cible;
+    }
+
+    /**
+     * Tous les emplacements possibles d'un fichier, sa place en premier. Avec un nom de
+     * sous-dossier : les dossiers ou chercher les fichiers de l'utilisateur qu'il contient.
+     */
+    public static List<File> emplacements(int idUtilisateur, String nom) {
+        List<File> emplacements = new ArrayList<>();
+        emplacements.add(cible(idUtilisateur, nom));
+        emplacements.addAll(autresEmplacements(idUtilisateur, nom));
+        return emplacements;
+    }
+
+    private static List<File> autresEmplacements(int idUtilisateur, String nom) {
+        List<File> emplacements = new ArrayList<>();
+        int cible = racine(idUtilisateur);
+        for (int r = 0; r < racines.size(); r++) {
+            if (r != cible) emplacements.add(new File(dossier(r, idUtilisateur), nom));
+        }
+        emplacements.add(new File(DOSSIER_DATA + nom));
+        return emplacements;
+    }
+
+    /**
+     * Supprime les copies perimees d'un fichier qui vient d'etre ecrit a sa place.
+     */
+    public static void supprimerAutresCopies(int idUtilisateur, String nom) {
+        for (File ailleurs : autresEmplacements(idUtilisateur, nom)) {
+            if (ailleurs.exists() && !ailleurs.delete()) {
+                System.out.println("Donnees : copie perimee " + ailleurs + " non supprimee.");
+            }
+        }
+    }
+
+    /**
+     * Amene un fichier a sa place : copie (synchronisee sur disque) puis renommage, enfin
+     * suppression des autres copies. A appeler sous le verrou qui protege les ecritures du
+     * fichier. Retourne true si le fichier a ete deplace.
+     */
+    static boolean deplacer(int idUtilisateur, String nom) throws IOException {
+        File cible = cible(idUtilisateur, nom);
+        if (cible.exists()) {
+            // Deja a sa place : une copie restante date d'avant la derniere ecriture
+            supprimerAutresCopies(idUtilisateur, nom);
+            return false;
+        }
+        File source = null;
+        for (File ailleurs : autresEmplacements(idUtilisateur, nom)) {
+            if (ailleurs.exists() && (source == null || ailleurs.lastModified() > source.lastModified())) source = ailleurs;
+        }
+        if (source == null) return false;
+
+        cible.getParentFile().mkdirs();
+        File temporaire = new File(cible.getPath() + ".tmp");
+        try (InputStream in = new FileInputStream(source); FileOutputStream out = new FileOutputStream(temporaire)) {
+            in.transferTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            temporaire.delete();
+            throw e;
+        }
+        Files.move(temporaire.toPath(), cible.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        supprimerAutresCopies(idUtilisateur, nom);
+        return true;
+    }
+
+    /**
+     * Execute une ecriture sur les threads de la racine de l'utilisateur et attend son resultat.
+     * Appele depuis un thread de racine, l'ecriture est faite sur place.
+     */
+    public static <T> T executer(int idUtilisateur, TacheDisque<T> tache) throws IOException {
+        if (Thread.currentThread().getName().startsWith("donnees-")) return tache.executer();
+        Future<T> resultat = ecritures[racine(idUtilisateur)].submit(tache::executer);
+        try {
+            return resultat.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ecriture interrompue");
+        }
+    }
+
+    /**
+     * Tous les fichiers "{prefixe}{id}{suffixe}" des utilisateurs, dans toutes les racines et
+     * l'ancien dossier plat ; un utilisateur peut en avoir plusieurs copies pendant un deplacement.
+     */
+    public static Map<Integer, List<File>> fichiers(String prefixe, String suffixe) {
+        Map<Integer, List<File>> fichiers = new HashMap<>();
+        String motif = java.util.regex.Pattern.quote(prefixe) + "\\d+" + java.util.regex.Pattern.quote(suffixe);
+        for (File dossier : dossiers("")) {
+            File[] trouves = dossier.listFiles((d, nom) -> nom.matches(motif));
+            if (trouves == null) continue;
+            for (File fichier : trouves) {
+                String nom = fichier.getName();
+                int id = Integer.parseInt(nom.substring(prefixe.length(), nom.length() - suffixe.length()));
+                fichiers.computeIfAbsent(id, k -> new ArrayList<>()).add(fichier);
+            }
+        }
+        return fichiers;
+    }
+
+    /**
+     * Tous les dossiers de tranche de toutes les racines, et l'ancien dossier plat "data/" ; avec
+     * un nom de sous-dossier ("archives"...), ce sous-dossier de chacun (existant ou non).
+     */
+    public static List<File> dossiers(String sousDossier) {
+        List<File> dossiers = new ArrayList<>();
+        dossiers.add(new File(DOSSIER_DATA));
+        for (String racine : racines) {
+            File[] tranches = new File(racine, SOUS_DOSSIER).listFiles(File::isDirectory);
+            if (tranches == null) continue;
+            for (File tranche : tranches) {
+                File[] sousTranches = tranche.listFiles(File::isDirectory);
+                if (sousTranches != null) dossiers.addAll(List.of(sousTranches));
+            }
+        }
+        if (sousDossier.isEmpty()) return dossiers;
+        List<File> sousDossiers = new ArrayList<>(dossiers.size());
+        for (File dossier : dossiers) sousDossiers.add(new File(dossier, sousDossier));
+        return sousDossiers;
+    }
+
+    /**
+     * Cle de repartition d'un fichier adresse par son contenu : les 20 premiers bits de son hash
+     * (hexadecimal). Le fichier est range comme ceux d'un utilisateur de cet id : environ un
+     * millier de tranches, quel que soit le nombre de fichiers.
+     */
+    public static int cleContenu(String hash) {
+        return Integer.parseInt(hash.substring(0, 5), 16);
+    }
+
+    /**
+     * Nom du fichier de fiches d'un utilisateur.
+     */
+    public static String nomFiches(int idUtilisateur) {
+        return "fiches_" + idUtilisateur + ".dat";
+    }
+}
@@ -0,0 +1,103 @@
+package service;
+
+import java.io.IOException;
+
+/**
+ * Replication des fiches, des comptes, des partages et des blobs des portraits d'une instance
+ * primaire vers des instances suiveuses en lecture seule, par expedition du journal des
+ * modifications.
+ *
+ * Role choisi au demarrage :
+ * - suiveur si "replication.primaire" (hote:port) est renseigne : l'instance suit le primaire
+ *   (voir ReplicationSuiveur) et ne sert que les lectures (voir lectureSeule)
+ * - primaire sinon ; si "replication.port" est renseigne (0 par defaut : pas de replication),
+ *   le journal est tenu et les suiveurs sont acceptes sur ce port (voir ReplicationPrimaire)
+ *
+ * Promotion (POST /api/admin/replication/promote) : le suiveur cesse de suivre, commence une
+ * nouvelle epoque et devient primaire, pret a accepter ses propres suiveurs. L'ancien primaire
+ * n'est pas prevenu : c'est a l'exploitant de l'arreter ou de le repointer comme suiveur.
+ *
+ * Deux instances sur une machine : lancer chacune depuis son propre repertoire (son "data/"),
+ * avec un "port" HTTP et un "replication.port" differents.
+ */
+public class Replication {
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final JournalReplication journal;
+    private final StockBlobs stock;
+    private final GestionPartage gestionPartage;
+    private volatile ReplicationSuiveur suiveur;
+    private volatile ReplicationPrimaire primaire;
+
+    public Replication(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, StockBlobs stock, GestionPartage gestionPartage) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.stock = stock;
+        this.gestionPartage = gestionPartage;
+        this.journal = new JournalReplication(Configuration.entier("replication.journal", 10000));
+        gestionFiche.ajouterEcouteur(journal);
+        gestionUtilisateur.ajouterEcouteurComptes(journal::compteCree);
+        gestionPartage.ajouterEcouteurPartages(journal::partagesModifies);
+
+        String adressePrimaire = Configuration.texte("replication.primaire", "");
+        if (!adressePrimaire.isEmpty()) {
+            suiveur = new ReplicationSuiveur(gestionUtilisateur, gestionFiche, stock, gestionPartage, adressePrimaire);
+        } else {
+            demarrerPrimaire();
+        }
+    }
+
+    /**
+     * Vrai pour une instance suiveuse : les modifications viennent du primaire seulement.
+     */
+    public boolean lectureSeule() {
+        return suiveur != null;
+    }
+
+    /**
+     * Promeut un suiveur en primaire. Retourne false si l'instance est deja primaire.
+     */
+    public synchronized boolean promouvoir() {
+        ReplicationSuiveur ancien = suiveur;
+        if (ancien == null) return false;
+        ancien.arreter();
+        demarrerPrimaire();
+        suiveur = null;
+        System.out.println("Replication : instance promue primaire.");
+        return true;
+    }
+
+    private void demarrerPrimaire() {
+        int port = Configuration.entier("replication.port", 0);
+        if (port <= 0) return;
+        journal.activer();
+        try {
+            primaire = new ReplicationPrimaire(gestionUtilisateur, gestionFiche, journal, stock, gestionPartage,
+                Configuration.texte("replication.adresse", "127.0.0.1"), port);
+        } catch (IOException e) {
+            System.out.println("Replication : port " + port + " indisponible (" + e.getMessage() + "), pas de suiveurs.");
+        }
+    }
+
+    public String etatJSON() {
+        ReplicationSuiveur s = suiveur;
+        if (s != null) {
+            return "{\"role\":\"suiveur\",\"suiveur\":" + s.etatJSON() + "}";
+        }
+        ReplicationPrimaire p = primaire;
+        return "{\"role\":\"primaire\""
+            + ",\"actif\":" + (p != null)
+            + ",\"epoque\":" + journal.epoque()
+            + ",\"entree\":" + journal.tete()
+            + ",\"premiereEntree\":" + journal.premier()
+            + ",\"suiveurs\":" + (p == null ? "[]" : p.suiveursJSON()) + "}";
+    }
+
+    public void arreter() {
+        ReplicationSuiveur s = suiveur;
+        if (s != null) s.arreter();
+        ReplicationPrimaire p = primaire;
+        if (p != null) p.arreter();
+    }
+}
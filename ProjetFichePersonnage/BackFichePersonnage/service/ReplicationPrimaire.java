@@ -0,0 +1,268 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cote primaire de la replication : accepte les suiveurs sur "replication.adresse"
+ * (127.0.0.1 par defaut) et "replication.port", et expedie a chacun le journal
+ * (voir JournalReplication, ProtocoleReplication).
+ *
+ * Un thread d'envoi par suiveur : il reprend apres la derniere entree que le suiveur a
+ * appliquee, ou lui envoie un instantane (tous les comptes et toutes les fiches, comme une
+ * sauvegarde en ligne) s'il vient d'une autre epoque ou a pris plus de retard que l'anneau.
+ * Un second thread lit ses confirmations, qui donnent le retard de chaque suiveur.
+ *
+ * Les blobs des portraits suivent les fiches : chacun est envoye une fois par connexion, juste
+ * avant la premiere entree (ou apres l'instantane) qui y fait reference.
+ */
+public class ReplicationPrimaire {
+
+    private static final int TAILLE_LOT = 256;
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final JournalReplication journal;
+    private final StockBlobs stock;
+    private final GestionPartage gestionPartage;
+    private final ServerSocket serveur;
+    private volatile boolean enMarche = true;
+    private final List<Suiveur> suiveurs = new CopyOnWriteArrayList<>();
+
+    /**
+     * Etat d'un suiveur connecte.
+     */
+    static class Suiveur {
+        final String adresse;
+        final long connexion = System.currentTimeMillis();
+        final Socket socket;
+        volatile long envoye;
+        volatile long confirme;
+        volatile long dateConfirmation;
+        volatile int instantanes;
+        // Blobs deja envoyes sur cette connexion (thread d'envoi seulement)
+        final Set<String> blobsEnvoyes = new HashSet<>();
+
+        Suiveur(Socket socket) {
+            this.socket = socket;
+            this.adresse = socket.getRemoteSocketAddress().toString();
+        }
+    }
+
+    ReplicationPrimaire(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, JournalReplication journal,
+                        StockBlobs stock, GestionPartage gestionPartage, String adresse, int port) throws IOException {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.journal = journal;
+        this.stock = stock;
+        this.gestionPartage = gestionPartage;
+        this.serveur = new ServerSocket();
+        serveur.bind(new InetSocketAddress(InetAddress.getByName(adresse), port));
+        System.out.println("Replication : primaire en attente de suiveurs sur " + adresse + ":" + port);
+
+        Thread thread = new Thread(this::accepter, "replication-primaire");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    List<Suiveur> getSuiveurs() {
+        return suiveurs;
+    }
+
+    void arreter() {
+        enMarche = false;
+        try { serveur.close(); } catch (IOException e) { /* ignore */ }
+        for (Suiveur suiveur : suiveurs) {
+            try { suiveur.socket.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+
+    private void accepter() {
+        while (enMarche) {
+            try {
+                Socket socket = serveur.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> servir(socket), "replication-envoi");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (enMarche) System.out.println("Replication : " + e.getMessage());
+            }
+        }
+    }
+
+    private void servir(Socket socket) {
+        Suiveur suiveur = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            long[] presentation = ProtocoleReplication.lirePresentation(in);
+            suiveur = new Suiveur(socket);
+            suiveurs.add(suiveur);
+            System.out.println("Replication : suiveur " + suiveur.adresse + " connecte (epoque " + presentation[0]
+                + ", entree " + presentation[1] + ").");
+
+            long prochain;
+            long tete = journal.tete();
+            if (presentation[0] == journal.epoque() && presentation[1] + 1 >= journal.premier() && presentation[1] <= tete) {
+                out.writeByte(ProtocoleReplication.REPRISE);
+                out.flush();
+                prochain = presentation[1] + 1;
+                suiveur.confirme = presentation[1];
+            } else {
+                prochain = envoyerInstantane(out, suiveur) + 1;
+            }
+            suiveur.envoye = prochain - 1;
+            lireConfirmations(in, suiveur);
+
+            while (enMarche && !socket.isClosed()) {
+                List<JournalReplication.Entree> lot = journal.depuis(prochain, TAILLE_LOT);
+                if (lot == null) {
+                    System.out.println("Replication : suiveur " + suiveur.adresse + " trop en retard, envoi d'un instantane.");
+                    prochain = envoyerInstantane(out, suiveur) + 1;
+                    continue;
+                }
+                if (lot.isEmpty()) {
+                    journal.attendre(prochain, 1000);
+                    if (journal.tete() < prochain) {
+                        out.writeByte(ProtocoleReplication.BATTEMENT);
+                        out.writeLong(journal.tete());
+                        out.writeLong(System.currentTimeMillis());
+                        out.flush();
+                    }
+                    continue;
+                }
+                for (JournalReplication.Entree entree : lot) {
+                    if (entree.type == JournalReplication.PARTAGES) {
+                        ProtocoleReplication.ecrireEntreePartages(out, entree, gestionPartage.instantane());
+                        continue;
+                    }
+                    if (entree.type == JournalReplication.FICHE) {
+                        envoyerBlob(out, suiveur, StockBlobs.hashDe(entree.fiche.getPortrait().getImagePortrait()));
+                    }
+                    ProtocoleReplication.ecrireEntree(out, entree);
+                }
+                out.flush();
+                prochain = lot.get(lot.size() - 1).numero + 1;
+                suiveur.envoye = prochain - 1;
+            }
+        } catch (IOException e) {
+            if (enMarche) System.out.println("Replication : suiveur " + (suiveur == null ? socket.getRemoteSocketAddress() : suiveur.adresse)
+                + " deconnecte (" + e.getMessage() + ").");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (suiveur != null) suiveurs.remove(suiveur);
+        }
+    }
+
+    /**
+     * Envoie un instantane de tous les comptes et de toutes les fiches ; retourne le numero
+     * d'entree a partir duquel le journal le complete. Le numero est pris avant l'instantane :
+     * une fiche modifiee pendant l'envoi est renvoyee ensuite par le journal.
+     */
+    private long envoyerInstantane(DataOutputStream out, Suiveur suiveur) throws IOException {
+        long numero = journal.tete();
+        long debut = System.currentTimeMillis();
+        List<Utilisateur> comptes = new ArrayList<>(gestionUtilisateur.getUtilisateurs());
+        out.writeByte(ProtocoleReplication.INSTANTANE);
+        out.writeLong(journal.epoque());
+        out.writeLong(numero);
+        out.writeInt(comptes.size());
+        int nbFiches = 0;
+        Set<String> blobs = new TreeSet<>();
+        for (Utilisateur compte : comptes) {
+            ProtocoleReplication.ecrireCompte(out, compte);
+            FichierFiches.Lecture lecture = gestionFiche.instantaneFiches(compte);
+            if (!lecture.integre()) {
+                System.out.println("Replication : fichier de l'utilisateur " + compte.getIdUtilisateur()
+                    + " abime (" + lecture.description() + "), fiches saines seulement.");
+            }
+            out.writeInt(lecture.fiches.size());
+            for (FichePersonnage fiche : lecture.fiches) {
+                ProtocoleReplication.ecrireFiche(out, fiche);
+                String blob = StockBlobs.hashDe(fiche.getPortrait().getImagePortrait());
+                if (blob != null) blobs.add(blob);
+            }
+            nbFiches += lecture.fiches.size();
+        }
+        ProtocoleReplication.ecrirePartages(out, gestionPartage.instantane());
+        out.writeByte(ProtocoleReplication.FIN_INSTANTANE);
+        // Nouveau depart du suiveur : il peut avoir perdu des blobs, tous ceux des fiches sont renvoyes
+        suiveur.blobsEnvoyes.clear();
+        for (String blob : blobs) {
+            envoyerBlob(out, suiveur, blob);
+        }
+        out.flush();
+        suiveur.instantanes++;
+        System.out.println("Replication : instantane envoye a " + suiveur.adresse + " (" + comptes.size() + " compte(s), "
+            + nbFiches + " fiche(s), " + blobs.size() + " blob(s), " + (System.currentTimeMillis() - debut) + " ms).");
+        return numero;
+    }
+
+    /**
+     * Envoie un blob s'il ne l'a pas deja ete sur cette connexion. Un blob deja supprime du stock
+     * est ignore : la fiche qui le referencait a change depuis, l'entree suivante la remplace.
+     */
+    private void envoyerBlob(DataOutputStream out, Suiveur suiveur, String hash) throws IOException {
+        if (hash == null || suiveur.blobsEnvoyes.contains(hash)) return;
+        try {
+            ProtocoleReplication.ecrireBlob(out, hash, stock.fichier(hash));
+        } catch (FileNotFoundException e) {
+            System.out.println("Replication : blob " + hash + " absent du stock, non envoye.");
+            return;
+        }
+        suiveur.blobsEnvoyes.add(hash);
+    }
+
+    private void lireConfirmations(DataInputStream in, Suiveur suiveur) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    suiveur.confirme = in.readLong();
+                    suiveur.dateConfirmation = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                try { suiveur.socket.close(); } catch (IOException ex) { /* ignore */ }
+            }
+        }, "replication-confirmations");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Etat des suiveurs connectes : entree confirmee, retard en entrees et en millisecondes
+     * (age de la plus ancienne entree non confirmee).
+     */
+    String suiveursJSON() {
+        long tete = journal.tete();
+        long maintenant = System.currentTimeMillis();
+        StringBuilder json = new StringBuilder("[");
+        for (Suiveur suiveur : suiveurs) {
+            if (json.length() > 1) json.append(',');
+            long retard = Math.max(0, tete - suiveur.confirme);
+            long date = retard == 0 ? 0 : journal.date(suiveur.confirme + 1);
+            json.append("{\"adresse\":\"").append(JsonUtils.echapper(suiveur.adresse)).append('"')
+                .append(",\"connexion\":").append(suiveur.connexion)
+                .append(",\"entreeEnvoyee\":").append(suiveur.envoye)
+                .append(",\"entreeConfirmee\":").append(suiveur.confirme)
+                .append(",\"retardEntrees\":").append(retard)
+                .append(",\"retardMs\":").append(date == 0 ? 0 : maintenant - date)
+                .append(",\"instantanes\":").append(suiveur.instantanes)
+                .append('}');
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,267 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cote suiveur de la replication : se connecte au primaire "replication.primaire" (hote:port),
+ * applique ses entrees dans l'ordre (voir ProtocoleReplication) et confirme chacune.
+ *
+ * Les fiches et comptes recus passent par GestionFiche et GestionUtilisateur comme des
+ * modifications locales : ecouteurs prevenus (index, historique...) et fichiers reecrits.
+ * Les partages remplacent ceux du suiveur (GestionPartage.remplacer) et les blobs des
+ * portraits sont ranges dans son stock (StockBlobs) : il sert les memes lectures que le primaire.
+ * Les entrees sont idempotentes (etat complet de la fiche) : rejouer une entree deja
+ * appliquee ne change rien.
+ *
+ * La position (epoque et numero de la derniere entree appliquee) est gardee dans
+ * "data/replication.txt" au plus une fois par seconde : apres un redemarrage, le suiveur
+ * reprend la ou il en etait, ou un peu avant. Connexion perdue : nouvel essai apres 1 s,
+ * puis de plus en plus espace (10 s au plus).
+ */
+public class ReplicationSuiveur {
+
+    private static final String FICHIER_POSITION = "data/replication.txt";
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final StockBlobs stock;
+    private final GestionPartage gestionPartage;
+    private final String hote;
+    private final int port;
+    private final Thread thread;
+    private volatile boolean enMarche = true;
+    private volatile Socket socket;
+
+    // Position et compteurs, lus par GET /api/admin/replication
+    private volatile long epoque;
+    private volatile long applique;
+    private volatile long dateApplique;
+    private volatile long tetePrimaire;
+    private volatile boolean connecte;
+    private volatile int instantanes;
+    private volatile long entreesAppliquees;
+    private long epoqueGardee;
+    private long positionGardee;
+    private long dateGardee;
+
+    ReplicationSuiveur(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, StockBlobs stock,
+                       GestionPartage gestionPartage, String primaire) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.stock = stock;
+        this.gestionPartage = gestionPartage;
+        int deuxPoints = primaire.lastIndexOf(':');
+        this.hote = deuxPoints > 0 ? primaire.substring(0, deuxPoints) : "127.0.0.1";
+        this.port = Integer.parseInt(primaire.substring(deuxPoints + 1));
+        lirePosition();
+
+        thread = new Thread(this::suivre, "replication-suiveur");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Arrete de suivre le primaire (promotion, arret du serveur) : au retour, plus aucune
+     * entree n'est appliquee.
+     */
+    void arreter() {
+        enMarche = false;
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (IOException e) { /* ignore */ }
+        }
+        thread.interrupt();
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        garderPosition(true);
+    }
+
+    private void suivre() {
+        long attente = 1000;
+        while (enMarche) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(hote, port), 5000);
+                s.setTcpNoDelay(true);
+                connecte = true;
+                attente = 1000;
+                System.out.println("Replication : connecte au primaire " + hote + ":" + port
+                    + " (epoque " + epoque + ", entree " + applique + ").");
+                recevoir(s);
+            } catch (IOException e) {
+                if (enMarche) System.out.println("Replication : primaire " + hote + ":" + port + " injoignable (" + e.getMessage() + ").");
+            } finally {
+                connecte = false;
+                socket = null;
+            }
+            garderPosition(true);
+            if (!enMarche) return;
+            try {
+                Thread.sleep(attente);
+            } catch (InterruptedException e) {
+                return;
+            }
+            attente = Math.min(attente * 2, 10_000);
+        }
+    }
+
+    private void recevoir(Socket s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        ProtocoleReplication.presenter(out, epoque, applique);
+
+        while (enMarche) {
+            byte message = in.readByte();
+            switch (message) {
+                case ProtocoleReplication.REPRISE:
+                    break;
+                case ProtocoleReplication.INSTANTANE:
+                    recevoirInstantane(in);
+                    confirmer(out);
+                    break;
+                case ProtocoleReplication.ENTREE:
+                    appliquer(ProtocoleReplication.lireEntree(in));
+                    // Fin d'une rafale : une confirmation pour tout le lot
+                    if (in.available() == 0) confirmer(out);
+                    break;
+                case ProtocoleReplication.BLOB:
+                    ProtocoleReplication.lireBlob(in, stock);
+                    break;
+                case ProtocoleReplication.BATTEMENT:
+                    tetePrimaire = in.readLong();
+                    in.readLong(); // date du primaire
+                    confirmer(out);
+                    break;
+                default:
+                    throw new IOException("message de replication inconnu : " + message);
+            }
+        }
+    }
+
+    private void recevoirInstantane(DataInputStream in) throws IOException {
+        long debut = System.currentTimeMillis();
+        long nouvelleEpoque = in.readLong();
+        long numero = in.readLong();
+        int nbComptes = in.readInt();
+        int nbFiches = 0;
+        for (int i = 0; i < nbComptes && enMarche; i++) {
+            Utilisateur compte = ProtocoleReplication.lireCompte(in);
+            int nb = in.readInt();
+            List<FichePersonnage> fiches = new ArrayList<>(nb);
+            for (int j = 0; j < nb; j++) {
+                fiches.add(ProtocoleReplication.lireFiche(in));
+            }
+            gestionUtilisateur.appliquerCompte(compte);
+            gestionFiche.remplacerFichesReplique(gestionUtilisateur.trouverParId(compte.getIdUtilisateur()), fiches);
+            nbFiches += nb;
+        }
+        if (!enMarche) throw new InterruptedIOException("replication arretee pendant un instantane");
+        gestionPartage.remplacer(ProtocoleReplication.lirePartages(in));
+        if (in.readByte() != ProtocoleReplication.FIN_INSTANTANE) throw new IOException("instantane mal termine");
+
+        epoque = nouvelleEpoque;
+        applique = numero;
+        tetePrimaire = numero;
+        dateApplique = System.currentTimeMillis();
+        instantanes++;
+        garderPosition(true);
+        System.out.println("Replication : instantane applique (" + nbComptes + " compte(s), " + nbFiches + " fiche(s), "
+            + (System.currentTimeMillis() - debut) + " ms).");
+    }
+
+    private void appliquer(JournalReplication.Entree entree) {
+        if (entree.type == JournalReplication.COMPTE) {
+            gestionUtilisateur.appliquerCompte(entree.compte);
+        } else if (entree.type == JournalReplication.PARTAGES) {
+            gestionPartage.remplacer(entree.partages);
+        } else {
+            Utilisateur utilisateur = gestionUtilisateur.trouverParId(entree.idUtilisateur);
+            if (utilisateur == null) {
+                System.out.println("Replication : utilisateur " + entree.idUtilisateur + " inconnu, entree " + entree.numero + " ignoree.");
+            } else {
+                gestionFiche.appliquerReplique(utilisateur, entree.idFiche,
+                    entree.type == JournalReplication.FICHE ? entree.fiche : null);
+            }
+        }
+        applique = entree.numero;
+        dateApplique = entree.date;
+        tetePrimaire = Math.max(tetePrimaire, entree.numero);
+        entreesAppliquees++;
+        garderPosition(false);
+    }
+
+    private void confirmer(DataOutputStream out) throws IOException {
+        out.writeLong(applique);
+        out.flush();
+    }
+
+    // ===== Position =====
+
+    private void lirePosition() {
+        File fichier = new File(FICHIER_POSITION);
+        if (!fichier.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fichier))) {
+            String[] parties = reader.readLine().trim().split(" ");
+            epoque = Long.parseLong(parties[0]);
+            applique = Long.parseLong(parties[1]);
+            epoqueGardee = epoque;
+            positionGardee = applique;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Replication : position illisible (" + e.getMessage() + "), instantane complet.");
+            epoque = 0;
+            applique = 0;
+        }
+    }
+
+    /**
+     * Garde la position sur disque si elle a change, au plus une fois par seconde sauf si force.
+     */
+    private synchronized void garderPosition(boolean force) {
+        long maintenant = System.currentTimeMillis();
+        if ((epoque == epoqueGardee && applique == positionGardee) || (!force && maintenant - dateGardee < 1000)) return;
+        File fichier = new File(FICHIER_POSITION);
+        File temporaire = new File(FICHIER_POSITION + ".tmp");
+        fichier.getParentFile().mkdirs();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaire))) {
+            writer.write(epoque + " " + applique);
+            writer.newLine();
+        } catch (IOException e) {
+            System.out.println("Replication : position non gardee (" + e.getMessage() + ").");
+            return;
+        }
+        if (!temporaire.renameTo(fichier)) {
+            fichier.delete();
+            temporaire.renameTo(fichier);
+        }
+        epoqueGardee = epoque;
+        positionGardee = applique;
+        dateGardee = maintenant;
+    }
+
+    /**
+     * Etat du suiveur : entree appliquee, retard en entrees et en millisecondes (age de la
+     * derniere entree appliquee tant que le suiveur est en retard).
+     */
+    String etatJSON() {
+        long retard = Math.max(0, tetePrimaire - applique);
+        return "{\"primaire\":\"" + JsonUtils.echapper(hote + ":" + port) + "\""
+            + ",\"connecte\":" + connecte
+            + ",\"epoque\":" + epoque
+            + ",\"entreeAppliquee\":" + applique
+            + ",\"entreePrimaire\":" + tetePrimaire
+            + ",\"retardEntrees\":" + retard
+            + ",\"retardMs\":" + (retard == 0 || dateApplique == 0 ? 0 : System.currentTimeMillis() - dateApplique)
+            + ",\"entreesAppliquees\":" + entreesAppliquees
+            + ",\"instantanes\":" + instantanes + "}";
+    }
+}
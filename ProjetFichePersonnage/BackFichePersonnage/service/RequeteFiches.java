@@ -0,0 +1,150 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requete de filtrage des fiches sur leurs statistiques, lue depuis un petit langage :
+ *
+ *   force >= 15 et agilite < 10
+ *   points de vie > 0 and nom ~ gob
+ *
+ * - une condition : champ, operateur, valeur ; les conditions sont reliees par "et" / "and"
+ * - operateurs : = (ou ==), !=, <, <=, >, >= et ~ (le nom contient)
+ * - champ : nom d'une statistique (sans tenir compte des majuscules ni des accents, peut
+ *   contenir des espaces, ou etre entre guillemets), ou un champ de la fiche : nom, id, version
+ *
+ * Le tri se fait sur une statistique ou un champ de la fiche ; les fiches sans la
+ * statistique de tri sont placees a la fin.
+ */
+public class RequeteFiches {
+
+    static final String CHAMP_NOM = "nom";
+    static final String CHAMP_ID = "id";
+    static final String CHAMP_VERSION = "version";
+
+    /**
+     * Une condition "champ operateur valeur".
+     */
+    public static class Condition {
+        final String champ;
+        final String operateur;
+        final long nombre;
+        final String texte;
+
+        Condition(String champ, String operateur, long nombre, String texte) {
+            this.champ = champ;
+            this.operateur = operateur;
+            this.nombre = nombre;
+            this.texte = texte;
+        }
+
+        /** Condition sur un champ de la fiche plutot que sur une statistique */
+        boolean surFiche() {
+            return estChampFiche(champ);
+        }
+
+        boolean verifier(long valeur) {
+            switch (operateur) {
+                case "=": return valeur == nombre;
+                case "!=": return valeur != nombre;
+                case "<": return valeur < nombre;
+                case "<=": return valeur <= nombre;
+                case ">": return valeur > nombre;
+                case ">=": return valeur >= nombre;
+                default: return false;
+            }
+        }
+
+        boolean verifier(String valeur) {
+            String plie = IndexRecherche.plier(valeur);
+            switch (operateur) {
+                case "=": return plie.equals(texte);
+                case "!=": return !plie.equals(texte);
+                case "~": return plie.contains(texte);
+                default: return false;
+            }
+        }
+    }
+
+    final List<Condition> conditions;
+    final String tri;
+    final boolean decroissant;
+
+    RequeteFiches(List<Condition> conditions, String tri, boolean decroissant) {
+        this.conditions = conditions;
+        this.tri = tri;
+        this.decroissant = decroissant;
+    }
+
+    /**
+     * Lit une requete. Leve IllegalArgumentException si elle est mal formee.
+     *
+     * @param filtre      conditions (peut etre vide : toutes les fiches)
+     * @param tri         champ de tri (null : par id)
+     * @param decroissant ordre du tri
+     */
+    public static RequeteFiches lire(String filtre, String tri, boolean decroissant) {
+        List<Condition> conditions = new ArrayList<>();
+        if (filtre != null && !filtre.isBlank()) {
+            for (String clause : filtre.split("(?i)\\s+(et|and)\\s+|\\s*&&\\s*")) {
+                conditions.add(lireCondition(clause.trim()));
+            }
+        }
+        String champTri = tri == null || tri.isBlank() ? null : cle(tri);
+        return new RequeteFiches(conditions, champTri, decroissant);
+    }
+
+    private static Condition lireCondition(String clause) {
+        // Premier operateur trouve, les operateurs a deux caracteres d'abord
+        int position = -1;
+        String operateur = null;
+        for (int i = 0; i < clause.length() && operateur == null; i++) {
+            for (String op : new String[]{"==", "!=", "<=", ">=", "<", ">", "=", "~"}) {
+                if (clause.startsWith(op, i)) {
+                    position = i;
+                    operateur = op;
+                    break;
+                }
+            }
+        }
+        if (operateur == null) throw new IllegalArgumentException("operateur manquant dans \"" + clause + "\"");
+
+        String champ = cle(sansGuillemets(clause.substring(0, position).trim()));
+        String valeur = sansGuillemets(clause.substring(position + operateur.length()).trim());
+        if (operateur.equals("==")) operateur = "=";
+        if (champ.isEmpty()) throw new IllegalArgumentException("champ manquant dans \"" + clause + "\"");
+        if (valeur.isEmpty()) throw new IllegalArgumentException("valeur manquante dans \"" + clause + "\"");
+
+        if (champ.equals(CHAMP_NOM)) {
+            if (!operateur.equals("=") && !operateur.equals("!=") && !operateur.equals("~")) {
+                throw new IllegalArgumentException("operateur " + operateur + " impossible sur nom");
+            }
+            return new Condition(champ, operateur, 0, IndexRecherche.plier(valeur));
+        }
+        if (operateur.equals("~")) throw new IllegalArgumentException("~ ne s'applique qu'a nom");
+        try {
+            return new Condition(champ, operateur, Long.parseLong(valeur), null);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("valeur entiere attendue pour " + champ);
+        }
+    }
+
+    private static String sansGuillemets(String texte) {
+        if (texte.length() >= 2 && texte.startsWith("\"") && texte.endsWith("\"")) {
+            return texte.substring(1, texte.length() - 1);
+        }
+        return texte;
+    }
+
+    /**
+     * Cle d'un nom de statistique : minuscules, sans accents, espaces normalises.
+     */
+    static String cle(String nom) {
+        return String.join(" ", IndexRecherche.plier(nom).trim().split("[^\\p{L}\\p{N}]+")).trim();
+    }
+
+    static boolean estChampFiche(String champ) {
+        return champ.equals(CHAMP_NOM) || champ.equals(CHAMP_ID) || champ.equals(CHAMP_VERSION);
+    }
+}
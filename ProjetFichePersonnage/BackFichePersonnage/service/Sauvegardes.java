@@ -0,0 +1,569 @@
+package service;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+/**
+ * Sauvegardes en ligne, coherentes et incrementales, des comptes et des fiches.
+ *
+ * Instantane sans bloquer les ecritures : les comptes et les fiches d'un utilisateur sont des
+ * listes copiees a l'ecriture, lues d'un coup ; un utilisateur dont les fiches ne sont pas en
+ * memoire est lu dans son dernier fichier, remplace par renommage (voir GestionFiche.instantaneFiches).
+ * Chaque utilisateur est donc sauvegarde dans un etat qui a existe ; aucune operation ne
+ * porte sur les fiches de plusieurs utilisateurs a la fois.
+ *
+ * Stockage dans "sauvegarde.dossier" (par defaut "sauvegardes/"), un dossier par sauvegarde
+ * "sauvegarde_{numero}", ecrit a cote puis renomme une fois complet :
+ * - utilisateurs.txt : les comptes, au format de "data/utilisateurs.txt"
+ * - partages.txt : les partages de fiches, au format de "data/partages.txt"
+ * - fiches.dat : les fiches nouvelles ou modifiees depuis la sauvegarde precedente (autre version,
+ *   ou autre idVersion : un id de fiche peut etre reattribue), chacune serialisee seule et
+ *   chiffree comme les fiches (voir GestionSecurite)
+ * - manifest.txt : chaque fiche sauvegardee (utilisateur, id, version, sauvegarde qui la contient,
+ *   position, longueur, CRC32C, idVersion), chaque blob de portrait reference (hash, taille), la
+ *   somme des comptes et des partages, et la somme du manifeste lui-meme
+ *
+ * Une fiche inchangee renvoie a la sauvegarde qui la contient deja. Toutes les
+ * "sauvegarde.complete" sauvegardes (10 par defaut), une sauvegarde complete recopie toutes les
+ * fiches : les sauvegardes plus anciennes qu'elle peuvent alors etre supprimees.
+ *
+ * Les blobs des portraits (voir StockBlobs) sont copies dans "blobs/" a cote des sauvegardes,
+ * sous leur hash comme dans le stock : chacun n'est copie qu'une fois, par la premiere sauvegarde
+ * qui le reference, et sert a toutes les suivantes. Ce dossier est partage par toutes les
+ * sauvegardes et ne doit pas etre supprime avec elles.
+ *
+ * Declenchement : POST /api/admin/backup, et toutes les "sauvegarde.intervalle" secondes (0 : jamais,
+ * par defaut). Restauration hors ligne : java Main restaurer [numero] (voir restaurer).
+ */
+public class Sauvegardes {
+
+    private static final String PREFIXE = "sauvegarde_";
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final GestionSecurite securite;
+    private final GestionPartage gestionPartage;
+    private final StockBlobs stock;
+    private final File dossier;
+    private final int completeTous;
+
+    private final AtomicBoolean enCours = new AtomicBoolean();
+    private volatile Resultat derniere;
+    private final ScheduledExecutorService sauvegarde = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sauvegardes");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    public Sauvegardes(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, GestionPartage gestionPartage, StockBlobs stock) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.securite = gestionFiche.getSecurite();
+        this.gestionPartage = gestionPartage;
+        this.stock = stock;
+        this.dossier = dossierSauvegardes();
+        this.completeTous = Math.max(1, Configuration.entier("sauvegarde.complete", 10));
+        int intervalle = Configuration.entier("sauvegarde.intervalle", 0);
+        if (intervalle > 0) {
+            sauvegarde.scheduleWithFixedDelay(this::lancer, intervalle, intervalle, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Compte rendu d'une sauvegarde terminee.
+     */
+    public static class Resultat {
+        public final int numero;
+        public final long date;
+        public final boolean complete;
+        public final int fiches;
+        public final int copiees;
+        public final long octets;
+        public final int blobs;
+        public final int blobsCopies;
+        public final long dureeMs;
+
+        Resultat(int numero, long date, boolean complete, int fiches, int copiees, long octets, int blobs, int blobsCopies, long dureeMs) {
+            this.numero = numero;
+            this.date = date;
+            this.complete = complete;
+            this.fiches = fiches;
+            this.copiees = copiees;
+            this.octets = octets;
+            this.blobs = blobs;
+            this.blobsCopies = blobsCopies;
+            this.dureeMs = dureeMs;
+        }
+    }
+
+    /**
+     * Lance une sauvegarde en fond. Retourne false si une sauvegarde est deja en cours.
+     */
+    public boolean lancer() {
+        if (!enCours.compareAndSet(false, true)) return false;
+        try {
+            sauvegarde.execute(() -> {
+                try {
+                    derniere = sauvegarder();
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Erreur de sauvegarde : " + e.getMessage());
+                } finally {
+                    enCours.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            enCours.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean enCours() {
+        return enCours.get();
+    }
+
+    public Resultat derniere() {
+        return derniere;
+    }
+
+    public void arreter() {
+        sauvegarde.shutdown();
+        try {
+            sauvegarde.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===== Sauvegarde =====
+
+    private Resultat sauvegarder() throws IOException {
+        long debut = System.currentTimeMillis();
+        dossier.mkdirs();
+        supprimerIncompletes(dossier);
+
+        Manifeste precedente = null;
+        Integer dernier = derniereSauvegarde(dossier);
+        if (dernier != null) precedente = Manifeste.lire(dossierSauvegarde(dossier, dernier));
+
+        Manifeste manifeste = new Manifeste();
+        manifeste.numero = dernier == null ? 1 : dernier + 1;
+        manifeste.date = debut;
+        manifeste.base = precedente == null || manifeste.numero - precedente.base >= completeTous
+            ? manifeste.numero : precedente.base;
+        boolean complete = manifeste.base == manifeste.numero;
+        Map<String, Entree> connues = new HashMap<>();
+        if (!complete) {
+            for (Entree e : precedente.entrees) connues.put(e.idUtilisateur + ":" + e.idFiche, e);
+        }
+
+        File temporaire = new File(dossier, PREFIXE + manifeste.numero + ".tmp");
+        temporaire.mkdirs();
+
+        List<Utilisateur> comptes = new ArrayList<>(gestionUtilisateur.getUtilisateurs());
+        ByteArrayOutputStream octetsComptes = new ByteArrayOutputStream();
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(octetsComptes))) {
+            GestionUtilisateur.ecrireUtilisateurs(writer, comptes);
+        }
+        ecrireFichier(new File(temporaire, "utilisateurs.txt"), octetsComptes.toByteArray());
+        manifeste.sommeUtilisateurs = somme(octetsComptes.toByteArray());
+
+        byte[] partages = gestionPartage.instantane();
+        ecrireFichier(new File(temporaire, "partages.txt"), partages);
+        manifeste.sommePartages = somme(partages);
+
+        // Blobs references par les fiches sauvegardees
+        Set<String> blobs = new TreeSet<>();
+        int copiees = 0;
+        long octetsCopies;
+        File fichierFiches = new File(temporaire, "fiches.dat");
+        try (FileOutputStream sortie = new FileOutputStream(fichierFiches);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sortie))) {
+            for (Utilisateur utilisateur : comptes) {
+                int idUtilisateur = utilisateur.getIdUtilisateur();
+                FichierFiches.Lecture lecture = gestionFiche.instantaneFiches(utilisateur);
+                for (FichePersonnage fiche : lecture.fiches) {
+                    String blob = StockBlobs.hashDe(fiche.getPortrait().getImagePortrait());
+                    if (blob != null) blobs.add(blob);
+                    Entree connue = connues.remove(idUtilisateur + ":" + fiche.getIdFichePersonnage());
+                    if (connue != null && connue.version == fiche.getVersion() && connue.idVersion == fiche.getIdVersion()) {
+                        manifeste.entrees.add(connue);
+                        continue;
+                    }
+                    // Fiche archivee : la sauvegarde garde la fiche complete
+                    FichePersonnage entiere = fiche.estArchivee() ? fiche.rehydrater() : fiche;
+                    byte[] octets = serialiser(entiere, idUtilisateur);
+                    manifeste.entrees.add(new Entree(idUtilisateur, fiche.getIdFichePersonnage(), fiche.getVersion(),
+                        manifeste.numero, out.size(), octets.length, somme(octets), fiche.getIdVersion()));
+                    out.write(octets);
+                    copiees++;
+                }
+                if (!lecture.integre()) {
+                    // Fichier abime : les fiches illisibles gardent leur copie de la sauvegarde precedente
+                    // (et, faute de savoir lesquels elles referencent, tous les blobs de celle-ci)
+                    System.out.println("Sauvegarde : fichier de l'utilisateur " + idUtilisateur + " abime ("
+                        + lecture.description() + "), copies precedentes gardees.");
+                    if (precedente != null) blobs.addAll(precedente.blobs.keySet());
+                    for (Map.Entry<String, Entree> entree : new ArrayList<>(connues.entrySet())) {
+                        if (entree.getValue().idUtilisateur == idUtilisateur) {
+                            manifeste.entrees.add(entree.getValue());
+                            connues.remove(entree.getKey());
+                        }
+                    }
+                }
+            }
+            out.flush();
+            sortie.getFD().sync();
+            octetsCopies = out.size();
+        }
+
+        int blobsCopies = 0;
+        for (String hash : blobs) {
+            File copie = new File(dossierBlobs(dossier), StockBlobs.chemin(hash));
+            try {
+                if (!copie.exists()) {
+                    copierFichier(stock.fichier(hash), copie);
+                    blobsCopies++;
+                }
+                manifeste.blobs.put(hash, copie.length());
+            } catch (IOException e) {
+                // Blob supprime ou illisible dans le stock : la fiche restauree n'aura pas son portrait
+                System.out.println("Sauvegarde : blob " + hash + " non copie : " + e.getMessage());
+            }
+        }
+
+        ecrireFichier(new File(temporaire, "manifest.txt"), manifeste.texte().getBytes(StandardCharsets.UTF_8));
+        File finale = dossierSauvegarde(dossier, manifeste.numero);
+        if (!temporaire.renameTo(finale)) throw new IOException("renommage de " + temporaire + " impossible");
+
+        long duree = System.currentTimeMillis() - debut;
+        System.out.println("Sauvegarde " + manifeste.numero + (complete ? " (complete)" : "") + " : "
+            + manifeste.entrees.size() + " fiche(s), " + copiees + " copiee(s), " + octetsCopies + " octets, "
+            + manifeste.blobs.size() + " blob(s) dont " + blobsCopies + " copie(s), " + duree + " ms.");
+        return new Resultat(manifeste.numero, debut, complete, manifeste.entrees.size(), copiees, octetsCopies,
+            manifeste.blobs.size(), blobsCopies, duree);
+    }
+
+    private byte[] serialiser(FichePersonnage fiche, int idUtilisateur) throws IOException {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(securite.chiffrer(octets, idUtilisateur))) {
+            oos.writeObject(fiche);
+        }
+        return octets.toByteArray();
+    }
+
+    private static void ecrireFichier(File fichier, byte[] octets) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(fichier)) {
+            out.write(octets);
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Copie un fichier (synchronisee sur disque) puis la renomme a sa place : une copie
+     * interrompue ne laisse jamais un fichier incomplet a l'adresse d'un blob.
+     */
+    private static void copierFichier(File source, File cible) throws IOException {
+        cible.getParentFile().mkdirs();
+        File temporaire = new File(cible.getPath() + ".tmp");
+        try (InputStream in = new FileInputStream(source); FileOutputStream out = new FileOutputStream(temporaire)) {
+            in.transferTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            temporaire.delete();
+            throw e;
+        }
+        Files.move(temporaire.toPath(), cible.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int somme(byte[] octets) {
+        CRC32C crc = new CRC32C();
+        crc.update(octets);
+        return (int) crc.getValue();
+    }
+
+    // ===== Dossiers =====
+
+    private static File dossierSauvegardes() {
+        return new File(Configuration.texte("sauvegarde.dossier", "sauvegardes"));
+    }
+
+    private static File dossierBlobs(File dossier) {
+        return new File(dossier, "blobs");
+    }
+
+    private static File dossierSauvegarde(File dossier, int numero) {
+        return new File(dossier, PREFIXE + numero);
+    }
+
+    /**
+     * Numero de la derniere sauvegarde complete sur disque (les dossiers .tmp ne comptent pas), null si aucune.
+     */
+    private static Integer derniereSauvegarde(File dossier) {
+        File[] dossiers = dossier.listFiles((d, nom) -> nom.matches(PREFIXE + "\\d+"));
+        if (dossiers == null) return null;
+        Integer dernier = null;
+        for (File d : dossiers) {
+            if (!new File(d, "manifest.txt").exists()) continue;
+            int numero = Integer.parseInt(d.getName().substring(PREFIXE.length()));
+            if (dernier == null || numero > dernier) dernier = numero;
+        }
+        return dernier;
+    }
+
+    private static void supprimerIncompletes(File dossier) {
+        File[] dossiers = dossier.listFiles((d, nom) -> nom.startsWith(PREFIXE) && nom.endsWith(".tmp"));
+        if (dossiers == null) return;
+        for (File d : dossiers) {
+            File[] fichiers = d.listFiles();
+            if (fichiers != null) for (File f : fichiers) f.delete();
+            d.delete();
+        }
+    }
+
+    // ===== Manifeste =====
+
+    /**
+     * Une fiche d'une sauvegarde : ou la trouver, sa somme, et l'idVersion de la fiche (0 dans
+     * un manifeste anterieur, comme pour une fiche qui n'a pas change depuis).
+     */
+    static class Entree {
+        final int idUtilisateur;
+        final int idFiche;
+        final long version;
+        final int sauvegarde;
+        final long position;
+        final int longueur;
+        final int somme;
+        final long idVersion;
+
+        Entree(int idUtilisateur, int idFiche, long version, int sauvegarde, long position, int longueur, int somme, long idVersion) {
+            this.idUtilisateur = idUtilisateur;
+            this.idFiche = idFiche;
+            this.version = version;
+            this.sauvegarde = sauvegarde;
+            this.position = position;
+            this.longueur = longueur;
+            this.somme = somme;
+            this.idVersion = idVersion;
+        }
+    }
+
+    /**
+     * Manifeste d'une sauvegarde, en texte : une ligne par information, "fiche ..." par fiche,
+     * et en derniere ligne "somme" suivie du CRC32C de tout ce qui precede.
+     */
+    static class Manifeste {
+        int numero;
+        long date;
+        // Sauvegarde complete dont part cette chaine d'incrementales (elle-meme si complete)
+        int base;
+        int sommeUtilisateurs;
+        // Null : manifeste anterieur, sans partages
+        Integer sommePartages;
+        final List<Entree> entrees = new ArrayList<>();
+        // Hash -> taille des blobs references
+        final Map<String, Long> blobs = new TreeMap<>();
+
+        String texte() {
+            StringBuilder texte = new StringBuilder();
+            texte.append("sauvegarde ").append(numero).append('\n');
+            texte.append("date ").append(date).append('\n');
+            texte.append("base ").append(base).append('\n');
+            texte.append("utilisateurs ").append(Integer.toHexString(sommeUtilisateurs)).append('\n');
+            if (sommePartages != null) texte.append("partages ").append(Integer.toHexString(sommePartages)).append('\n');
+            for (Entree e : entrees) {
+                texte.append("fiche ").append(e.idUtilisateur).append(' ').append(e.idFiche).append(' ')
+                    .append(e.version).append(' ').append(e.sauvegarde).append(' ').append(e.position).append(' ')
+                    .append(e.longueur).append(' ').append(Integer.toHexString(e.somme)).append(' ')
+                    .append(Long.toHexString(e.idVersion)).append('\n');
+            }
+            for (Map.Entry<String, Long> blob : blobs.entrySet()) {
+                texte.append("blob ").append(blob.getKey()).append(' ').append(blob.getValue()).append('\n');
+            }
+            String corps = texte.toString();
+            return corps + "somme " + Integer.toHexString(somme(corps.getBytes(StandardCharsets.UTF_8))) + "\n";
+        }
+
+        /**
+         * Lit et verifie le manifeste d'une sauvegarde ; IOException s'il est abime.
+         */
+        static Manifeste lire(File dossierSauvegarde) throws IOException {
+            File fichier = new File(dossierSauvegarde, "manifest.txt");
+            String texte;
+            try (InputStream in = new FileInputStream(fichier)) {
+                texte = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            int fin = texte.lastIndexOf("somme ");
+            if (fin < 0) throw new IOException(fichier + " incomplet");
+            String corps = texte.substring(0, fin);
+            if (!texte.substring(fin + 6).trim().equals(Integer.toHexString(somme(corps.getBytes(StandardCharsets.UTF_8))))) {
+                throw new IOException(fichier + " abime (somme fausse)");
+            }
+
+            Manifeste manifeste = new Manifeste();
+            try {
+                for (String ligne : corps.split("\n")) {
+                    String[] p = ligne.split(" ");
+                    switch (p[0]) {
+                        case "sauvegarde": manifeste.numero = Integer.parseInt(p[1]); break;
+                        case "date": manifeste.date = Long.parseLong(p[1]); break;
+                        case "base": manifeste.base = Integer.parseInt(p[1]); break;
+                        case "utilisateurs": manifeste.sommeUtilisateurs = Integer.parseUnsignedInt(p[1], 16); break;
+                        case "partages": manifeste.sommePartages = Integer.parseUnsignedInt(p[1], 16); break;
+                        case "fiche":
+                            manifeste.entrees.add(new Entree(Integer.parseInt(p[1]), Integer.parseInt(p[2]), Long.parseLong(p[3]),
+                                Integer.parseInt(p[4]), Long.parseLong(p[5]), Integer.parseInt(p[6]), Integer.parseUnsignedInt(p[7], 16),
+                                p.length > 8 ? Long.parseUnsignedLong(p[8], 16) : 0));
+                            break;
+                        case "blob":
+                            if (!StockBlobs.hashValide(p[1])) throw new IOException("blob invalide : " + p[1]);
+                            manifeste.blobs.put(p[1], Long.parseLong(p[2]));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(fichier + " illisible : " + e.getMessage());
+            }
+            return manifeste;
+        }
+    }
+
+    // ===== Restauration =====
+
+    /**
+     * Restaure une sauvegarde (la derniere si numero est null) dans "data/", qui doit etre vide :
+     * comptes, partages, fiches et blobs des portraits ; les index, l'historique et les archives
+     * repartent de zero. Toutes les sommes (manifeste, comptes, partages, chaque fiche, hash de
+     * chaque blob) sont verifiees avant d'ecrire quoi que ce soit ; avec verifierSeulement, rien
+     * n'est ecrit. Retourne false si la sauvegarde est abimee ou la restauration impossible.
+     */
+    public static boolean restaurer(Integer numero, boolean verifierSeulement) {
+        File dossier = dossierSauvegardes();
+        if (numero == null) numero = derniereSauvegarde(dossier);
+        if (numero == null) {
+            System.out.println("Aucune sauvegarde dans " + dossier + ".");
+            return false;
+        }
+
+        // 1. Verification de toutes les sommes
+        Manifeste manifeste;
+        byte[] comptes;
+        byte[] partages = null;
+        Map<Integer, List<Object[]>> fichesParUtilisateur = new TreeMap<>();
+        try {
+            manifeste = Manifeste.lire(dossierSauvegarde(dossier, numero));
+            try (InputStream in = new FileInputStream(new File(dossierSauvegarde(dossier, numero), "utilisateurs.txt"))) {
+                comptes = in.readAllBytes();
+            }
+            if (somme(comptes) != manifeste.sommeUtilisateurs) throw new IOException("comptes abimes (somme fausse)");
+            if (manifeste.sommePartages != null) {
+                try (InputStream in = new FileInputStream(new File(dossierSauvegarde(dossier, numero), "partages.txt"))) {
+                    partages = in.readAllBytes();
+                }
+                if (somme(partages) != manifeste.sommePartages) throw new IOException("partages abimes (somme fausse)");
+            }
+            for (Map.Entry<String, Long> blob : manifeste.blobs.entrySet()) {
+                File copie = new File(dossierBlobs(dossier), StockBlobs.chemin(blob.getKey()));
+                if (!copie.isFile() || copie.length() != blob.getValue() || !StockBlobs.hashFichier(copie).equals(blob.getKey())) {
+                    throw new IOException("blob " + blob.getKey() + " absent ou abime");
+                }
+            }
+
+            Map<Integer, RandomAccessFile> fichiers = new LinkedHashMap<>();
+            try {
+                for (Entree e : manifeste.entrees) {
+                    RandomAccessFile in = fichiers.get(e.sauvegarde);
+                    if (in == null) {
+                        in = new RandomAccessFile(new File(dossierSauvegarde(dossier, e.sauvegarde), "fiches.dat"), "r");
+                        fichiers.put(e.sauvegarde, in);
+                    }
+                    byte[] octets = new byte[e.longueur];
+                    in.seek(e.position);
+                    in.readFully(octets);
+                    if (somme(octets) != e.somme) {
+                        throw new IOException("fiche " + e.idFiche + " de l'utilisateur " + e.idUtilisateur
+                            + " abimee dans la sauvegarde " + e.sauvegarde + " (somme fausse)");
+                    }
+                    fichesParUtilisateur.computeIfAbsent(e.idUtilisateur, k -> new ArrayList<>()).add(new Object[]{ e, octets });
+                }
+            } finally {
+                for (RandomAccessFile in : fichiers.values()) in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Sauvegarde " + numero + " invalide : " + e.getMessage());
+            return false;
+        }
+        System.out.println("Sauvegarde " + numero + " verifiee : " + manifeste.entrees.size() + " fiche(s), "
+            + manifeste.blobs.size() + " blob(s), sommes correctes.");
+        if (verifierSeulement) return true;
+
+        // 2. Ecriture dans data/, vide
+        File data = new File("data");
+        String[] existants = data.list();
+        if (existants != null && existants.length > 0) {
+            System.out.println("Restauration impossible : " + data + "/ n'est pas vide (le renommer avant de restaurer).");
+            return false;
+        }
+        data.mkdirs();
+        try {
+            ecrireFichier(new File(data, "utilisateurs.txt"), comptes);
+            if (partages != null) ecrireFichier(new File(data, "partages.txt"), partages);
+            for (String hash : manifeste.blobs.keySet()) {
+                copierFichier(new File(dossierBlobs(dossier), StockBlobs.chemin(hash)), new File(data, "blobs/" + StockBlobs.chemin(hash)));
+            }
+            GestionUtilisateur gestionUtilisateur = new GestionUtilisateur();
+            GestionSecurite securite = new GestionSecurite(gestionUtilisateur);
+            for (Map.Entry<Integer, List<Object[]>> entree : fichesParUtilisateur.entrySet()) {
+                int idUtilisateur = entree.getKey();
+                List<FichePersonnage> fiches = new ArrayList<>();
+                for (Object[] paire : entree.getValue()) {
+                    Entree e = (Entree) paire[0];
+                    try (ObjectInputStream ois = new ObjectInputStream(securite.dechiffrer(new ByteArrayInputStream((byte[]) paire[1]), idUtilisateur))) {
+                        FichePersonnage fiche = (FichePersonnage) ois.readObject();
+                        if (fiche.getIdFichePersonnage() != e.idFiche || fiche.getVersion() != e.version) {
+                            throw new IOException("fiche " + e.idFiche + " : contenu different du manifeste");
+                        }
+                        fiches.add(fiche);
+                    } catch (ClassNotFoundException ex) {
+                        throw new IOException("fiche " + e.idFiche + " illisible : " + ex.getMessage());
+                    }
+                }
+                fiches.sort(java.util.Comparator.comparingInt(FichePersonnage::getIdFichePersonnage));
+                File fichier = RepartitionDonnees.cible(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur));
+                fichier.getParentFile().mkdirs();
+                try (OutputStream out = new BufferedOutputStream(securite.chiffrer(new FileOutputStream(fichier), idUtilisateur))) {
+                    FichierFiches.ecrire(out, fiches);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Restauration interrompue : " + e.getMessage() + " (vider " + data + "/ avant de recommencer).");
+            return false;
+        }
+        System.out.println("Sauvegarde " + numero + " restauree dans " + data + "/ : "
+            + fichesParUtilisateur.size() + " utilisateur(s), " + manifeste.entrees.size() + " fiche(s), "
+            + manifeste.blobs.size() + " blob(s).");
+        return true;
+    }
+}
@@ -1,35 +1,126 @@
 package service;
 
 import service.route.Route;
+import service.route.RouteAnalytique;
 import service.route.RouteAuth;
+import service.route.RouteBlobs;
+import service.route.RouteCollaboration;
+import service.route.RouteEvenements;
 import service.route.RouteFiches;
+import service.route.RouteFichiers;
+import service.route.RouteHistorique;
+import service.route.RouteIntegrite;
+import service.route.RouteFlux;
+import service.route.RouteRecherche;
+import service.route.RouteReplication;
+import service.route.RouteSauvegardes;
+import service.route.RouteSuggestions;
+import service.route.RouteSync;
+import service.route.RouteTemplates;
+import service.route.RouteTeleversement;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ServeurAPI {
 
     private ServerSocket serverSocket;
     private boolean enMarche;
     private Route[] routes;
+    private RouteFlux[] routesFlux;
+    private RouteTeleversement[] routesTeleversement;
+    private static final int TAILLE_MAX_CORPS_TEXTE = 16 * 1024 * 1024;
+    private DiffusionEvenements diffusion;
+    private IndexRecherche indexRecherche;
+    private Analytique analytique;
+    private SimulateurJets simulateur;
+    private StockBlobs stockBlobs;
+    private Miniatures miniatures;
+    private HistoriqueFiches historique;
+    private ArchivesFiches archives;
+    private VerificationIntegrite verificationIntegrite;
+    private Sauvegardes sauvegardes;
+    private Replication replication;
+    private ReequilibrageDonnees reequilibrage;
+    // Les requetes sont traitees en parallele : une fiche verrouillee ne bloque pas les autres
+    private ExecutorService executeur;
 
     public ServeurAPI(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche) {
+        // En premier : les fiches archivees ne sont lisibles qu'une fois les archives ouvertes
+        archives = new ArchivesFiches(gestionUtilisateur, gestionFiche);
+        JournalModifications journal = new JournalModifications();
+        gestionFiche.ajouterEcouteur(journal);
+        diffusion = new DiffusionEvenements();
+        gestionFiche.ajouterEcouteur(diffusion);
+        GestionPartage gestionPartage = new GestionPartage();
+        gestionFiche.ajouterEcouteur(gestionPartage);
+        indexRecherche = new IndexRecherche();
+        gestionFiche.ajouterEcouteur(indexRecherche);
+        IndexStatistiques indexStatistiques = new IndexStatistiques();
+        gestionFiche.ajouterEcouteur(indexStatistiques);
+        IndexSuggestions indexSuggestions = new IndexSuggestions();
+        gestionFiche.ajouterEcouteur(indexSuggestions);
+        analytique = new Analytique(gestionUtilisateur, gestionFiche.getSecurite());
+        simulateur = new SimulateurJets();
+        stockBlobs = new StockBlobs(gestionFiche.getSecurite());
+        gestionFiche.ajouterEcouteur(stockBlobs);
+        miniatures = new Miniatures(stockBlobs);
+        historique = new HistoriqueFiches(gestionFiche.getSecurite());
+        gestionFiche.ajouterEcouteur(historique);
+        stockBlobs.proteger(historique::referenceBlob);
+        gestionFiche.ajouterSourceReparation(historique);
+        verificationIntegrite = new VerificationIntegrite(gestionUtilisateur, gestionFiche);
+        sauvegardes = new Sauvegardes(gestionUtilisateur, gestionFiche, gestionPartage, stockBlobs);
+        replication = new Replication(gestionUtilisateur, gestionFiche, stockBlobs, gestionPartage);
+        reequilibrage = new ReequilibrageDonnees(gestionUtilisateur, gestionFiche);
+        RouteCollaboration collaboration = new RouteCollaboration(gestionUtilisateur, gestionFiche, gestionPartage,
+            new EditionCollaborative(gestionFiche, diffusion), diffusion);
+
         this.routes = new Route[]{
             new RouteAuth(gestionUtilisateur, gestionFiche),
-            new RouteFiches(gestionUtilisateur, gestionFiche)
+            new RouteRecherche(gestionUtilisateur, indexRecherche, indexStatistiques),
+            new RouteHistorique(gestionUtilisateur, gestionFiche, historique),
+            new RouteFiches(gestionUtilisateur, gestionFiche, simulateur, stockBlobs),
+            new RouteSync(gestionUtilisateur, journal),
+            new RouteSuggestions(gestionUtilisateur, indexSuggestions),
+            new RouteAnalytique(gestionUtilisateur, analytique),
+            new RouteIntegrite(gestionUtilisateur, verificationIntegrite),
+            new RouteSauvegardes(gestionUtilisateur, sauvegardes),
+            new RouteReplication(gestionUtilisateur, replication),
+            new RouteTemplates(gestionUtilisateur, gestionFiche, new GestionTemplate(gestionFiche)),
+            collaboration
+        };
+        this.routesTeleversement = new RouteTeleversement[]{
+            new RouteBlobs(gestionUtilisateur, gestionFiche, stockBlobs)
+        };
+        this.routesFlux = new RouteFlux[]{
+            new RouteEvenements(gestionUtilisateur, gestionFiche, diffusion),
+            new RouteFichiers(new FichiersStatiques(stockBlobs, miniatures)),
+            collaboration
         };
     }
 
     public void demarrer() throws IOException {
-        serverSocket = new ServerSocket(8080);
+        // Ouvert par un canal : chaque socket accepte a son SocketChannel (envoi de fichiers par transferTo)
+        serverSocket = ServerSocketChannel.open().socket();
+        int port = Configuration.entier("port", 8080);
+        serverSocket.bind(new InetSocketAddress(port));
+        executeur = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
         enMarche = true;
-        System.out.println("Serveur demarre sur http://localhost:8080");
+        System.out.println("Serveur demarre sur http://localhost:" + port);
 
         Thread thread = new Thread(() -> {
             while (enMarche) {
                 try {
                     Socket client = serverSocket.accept();
-                    traiterRequete(client);
+                    executeur.execute(() -> traiterRequete(client));
                 } catch (IOException e) {
                     if (enMarche) System.out.println("Erreur : " + e.getMessage());
                 }
@@ -42,6 +133,19 @@ public class ServeurAPI {
     public void arreter() {
         enMarche = false;
         try { serverSocket.close(); } catch (IOException e) { /* ignore */ }
+        executeur.shutdown();
+        replication.arreter();
+        diffusion.arreter();
+        indexRecherche.arreter();
+        analytique.arreter();
+        simulateur.arreter();
+        stockBlobs.arreter();
+        miniatures.arreter();
+        historique.arreter();
+        archives.arreter();
+        verificationIntegrite.arreter();
+        sauvegardes.arreter();
+        reequilibrage.arreter();
         System.out.println("Serveur arrete.");
     }
 
@@ -50,37 +154,92 @@ public class ServeurAPI {
         String methode;
         String chemin;
         String body;
+        Map<String, String> entetes = new HashMap<>();
     }
 
-    // --- Lire et parser la requête HTTP depuis le socket ---
-    private RequeteHTTP lireRequete(BufferedReader in) throws IOException {
-        String premiereLigne = in.readLine();
+    // --- Lire la ligne de requete et les en-tetes (le corps reste dans le flux) ---
+    private RequeteHTTP lireRequete(InputStream in) throws IOException {
+        String premiereLigne = lireLigne(in);
         if (premiereLigne == null) return null;
 
         String[] parts = premiereLigne.split(" ");
+        if (parts.length < 2) return null;
         RequeteHTTP req = new RequeteHTTP();
         req.methode = parts[0];
         req.chemin = parts[1];
 
-        // Lire les headers pour trouver Content-Length
-        int contentLength = 0;
+        // Lire les headers (noms en minuscules) ; Content-Length donne la taille du body
         String ligne;
-        while ((ligne = in.readLine()) != null && !ligne.isEmpty()) {
-            if (ligne.startsWith("Content-Length:")) {
-                contentLength = Integer.parseInt(ligne.substring(15).trim());
+        while ((ligne = lireLigne(in)) != null && !ligne.isEmpty()) {
+            int deuxPoints = ligne.indexOf(':');
+            if (deuxPoints > 0) {
+                req.entetes.put(ligne.substring(0, deuxPoints).trim().toLowerCase(), ligne.substring(deuxPoints + 1).trim());
             }
         }
+        return req;
+    }
+
+    // --- Lire le body (Content-Length octets, texte UTF-8) ---
+    private String lireCorps(InputStream in, RequeteHTTP req) throws IOException {
+        long contentLength = longueurCorps(req);
+        if (contentLength <= 0) return "";
+        if (contentLength > TAILLE_MAX_CORPS_TEXTE) throw new IOException("corps trop grand (" + contentLength + " octets)");
+        return new String(in.readNBytes((int) contentLength), StandardCharsets.UTF_8);
+    }
+
+    private static long longueurCorps(RequeteHTTP req) {
+        try {
+            return Long.parseLong(req.entetes.getOrDefault("content-length", "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 
-        // Lire le body si présent
-        if (contentLength > 0) {
-            char[] buffer = new char[contentLength];
-            in.read(buffer, 0, contentLength);
-            req.body = new String(buffer);
-        } else {
-            req.body = "";
+    // Ligne terminee par \r\n ou \n, lue octet par octet pour ne rien consommer du corps
+    private static String lireLigne(InputStream in) throws IOException {
+        ByteArrayOutputStream ligne = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') ligne.write(c);
+            if (ligne.size() > 16 * 1024) throw new IOException("ligne d'en-tete trop longue");
         }
+        if (c == -1 && ligne.size() == 0) return null;
+        return ligne.toString(StandardCharsets.ISO_8859_1);
+    }
 
-        return req;
+    /**
+     * Corps d'une requete lu au fil de l'eau : s'arrete apres Content-Length octets,
+     * sans jamais lire la requete suivante.
+     */
+    private static class CorpsLimite extends FilterInputStream {
+        private long restant;
+
+        CorpsLimite(InputStream in, long longueur) {
+            super(in);
+            this.restant = longueur;
+        }
+
+        public int read() throws IOException {
+            if (restant <= 0) return -1;
+            int c = super.read();
+            if (c != -1) restant--;
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (restant <= 0) return -1;
+            int lus = super.read(b, off, (int) Math.min(len, restant));
+            if (lus > 0) restant -= lus;
+            return lus;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), restant);
+        }
+
+        public void close() {
+            // Le socket est ferme par le serveur
+        }
     }
 
     // --- Trouver la route et produire [code, json] ---
@@ -91,37 +250,82 @@ public class ServeurAPI {
 
         for (Route route : routes) {
             if (route.correspond(req.chemin)) {
-                return route.traiter(req.methode, req.chemin, req.body);
+                return route.traiter(req.methode, req.chemin, req.body, req.entetes);
             }
         }
 
         return new String[]{"404", "{\"erreur\":\"Route inconnue\"}"};
     }
 
+    // --- Instance suiveuse : lectures, connexion (propre a l'instance) et promotion seulement ---
+    private static boolean permiseEnLectureSeule(RequeteHTTP req) {
+        if ("GET".equals(req.methode) || "OPTIONS".equals(req.methode)) return true;
+        String chemin = req.chemin.split("\\?", 2)[0];
+        return chemin.equals("/api/login") || chemin.equals("/api/logout") || chemin.equals("/api/admin/replication/promote");
+    }
+
     // --- Méthode principale : lire, router, répondre ---
     private void traiterRequete(Socket client) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-             OutputStream out = client.getOutputStream()) {
+        boolean garderOuvert = false;
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
 
             RequeteHTTP req = lireRequete(in);
             if (req == null) return;
+            if (replication.lectureSeule() && !permiseEnLectureSeule(req)) {
+                repondre(out, 503, "{\"erreur\":\"Instance suiveuse en lecture seule\"}", "");
+                return;
+            }
+
+            // Routes qui lisent elles-memes le corps (envoi de fichiers)
+            for (RouteTeleversement route : routesTeleversement) {
+                if (route.correspond(req.methode, req.chemin, req.entetes)) {
+                    String[] resultat = longueurCorps(req) > 0
+                        ? route.recevoir(req.methode, req.chemin, req.entetes, new CorpsLimite(in, longueurCorps(req)))
+                        : new String[]{"411", "{\"erreur\":\"Content-Length requis\"}"};
+                    repondre(out, Integer.parseInt(resultat[0]), resultat[1], resultat.length > 2 ? resultat[2] : "");
+                    return;
+                }
+            }
+            req.body = lireCorps(in, req);
 
-            String[] resultat = router(req);
-            repondre(out, Integer.parseInt(resultat[0]), resultat[1]);
+            // Routes qui gardent la connexion (flux d'evenements)
+            String[] resultat = null;
+            boolean flux = false;
+            for (RouteFlux route : routesFlux) {
+                if (route.correspond(req.methode, req.chemin)) {
+                    resultat = route.ouvrir(req.chemin, req.entetes, client);
+                    garderOuvert = resultat == null;
+                    flux = true;
+                    break;
+                }
+            }
+            if (garderOuvert) return;
+            if (!flux) resultat = router(req);
+
+            String entetesSupplementaires = resultat.length > 2 ? resultat[2] : "";
+            repondre(out, Integer.parseInt(resultat[0]), resultat[1], entetesSupplementaires);
 
         } catch (IOException e) {
             System.out.println("Erreur requete : " + e.getMessage());
+        } finally {
+            if (!garderOuvert) {
+                try { client.close(); } catch (IOException e) { /* ignore */ }
+            }
         }
     }
 
     // --- Envoie une réponse HTTP brute ---
-    private void repondre(OutputStream out, int code, String json) throws IOException {
+    private void repondre(OutputStream out, int code, String json, String entetesSupplementaires) throws IOException {
         byte[] contenu = json.getBytes("UTF-8");
         String entete = "HTTP/1.1 " + code + " OK\r\n"
             + "Content-Type: application/json\r\n"
             + "Access-Control-Allow-Origin: *\r\n"
-            + "Access-Control-Allow-Methods: GET, POST, PUT, DELETE, OPTIONS\r\n"
-            + "Access-Control-Allow-Headers: Content-Type\r\n"
+            + "Access-Control-Allow-Methods: GET, POST, PUT, PATCH, DELETE, OPTIONS\r\n"
+            + "Access-Control-Allow-Headers: Content-Type, If-Match\r\n"
+            + "Access-Control-Expose-Headers: ETag\r\n"
+            + entetesSupplementaires
             + "Content-Length: " + contenu.length + "\r\n"
             + "\r\n";
         out.write(entete.getBytes("UTF-8"));
@@ -0,0 +1,314 @@
+package service;
+
+import model.FichePersonnage;
+import model.Statistique;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Simulation de jets de des (Monte Carlo) a partir des statistiques d'une fiche.
+ *
+ * Expression : somme de termes separes par + ou -, chaque terme etant un groupe de des
+ * ("1d20", "3d6", "d8"), un entier, ou le nom d'une statistique de la fiche (sans tenir
+ * compte des majuscules ni des accents), ex. "1d20 + Force - 2". Avec un seuil (DD), un
+ * essai reussit si le total atteint le seuil.
+ *
+ * Les essais sont repartis en taches fork-join, chacune avec son propre generateur
+ * (SplittableRandom.split) et son propre histogramme des totaux : la boucle d'un essai
+ * n'alloue rien et n'est jamais synchronisee. Les histogrammes sont additionnes a la fin.
+ *
+ * Les resultats sont gardes en cache par (fiche, version, expression, seuil, essais, graine) :
+ * une fiche modifiee change de version, donc de cle.
+ */
+public class SimulateurJets {
+
+    private static final int ESSAIS_PAR_TACHE = 1 << 16;
+    private static final int TAILLE_CACHE = 256;
+    private static final int DES_MAX = 1000;
+    private static final int FACES_MAX = 1_000_000;
+    private static final int ETENDUE_MAX = 100_000; // taille max de l'histogramme
+    private static final long DES_LANCES_MAX = 1_000_000_000L; // essais x des par simulation
+
+    private static final java.util.regex.Pattern MOTIF_DES = java.util.regex.Pattern.compile("(\\d*)d(\\d+|%)");
+
+    private final ForkJoinPool pool;
+    private final int essaisMax;
+
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > TAILLE_CACHE;
+        }
+    };
+
+    public SimulateurJets() {
+        this.pool = new ForkJoinPool(Configuration.entier("simulation.parallelisme", Runtime.getRuntime().availableProcessors()));
+        this.essaisMax = Configuration.entier("simulation.essais.max", 10_000_000);
+    }
+
+    public int getEssaisMax() {
+        return essaisMax;
+    }
+
+    /**
+     * Simule l'expression sur la fiche et retourne le resultat en JSON.
+     * Leve IllegalArgumentException si l'expression est invalide.
+     *
+     * @param seuil  DD a atteindre (null : pas de probabilite de reussite)
+     * @param graine graine du generateur (null : aleatoire) ; une meme graine donne le meme resultat
+     */
+    public String simuler(int idUtilisateur, FichePersonnage fiche, String expression, Integer seuil, int essais, Long graine) {
+        Expression expr = Expression.lire(expression, fiche);
+        long desParEssai = 0;
+        for (int n : expr.nombres) desParEssai += n;
+        if (desParEssai * essais > DES_LANCES_MAX) {
+            throw new IllegalArgumentException("trop de des pour ce nombre d'essais (max " + DES_LANCES_MAX + " des lances)");
+        }
+        String cle = idUtilisateur + ":" + fiche.getIdFichePersonnage() + ":" + fiche.getVersion() + ":"
+            + expr.normalisee + ":" + seuil + ":" + essais + ":" + graine;
+        synchronized (cache) {
+            String enCache = cache.get(cle);
+            if (enCache != null) return enCache;
+        }
+
+        SplittableRandom aleatoire = graine == null ? new SplittableRandom() : new SplittableRandom(graine);
+        long[] histogramme = pool.invoke(new TacheEssais(expr, essais, aleatoire));
+        String json = versJSON(expr, histogramme, essais, seuil);
+
+        synchronized (cache) {
+            cache.put(cle, json);
+        }
+        return json;
+    }
+
+    public void arreter() {
+        pool.shutdownNow();
+    }
+
+    // ===== Expression =====
+
+    /**
+     * Expression compilee : groupes de des (nombre, faces, signe) et constante.
+     */
+    static class Expression {
+        final int[] nombres;
+        final int[] faces;
+        final int[] signes;
+        final long constante;
+        final long min;
+        final long max;
+        final String normalisee;
+
+        private Expression(int[] nombres, int[] faces, int[] signes, long constante, String normalisee) {
+            this.nombres = nombres;
+            this.faces = faces;
+            this.signes = signes;
+            this.constante = constante;
+            this.normalisee = normalisee;
+            long bas = constante;
+            long haut = constante;
+            for (int i = 0; i < nombres.length; i++) {
+                long plusPetit = nombres[i];
+                long plusGrand = (long) nombres[i] * faces[i];
+                bas += signes[i] > 0 ? plusPetit : -plusGrand;
+                haut += signes[i] > 0 ? plusGrand : -plusPetit;
+            }
+            this.min = bas;
+            this.max = haut;
+        }
+
+        static Expression lire(String texte, FichePersonnage fiche) {
+            if (texte == null || texte.isBlank()) throw new IllegalArgumentException("expression requise");
+
+            Map<String, Integer> stats = new HashMap<>();
+            for (Statistique s : fiche.getStatistiques().getStatistiques()) {
+                stats.putIfAbsent(RequeteFiches.cle(s.getNomStatistique()), s.getValeurStatistique());
+            }
+
+            int[] nombres = new int[0];
+            int[] faces = new int[0];
+            int[] signes = new int[0];
+            long constante = 0;
+            StringBuilder normalisee = new StringBuilder();
+
+            // Decoupe en termes, en gardant le signe de chacun
+            int signe = 1;
+            int debut = 0;
+            String t = texte.trim();
+            for (int i = 0; i <= t.length(); i++) {
+                if (i < t.length() && t.charAt(i) != '+' && t.charAt(i) != '-') continue;
+                String terme = t.substring(debut, i).trim();
+                if (terme.isEmpty()) {
+                    if (i < t.length() && i == 0 && t.charAt(i) == '-') {
+                        signe = -1;
+                        debut = i + 1;
+                        continue;
+                    }
+                    throw new IllegalArgumentException("terme manquant dans l'expression");
+                }
+
+                String compact = terme.toLowerCase(Locale.ROOT).replace(" ", "");
+                java.util.regex.Matcher des = MOTIF_DES.matcher(compact);
+                if (des.matches()) {
+                    int nombre = des.group(1).isEmpty() ? 1 : entier(des.group(1), DES_MAX, "nombre de des");
+                    int face = des.group(2).equals("%") ? 100 : entier(des.group(2), FACES_MAX, "nombre de faces");
+                    if (nombre < 1 || face < 1) throw new IllegalArgumentException("de invalide : " + terme);
+                    nombres = ajouter(nombres, nombre);
+                    faces = ajouter(faces, face);
+                    signes = ajouter(signes, signe);
+                    normalisee.append(signe > 0 ? "+" : "-").append(nombre).append("d").append(face);
+                } else if (compact.matches("\\d+")) {
+                    constante += signe * (long) entier(compact, Integer.MAX_VALUE, "constante");
+                } else {
+                    Integer valeur = stats.get(RequeteFiches.cle(terme));
+                    if (valeur == null) throw new IllegalArgumentException("statistique inconnue : " + terme);
+                    constante += signe * (long) valeur;
+                }
+
+                if (i < t.length()) signe = t.charAt(i) == '-' ? -1 : 1;
+                debut = i + 1;
+            }
+            if (nombres.length == 0) throw new IllegalArgumentException("l'expression doit contenir au moins un de");
+
+            normalisee.append(constante >= 0 ? "+" : "").append(constante);
+            Expression expr = new Expression(nombres, faces, signes, constante, normalisee.toString());
+            if (expr.max - expr.min >= ETENDUE_MAX) throw new IllegalArgumentException("expression trop etendue");
+            return expr;
+        }
+
+        private static int entier(String texte, int max, String quoi) {
+            try {
+                int valeur = Integer.parseInt(texte);
+                if (valeur > max) throw new IllegalArgumentException(quoi + " trop grand (max " + max + ")");
+                return valeur;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(quoi + " trop grand (max " + max + ")");
+            }
+        }
+
+        private static int[] ajouter(int[] tableau, int valeur) {
+            int[] resultat = java.util.Arrays.copyOf(tableau, tableau.length + 1);
+            resultat[tableau.length] = valeur;
+            return resultat;
+        }
+    }
+
+    // ===== Simulation =====
+
+    /**
+     * Effectue un nombre d'essais et retourne l'histogramme des totaux (indice = total - min).
+     */
+    private static class TacheEssais extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final Expression expr;
+        private final int essais;
+        private final SplittableRandom aleatoire;
+
+        TacheEssais(Expression expr, int essais, SplittableRandom aleatoire) {
+            this.expr = expr;
+            this.essais = essais;
+            this.aleatoire = aleatoire;
+        }
+
+        protected long[] compute() {
+            if (essais <= ESSAIS_PAR_TACHE) {
+                return essayer();
+            }
+            int moitie = essais / 2;
+            TacheEssais gauche = new TacheEssais(expr, moitie, aleatoire.split());
+            gauche.fork();
+            long[] droite = new TacheEssais(expr, essais - moitie, aleatoire.split()).compute();
+            long[] resultat = gauche.join();
+            for (int i = 0; i < resultat.length; i++) resultat[i] += droite[i];
+            return resultat;
+        }
+
+        private long[] essayer() {
+            long[] histogramme = new long[(int) (expr.max - expr.min + 1)];
+            int[] nombres = expr.nombres;
+            int[] faces = expr.faces;
+            int[] signes = expr.signes;
+            long decalage = expr.constante - expr.min;
+            SplittableRandom r = aleatoire;
+
+            for (int essai = 0; essai < essais; essai++) {
+                long total = decalage;
+                for (int g = 0; g < nombres.length; g++) {
+                    int face = faces[g];
+                    long somme = nombres[g];
+                    for (int d = nombres[g]; d > 0; d--) somme += r.nextInt(face);
+                    total += signes[g] * somme;
+                }
+                histogramme[(int) total]++;
+            }
+            return histogramme;
+        }
+    }
+
+    private static String versJSON(Expression expr, long[] histogramme, int essais, Integer seuil) {
+        double somme = 0;
+        double sommeCarres = 0;
+        long reussites = 0;
+        for (int i = 0; i < histogramme.length; i++) {
+            if (histogramme[i] == 0) continue;
+            long valeur = expr.min + i;
+            somme += (double) valeur * histogramme[i];
+            sommeCarres += (double) valeur * valeur * histogramme[i];
+            if (seuil != null && valeur >= seuil) reussites += histogramme[i];
+        }
+        double moyenne = somme / essais;
+        double ecartType = Math.sqrt(Math.max(0, sommeCarres / essais - moyenne * moyenne));
+
+        StringBuilder json = new StringBuilder("{\"expression\":\"").append(expr.normalisee).append("\"")
+            .append(",\"essais\":").append(essais)
+            .append(",\"min\":").append(expr.min)
+            .append(",\"max\":").append(expr.max)
+            .append(",\"moyenne\":").append(format(moyenne))
+            .append(",\"ecartType\":").append(format(ecartType));
+        if (seuil != null) {
+            json.append(",\"seuil\":").append(seuil)
+                .append(",\"probabiliteReussite\":").append(format((double) reussites / essais));
+        }
+
+        json.append(",\"percentiles\":{");
+        int[] rangs = {5, 10, 25, 50, 75, 90, 95, 99};
+        for (int r = 0; r < rangs.length; r++) {
+            if (r > 0) json.append(",");
+            json.append("\"p").append(rangs[r]).append("\":").append(percentile(expr, histogramme, essais, rangs[r]));
+        }
+        json.append("}");
+
+        // Distribution detaillee seulement si elle reste lisible
+        json.append(",\"distribution\":[");
+        if (histogramme.length <= 1000) {
+            boolean premier = true;
+            for (int i = 0; i < histogramme.length; i++) {
+                if (histogramme[i] == 0) continue;
+                if (!premier) json.append(",");
+                json.append("{\"valeur\":").append(expr.min + i)
+                    .append(",\"probabilite\":").append(format((double) histogramme[i] / essais)).append("}");
+                premier = false;
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private static long percentile(Expression expr, long[] histogramme, int essais, int rang) {
+        long cible = (long) Math.ceil(rang / 100.0 * essais);
+        long vus = 0;
+        for (int i = 0; i < histogramme.length; i++) {
+            vus += histogramme[i];
+            if (vus >= cible) return expr.min + i;
+        }
+        return expr.max;
+    }
+
+    private static String format(double valeur) {
+        return String.format(Locale.ROOT, "%.6f", valeur);
+    }
+}
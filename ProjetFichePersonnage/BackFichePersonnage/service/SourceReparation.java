@@ -0,0 +1,18 @@
+package service;
+
+import model.FichePersonnage;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Copie de secours des fiches (historique, sauvegarde...) ou GestionFiche retrouve les fiches
+ * d'un fichier abime (voir FichierFiches et VerificationIntegrite).
+ */
+public interface SourceReparation {
+
+    /**
+     * Derniere version connue de chaque fiche existante de l'utilisateur, par id de fiche.
+     */
+    Map<Integer, FichePersonnage> fichesConnues(int idUtilisateur) throws IOException;
+}
@@ -0,0 +1,405 @@
+package service;
+
+import model.FichePersonnage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Stockage des images (portraits) hors des fiches, adresse par contenu.
+ *
+ * Un blob est range sous "data/blobs/{2 premiers caracteres}/{sha256}" : deux envois du meme
+ * contenu, par n'importe quels utilisateurs, donnent le meme fichier. Le corps envoye est
+ * ecrit directement dans un fichier temporaire en calculant son empreinte au passage (jamais
+ * entierement en memoire), puis renomme a son adresse, ou supprime si le blob existe deja.
+ *
+ * Une fiche ne garde que la reference "blob:{sha256}" dans Portrait.imagePortrait.
+ *
+ * Comptage de references : recompte au demarrage depuis les fichiers de fiches, puis tenu a
+ * jour par les modifications de fiches (ecouteur de GestionFiche). Un ramasse-miettes periodique
+ * supprime les blobs sans reference plus vieux que "blobs.gc.delai" secondes : ce delai laisse
+ * le temps d'utiliser un blob juste envoye. Un blob encore reference ailleurs (historique des
+ * fiches, voir proteger) est garde.
+ */
+public class StockBlobs implements EcouteurFiche {
+
+    public static final String PREFIXE = "blob:";
+    private static final String DOSSIER_DATA = "data/";
+    private static final String DOSSIER_BLOBS = DOSSIER_DATA + "blobs/";
+    private static final int TAILLE_TAMPON = 64 * 1024;
+
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+    // Prevenus de chaque blob supprime (donnees derivees a supprimer avec lui)
+    private final List<Consumer<String>> suppressions = new CopyOnWriteArrayList<>();
+    // Autres sources de references (historique des fiches...)
+    private final List<Predicate<String>> protections = new CopyOnWriteArrayList<>();
+    private final long tailleMax;
+    private final long delaiGc;
+    private final ScheduledExecutorService ramasseMiettes = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "blobs-gc");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final GestionSecurite securite;
+
+    public StockBlobs(GestionSecurite securite) {
+        this.securite = securite;
+        this.tailleMax = Configuration.entier("blobs.taille.max", 10 * 1024 * 1024);
+        this.delaiGc = Configuration.entier("blobs.gc.delai", 3600) * 1000L;
+        new File(DOSSIER_BLOBS + "tmp").mkdirs();
+        recompterReferences();
+        long intervalle = Configuration.entier("blobs.gc.intervalle", 600);
+        ramasseMiettes.scheduleWithFixedDelay(this::collecter, intervalle, intervalle, TimeUnit.SECONDS);
+    }
+
+    public long getTailleMax() {
+        return tailleMax;
+    }
+
+    /**
+     * Hash du blob reference par une image de portrait, null si l'image n'est pas un blob.
+     */
+    public static String hashDe(String image) {
+        if (image == null || !image.startsWith(PREFIXE)) return null;
+        String hash = image.substring(PREFIXE.length());
+        return hashValide(hash) ? hash : null;
+    }
+
+    public static boolean hashValide(String hash) {
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+
+    /**
+     * Ecrit le contenu du flux dans le stock et retourne son hash SHA-256 (hexadecimal).
+     * Leve IllegalArgumentException si le contenu est vide ou depasse la taille maximale.
+     */
+    public String stocker(InputStream contenu) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        File temporaire = File.createTempFile("envoi", ".tmp", new File(DOSSIER_BLOBS + "tmp"));
+        try {
+            long taille = 0;
+            try (OutputStream out = new FileOutputStream(temporaire)) {
+                byte[] tampon = new byte[TAILLE_TAMPON];
+                int lus;
+                while ((lus = contenu.read(tampon)) != -1) {
+                    taille += lus;
+                    if (taille > tailleMax) throw new IllegalArgumentException("image trop grande (max " + tailleMax + " octets)");
+                    sha256.update(tampon, 0, lus);
+                    out.write(tampon, 0, lus);
+                }
+            }
+            if (taille == 0) throw new IllegalArgumentException("image vide");
+
+            String hash = hexadecimal(sha256.digest());
+            File cible = fichier(hash);
+            // Sous le meme verrou que le ramasse-miettes : un blob existant rafraichi ici ne peut
+            // pas etre supprime avant d'etre reference
+            synchronized (this) {
+                if (cible.exists()) {
+                    cible.setLastModified(System.currentTimeMillis());
+                } else {
+                    cible.getParentFile().mkdirs();
+                    Files.move(temporaire.toPath(), cible.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            return hash;
+        } finally {
+            temporaire.delete();
+        }
+    }
+
+    /**
+     * Image de portrait a enregistrer : une image en data URL base64 est rangee dans le stock, et
+     * une adresse de blob (/api/blobs/{hash} ou blob:{hash}) devient sa reference. Les autres
+     * valeurs (URL externe, vide) sont gardees telles quelles. Toute image ecrite dans une fiche
+     * par l'API passe par ici, hors du verrou de la fiche (l'ecriture du blob peut etre longue).
+     * Leve IllegalArgumentException si l'image est invalide ou trop grande.
+     */
+    public String reference(String image) {
+        if (image == null) return null;
+        String hash = image.startsWith("/api/blobs/") ? image.substring("/api/blobs/".length()) : hashDe(image);
+        if (hashValide(hash)) {
+            // Blob deja stocke : rafraichi comme dans stocker, pour que le ramasse-miettes ne le
+            // supprime pas avant que la fiche qui le reference soit ecrite
+            synchronized (this) {
+                File fichier = fichier(hash);
+                if (fichier.exists()) {
+                    fichier.setLastModified(System.currentTimeMillis());
+                    return PREFIXE + hash;
+                }
+            }
+        }
+
+        int base64 = image.indexOf(";base64,");
+        if (!image.startsWith("data:") || base64 < 0) return image;
+        byte[] ascii = image.substring(base64 + ";base64,".length()).getBytes(StandardCharsets.ISO_8859_1);
+        try (InputStream contenu = Base64.getMimeDecoder().wrap(new ByteArrayInputStream(ascii))) {
+            return PREFIXE + stocker(contenu);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("image invalide : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fichier d'un blob (qui peut ne pas exister).
+     */
+    public File fichier(String hash) {
+        return new File(DOSSIER_BLOBS + chemin(hash));
+    }
+
+    /**
+     * Chemin d'un blob sous un dossier de blobs (celui du stock, ou celui des sauvegardes).
+     */
+    static String chemin(String hash) {
+        return hash.substring(0, 2) + "/" + hash;
+    }
+
+    /**
+     * Hash SHA-256 (hexadecimal) du contenu d'un fichier, pour verifier un blob copie.
+     */
+    static String hashFichier(File fichier) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(fichier)) {
+            byte[] tampon = new byte[TAILLE_TAMPON];
+            int lus;
+            while ((lus = in.read(tampon)) != -1) sha256.update(tampon, 0, lus);
+        }
+        return hexadecimal(sha256.digest());
+    }
+
+    public boolean existe(String hash) {
+        return hashValide(hash) && fichier(hash).isFile();
+    }
+
+    public int references(String hash) {
+        return references.getOrDefault(hash, 0);
+    }
+
+    /**
+     * Reporte le changement de portrait (appele sous le verrou de la fiche, sans IO).
+     */
+    public void ficheModifiee(model.Utilisateur utilisateur, FichePersonnage ancienne, FichePersonnage nouvelle) {
+        String avant = ancienne == null ? null : hashDe(ancienne.getPortrait().getImagePortrait());
+        String apres = nouvelle == null ? null : hashDe(nouvelle.getPortrait().getImagePortrait());
+        if (avant != null && avant.equals(apres)) return;
+        if (avant != null) references.computeIfPresent(avant, (h, n) -> n > 1 ? n - 1 : null);
+        if (apres != null) references.merge(apres, 1, Integer::sum);
+    }
+
+    /**
+     * Supprime les blobs sans reference (et les envois interrompus) plus vieux que le delai.
+     * Retourne le nombre de fichiers supprimes.
+     */
+    public int collecter() {
+        long limite = System.currentTimeMillis() - delaiGc;
+        int supprimes = 0;
+        File[] dossiers = new File(DOSSIER_BLOBS).listFiles(File::isDirectory);
+        if (dossiers == null) return 0;
+
+        for (File dossier : dossiers) {
+            File[] fichiers = dossier.listFiles(File::isFile);
+            if (fichiers == null) continue;
+            boolean temporaires = dossier.getName().equals("tmp");
+            for (File f : fichiers) {
+                synchronized (this) {
+                    if (f.lastModified() >= limite) continue;
+                    if (!temporaires && (references.containsKey(f.getName()) || protege(f.getName()))) continue;
+                    if (!f.delete()) continue;
+                    supprimes++;
+                }
+                if (!temporaires) {
+                    for (Consumer<String> suppression : suppressions) suppression.accept(f.getName());
+                }
+            }
+        }
+        if (supprimes > 0) System.out.println("Blobs : " + supprimes + " fichier(s) sans reference supprime(s).");
+        return supprimes;
+    }
+
+    /**
+     * Enregistre une action appelee avec le hash de chaque blob supprime par le ramasse-miettes.
+     */
+    public void surSuppression(Consumer<String> suppression) {
+        suppressions.add(suppression);
+    }
+
+    /**
+     * Enregistre une source de references en plus des fiches : un blob pour lequel elle
+     * retourne true n'est pas supprime par le ramasse-miettes.
+     */
+    public void proteger(Predicate<String> reference) {
+        protections.add(reference);
+    }
+
+    private boolean protege(String hash) {
+        for (Predicate<String> protection : protections) {
+            if (protection.test(hash)) return true;
+        }
+        return false;
+    }
+
+    public void arreter() {
+        ramasseMiettes.shutdownNow();
+    }
+
+    /**
+     * Compte les references de toutes les fiches sauvegardees (avant le demarrage du serveur :
+     * aucune fiche n'est modifiee pendant le comptage).
+     */
+    private void recompterReferences() {
+        for (int idUtilisateur : RepartitionDonnees.fichiers("fiches_", ".dat").keySet()) {
+            File fichier = RepartitionDonnees.localiser(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur));
+            try (InputStream in = securite.dechiffrer(new FileInputStream(fichier), idUtilisateur)) {
+                for (FichePersonnage fiche : FichierFiches.lire(in).fiches) {
+                    ficheModifiee(null, null, fiche);
+                }
+            } catch (IOException e) {
+                System.out.println("Blobs : fichier de fiches illisible " + fichier + " : " + e.getMessage());
+            }
+        }
+        System.out.println("Blobs : " + references.size() + " blob(s) reference(s).");
+    }
+
+    private static String hexadecimal(byte[] octets) {
+        StringBuilder hex = new StringBuilder(octets.length * 2);
+        for (byte b : octets) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // ===== Envoi multipart =====
+
+    /**
+     * Contenu de la premiere partie d'un corps multipart/form-data, lu au fil de l'eau :
+     * les octets sont rendus des qu'ils ne peuvent plus faire partie du delimiteur.
+     * Retourne null si le Content-Type n'a pas de boundary ou si aucune partie n'est trouvee.
+     */
+    public static InputStream premierePartie(InputStream corps, String contentType) throws IOException {
+        String boundary = null;
+        for (String parametre : contentType.split(";")) {
+            parametre = parametre.trim();
+            if (parametre.startsWith("boundary=")) boundary = parametre.substring(9).replace("\"", "");
+        }
+        if (boundary == null || boundary.isEmpty()) return null;
+
+        // Saute le preambule jusqu'a la premiere ligne "--boundary", puis les en-tetes de la partie
+        String debut = "--" + boundary;
+        String ligne;
+        while ((ligne = lireLigne(corps)) != null && !ligne.equals(debut)) {
+            // preambule ignore
+        }
+        if (ligne == null) return null;
+        while ((ligne = lireLigne(corps)) != null && !ligne.isEmpty()) {
+            // en-tetes de la partie ignores (Content-Disposition, Content-Type)
+        }
+        if (ligne == null) return null;
+        return new PartieMultipart(corps, ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String lireLigne(InputStream in) throws IOException {
+        StringBuilder ligne = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') ligne.append((char) c);
+            if (ligne.length() > 8192) throw new IOException("ligne multipart trop longue");
+        }
+        return c == -1 && ligne.length() == 0 ? null : ligne.toString();
+    }
+
+    /**
+     * Flux qui s'arrete au delimiteur. Recherche par automate (KMP) : chaque octet n'est lu
+     * qu'une fois, et seuls les octets qui commencent peut-etre le delimiteur sont retenus.
+     */
+    private static class PartieMultipart extends InputStream {
+        private final InputStream source;
+        private final byte[] delimiteur;
+        private final int[] repli;
+        private final byte[] sortie;
+        private int debutSortie;
+        private int finSortie;
+        private int correspondance;   // nombre d'octets du delimiteur reconnus
+        private boolean termine;
+
+        PartieMultipart(InputStream source, byte[] delimiteur) {
+            this.source = source;
+            this.delimiteur = delimiteur;
+            this.repli = new int[delimiteur.length];
+            for (int i = 1, k = 0; i < delimiteur.length; i++) {
+                while (k > 0 && delimiteur[i] != delimiteur[k]) k = repli[k - 1];
+                if (delimiteur[i] == delimiteur[k]) k++;
+                repli[i] = k;
+            }
+            this.sortie = new byte[delimiteur.length + 1];
+        }
+
+        public int read() throws IOException {
+            byte[] un = new byte[1];
+            return read(un, 0, 1) == -1 ? -1 : un[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int ecrits = 0;
+            while (ecrits < len) {
+                if (debutSortie < finSortie) {
+                    b[off + ecrits++] = sortie[debutSortie++];
+                    continue;
+                }
+                if (termine) break;
+                debutSortie = finSortie = 0;
+                int c = source.read();
+                if (c == -1) {
+                    // Fin sans delimiteur : les octets retenus font partie du contenu
+                    System.arraycopy(delimiteur, 0, sortie, 0, correspondance);
+                    finSortie = correspondance;
+                    correspondance = 0;
+                    termine = true;
+                    continue;
+                }
+                byte octet = (byte) c;
+                while (correspondance > 0 && delimiteur[correspondance] != octet) {
+                    // Les octets qui ne peuvent plus commencer le delimiteur sont rendus
+                    int garde = repli[correspondance - 1];
+                    int rendus = correspondance - garde;
+                    System.arraycopy(delimiteur, 0, sortie, finSortie, rendus);
+                    finSortie += rendus;
+                    correspondance = garde;
+                }
+                if (delimiteur[correspondance] == octet) {
+                    if (++correspondance == delimiteur.length) termine = true;
+                } else {
+                    sortie[finSortie++] = octet;
+                }
+                if (ecrits > 0 && debutSortie == finSortie && source.available() == 0) break;
+            }
+            return ecrits == 0 && termine && debutSortie == finSortie ? -1 : ecrits;
+        }
+    }
+}
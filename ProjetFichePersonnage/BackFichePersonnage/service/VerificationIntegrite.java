@@ -0,0 +1,134 @@
+package service;
+
+import model.Utilisateur;
+
+import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification de fond des fichiers de fiches : toutes les "integrite.intervalle" secondes
+ * (0 : jamais), relit chaque "fiches_{id}.dat" (toutes racines, voir RepartitionDonnees) et controle les sommes CRC32C (voir
+ * FichierFiches). Un fichier abime est repare par GestionFiche.reparerFichier : mise en
+ * quarantaine, puis reecriture depuis la memoire ou recuperation depuis les sources de reparation.
+ *
+ * Basse priorite : thread de priorite minimale, lecture limitee a "integrite.debit" Ko/s pour
+ * ne pas concurrencer les requetes. Les fichiers etant remplaces par renommage, un fichier lu
+ * ne change pas pendant la lecture ; une sauvegarde concurrente remplace simplement un fichier sain.
+ *
+ * Les segments d'archive et le chiffrement portent deja leurs propres controles (Adler-32 de
+ * zlib, etiquettes GCM), verifies a chaque lecture.
+ */
+public class VerificationIntegrite {
+
+    private final GestionUtilisateur gestionUtilisateur;
+    private final GestionFiche gestionFiche;
+    private final CompteursIntegrite compteurs;
+    private final long debit;
+
+    private final ScheduledExecutorService verification = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "integrite");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    public VerificationIntegrite(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.compteurs = gestionFiche.getCompteursIntegrite();
+        this.debit = Math.max(1, Configuration.entier("integrite.debit", 1024)) * 1024L;
+        int intervalle = Configuration.entier("integrite.intervalle", 3600);
+        if (intervalle > 0) {
+            verification.scheduleWithFixedDelay(this::verifier, intervalle, intervalle, TimeUnit.SECONDS);
+        }
+    }
+
+    public CompteursIntegrite getCompteurs() {
+        return compteurs;
+    }
+
+    public void arreter() {
+        verification.shutdownNow();
+    }
+
+    /**
+     * Une passe complete sur les fichiers de fiches.
+     */
+    void verifier() {
+        for (int idUtilisateur : RepartitionDonnees.fichiers("fiches_", ".dat").keySet()) {
+            if (Thread.currentThread().isInterrupted()) return;
+            File fichier = RepartitionDonnees.localiser(idUtilisateur, RepartitionDonnees.nomFiches(idUtilisateur));
+            Utilisateur utilisateur = gestionUtilisateur.trouverParId(idUtilisateur);
+            if (utilisateur == null) continue;
+            verifier(utilisateur, fichier);
+        }
+        compteurs.passes.incrementAndGet();
+        compteurs.derniereVerification.set(System.currentTimeMillis());
+    }
+
+    private void verifier(Utilisateur utilisateur, File fichier) {
+        DebitLimite in;
+        try {
+            in = new DebitLimite(new FileInputStream(fichier), debit);
+        } catch (FileNotFoundException e) {
+            return; // supprime depuis la liste des fichiers
+        }
+        FichierFiches.Lecture lecture;
+        try (in) {
+            lecture = FichierFiches.lire(gestionFiche.getSecurite().dechiffrer(in, utilisateur.getIdUtilisateur()));
+        } catch (IOException e) {
+            lecture = new FichierFiches.Lecture();
+            lecture.tronque = true;
+        }
+        // Arret du serveur pendant la lecture : le fichier n'est pas abime
+        if (Thread.currentThread().isInterrupted()) return;
+
+        compteurs.fichiersVerifies.incrementAndGet();
+        compteurs.octetsVerifies.addAndGet(in.lus);
+        compteurs.enregistrementsVerifies.addAndGet(lecture.fiches.size() + lecture.abimes.size());
+        if (!lecture.integre()) gestionFiche.reparerFichier(utilisateur, lecture);
+    }
+
+    /**
+     * Flux limite a un debit moyen (octets par seconde) : la lecture attend quand elle est en avance.
+     */
+    private static class DebitLimite extends FilterInputStream {
+        private final long debit;
+        private final long debut = System.nanoTime();
+        long lus;
+
+        DebitLimite(InputStream in, long debit) {
+            super(in);
+            this.debit = debit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) compter(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, (int) Math.min(len, Math.max(1, debit / 10)));
+            if (n > 0) compter(n);
+            return n;
+        }
+
+        private void compter(int n) throws IOException {
+            lus += n;
+            long attente = lus * 1000 / debit - (System.nanoTime() - debut) / 1_000_000;
+            if (attente > 0) {
+                try {
+                    Thread.sleep(attente);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("verification interrompue");
+                }
+            }
+        }
+    }
+}
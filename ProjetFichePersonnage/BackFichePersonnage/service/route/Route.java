@@ -1,10 +1,16 @@
 package service.route;
 
+import java.util.Map;
+
 public interface Route {
 
     /** Retourne true si cette route gere le chemin donne */
     boolean correspond(String chemin);
 
-    /** Traite la requete et retourne la reponse [code, json] */
-    String[] traiter(String methode, String chemin, String body);
+    /**
+     * Traite la requete et retourne la reponse [code, json] ou [code, json, en-tetes].
+     * Les noms d'en-tetes de la requete sont en minuscules ; les en-tetes de reponse
+     * optionnels sont des lignes "Nom: valeur\r\n" deja formatees.
+     */
+    String[] traiter(String methode, String chemin, String body, Map<String, String> entetes);
 }
@@ -0,0 +1,60 @@
+package service.route;
+
+import model.Utilisateur;
+import service.Analytique;
+import service.Configuration;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+
+import java.util.Map;
+
+/**
+ * Statistiques globales pour les administrateurs :
+ * GET /api/admin/analytics[?refresh=1]
+ *
+ * Les administrateurs sont les noms listes dans le parametre "admins" (voir Configuration).
+ * La reponse n'attend jamais le calcul : 202 tant qu'aucun rapport n'existe, sinon 200 avec
+ * le dernier rapport, sa date, et "perime"/"enCours" si un nouveau calcul est en route.
+ */
+public class RouteAnalytique implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private Analytique analytique;
+
+    public RouteAnalytique(GestionUtilisateur gestionUtilisateur, Analytique analytique) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.analytique = analytique;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.equals("/api/admin/analytics") || chemin.startsWith("/api/admin/analytics?");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!Configuration.liste("admins").contains(connecte.getNomUtilisateur())) {
+            return reponse(403, JsonUtils.erreur("Reserve aux administrateurs"));
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+
+        boolean forcer = "1".equals(RouteSync.parametre(chemin, "refresh"));
+        Analytique.Rapport rapport = analytique.obtenir(forcer);
+        if (rapport == null) {
+            return reponse(202, "{\"enCours\":true}");
+        }
+        return reponse(200, "{\"calculeLe\":" + rapport.calculeLe
+            + ",\"dureeMs\":" + rapport.dureeMs
+            + ",\"perime\":" + analytique.estPerime(rapport)
+            + ",\"enCours\":" + analytique.calculEnCours()
+            + ",\"resultat\":" + rapport.json + "}");
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
@@ -5,6 +5,8 @@ import service.GestionFiche;
 import service.GestionUtilisateur;
 import service.JsonUtils;
 
+import java.util.Map;
+
 public class RouteAuth implements Route {
 
     private GestionUtilisateur gestionUtilisateur;
@@ -21,7 +23,7 @@ public class RouteAuth implements Route {
             || chemin.equals("/api/logout");
     }
 
-    public String[] traiter(String methode, String chemin, String body) {
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
         switch (chemin) {
             case "/api/signup": {
                 String nom = JsonUtils.extraireString(body, "nom");
@@ -39,7 +41,7 @@ public class RouteAuth implements Route {
                 gestionUtilisateur.seDeconnecter();
                 Utilisateur u = gestionUtilisateur.seConnecter(nom, mdp);
                 if (u != null) {
-                    gestionFiche.chargerFiches(u);
+                    gestionFiche.chargerFichesSiBesoin(u);
                     return new String[]{"200", JsonUtils.succesAvecIdNom(u.getIdUtilisateur(), u.getNomUtilisateur())};
                 }
                 return new String[]{"401", JsonUtils.erreur("Nom ou mot de passe incorrect")};
@@ -0,0 +1,110 @@
+package service.route;
+
+import service.ConflitVersionException;
+import service.GestionFiche;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+import service.StockBlobs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Envoi d'images, lu au fil de l'eau et range dans le stock de blobs (voir StockBlobs) :
+ * POST /api/blobs : retourne {hash, image} ou image = "blob:{hash}", utilisable comme portrait
+ * PUT /api/fiches/{id}/portrait avec un corps image (tout Content-Type autre que JSON) :
+ * stocke l'image et la met en portrait de la fiche (If-Match respecte)
+ *
+ * Le corps est soit l'image brute, soit un multipart/form-data dont la premiere partie est l'image.
+ */
+public class RouteBlobs implements RouteTeleversement {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private GestionFiche gestionFiche;
+    private StockBlobs stock;
+
+    public RouteBlobs(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, StockBlobs stock) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.stock = stock;
+    }
+
+    public boolean correspond(String methode, String chemin, Map<String, String> entetes) {
+        if ("POST".equals(methode) && chemin.equals("/api/blobs")) return true;
+        String type = entetes.getOrDefault("content-type", "");
+        return "PUT".equals(methode) && chemin.matches("/api/fiches/[^/]+/portrait")
+            && !type.isEmpty() && !type.startsWith("application/json") && !type.startsWith("text/plain");
+    }
+
+    public String[] recevoir(String methode, String chemin, Map<String, String> entetes, InputStream corps) throws IOException {
+        if (gestionUtilisateur.getUtilisateurConnecte() == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+
+        Integer idFiche = null;
+        if (chemin.startsWith("/api/fiches/")) {
+            try {
+                idFiche = Integer.parseInt(chemin.split("/")[3]);
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("ID invalide"));
+            }
+            if (gestionFiche.getFiche(idFiche) == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+        }
+
+        long longueur = Long.parseLong(entetes.getOrDefault("content-length", "0"));
+        String type = entetes.getOrDefault("content-type", "");
+        // Le multipart ajoute ses en-tetes et delimiteurs : seul le contenu de l'image est limite ensuite
+        if (longueur > stock.getTailleMax() + (type.startsWith("multipart/") ? 64 * 1024 : 0)) {
+            return reponse(413, JsonUtils.erreur("image trop grande (max " + stock.getTailleMax() + " octets)"));
+        }
+
+        InputStream contenu = corps;
+        if (type.startsWith("multipart/form-data")) {
+            contenu = StockBlobs.premierePartie(corps, type);
+            if (contenu == null) return reponse(400, JsonUtils.erreur("corps multipart invalide"));
+        }
+
+        String hash;
+        try {
+            hash = stock.stocker(contenu);
+        } catch (IllegalArgumentException e) {
+            return reponse(e.getMessage().contains("trop grande") ? 413 : 400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+        }
+        String image = StockBlobs.PREFIXE + hash;
+
+        if (idFiche == null) {
+            return reponse(201, "{\"succes\":true,\"hash\":\"" + hash + "\",\"image\":\"" + image + "\"}");
+        }
+        return modifierPortrait(idFiche, image, entetes);
+    }
+
+    private String[] modifierPortrait(int idFiche, String image, Map<String, String> entetes) {
+        String ifMatch = entetes.get("if-match");
+        Long versionAttendue = null;
+        if (ifMatch != null && !ifMatch.equals("*")) {
+            try {
+                versionAttendue = Long.parseLong(ifMatch.replace("W/", "").replace("\"", "").trim());
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("If-Match invalide"));
+            }
+        }
+        Long attendue = versionAttendue;
+        try {
+            // ETag : la version publiee par ce changement de portrait, pas celle d'un ecrivain suivant
+            return gestionFiche.suivreVersions(() -> {
+                boolean ok = attendue == null ? gestionFiche.modifierPortrait(idFiche, image)
+                    : gestionFiche.executerSiVersion(attendue, () -> gestionFiche.modifierPortrait(idFiche, image));
+                if (!ok) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+                long version = gestionFiche.versionVue(idFiche);
+                return new String[]{ "200", "{\"succes\":true,\"image\":\"" + image + "\"}", "ETag: \"" + version + "\"\r\n" };
+            });
+        } catch (ConflitVersionException e) {
+            return new String[]{ "412", JsonUtils.conflitVersion(e.getVersionCourante()), "ETag: \"" + e.getVersionCourante() + "\"\r\n" };
+        }
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
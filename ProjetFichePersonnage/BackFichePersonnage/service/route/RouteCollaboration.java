@@ -0,0 +1,249 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+import service.DiffusionEvenements;
+import service.EditionCollaborative;
+import service.GestionFiche;
+import service.GestionPartage;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partage et edition collaborative des fiches :
+ * GET    /api/partages                          -> fiches partagees avec l'utilisateur connecte
+ * GET    /api/partages/{idFiche}                -> collaborateurs d'une fiche (proprietaire)
+ * PUT    /api/partages/{idFiche}                -> {nom, role} partage la fiche (role : lecteur ou editeur)
+ * DELETE /api/partages/{idFiche}/{nom}          -> retire le partage
+ * GET    /api/collab/{idProprietaire}/{idFiche} -> fiche + revision courante
+ * POST   /api/collab/{idProprietaire}/{idFiche}/operations -> {revision, operations:[...]}
+ * GET    /api/collab/{idProprietaire}/{idFiche}/events     -> flux SSE ("operation", "modification"...)
+ *
+ * Un lecteur peut lire et suivre la fiche ; un editeur ou le proprietaire peut envoyer des operations.
+ * Une reponse 409 a l'envoi d'operations signifie que le client doit recharger la fiche.
+ */
+public class RouteCollaboration implements Route, RouteFlux {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private GestionFiche gestionFiche;
+    private GestionPartage gestionPartage;
+    private EditionCollaborative edition;
+    private DiffusionEvenements diffusion;
+
+    public RouteCollaboration(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, GestionPartage gestionPartage,
+                              EditionCollaborative edition, DiffusionEvenements diffusion) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.gestionPartage = gestionPartage;
+        this.edition = edition;
+        this.diffusion = diffusion;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.equals("/api/partages") || chemin.startsWith("/api/partages/") || chemin.startsWith("/api/collab/");
+    }
+
+    public boolean correspond(String methode, String chemin) {
+        String[] segments = chemin.split("/");
+        return "GET".equals(methode) && chemin.startsWith("/api/collab/")
+            && segments.length == 6 && segments[5].equals("events");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+
+        String[] segments = chemin.split("/");
+        try {
+            if (segments[2].equals("partages")) {
+                return traiterPartages(methode, segments, body, connecte);
+            }
+            return traiterCollab(methode, segments, body, connecte);
+        } catch (NumberFormatException e) {
+            return reponse(400, JsonUtils.erreur("ID invalide"));
+        }
+    }
+
+    // ===== Partages =====
+
+    private String[] traiterPartages(String methode, String[] segments, String body, Utilisateur connecte) {
+        if (segments.length == 3) {
+            if (!"GET".equals(methode)) return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+            return reponse(200, partagesRecusVersJSON(connecte));
+        }
+
+        int idFiche = Integer.parseInt(segments[3]);
+        if (gestionFiche.getFicheDe(connecte, idFiche) == null) {
+            return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+        }
+
+        if (segments.length == 4 && "GET".equals(methode)) {
+            return reponse(200, collaborateursVersJSON(connecte, idFiche));
+        }
+        if (segments.length == 4 && "PUT".equals(methode)) {
+            Object json = lireJSON(body);
+            if (!(json instanceof Map)) return reponse(400, JsonUtils.erreur("Corps JSON invalide"));
+            Map<?, ?> donnees = (Map<?, ?>) json;
+            Object nom = donnees.get("nom");
+            Object role = donnees.get("role");
+            if (!(nom instanceof String) || !(role instanceof String)) {
+                return reponse(400, JsonUtils.erreur("nom et role requis"));
+            }
+            Utilisateur collaborateur = gestionUtilisateur.trouverParNom((String) nom);
+            if (collaborateur == null) return reponse(404, JsonUtils.erreur("Utilisateur non trouve"));
+            if (!gestionPartage.partager(connecte, idFiche, collaborateur, (String) role)) {
+                return reponse(400, JsonUtils.erreur("Partage impossible"));
+            }
+            return reponse(200, collaborateursVersJSON(connecte, idFiche));
+        }
+        if (segments.length == 5 && "DELETE".equals(methode)) {
+            Utilisateur collaborateur = gestionUtilisateur.trouverParNom(segments[4]);
+            if (collaborateur == null || !gestionPartage.retirer(connecte, idFiche, collaborateur)) {
+                return reponse(404, JsonUtils.erreur("Partage non trouve"));
+            }
+            return reponse(200, collaborateursVersJSON(connecte, idFiche));
+        }
+        return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+    }
+
+    private String partagesRecusVersJSON(Utilisateur connecte) {
+        StringBuilder json = new StringBuilder("[");
+        boolean premier = true;
+        for (GestionPartage.Partage p : gestionPartage.partagesRecus(connecte)) {
+            Utilisateur proprietaire = gestionUtilisateur.trouverParId(p.idProprietaire);
+            if (proprietaire == null) continue;
+            FichePersonnage fiche = gestionFiche.getFicheDe(proprietaire, p.idFiche);
+            if (fiche == null) continue;
+            if (!premier) json.append(",");
+            json.append("{\"idProprietaire\":").append(p.idProprietaire)
+                .append(",\"proprietaire\":\"").append(JsonUtils.echapper(proprietaire.getNomUtilisateur())).append("\"")
+                .append(",\"idFiche\":").append(p.idFiche)
+                .append(",\"nom\":\"").append(JsonUtils.echapper(fiche.getNomFichePersonnage())).append("\"")
+                .append(",\"role\":\"").append(p.role).append("\"}");
+            premier = false;
+        }
+        return json.append("]").toString();
+    }
+
+    private String collaborateursVersJSON(Utilisateur proprietaire, int idFiche) {
+        StringBuilder json = new StringBuilder("[");
+        boolean premier = true;
+        for (GestionPartage.Partage p : gestionPartage.partagesDeFiche(proprietaire, idFiche)) {
+            Utilisateur collaborateur = gestionUtilisateur.trouverParId(p.idCollaborateur);
+            if (collaborateur == null) continue;
+            if (!premier) json.append(",");
+            json.append("{\"nom\":\"").append(JsonUtils.echapper(collaborateur.getNomUtilisateur())).append("\"")
+                .append(",\"role\":\"").append(p.role).append("\"}");
+            premier = false;
+        }
+        return json.append("]").toString();
+    }
+
+    // ===== Edition collaborative =====
+
+    private String[] traiterCollab(String methode, String[] segments, String body, Utilisateur connecte) {
+        if (segments.length < 5) return reponse(404, JsonUtils.erreur("Route non trouvee"));
+        int idProprietaire = Integer.parseInt(segments[3]);
+        int idFiche = Integer.parseInt(segments[4]);
+
+        String role = gestionPartage.role(connecte, idProprietaire, idFiche);
+        Utilisateur proprietaire = gestionUtilisateur.trouverParId(idProprietaire);
+        FichePersonnage fiche = role == null || proprietaire == null ? null : gestionFiche.getFicheDe(proprietaire, idFiche);
+        if (fiche == null) {
+            return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+        }
+
+        if (segments.length == 5 && "GET".equals(methode)) {
+            return reponse(200, "{\"revision\":" + fiche.getVersion() + ",\"role\":\"" + role
+                + "\",\"fiche\":" + JsonUtils.ficheVersJSON(fiche) + "}");
+        }
+        if (segments.length == 6 && segments[5].equals("operations") && "POST".equals(methode)) {
+            if (GestionPartage.LECTEUR.equals(role)) {
+                return reponse(403, JsonUtils.erreur("Acces en lecture seule"));
+            }
+            return soumettre(connecte, proprietaire, idFiche, body);
+        }
+        return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+    }
+
+    private String[] soumettre(Utilisateur connecte, Utilisateur proprietaire, int idFiche, String body) {
+        Object json = lireJSON(body);
+        if (!(json instanceof Map)) return reponse(400, JsonUtils.erreur("Corps JSON invalide"));
+        Map<?, ?> donnees = (Map<?, ?>) json;
+        if (!(donnees.get("revision") instanceof Long) || !(donnees.get("operations") instanceof List)) {
+            return reponse(400, JsonUtils.erreur("revision et operations requis"));
+        }
+
+        List<EditionCollaborative.Operation> operations = new ArrayList<>();
+        try {
+            for (Object element : (List<?>) donnees.get("operations")) {
+                if (!(element instanceof Map)) throw new IllegalArgumentException("operation invalide");
+                operations.add(EditionCollaborative.Operation.depuisJSON((Map<?, ?>) element));
+            }
+        } catch (IllegalArgumentException e) {
+            return reponse(400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+        }
+
+        EditionCollaborative.Resultat resultat;
+        try {
+            resultat = edition.soumettre(connecte, proprietaire, idFiche, (Long) donnees.get("revision"), operations);
+        } catch (IllegalArgumentException e) {
+            return reponse(422, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+        }
+        if (resultat == null) {
+            return reponse(409, JsonUtils.erreur("Revision inconnue ou trop ancienne, recharger la fiche"));
+        }
+        return reponse(200, "{\"revision\":" + resultat.revision
+            + ",\"operations\":" + EditionCollaborative.versJSON(resultat.operations) + "}");
+    }
+
+    public String[] ouvrir(String chemin, Map<String, String> entetes, Socket client) throws IOException {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+
+        String[] segments = chemin.split("/");
+        int idProprietaire;
+        int idFiche;
+        try {
+            idProprietaire = Integer.parseInt(segments[3]);
+            idFiche = Integer.parseInt(segments[4]);
+        } catch (NumberFormatException e) {
+            return reponse(400, JsonUtils.erreur("ID invalide"));
+        }
+
+        Utilisateur proprietaire = gestionUtilisateur.trouverParId(idProprietaire);
+        FichePersonnage fiche = proprietaire == null || gestionPartage.role(connecte, idProprietaire, idFiche) == null
+            ? null : gestionFiche.getFicheDe(proprietaire, idFiche);
+        if (fiche == null) {
+            return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+        }
+
+        diffusion.abonner(proprietaire, idFiche, () -> {
+            FichePersonnage courante = gestionFiche.getFicheDe(proprietaire, idFiche);
+            return courante != null ? courante.getVersion() : fiche.getVersion();
+        }, client);
+        return null;
+    }
+
+    private Object lireJSON(String body) {
+        try {
+            return JsonUtils.lireJSON(body);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
@@ -0,0 +1,60 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+import service.DiffusionEvenements;
+import service.GestionFiche;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * Flux des modifications d'une fiche ouverte (Server-Sent Events) :
+ * GET /api/fiches/{id}/events
+ *
+ * Evenements : "ouverture" (version courante), "modification" (parties modifiees, forme
+ * JSON Merge Patch), "suppression", et "resync" si des evenements ont ete perdus.
+ */
+public class RouteEvenements implements RouteFlux {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private GestionFiche gestionFiche;
+    private DiffusionEvenements diffusion;
+
+    public RouteEvenements(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, DiffusionEvenements diffusion) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.diffusion = diffusion;
+    }
+
+    public boolean correspond(String methode, String chemin) {
+        String[] segments = chemin.split("/");
+        return "GET".equals(methode) && chemin.startsWith("/api/fiches/")
+            && segments.length == 5 && segments[4].equals("events");
+    }
+
+    public String[] ouvrir(String chemin, Map<String, String> entetes, Socket client) throws IOException {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return new String[]{"401", JsonUtils.erreur("Non connecte")};
+        }
+
+        int idFiche;
+        try {
+            idFiche = Integer.parseInt(chemin.split("/")[3]);
+        } catch (NumberFormatException e) {
+            return new String[]{"400", JsonUtils.erreur("ID invalide")};
+        }
+
+        FichePersonnage fiche = gestionFiche.getFiche(idFiche);
+        if (fiche == null) {
+            return new String[]{"404", JsonUtils.erreur("Fiche non trouvee")};
+        }
+
+        diffusion.abonner(connecte, idFiche, () -> gestionFiche.versionCourante(idFiche), client);
+        return null;
+    }
+}
@@ -1,33 +1,56 @@
 package service.route;
 
 import model.FichePersonnage;
+import service.ConflitVersionException;
+import service.FormulesStatistiques;
 import service.GestionFiche;
 import service.GestionUtilisateur;
 import service.JsonUtils;
+import service.OperationFiche;
+import service.SimulateurJets;
+import service.StockBlobs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Routes des fiches de personnage :
  * GET/POST /api/fiches
- * GET/DELETE /api/fiches/{id}
- * PUT /api/fiches/{id}/portrait, /biographie
+ * GET/PATCH/DELETE /api/fiches/{id} (PATCH : JSON Merge Patch, voir PatchFiche)
+ * PUT /api/fiches/{id}/portrait, /biographie (portrait en data URL : range dans StockBlobs,
+ *   comme dans un PATCH ou un lot ; envoi d'une image brute ou multipart : voir RouteBlobs)
  * POST /api/fiches/{id}/statistiques, /competences, /equipements
  * PUT /api/fiches/{id}/module/position, /module/taille
+ * POST /api/fiches/{id}/batch (lot d'operations applique en tout ou rien)
+ * POST /api/fiches/{id}/simulations (jets de des simules, voir SimulateurJets)
+ * POST /api/fiches/{id}/clone {nom} (clone partageant les modules de la fiche)
+ * (historique des versions : voir RouteHistorique)
+ *
+ * Les reponses portant sur une fiche renvoient sa version dans l'en-tete ETag.
+ * Si la requete porte un en-tete If-Match, toute modification sous /api/fiches/{id}
+ * n'est appliquee que si la fiche est encore dans cette version (sinon 412 + version courante).
  */
 public class RouteFiches implements Route {
 
     private GestionUtilisateur gestionUtilisateur;
     private GestionFiche gestionFiche;
+    private SimulateurJets simulateur;
+    private StockBlobs stock;
 
-    public RouteFiches(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche) {
+    public RouteFiches(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, SimulateurJets simulateur, StockBlobs stock) {
         this.gestionUtilisateur = gestionUtilisateur;
         this.gestionFiche = gestionFiche;
+        this.simulateur = simulateur;
+        this.stock = stock;
     }
 
     public boolean correspond(String chemin) {
         return chemin.equals("/api/fiches") || chemin.startsWith("/api/fiches/");
     }
 
-    public String[] traiter(String methode, String chemin, String body) {
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
         // Verification connexion
         if (gestionUtilisateur.getUtilisateurConnecte() == null) {
             return reponse(401, JsonUtils.erreur("Non connecte"));
@@ -49,12 +72,15 @@ public class RouteFiches implements Route {
 
         // /api/fiches/{id}
         if (segments.length == 4) {
-            return traiterFiche(methode, idFiche);
+            if ("GET".equals(methode)) {
+                return avecVersion(idFiche, () -> traiterFiche(methode, body, idFiche));
+            }
+            return avecControleVersion(idFiche, entetes, () -> traiterFiche(methode, body, idFiche));
         }
 
         // /api/fiches/{id}/{ressource}
         if (segments.length >= 5) {
-            return traiterRessource(methode, body, idFiche, segments);
+            return avecControleVersion(idFiche, entetes, () -> traiterRessource(methode, body, idFiche, segments));
         }
 
         return reponse(404, JsonUtils.erreur("Route inconnue"));
@@ -75,12 +101,44 @@ public class RouteFiches implements Route {
         return reponse(405, JsonUtils.erreur("Methode non autorisee"));
     }
 
-    private String[] traiterFiche(String methode, int idFiche) {
+    private String[] traiterFiche(String methode, String body, int idFiche) {
         if ("GET".equals(methode)) {
             FichePersonnage fiche = gestionFiche.getFiche(idFiche);
             if (fiche == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
             return reponse(200, JsonUtils.ficheVersJSON(fiche));
         }
+        if ("PATCH".equals(methode)) {
+            Object patch;
+            try {
+                patch = JsonUtils.lireJSON(body);
+            } catch (IllegalArgumentException e) {
+                return reponse(400, JsonUtils.erreur("JSON invalide"));
+            }
+            if (!(patch instanceof Map)) return reponse(400, JsonUtils.erreur("Le patch doit etre un objet"));
+
+            try {
+                patch = referencesImages((Map<?, ?>) patch);
+            } catch (IllegalArgumentException e) {
+                return reponse(e.getMessage().contains("trop grande") ? 413 : 400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+            }
+
+            java.util.List<String> modifies;
+            try {
+                modifies = gestionFiche.appliquerPatch(idFiche, (Map<?, ?>) patch);
+            } catch (IllegalArgumentException e) {
+                return reponse(400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+            }
+            if (modifies == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+
+            StringBuilder json = new StringBuilder("{\"succes\":true,\"version\":")
+                .append(gestionFiche.versionVue(idFiche)).append(",\"modifies\":[");
+            for (int i = 0; i < modifies.size(); i++) {
+                json.append("\"").append(modifies.get(i)).append("\"");
+                if (i < modifies.size() - 1) json.append(",");
+            }
+            json.append("]}");
+            return reponse(200, json.toString());
+        }
         if ("DELETE".equals(methode)) {
             boolean ok = gestionFiche.supprimerFiche(idFiche);
             return ok ? reponse(200, JsonUtils.succes()) : reponse(404, JsonUtils.erreur("Fiche non trouvee"));
@@ -94,7 +152,13 @@ public class RouteFiches implements Route {
         switch (ressource) {
             case "portrait":
                 if ("PUT".equals(methode)) {
-                    gestionFiche.modifierPortrait(idFiche, JsonUtils.extraireString(body, "image"));
+                    String image;
+                    try {
+                        image = stock.reference(JsonUtils.extraireString(body, "image"));
+                    } catch (IllegalArgumentException e) {
+                        return reponse(e.getMessage().contains("trop grande") ? 413 : 400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+                    }
+                    gestionFiche.modifierPortrait(idFiche, image);
                     return reponse(200, JsonUtils.succes());
                 }
                 return reponse(405, JsonUtils.erreur("Methode non autorisee"));
@@ -110,11 +174,30 @@ public class RouteFiches implements Route {
                 if ("POST".equals(methode)) {
                     String nom = JsonUtils.extraireString(body, "nom");
                     Integer val = JsonUtils.extraireInt(body, "valeur");
-                    if (nom != null && val != null) {
-                        gestionFiche.ajouterStatistique(idFiche, nom, val);
+                    String formule = JsonUtils.extraireString(body, "formule");
+                    if (formule != null && formule.isBlank()) formule = null;
+                    // Une statistique derivee n'a pas besoin de valeur : elle est calculee
+                    if (nom != null && (val != null || formule != null)) {
+                        try {
+                            FormulesStatistiques.verifier(formule);
+                        } catch (IllegalArgumentException e) {
+                            return reponse(400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+                        }
+                        if (!gestionFiche.ajouterStatistique(idFiche, nom, val != null ? val : 0, formule)) {
+                            return reponse(400, JsonUtils.erreur("Statistique refusee (fiche introuvable ou formules en cycle)"));
+                        }
                         return reponse(201, JsonUtils.succes());
                     }
-                    return reponse(400, JsonUtils.erreur("nom et valeur requis"));
+                    return reponse(400, JsonUtils.erreur("nom et valeur (ou formule) requis"));
+                }
+                return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+
+            case "clone":
+                if ("POST".equals(methode)) {
+                    String nom = JsonUtils.extraireString(body, "nom");
+                    FichePersonnage clone = gestionFiche.clonerFiche(idFiche, nom == null || nom.isEmpty() ? null : nom);
+                    if (clone == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+                    return reponse(201, JsonUtils.succesAvecIdNom(clone.getIdFichePersonnage(), clone.getNomFichePersonnage()));
                 }
                 return reponse(405, JsonUtils.erreur("Methode non autorisee"));
 
@@ -143,6 +226,18 @@ public class RouteFiches implements Route {
             case "module":
                 return traiterModule(methode, body, idFiche, segments);
 
+            case "batch":
+                if ("POST".equals(methode)) {
+                    return traiterLot(body, idFiche);
+                }
+                return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+
+            case "simulations":
+                if ("POST".equals(methode)) {
+                    return traiterSimulation(body, idFiche);
+                }
+                return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+
             case "rename":
                 if ("PUT".equals(methode)) {
                     String nom = JsonUtils.extraireString(body, "nom");
@@ -206,6 +301,43 @@ public class RouteFiches implements Route {
         }
     }
 
+    /**
+     * Corps : {"expression": "1d20 + Force", "seuil": 15, "essais": 100000, "graine": 42}
+     * (seuil, essais et graine facultatifs).
+     */
+    private String[] traiterSimulation(String body, int idFiche) {
+        FichePersonnage fiche = gestionFiche.getFiche(idFiche);
+        if (fiche == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+
+        Object json;
+        try {
+            json = JsonUtils.lireJSON(body);
+        } catch (IllegalArgumentException e) {
+            return reponse(400, JsonUtils.erreur("JSON invalide"));
+        }
+        if (!(json instanceof Map)) return reponse(400, JsonUtils.erreur("Corps JSON invalide"));
+        Map<?, ?> donnees = (Map<?, ?>) json;
+
+        Object expression = donnees.get("expression");
+        Object seuil = donnees.get("seuil");
+        Object essais = donnees.containsKey("essais") ? donnees.get("essais") : (Object) 100_000L;
+        Object graine = donnees.get("graine");
+        if (!(expression instanceof String)) return reponse(400, JsonUtils.erreur("expression requise"));
+        if (seuil != null && !(seuil instanceof Long)) return reponse(400, JsonUtils.erreur("seuil doit etre un entier"));
+        if (graine != null && !(graine instanceof Long)) return reponse(400, JsonUtils.erreur("graine doit etre un entier"));
+        if (!(essais instanceof Long) || (Long) essais < 1 || (Long) essais > simulateur.getEssaisMax()) {
+            return reponse(400, JsonUtils.erreur("essais doit etre compris entre 1 et " + simulateur.getEssaisMax()));
+        }
+
+        try {
+            String resultat = simulateur.simuler(gestionUtilisateur.getUtilisateurConnecte().getIdUtilisateur(), fiche,
+                (String) expression, seuil == null ? null : ((Long) seuil).intValue(), ((Long) essais).intValue(), (Long) graine);
+            return reponse(200, resultat);
+        } catch (IllegalArgumentException e) {
+            return reponse(400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+        }
+    }
+
     private String[] traiterModule(String methode, String body, int idFiche, String[] segments) {
         if (segments.length < 6 || !"PUT".equals(methode)) {
             return reponse(405, JsonUtils.erreur("Methode non autorisee"));
@@ -237,6 +369,264 @@ public class RouteFiches implements Route {
         return reponse(404, JsonUtils.erreur("Route inconnue"));
     }
 
+    /**
+     * POST /api/fiches/{id}/batch
+     * Body : {"operations":[{"operation":"modifierPositionModule","module":"portrait","posX":0,"posY":0}, ...]}
+     * Les noms d'operation sont ceux des modificateurs de GestionFiche. Le lot est applique
+     * en tout ou rien, avec une seule nouvelle version et une seule sauvegarde.
+     */
+    private String[] traiterLot(String body, int idFiche) {
+        List<Object> liste;
+        try {
+            Object json = JsonUtils.lireJSON(body);
+            Object operationsJSON = json instanceof Map ? ((Map<?, ?>) json).get("operations") : json;
+            if (!(operationsJSON instanceof List)) {
+                return reponse(400, JsonUtils.erreur("operations requises"));
+            }
+            @SuppressWarnings("unchecked")
+            List<Object> operationsLues = (List<Object>) operationsJSON;
+            liste = operationsLues;
+        } catch (IllegalArgumentException e) {
+            return reponse(400, JsonUtils.erreur("JSON invalide"));
+        }
+
+        List<String> noms = new ArrayList<>();
+        List<OperationFiche> operations = new ArrayList<>();
+        for (int i = 0; i < liste.size(); i++) {
+            OperationFiche operation;
+            try {
+                operation = liste.get(i) instanceof Map ? operationDepuisJSON((Map<?, ?>) liste.get(i)) : null;
+            } catch (IllegalArgumentException e) {
+                return reponse(e.getMessage().contains("trop grande") ? 413 : 400,
+                    JsonUtils.erreur("Operation " + i + " : " + JsonUtils.echapper(e.getMessage())));
+            }
+            if (operation == null) {
+                return reponse(400, JsonUtils.erreur("Operation " + i + " invalide"));
+            }
+            noms.add(texte((Map<?, ?>) liste.get(i), "operation"));
+            operations.add(operation);
+        }
+
+        boolean[] resultats = gestionFiche.appliquerLot(idFiche, operations);
+        if (resultats == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+
+        int echec = -1;
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < resultats.length; i++) {
+            if (!resultats[i] && echec < 0) echec = i;
+            json.append("{\"operation\":\"").append(noms.get(i)).append("\",\"succes\":").append(resultats[i]).append("}");
+            if (i < resultats.length - 1) json.append(",");
+        }
+        json.append("]");
+
+        if (echec >= 0) {
+            return reponse(400, "{\"erreur\":\"Operation " + echec + " echouee, aucune modification appliquee\",\"resultats\":" + json + "}");
+        }
+        return reponse(200, "{\"succes\":true,\"version\":" + gestionFiche.versionVue(idFiche) + ",\"resultats\":" + json + "}");
+    }
+
+    /**
+     * Construit une operation depuis sa description JSON, null si elle est incomplete ou inconnue.
+     */
+    private OperationFiche operationDepuisJSON(Map<?, ?> op) {
+        String operation = texte(op, "operation");
+        if (operation == null) return null;
+
+        switch (operation) {
+            case "modifierPortrait": {
+                String image = stock.reference(texte(op, "image"));
+                return image != null ? OperationFiche.modifierPortrait(image) : null;
+            }
+            case "modifierBiographie": {
+                String texte = texte(op, "texte");
+                return texte != null ? OperationFiche.modifierBiographie(texte) : null;
+            }
+            case "ajouterStatistique": {
+                String nom = texte(op, "nom");
+                Integer valeur = entier(op, "valeur");
+                String formule = texte(op, "formule");
+                if (nom == null || (valeur == null && formule == null) || !formuleValide(formule)) return null;
+                return OperationFiche.ajouterStatistique(nom, valeur != null ? valeur : 0, formule);
+            }
+            case "modifierStatistique": {
+                Integer id = entier(op, "id");
+                String nom = texte(op, "nom");
+                Integer valeur = entier(op, "valeur");
+                if (id == null || nom == null || valeur == null) return null;
+                // Sans cle "formule", la formule existante est gardee ; "formule": null la retire
+                if (!op.containsKey("formule")) return OperationFiche.modifierStatistique(id, nom, valeur);
+                String formule = texte(op, "formule");
+                return formuleValide(formule) ? OperationFiche.modifierStatistique(id, nom, valeur, formule) : null;
+            }
+            case "supprimerStatistique": {
+                Integer id = entier(op, "id");
+                return id != null ? OperationFiche.supprimerStatistique(id) : null;
+            }
+            case "ajouterCompetence": {
+                String nom = texte(op, "nom");
+                return nom != null ? OperationFiche.ajouterCompetence(nom) : null;
+            }
+            case "modifierCompetence": {
+                String ancien = texte(op, "ancienNom");
+                String nouveau = texte(op, "nouveauNom");
+                return ancien != null && nouveau != null ? OperationFiche.modifierCompetence(ancien, nouveau) : null;
+            }
+            case "supprimerCompetence": {
+                String nom = texte(op, "nom");
+                return nom != null ? OperationFiche.supprimerCompetence(nom) : null;
+            }
+            case "ajouterEquipement": {
+                String nom = texte(op, "nom");
+                return nom != null ? OperationFiche.ajouterEquipement(nom) : null;
+            }
+            case "modifierEquipement": {
+                String ancien = texte(op, "ancienNom");
+                String nouveau = texte(op, "nouveauNom");
+                return ancien != null && nouveau != null ? OperationFiche.modifierEquipement(ancien, nouveau) : null;
+            }
+            case "supprimerEquipement": {
+                String nom = texte(op, "nom");
+                return nom != null ? OperationFiche.supprimerEquipement(nom) : null;
+            }
+            case "modifierPositionModule": {
+                String module = texte(op, "module");
+                Integer x = entier(op, "posX");
+                Integer y = entier(op, "posY");
+                return module != null && x != null && y != null ? OperationFiche.modifierPositionModule(module, x, y) : null;
+            }
+            case "modifierTailleModule": {
+                String module = texte(op, "module");
+                Integer l = entier(op, "largeur");
+                Integer h = entier(op, "hauteur");
+                return module != null && l != null && h != null ? OperationFiche.modifierTailleModule(module, l, h) : null;
+            }
+            case "modifierNomFiche": {
+                String nom = texte(op, "nom");
+                return nom != null && !nom.isEmpty() ? OperationFiche.modifierNomFiche(nom) : null;
+            }
+            case "ajouterModulePersonnalise": {
+                String nom = texte(op, "nom");
+                String type = texte(op, "type");
+                if (nom == null || nom.isEmpty() || type == null || type.isEmpty()) return null;
+                String id = texte(op, "id");
+                return OperationFiche.ajouterModulePersonnalise(modulePersonnaliseDepuisJSON(op, id != null ? id : java.util.UUID.randomUUID().toString()));
+            }
+            case "modifierModulePersonnalise": {
+                String idModule = texte(op, "idModule");
+                if (idModule == null) return null;
+                String id = texte(op, "id");
+                return OperationFiche.modifierModulePersonnalise(idModule, modulePersonnaliseDepuisJSON(op, id != null ? id : idModule));
+            }
+            case "supprimerModulePersonnalise": {
+                String idModule = texte(op, "idModule");
+                return idModule != null ? OperationFiche.supprimerModulePersonnalise(idModule) : null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Construit un module personnalise depuis sa description JSON (memes champs que la route dediee).
+     */
+    private model.ModulePersonnalise modulePersonnaliseDepuisJSON(Map<?, ?> op, String id) {
+        String nom = texte(op, "nom");
+        String type = texte(op, "type");
+        model.ModulePersonnalise mp = new model.ModulePersonnalise(id, nom != null && !nom.isEmpty() ? nom : "Module", type != null ? type : "texte");
+        String contenuTexte = texte(op, "contenuTexte");
+        if (contenuTexte != null) mp.setContenuTexte(contenuTexte);
+        if (op.get("contenuListe") instanceof List) {
+            List<String> liste = new ArrayList<>();
+            for (Object o : (List<?>) op.get("contenuListe")) {
+                if (o instanceof String) liste.add((String) o);
+            }
+            mp.setContenuListe(liste);
+        }
+        if (op.get("contenuStats") instanceof List) {
+            List<model.Statistique> stats = new ArrayList<>();
+            for (Object o : (List<?>) op.get("contenuStats")) {
+                if (!(o instanceof Map)) continue;
+                String nomStat = texte((Map<?, ?>) o, "nom");
+                Integer valeur = entier((Map<?, ?>) o, "valeur");
+                if (nomStat != null && valeur != null) stats.add(new model.Statistique(0, nomStat, valeur));
+            }
+            mp.setContenuStats(stats);
+        }
+        return mp;
+    }
+
+    /**
+     * Le patch avec son image de portrait convertie par StockBlobs.reference, avant le verrou de la fiche.
+     */
+    private Map<?, ?> referencesImages(Map<?, ?> patch) {
+        if (!(patch.get("portrait") instanceof Map)) return patch;
+        Map<Object, Object> portrait = new java.util.LinkedHashMap<>((Map<?, ?>) patch.get("portrait"));
+        if (!(portrait.get("image") instanceof String)) return patch;
+        portrait.put("image", stock.reference((String) portrait.get("image")));
+        Map<Object, Object> copie = new java.util.LinkedHashMap<>(patch);
+        copie.put("portrait", portrait);
+        return copie;
+    }
+
+    private boolean formuleValide(String formule) {
+        try {
+            FormulesStatistiques.verifier(formule);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private String texte(Map<?, ?> objet, String cle) {
+        Object valeur = objet.get(cle);
+        return valeur instanceof String ? (String) valeur : null;
+    }
+
+    private Integer entier(Map<?, ?> objet, String cle) {
+        Object valeur = objet.get(cle);
+        return valeur instanceof Long ? ((Long) valeur).intValue() : null;
+    }
+
+    /**
+     * Execute une modification en respectant l'en-tete If-Match s'il est present.
+     */
+    private String[] avecControleVersion(int idFiche, Map<String, String> entetes, Supplier<String[]> traitement) {
+        String ifMatch = entetes.get("if-match");
+        if (ifMatch == null || ifMatch.equals("*")) {
+            return avecVersion(idFiche, traitement);
+        }
+
+        long versionAttendue;
+        try {
+            versionAttendue = Long.parseLong(ifMatch.replace("W/", "").replace("\"", "").trim());
+        } catch (NumberFormatException e) {
+            return reponse(400, JsonUtils.erreur("If-Match invalide"));
+        }
+
+        try {
+            return avecVersion(idFiche, () -> gestionFiche.executerSiVersion(versionAttendue, traitement));
+        } catch (ConflitVersionException e) {
+            return new String[]{ "412", JsonUtils.conflitVersion(e.getVersionCourante()), etag(e.getVersionCourante()) };
+        }
+    }
+
+    /**
+     * Execute un traitement et ajoute a sa reponse l'en-tete ETag : la version de la fiche que le
+     * traitement a lue ou publiee (voir GestionFiche.suivreVersions), si la fiche existe encore.
+     */
+    private String[] avecVersion(int idFiche, Supplier<String[]> traitement) {
+        return gestionFiche.suivreVersions(() -> {
+            String[] reponse = traitement.get();
+            long version = gestionFiche.versionVue(idFiche);
+            if (version < 0) return reponse;
+            return new String[]{ reponse[0], reponse[1], etag(version) };
+        });
+    }
+
+    private String etag(long version) {
+        return "ETag: \"" + version + "\"\r\n";
+    }
+
     private String[] reponse(int code, String json) {
         return new String[]{ String.valueOf(code), json };
     }
@@ -0,0 +1,181 @@
+package service.route;
+
+import service.FichiersStatiques;
+import service.JsonUtils;
+import service.Miniatures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Envoi de fichiers (voir FichiersStatiques) :
+ * GET /api/blobs/{hash}[?taille=64|128|256] : image du stock de blobs, ou sa miniature
+ * GET /{chemin} hors /api : application web construite, si son dossier existe
+ *
+ * La reponse est ecrite directement sur le socket : les fichiers en cache partent de la memoire,
+ * les autres du disque par FileChannel.transferTo (sendfile, sans copie dans la JVM).
+ * Gere If-None-Match (304), Range sur un intervalle d'octets (206, 416) et If-Range.
+ */
+public class RouteFichiers implements RouteFlux {
+
+    private FichiersStatiques fichiers;
+
+    public RouteFichiers(FichiersStatiques fichiers) {
+        this.fichiers = fichiers;
+    }
+
+    public boolean correspond(String methode, String chemin) {
+        if (!"GET".equals(methode)) return false;
+        if (chemin.startsWith("/api/blobs/")) return true;
+        return fichiers.applicationDisponible() && !chemin.startsWith("/api/") && !chemin.equals("/api");
+    }
+
+    public String[] ouvrir(String chemin, Map<String, String> entetes, Socket client) throws IOException {
+        FichiersStatiques.Ressource ressource;
+        if (chemin.startsWith("/api/blobs/")) {
+            String hash = chemin.substring("/api/blobs/".length());
+            int requete = hash.indexOf('?');
+            if (requete >= 0) hash = hash.substring(0, requete);
+            String taille = RouteSync.parametre(chemin, "taille");
+            if (taille == null || taille.isEmpty()) {
+                ressource = fichiers.blob(hash);
+            } else {
+                try {
+                    int cote = Integer.parseInt(taille);
+                    if (!Miniatures.tailleValide(cote)) {
+                        return new String[]{"400", JsonUtils.erreur("taille doit valoir " + Arrays.toString(Miniatures.TAILLES))};
+                    }
+                    ressource = fichiers.miniature(hash, cote);
+                } catch (NumberFormatException e) {
+                    return new String[]{"400", JsonUtils.erreur("taille invalide")};
+                } catch (IllegalArgumentException e) {
+                    return new String[]{"415", JsonUtils.erreur(JsonUtils.echapper(e.getMessage()))};
+                }
+            }
+            if (ressource == null) return new String[]{"404", JsonUtils.erreur("Image non trouvee")};
+        } else {
+            ressource = fichiers.statique(chemin);
+            if (ressource == null) return new String[]{"404", JsonUtils.erreur("Fichier non trouve")};
+        }
+
+        try {
+            envoyer(ressource, entetes, client);
+        } finally {
+            client.close();
+        }
+        return null;
+    }
+
+    private void envoyer(FichiersStatiques.Ressource ressource, Map<String, String> entetes, Socket client) throws IOException {
+        StringBuilder reponse = new StringBuilder();
+        String cache = ressource.immuable ? "public, max-age=31536000, immutable" : "no-cache";
+
+        // Copie encore valide chez le client
+        String ifNoneMatch = entetes.get("if-none-match");
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(ressource.etag))) {
+            reponse.append("HTTP/1.1 304 Not Modified\r\n");
+            entetesCommuns(reponse, ressource, cache);
+            reponse.append("\r\n");
+            ecrire(client, reponse);
+            return;
+        }
+
+        long debut = 0;
+        long longueur = ressource.taille;
+        String range = entetes.get("range");
+        String ifRange = entetes.get("if-range");
+        if (range != null && (ifRange == null || ifRange.equals(ressource.etag))) {
+            long[] intervalle = intervalle(range, ressource.taille);
+            if (intervalle == null) {
+                reponse.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+                entetesCommuns(reponse, ressource, cache);
+                reponse.append("Content-Range: bytes */").append(ressource.taille).append("\r\n")
+                    .append("Content-Length: 0\r\n\r\n");
+                ecrire(client, reponse);
+                return;
+            }
+            if (intervalle.length == 2) {
+                debut = intervalle[0];
+                longueur = intervalle[1] - intervalle[0] + 1;
+                reponse.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(debut).append("-").append(intervalle[1])
+                    .append("/").append(ressource.taille).append("\r\n");
+            }
+        }
+        if (reponse.length() == 0) reponse.append("HTTP/1.1 200 OK\r\n");
+        entetesCommuns(reponse, ressource, cache);
+        reponse.append("Content-Type: ").append(ressource.type).append("\r\n")
+            .append("Content-Length: ").append(longueur).append("\r\n\r\n");
+        ecrire(client, reponse);
+
+        OutputStream out = client.getOutputStream();
+        if (ressource.contenu != null) {
+            out.write(ressource.contenu, (int) debut, (int) longueur);
+            out.flush();
+            return;
+        }
+
+        // Socket issu d'un ServerSocketChannel : le noyau copie directement du fichier au socket
+        WritableByteChannel destination = client.getChannel() != null ? client.getChannel() : Channels.newChannel(out);
+        try (FileChannel source = FileChannel.open(ressource.fichier.toPath(), StandardOpenOption.READ)) {
+            long envoyes = 0;
+            while (envoyes < longueur) {
+                long n = source.transferTo(debut + envoyes, longueur - envoyes, destination);
+                if (n <= 0) break; // fichier raccourci entre-temps
+                envoyes += n;
+            }
+        }
+    }
+
+    private static void entetesCommuns(StringBuilder reponse, FichiersStatiques.Ressource ressource, String cache) {
+        reponse.append("ETag: ").append(ressource.etag).append("\r\n")
+            .append("Cache-Control: ").append(cache).append("\r\n")
+            .append("Accept-Ranges: bytes\r\n")
+            .append("Access-Control-Allow-Origin: *\r\n")
+            .append("Connection: close\r\n");
+    }
+
+    /**
+     * Intervalle [debut, fin] demande par un en-tete Range, null s'il est hors du fichier,
+     * ou un tableau vide s'il n'est pas gere (plusieurs intervalles, autre unite) : le fichier
+     * est alors envoye en entier.
+     */
+    private static long[] intervalle(String range, long taille) {
+        if (!range.startsWith("bytes=") || range.contains(",")) return new long[0];
+        String spec = range.substring(6).trim();
+        int tiret = spec.indexOf('-');
+        if (tiret < 0) return new long[0];
+        try {
+            long debut;
+            long fin;
+            if (tiret == 0) {
+                // bytes=-n : les n derniers octets
+                long n = Long.parseLong(spec.substring(1));
+                if (n <= 0) return null;
+                debut = Math.max(0, taille - n);
+                fin = taille - 1;
+            } else {
+                debut = Long.parseLong(spec.substring(0, tiret));
+                fin = tiret == spec.length() - 1 ? taille - 1 : Math.min(taille - 1, Long.parseLong(spec.substring(tiret + 1)));
+            }
+            if (debut >= taille || debut > fin) return null;
+            return new long[]{ debut, fin };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static void ecrire(Socket client, StringBuilder entetes) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(entetes.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+}
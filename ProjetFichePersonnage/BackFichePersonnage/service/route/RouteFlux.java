@@ -0,0 +1,21 @@
+package service.route;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * Route qui peut garder la connexion ouverte apres la requete (flux d'evenements...).
+ * Consultee par ServeurAPI avant les routes classiques.
+ */
+public interface RouteFlux {
+
+    /** Retourne true si cette route gere la methode et le chemin donnes */
+    boolean correspond(String methode, String chemin);
+
+    /**
+     * Prend en charge la connexion. Retourne null si la route garde le socket (elle est alors
+     * responsable de sa fermeture), sinon une reponse [code, json] que le serveur envoie avant de fermer.
+     */
+    String[] ouvrir(String chemin, Map<String, String> entetes, Socket client) throws IOException;
+}
@@ -0,0 +1,145 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+import service.ConflitVersionException;
+import service.GestionFiche;
+import service.GestionUtilisateur;
+import service.HistoriqueFiches;
+import service.JsonUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Historique des versions d'une fiche (voir HistoriqueFiches) :
+ * GET /api/fiches/{id}/history : versions conservees, de la plus ancienne a la courante
+ * GET /api/fiches/{id}?version=N : la fiche telle qu'elle etait dans la version N
+ * POST /api/fiches/{id}/restore {version} : publie une nouvelle version identique a la version donnee
+ *   (If-Match respecte)
+ */
+public class RouteHistorique implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private GestionFiche gestionFiche;
+    private HistoriqueFiches historique;
+
+    public RouteHistorique(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, HistoriqueFiches historique) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.historique = historique;
+    }
+
+    public boolean correspond(String chemin) {
+        String sansRequete = chemin.split("\\?", 2)[0];
+        if (sansRequete.matches("/api/fiches/[^/]+/(history|restore)")) return true;
+        return sansRequete.matches("/api/fiches/[^/]+") && RouteSync.parametre(chemin, "version") != null;
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+
+        String[] segments = chemin.split("\\?", 2)[0].split("/");
+        int idFiche;
+        try {
+            idFiche = Integer.parseInt(segments[3]);
+        } catch (NumberFormatException e) {
+            return reponse(400, JsonUtils.erreur("ID invalide"));
+        }
+        FichePersonnage fiche = gestionFiche.getFiche(idFiche);
+        if (fiche == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+
+        if (segments.length == 4) {
+            if (!"GET".equals(methode)) return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+            long numero;
+            try {
+                numero = Long.parseLong(RouteSync.parametre(chemin, "version"));
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("version invalide"));
+            }
+            return lireVersion(connecte, fiche, numero);
+        }
+
+        if (segments[4].equals("history")) {
+            if (!"GET".equals(methode)) return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+            return reponse(200, versionsVersJSON(idFiche, historique.versions(connecte, fiche)));
+        }
+
+        if (!"POST".equals(methode)) return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        Integer numero = JsonUtils.extraireInt(body, "version");
+        if (numero == null) return reponse(400, JsonUtils.erreur("version requise"));
+        return restaurer(connecte, fiche, numero, entetes);
+    }
+
+    private String[] lireVersion(Utilisateur connecte, FichePersonnage fiche, long numero) {
+        FichePersonnage passee;
+        try {
+            passee = historique.lireVersion(connecte, fiche, numero);
+        } catch (IOException e) {
+            System.out.println("Erreur de lecture de l'historique : " + e.getMessage());
+            return reponse(500, JsonUtils.erreur("Historique illisible"));
+        }
+        if (passee == null) return reponse(404, JsonUtils.erreur("Version non conservee"));
+        return reponse(200, JsonUtils.ficheVersJSON(passee));
+    }
+
+    private String[] restaurer(Utilisateur connecte, FichePersonnage fiche, long numero, Map<String, String> entetes) {
+        int idFiche = fiche.getIdFichePersonnage();
+        FichePersonnage passee;
+        try {
+            passee = historique.lireVersion(connecte, fiche, numero);
+        } catch (IOException e) {
+            System.out.println("Erreur de lecture de l'historique : " + e.getMessage());
+            return reponse(500, JsonUtils.erreur("Historique illisible"));
+        }
+        if (passee == null) return reponse(404, JsonUtils.erreur("Version non conservee"));
+
+        String ifMatch = entetes.get("if-match");
+        Long versionAttendue = null;
+        if (ifMatch != null && !ifMatch.equals("*")) {
+            try {
+                versionAttendue = Long.parseLong(ifMatch.replace("W/", "").replace("\"", "").trim());
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("If-Match invalide"));
+            }
+        }
+        Long attendue = versionAttendue;
+        try {
+            return gestionFiche.suivreVersions(() -> {
+                boolean ok = attendue == null ? gestionFiche.restaurerVersion(idFiche, passee)
+                    : gestionFiche.executerSiVersion(attendue, () -> gestionFiche.restaurerVersion(idFiche, passee));
+                if (!ok) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+                long version = gestionFiche.versionVue(idFiche);
+                return new String[]{ "200", "{\"succes\":true,\"version\":" + version + ",\"restauree\":" + numero + "}", "ETag: \"" + version + "\"\r\n" };
+            });
+        } catch (ConflitVersionException e) {
+            return new String[]{ "412", JsonUtils.conflitVersion(e.getVersionCourante()), "ETag: \"" + e.getVersionCourante() + "\"\r\n" };
+        }
+    }
+
+    private static String versionsVersJSON(int idFiche, List<HistoriqueFiches.Version> versions) {
+        StringBuilder json = new StringBuilder("{\"idFiche\":").append(idFiche).append(",\"versions\":[");
+        for (int i = 0; i < versions.size(); i++) {
+            HistoriqueFiches.Version v = versions.get(i);
+            if (i > 0) json.append(",");
+            json.append("{\"version\":").append(v.numero)
+                .append(",\"date\":").append(v.date)
+                .append(",\"pointDeControle\":").append(v.pointDeControle)
+                .append(",\"parties\":[");
+            for (int j = 0; j < v.parties.size(); j++) {
+                if (j > 0) json.append(",");
+                json.append("\"").append(v.parties.get(j)).append("\"");
+            }
+            json.append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
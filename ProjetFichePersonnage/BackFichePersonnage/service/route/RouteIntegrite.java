@@ -0,0 +1,50 @@
+package service.route;
+
+import model.Utilisateur;
+import service.Configuration;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+import service.VerificationIntegrite;
+
+import java.util.Map;
+
+/**
+ * Compteurs d'integrite des fichiers de fiches pour les administrateurs :
+ * GET /api/admin/integrity
+ *
+ * Verifications de fond (passes, fichiers et octets relus) et fichiers abimes trouves,
+ * au chargement comme en fond : enregistrements abimes, fiches recuperees ou perdues,
+ * copies mises en quarantaine (voir VerificationIntegrite).
+ */
+public class RouteIntegrite implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private VerificationIntegrite verification;
+
+    public RouteIntegrite(GestionUtilisateur gestionUtilisateur, VerificationIntegrite verification) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.verification = verification;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.split("\\?", 2)[0].equals("/api/admin/integrity");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!Configuration.liste("admins").contains(connecte.getNomUtilisateur())) {
+            return reponse(403, JsonUtils.erreur("Reserve aux administrateurs"));
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+        return reponse(200, verification.getCompteurs().versJSON());
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
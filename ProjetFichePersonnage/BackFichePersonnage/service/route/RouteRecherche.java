@@ -0,0 +1,148 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Statistique;
+import model.Utilisateur;
+import service.GestionUtilisateur;
+import service.IndexRecherche;
+import service.IndexStatistiques;
+import service.JsonUtils;
+import service.RequeteFiches;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recherche dans les fiches de l'utilisateur connecte :
+ * GET /api/fiches/search?q={texte}&limit={n}
+ *   -> fiches contenant tous les mots (ou un mot qui commence par eux), de la plus
+ *      pertinente a la moins pertinente : [{id, nom, version, score}, ...]
+ * GET /api/fiches/query?where={conditions}&sort={champ}&order=asc|desc&limit={n}
+ *   -> fiches filtrees et triees sur leurs statistiques (langage : voir RequeteFiches),
+ *      ex. where=force >= 15 et agilite < 10&sort=pv&order=desc
+ *      {index, candidats, fiches:[{id, nom, version, statistiques:[...]}, ...]}
+ *      un autre parametre est refuse (400) plutot qu'ignore
+ *
+ * Placee avant RouteFiches, qui traiterait "search" et "query" comme des ID.
+ */
+public class RouteRecherche implements Route {
+
+    private static final int LIMITE_DEFAUT = 20;
+    private static final int LIMITE_MAX = 200;
+    private static final List<String> PARAMETRES_REQUETE = List.of("where", "sort", "order", "limit");
+
+    private GestionUtilisateur gestionUtilisateur;
+    private IndexRecherche index;
+    private IndexStatistiques indexStatistiques;
+
+    public RouteRecherche(GestionUtilisateur gestionUtilisateur, IndexRecherche index, IndexStatistiques indexStatistiques) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.index = index;
+        this.indexStatistiques = indexStatistiques;
+    }
+
+    public boolean correspond(String chemin) {
+        String sansParametres = chemin.split("\\?", 2)[0];
+        return sansParametres.equals("/api/fiches/search") || sansParametres.equals("/api/fiches/query");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+
+        int limite = LIMITE_DEFAUT;
+        String parametreLimite = RouteSync.parametre(chemin, "limit");
+        if (parametreLimite != null) {
+            try {
+                limite = Math.max(1, Math.min(LIMITE_MAX, Integer.parseInt(parametreLimite)));
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("limit invalide"));
+            }
+        }
+
+        if (chemin.startsWith("/api/fiches/query")) {
+            return traiterRequete(connecte, chemin, limite);
+        }
+
+        String requete = RouteSync.parametre(chemin, "q");
+        if (requete == null || requete.isBlank()) {
+            return reponse(400, JsonUtils.erreur("Parametre q requis"));
+        }
+
+        List<IndexRecherche.Resultat> resultats = index.rechercher(connecte, requete, limite);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < resultats.size(); i++) {
+            IndexRecherche.Resultat r = resultats.get(i);
+            json.append("{\"id\":").append(r.fiche.getIdFichePersonnage())
+                .append(",\"nom\":\"").append(JsonUtils.echapper(r.fiche.getNomFichePersonnage())).append("\"")
+                .append(",\"version\":").append(r.fiche.getVersion())
+                .append(",\"score\":").append(String.format(java.util.Locale.ROOT, "%.3f", r.score)).append("}");
+            if (i < resultats.size() - 1) json.append(",");
+        }
+        json.append("]");
+        return reponse(200, json.toString());
+    }
+
+    private String[] traiterRequete(Utilisateur connecte, String chemin, int limite) {
+        // Un parametre mal orthographie (q=, filter=...) renverrait toutes les fiches, comme sans filtre
+        int debut = chemin.indexOf('?');
+        if (debut != -1) {
+            for (String paire : chemin.substring(debut + 1).split("&")) {
+                if (paire.isEmpty()) continue;
+                int egal = paire.indexOf('=');
+                String nom = egal == -1 ? paire : paire.substring(0, egal);
+                nom = java.net.URLDecoder.decode(nom, java.nio.charset.StandardCharsets.UTF_8);
+                if (!PARAMETRES_REQUETE.contains(nom)) {
+                    return reponse(400, JsonUtils.erreur("Parametre inconnu : " + JsonUtils.echapper(nom)
+                        + " (attendus : " + String.join(", ", PARAMETRES_REQUETE) + ")"));
+                }
+            }
+        }
+
+        String ordre = RouteSync.parametre(chemin, "order");
+        if (ordre != null && !ordre.isEmpty() && !ordre.equals("asc") && !ordre.equals("desc")) {
+            return reponse(400, JsonUtils.erreur("order doit valoir asc ou desc"));
+        }
+
+        RequeteFiches requete;
+        try {
+            requete = RequeteFiches.lire(RouteSync.parametre(chemin, "where"), RouteSync.parametre(chemin, "sort"), "desc".equals(ordre));
+        } catch (IllegalArgumentException e) {
+            return reponse(400, JsonUtils.erreur(JsonUtils.echapper(e.getMessage())));
+        }
+
+        IndexStatistiques.Resultat resultat = indexStatistiques.executer(connecte, requete, limite);
+        StringBuilder json = new StringBuilder("{\"index\":")
+            .append(resultat.indexUtilise == null ? "null" : "\"" + JsonUtils.echapper(resultat.indexUtilise) + "\"")
+            .append(",\"candidats\":").append(resultat.candidats)
+            .append(",\"fiches\":[");
+        for (int i = 0; i < resultat.fiches.size(); i++) {
+            FichePersonnage f = resultat.fiches.get(i);
+            json.append("{\"id\":").append(f.getIdFichePersonnage())
+                .append(",\"nom\":\"").append(JsonUtils.echapper(f.getNomFichePersonnage())).append("\"")
+                .append(",\"version\":").append(f.getVersion())
+                .append(",\"statistiques\":[");
+            List<Statistique> stats = f.getStatistiques().getStatistiques();
+            for (int j = 0; j < stats.size(); j++) {
+                Statistique s = stats.get(j);
+                json.append("{\"id\":").append(s.getIdStatistique())
+                    .append(",\"nom\":\"").append(JsonUtils.echapper(s.getNomStatistique())).append("\"")
+                    .append(",\"valeur\":").append(s.getValeurStatistique()).append("}");
+                if (j < stats.size() - 1) json.append(",");
+            }
+            json.append("]}");
+            if (i < resultat.fiches.size() - 1) json.append(",");
+        }
+        json.append("]}");
+        return reponse(200, json.toString());
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
@@ -0,0 +1,58 @@
+package service.route;
+
+import model.Utilisateur;
+import service.Configuration;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+import service.Replication;
+
+import java.util.Map;
+
+/**
+ * Replication pour les administrateurs :
+ * GET  /api/admin/replication         -> role de l'instance, retard des suiveurs (primaire)
+ *                                        ou du suiveur sur son primaire
+ * POST /api/admin/replication/promote -> promeut un suiveur en primaire (409 s'il l'est deja)
+ */
+public class RouteReplication implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private Replication replication;
+
+    public RouteReplication(GestionUtilisateur gestionUtilisateur, Replication replication) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.replication = replication;
+    }
+
+    public boolean correspond(String chemin) {
+        String sansRequete = chemin.split("\\?", 2)[0];
+        return sansRequete.equals("/api/admin/replication") || sansRequete.equals("/api/admin/replication/promote");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!Configuration.liste("admins").contains(connecte.getNomUtilisateur())) {
+            return reponse(403, JsonUtils.erreur("Reserve aux administrateurs"));
+        }
+        if (chemin.split("\\?", 2)[0].endsWith("/promote")) {
+            if (!"POST".equals(methode)) {
+                return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+            }
+            if (!replication.promouvoir()) {
+                return reponse(409, JsonUtils.erreur("Instance deja primaire"));
+            }
+            return reponse(200, replication.etatJSON());
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+        return reponse(200, replication.etatJSON());
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
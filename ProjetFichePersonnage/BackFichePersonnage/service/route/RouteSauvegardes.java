@@ -0,0 +1,76 @@
+package service.route;
+
+import model.Utilisateur;
+import service.Configuration;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+import service.Sauvegardes;
+
+import java.util.Map;
+
+/**
+ * Sauvegardes en ligne pour les administrateurs :
+ * GET  /api/admin/backup -> etat (en cours, derniere sauvegarde terminee)
+ * POST /api/admin/backup -> lance une sauvegarde en fond (202), 409 si une est deja en cours
+ *
+ * La restauration se fait serveur arrete : java Main restaurer [numero] (voir Sauvegardes).
+ */
+public class RouteSauvegardes implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private Sauvegardes sauvegardes;
+
+    public RouteSauvegardes(GestionUtilisateur gestionUtilisateur, Sauvegardes sauvegardes) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.sauvegardes = sauvegardes;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.split("\\?", 2)[0].equals("/api/admin/backup");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!Configuration.liste("admins").contains(connecte.getNomUtilisateur())) {
+            return reponse(403, JsonUtils.erreur("Reserve aux administrateurs"));
+        }
+        if ("POST".equals(methode)) {
+            if (!sauvegardes.lancer()) {
+                return reponse(409, JsonUtils.erreur("Sauvegarde deja en cours"));
+            }
+            return reponse(202, JsonUtils.succes());
+        }
+        if ("GET".equals(methode)) {
+            return reponse(200, etatJSON());
+        }
+        return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+    }
+
+    private String etatJSON() {
+        Sauvegardes.Resultat derniere = sauvegardes.derniere();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"enCours\":").append(sauvegardes.enCours()).append(",\"derniere\":");
+        if (derniere == null) {
+            json.append("null");
+        } else {
+            json.append("{\"numero\":").append(derniere.numero)
+                .append(",\"date\":").append(derniere.date)
+                .append(",\"complete\":").append(derniere.complete)
+                .append(",\"fiches\":").append(derniere.fiches)
+                .append(",\"copiees\":").append(derniere.copiees)
+                .append(",\"octets\":").append(derniere.octets)
+                .append(",\"blobs\":").append(derniere.blobs)
+                .append(",\"blobsCopies\":").append(derniere.blobsCopies)
+                .append(",\"dureeMs\":").append(derniere.dureeMs)
+                .append("}");
+        }
+        return json.append("}").toString();
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
@@ -0,0 +1,80 @@
+package service.route;
+
+import model.Utilisateur;
+import service.GestionUtilisateur;
+import service.IndexSuggestions;
+import service.JsonUtils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suggestions de noms pendant la saisie :
+ * GET /api/suggestions?type=competence|equipement&prefix={debut}&limit={n}&scope=user|global
+ *
+ * Retourne [{nom, occurrences}, ...], du nom le plus frequent au moins frequent.
+ * scope=user (par defaut) : noms des fiches de l'utilisateur connecte ;
+ * scope=global : noms cumules de tous les utilisateurs actifs depuis le demarrage.
+ */
+public class RouteSuggestions implements Route {
+
+    private static final int LIMITE_DEFAUT = 10;
+    private static final int LIMITE_MAX = 50;
+
+    private GestionUtilisateur gestionUtilisateur;
+    private IndexSuggestions index;
+
+    public RouteSuggestions(GestionUtilisateur gestionUtilisateur, IndexSuggestions index) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.index = index;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.equals("/api/suggestions") || chemin.startsWith("/api/suggestions?");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+
+        String type = RouteSync.parametre(chemin, "type");
+        if (!IndexSuggestions.COMPETENCE.equals(type) && !IndexSuggestions.EQUIPEMENT.equals(type)) {
+            return reponse(400, JsonUtils.erreur("type doit valoir competence ou equipement"));
+        }
+        String portee = RouteSync.parametre(chemin, "scope");
+        if (portee != null && !portee.equals("user") && !portee.equals("global")) {
+            return reponse(400, JsonUtils.erreur("scope doit valoir user ou global"));
+        }
+        String prefixe = RouteSync.parametre(chemin, "prefix");
+        int limite = LIMITE_DEFAUT;
+        String parametreLimite = RouteSync.parametre(chemin, "limit");
+        if (parametreLimite != null) {
+            try {
+                limite = Math.max(1, Math.min(LIMITE_MAX, Integer.parseInt(parametreLimite)));
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("limit invalide"));
+            }
+        }
+
+        List<IndexSuggestions.Suggestion> suggestions =
+            index.suggerer(connecte, type, prefixe == null ? "" : prefixe, limite, "global".equals(portee));
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < suggestions.size(); i++) {
+            IndexSuggestions.Suggestion s = suggestions.get(i);
+            json.append("{\"nom\":\"").append(JsonUtils.echapper(s.nom)).append("\"")
+                .append(",\"occurrences\":").append(s.occurrences).append("}");
+            if (i < suggestions.size() - 1) json.append(",");
+        }
+        json.append("]");
+        return reponse(200, json.toString());
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
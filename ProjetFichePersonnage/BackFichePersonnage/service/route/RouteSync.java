@@ -0,0 +1,128 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Utilisateur;
+import service.GestionUtilisateur;
+import service.JournalModifications;
+import service.JsonUtils;
+
+import java.util.Map;
+
+/**
+ * Synchronisation incrementale :
+ * GET /api/sync?since={numero}
+ *
+ * Retourne le nouveau numero a conserver par le client et, pour chaque fiche changee
+ * depuis "since" : la fiche complete si elle a ete creee, ses seules parties modifiees
+ * (a fusionner comme un JSON Merge Patch) si elle a ete modifiee, {"id":..,"supprimee":true}
+ * si elle a ete supprimee.
+ *
+ * Sans "since", ou si le journal ne couvre plus la periode, la reponse porte
+ * "complet":true et la liste de toutes les fiches (id, nom, version) : le client
+ * recharge alors celles dont la version a change.
+ */
+public class RouteSync implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private JournalModifications journal;
+
+    public RouteSync(GestionUtilisateur gestionUtilisateur, JournalModifications journal) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.journal = journal;
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.equals("/api/sync") || chemin.startsWith("/api/sync?");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+        if (!"GET".equals(methode)) {
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+
+        String since = parametre(chemin, "since");
+        long depuis = -1;
+        if (since != null) {
+            try {
+                depuis = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                return reponse(400, JsonUtils.erreur("since invalide"));
+            }
+        }
+
+        // Numero lu avant les fiches : une modification concurrente sera renvoyee a la prochaine synchronisation
+        long numero = journal.dernierNumero(connecte);
+        Map<Integer, JournalModifications.ModificationFiche> modifications =
+            depuis < 0 ? null : journal.modificationsDepuis(connecte, depuis);
+
+        if (modifications == null) {
+            return reponse(200, resynchronisation(connecte, numero));
+        }
+
+        StringBuilder json = new StringBuilder("{\"version\":").append(numero).append(",\"complet\":false,\"fiches\":[");
+        boolean premier = true;
+        for (Map.Entry<Integer, JournalModifications.ModificationFiche> entree : modifications.entrySet()) {
+            int idFiche = entree.getKey();
+            FichePersonnage fiche = trouverFiche(connecte, idFiche);
+            String element;
+            if (fiche == null) {
+                element = "{\"id\":" + idFiche + ",\"supprimee\":true}";
+            } else if (entree.getValue().type == JournalModifications.MODIFICATION) {
+                element = JsonUtils.partiesFicheVersJSON(fiche, entree.getValue().parties);
+            } else {
+                element = JsonUtils.ficheVersJSON(fiche);
+            }
+            if (!premier) json.append(",");
+            json.append(element);
+            premier = false;
+        }
+        json.append("]}");
+        return reponse(200, json.toString());
+    }
+
+    private String resynchronisation(Utilisateur utilisateur, long numero) {
+        StringBuilder json = new StringBuilder("{\"version\":").append(numero).append(",\"complet\":true,\"fiches\":[");
+        boolean premier = true;
+        for (FichePersonnage f : utilisateur.getFiches()) {
+            if (!premier) json.append(",");
+            json.append("{\"id\":").append(f.getIdFichePersonnage())
+                .append(",\"nom\":\"").append(JsonUtils.echapper(f.getNomFichePersonnage())).append("\"")
+                .append(",\"version\":").append(f.getVersion()).append("}");
+            premier = false;
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private FichePersonnage trouverFiche(Utilisateur utilisateur, int idFiche) {
+        for (FichePersonnage f : utilisateur.getFiches()) {
+            if (f.getIdFichePersonnage() == idFiche) return f;
+        }
+        return null;
+    }
+
+    /**
+     * Lit un parametre de la query string (?cle=valeur&...), null s'il est absent.
+     */
+    static String parametre(String chemin, String cle) {
+        int debut = chemin.indexOf('?');
+        if (debut == -1) return null;
+        for (String paire : chemin.substring(debut + 1).split("&")) {
+            int egal = paire.indexOf('=');
+            String nom = egal == -1 ? paire : paire.substring(0, egal);
+            if (nom.equals(cle)) {
+                String valeur = egal == -1 ? "" : paire.substring(egal + 1);
+                return java.net.URLDecoder.decode(valeur, java.nio.charset.StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}
@@ -0,0 +1,22 @@
+package service.route;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Route qui lit elle-meme le corps de la requete, au fil de l'eau (envoi de fichiers).
+ * Consultee par ServeurAPI avant la lecture du corps : les autres routes recoivent le corps
+ * deja lu en memoire sous forme de texte.
+ */
+public interface RouteTeleversement {
+
+    /** Retourne true si cette route lit le corps de cette requete */
+    boolean correspond(String methode, String chemin, Map<String, String> entetes);
+
+    /**
+     * Traite la requete. Le corps (exactement Content-Length octets) n'est lu qu'une fois ;
+     * retourne la reponse [code, json] ou [code, json, en-tetes].
+     */
+    String[] recevoir(String methode, String chemin, Map<String, String> entetes, InputStream corps) throws IOException;
+}
@@ -0,0 +1,132 @@
+package service.route;
+
+import model.FichePersonnage;
+import model.Template;
+import model.Utilisateur;
+import service.Configuration;
+import service.GestionFiche;
+import service.GestionTemplate;
+import service.GestionUtilisateur;
+import service.JsonUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Templates de fiches :
+ * GET /api/templates (liste), POST /api/templates {idFiche, nom} (template depuis une fiche)
+ * DELETE /api/templates/{id}
+ * POST /api/templates/{id}/fiches {nom, nombre} : cree "nombre" fiches depuis le template
+ * en une seule requete et une seule sauvegarde (noms "nom 1", "nom 2"... si nombre > 1).
+ */
+public class RouteTemplates implements Route {
+
+    private GestionUtilisateur gestionUtilisateur;
+    private GestionFiche gestionFiche;
+    private GestionTemplate gestionTemplate;
+    private final int creationMax;
+
+    public RouteTemplates(GestionUtilisateur gestionUtilisateur, GestionFiche gestionFiche, GestionTemplate gestionTemplate) {
+        this.gestionUtilisateur = gestionUtilisateur;
+        this.gestionFiche = gestionFiche;
+        this.gestionTemplate = gestionTemplate;
+        this.creationMax = Configuration.entier("templates.creation.max", 10_000);
+    }
+
+    public boolean correspond(String chemin) {
+        return chemin.equals("/api/templates") || chemin.startsWith("/api/templates/");
+    }
+
+    public String[] traiter(String methode, String chemin, String body, Map<String, String> entetes) {
+        Utilisateur connecte = gestionUtilisateur.getUtilisateurConnecte();
+        if (connecte == null) {
+            return reponse(401, JsonUtils.erreur("Non connecte"));
+        }
+
+        String[] segments = chemin.split("/");
+        if (segments.length == 3) {
+            return traiterListeOuCreation(connecte, methode, body);
+        }
+
+        int idTemplate;
+        try {
+            idTemplate = Integer.parseInt(segments[3]);
+        } catch (NumberFormatException e) {
+            return reponse(400, JsonUtils.erreur("ID invalide"));
+        }
+        Template template = gestionTemplate.getTemplate(connecte, idTemplate);
+        if (template == null) return reponse(404, JsonUtils.erreur("Template non trouve"));
+
+        if (segments.length == 4) {
+            if ("DELETE".equals(methode)) {
+                gestionTemplate.supprimerTemplate(connecte, idTemplate);
+                return reponse(200, JsonUtils.succes());
+            }
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+        if (segments.length == 5 && segments[4].equals("fiches")) {
+            if ("POST".equals(methode)) return creerFiches(template, body);
+            return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+        }
+        return reponse(404, JsonUtils.erreur("Route inconnue"));
+    }
+
+    private String[] traiterListeOuCreation(Utilisateur connecte, String methode, String body) {
+        if ("GET".equals(methode)) {
+            List<Template> templates = gestionTemplate.listerTemplates(connecte);
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < templates.size(); i++) {
+                Template t = templates.get(i);
+                json.append("{\"id\":").append(t.getIdTemplate())
+                    .append(",\"nom\":\"").append(JsonUtils.echapper(t.getNomTemplate())).append("\"")
+                    .append(",\"statistiques\":").append(t.getStatistiques().getStatistiques().size())
+                    .append(",\"competences\":").append(t.getCompetence().getCompetences().size())
+                    .append(",\"equipements\":").append(t.getEquipement().getEquipements().size())
+                    .append(",\"modulesPersonnalises\":").append(t.getModulesPersonnalises().size()).append("}");
+                if (i < templates.size() - 1) json.append(",");
+            }
+            json.append("]");
+            return reponse(200, json.toString());
+        }
+        if ("POST".equals(methode)) {
+            Integer idFiche = JsonUtils.extraireInt(body, "idFiche");
+            String nom = JsonUtils.extraireString(body, "nom");
+            if (idFiche == null || nom == null || nom.isEmpty()) {
+                return reponse(400, JsonUtils.erreur("idFiche et nom requis"));
+            }
+            Template template = gestionTemplate.creerTemplate(connecte, idFiche, nom);
+            if (template == null) return reponse(404, JsonUtils.erreur("Fiche non trouvee"));
+            return reponse(201, JsonUtils.succesAvecIdNom(template.getIdTemplate(), template.getNomTemplate()));
+        }
+        return reponse(405, JsonUtils.erreur("Methode non autorisee"));
+    }
+
+    private String[] creerFiches(Template template, String body) {
+        String nom = JsonUtils.extraireString(body, "nom");
+        if (nom == null || nom.isEmpty()) nom = template.getNomTemplate();
+        Integer nombre = JsonUtils.extraireInt(body, "nombre");
+        if (nombre == null) nombre = 1;
+        if (nombre < 1 || nombre > creationMax) {
+            return reponse(400, JsonUtils.erreur("nombre doit etre entre 1 et " + creationMax));
+        }
+
+        List<String> noms = new ArrayList<>(nombre);
+        for (int i = 1; i <= nombre; i++) {
+            noms.add(nombre == 1 ? nom : nom + " " + i);
+        }
+        List<FichePersonnage> fiches = gestionFiche.creerFichesDepuisTemplate(template, noms);
+
+        StringBuilder json = new StringBuilder("{\"succes\":true,\"nombre\":").append(fiches.size()).append(",\"ids\":[");
+        for (int i = 0; i < fiches.size(); i++) {
+            json.append(fiches.get(i).getIdFichePersonnage());
+            if (i < fiches.size() - 1) json.append(",");
+        }
+        json.append("]}");
+        return reponse(201, json.toString());
+    }
+
+    private String[] reponse(int code, String json) {
+        return new String[]{ String.valueOf(code), json };
+    }
+}